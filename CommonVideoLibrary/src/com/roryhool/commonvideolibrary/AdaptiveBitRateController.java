@@ -0,0 +1,192 @@
+/**
+   Copyright (c) 2014 Rory Hool
+   
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+   
+       http://www.apache.org/licenses/LICENSE-2.0
+   
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ **/
+
+package com.roryhool.commonvideolibrary;
+
+import java.util.Locale;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.os.Build;
+import android.os.Bundle;
+import android.util.Log;
+
+/**
+ * Steers a running encoder towards an average bitrate. Every encoded sample is reported, once per window of
+ * presentation time the bytes written so far are compared with what the target allows for that much video and the
+ * encoder's bitrate is corrected with MediaCodec.setParameters. Needs API 19 to change anything, on older versions it
+ * only measures.
+ */
+@TargetApi( Build.VERSION_CODES.KITKAT )
+public class AdaptiveBitRateController {
+
+   private static final String TAG = "AdaptiveBitRateController";
+
+   private static final long WINDOW_US = 1000000;
+
+   // Never ask for less than a quarter or more than four times the target, encoders behave badly at the extremes.
+   private static final float MIN_FACTOR = 0.25f;
+   private static final float MAX_FACTOR = 4f;
+
+   // Don't bother the encoder with changes smaller than this.
+   private static final float MIN_CHANGE = 0.05f;
+
+   MediaCodec mEncoder;
+
+   int mTargetBitRate;
+
+   int mCurrentBitRate;
+
+   // Reused for every change, the encoder copies what it needs.
+   Bundle mParameters;
+
+   long mTotalBytes = 0;
+
+   long mWindowStartUs = -1;
+
+   long mWindowBytes = 0;
+
+   float mMeasuredBitRate = 0;
+
+   // Optional plan of bitrates over presentation time, replaces the constant target.
+   long[] mScheduleStartsUs;
+   int[] mScheduleBitRates;
+
+   public AdaptiveBitRateController( MediaCodec encoder, int targetBitRate ) {
+      mEncoder = encoder;
+      mTargetBitRate = targetBitRate;
+      mCurrentBitRate = targetBitRate;
+   }
+
+   public void setTargetBitRate( int targetBitRate ) {
+      mTargetBitRate = targetBitRate;
+   }
+
+   public int getTargetBitRate() {
+      return mTargetBitRate;
+   }
+
+   /**
+    * Plans a bitrate per stretch of presentation time, e.g. from a {@link ComplexityAnalysis}. The output is steered to
+    * the bytes the plan allows up to each point instead of a constant rate.
+    */
+   public void setSchedule( long[] startsUs, int[] bitRates ) {
+      mScheduleStartsUs = startsUs;
+      mScheduleBitRates = bitRates;
+   }
+
+   /**
+    * Bytes the target allows for the output from the start up to timeUs.
+    */
+   double getAllowedBytes( long timeUs ) {
+      if ( mScheduleStartsUs == null || mScheduleStartsUs.length == 0 ) {
+         return (double) mTargetBitRate * timeUs / 8000000.0;
+      }
+
+      double bits = 0;
+      for ( int i = 0; i < mScheduleStartsUs.length && mScheduleStartsUs[i] < timeUs; i++ ) {
+         long endUs = i + 1 < mScheduleStartsUs.length ? Math.min( timeUs, mScheduleStartsUs[i + 1] ) : timeUs;
+         bits += (double) mScheduleBitRates[i] * ( endUs - mScheduleStartsUs[i] ) / 1000000.0;
+      }
+      return bits / 8;
+   }
+
+   /**
+    * Bitrate the plan asks for at timeUs, the constant target without a plan.
+    */
+   int getPlannedBitRate( long timeUs ) {
+      if ( mScheduleStartsUs == null || mScheduleStartsUs.length == 0 ) {
+         return mTargetBitRate;
+      }
+
+      int bitRate = mScheduleBitRates[0];
+      for ( int i = 0; i < mScheduleStartsUs.length && mScheduleStartsUs[i] <= timeUs; i++ ) {
+         bitRate = mScheduleBitRates[i];
+      }
+      return bitRate;
+   }
+
+   /**
+    * The bitrate the encoder was last told to use.
+    */
+   public int getCurrentBitRate() {
+      return mCurrentBitRate;
+   }
+
+   /**
+    * Bitrate of the output over the last full window.
+    */
+   public float getMeasuredBitRate() {
+      return mMeasuredBitRate;
+   }
+
+   public long getTotalBytes() {
+      return mTotalBytes;
+   }
+
+   /**
+    * Call for each encoded sample written to the output.
+    */
+   public void onSampleWritten( int size, long presentationTimeUs ) {
+      if ( mWindowStartUs < 0 ) {
+         mWindowStartUs = presentationTimeUs;
+      }
+
+      mTotalBytes += size;
+      mWindowBytes += size;
+
+      long windowUs = presentationTimeUs - mWindowStartUs;
+      if ( windowUs < WINDOW_US ) {
+         return;
+      }
+
+      mMeasuredBitRate = mWindowBytes * 8f * 1000000f / windowUs;
+      mWindowStartUs = presentationTimeUs;
+      mWindowBytes = 0;
+
+      adjust( presentationTimeUs );
+   }
+
+   private void adjust( long timeUs ) {
+      // Bytes the target allows for what was encoded so far, plus one window to make up the difference in.
+      double allowedBytes = getAllowedBytes( timeUs + WINDOW_US );
+      double remainingBytes = allowedBytes - mTotalBytes;
+      double wantedBitRate = remainingBytes * 8000000.0 / WINDOW_US;
+
+      // The encoder doesn't hit what it is asked for either, scale by how far off it was in the last window.
+      if ( mMeasuredBitRate > 0 ) {
+         wantedBitRate *= mCurrentBitRate / mMeasuredBitRate;
+      }
+
+      int plannedBitRate = getPlannedBitRate( timeUs );
+      int bitRate = (int) Math.max( plannedBitRate * MIN_FACTOR, Math.min( plannedBitRate * MAX_FACTOR, wantedBitRate ) );
+
+      if ( Math.abs( bitRate - mCurrentBitRate ) < mCurrentBitRate * MIN_CHANGE ) {
+         return;
+      }
+
+      Log.d( TAG, String.format( Locale.US, "measured %.0f bps, planned %d bps, setting %d bps", mMeasuredBitRate, plannedBitRate, bitRate ) );
+
+      if ( Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT ) {
+         if ( mParameters == null ) {
+            mParameters = new Bundle();
+         }
+         mParameters.putInt( MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitRate );
+         mEncoder.setParameters( mParameters );
+      }
+      mCurrentBitRate = bitRate;
+   }
+}
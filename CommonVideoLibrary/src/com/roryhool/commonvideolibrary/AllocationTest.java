@@ -0,0 +1,216 @@
+/**
+   Copyright (c) 2014 Rory Hool
+   
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+   
+       http://www.apache.org/licenses/LICENSE-2.0
+   
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ **/
+
+package com.roryhool.commonvideolibrary;
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * Checks that the per frame paths stay within their allocation budget once warmed up: the mp4 writer, the latency
+ * tracking and the event tracer. Each check runs its step for WARM_UP_FRAMES, then counts what the thread allocates
+ * over FRAMES more. The writer's budgets cover its sample tables, which grow by doubling. Nothing here needs Android,
+ * it runs on a desktop JVM and exits with 1 when a check fails:
+ * 
+ * java -cp bin com.roryhool.commonvideolibrary.AllocationTest [directory]
+ * 
+ * {@link DeviceAllocationTest} runs it on a device, along with the encode and decode loops against a
+ * {@link FakeCodecQueue}.
+ */
+public class AllocationTest {
+
+   protected static final int WARM_UP_FRAMES = 2000;
+   protected static final int FRAMES = 20000;
+
+   protected static final int FRAME_SIZE = 2048;
+   protected static final int SYNC_INTERVAL = 30;
+   protected static final long FRAME_DURATION_US = 33333;
+
+   static final double WRITER_NORMAL_BUDGET = 64;
+   static final double WRITER_FRAGMENTED_BUDGET = 8;
+   protected static final double NO_ALLOCATION_BUDGET = 1;
+
+   static final byte[] SPS = { 0x67, 0x42, (byte) 0x80, 0x1e, (byte) 0xda, 0x02, (byte) 0x80, (byte) 0xf6, (byte) 0x80 };
+   static final byte[] PPS = { 0x68, (byte) 0xce, 0x06, (byte) 0xe2 };
+
+   /**
+    * What a check does for one frame.
+    */
+   public interface Step {
+      public void run( int frame ) throws Exception;
+   }
+
+   public static void main( String[] args ) throws Exception {
+      File directory = new File( args.length > 0 ? args[0] : System.getProperty( "java.io.tmpdir" ) );
+
+      AllocationTest test = new AllocationTest();
+      if ( !test.run( directory ) ) {
+         System.exit( 1 );
+      }
+   }
+
+   int mFailures = 0;
+
+   // What reading the counter allocates itself, taken off every measurement.
+   long mOverheadBytes = -1;
+
+   Method mAllocatedBytes;
+   Object mThreadBean;
+
+   /**
+    * Runs every check, true when all of them stayed within their budget.
+    */
+   public boolean run( File directory ) throws Exception {
+      runChecks( directory );
+      return mFailures == 0;
+   }
+
+   /**
+    * Subclasses add their checks here, temporary files go to directory.
+    */
+   protected void runChecks( File directory ) throws Exception {
+      checkWriter( "Mp4Writer normal", Mp4Writer.MODE_NORMAL, WRITER_NORMAL_BUDGET, directory );
+      checkWriter( "Mp4Writer fragmented", Mp4Writer.MODE_FRAGMENTED, WRITER_FRAGMENTED_BUDGET, directory );
+      checkLatencyTracker();
+      checkEventTracer();
+   }
+
+   /**
+    * Runs step for the warm up frames and then for frames more, and reports whether those allocated at most budget
+    * bytes per frame.
+    */
+   public boolean check( String name, double budget, int frames, Step step ) throws Exception {
+      for ( int frame = 0; frame < WARM_UP_FRAMES; frame++ ) {
+         step.run( frame );
+      }
+
+      if ( mOverheadBytes < 0 ) {
+         mOverheadBytes = measureOverhead();
+      }
+
+      long start = getAllocatedBytes();
+      for ( int frame = WARM_UP_FRAMES; frame < WARM_UP_FRAMES + frames; frame++ ) {
+         step.run( frame );
+      }
+      long bytes = Math.max( 0, getAllocatedBytes() - start - mOverheadBytes );
+
+      double perFrame = (double) bytes / frames;
+      boolean passed = perFrame <= budget;
+      if ( !passed ) {
+         mFailures++;
+      }
+      report( String.format( Locale.US, "%-28s %8.2f B/frame, budget %6.1f  %s", name, perFrame, budget, passed ? "ok" : "FAILED" ) );
+      return passed;
+   }
+
+   /**
+    * Bytes allocated by the calling thread so far. Reached through reflection, the library compiles against
+    * android.jar, which has no java.lang.management.
+    */
+   long getAllocatedBytes() throws Exception {
+      if ( mAllocatedBytes == null ) {
+         mThreadBean = Class.forName( "java.lang.management.ManagementFactory" ).getMethod( "getThreadMXBean" ).invoke( null );
+         mAllocatedBytes = Class.forName( "com.sun.management.ThreadMXBean" ).getMethod( "getThreadAllocatedBytes", long.class );
+      }
+      return (Long) mAllocatedBytes.invoke( mThreadBean, Thread.currentThread().getId() );
+   }
+
+   void report( String result ) {
+      System.out.println( result );
+   }
+
+   /**
+    * The smallest of a few empty intervals, after enough calls that the counter's own setup is done.
+    */
+   private long measureOverhead() throws Exception {
+      long overhead = Long.MAX_VALUE;
+      for ( int i = 0; i < 100; i++ ) {
+         long start = getAllocatedBytes();
+         overhead = Math.min( overhead, getAllocatedBytes() - start );
+      }
+      return overhead;
+   }
+
+   /**
+    * Writes Annex B frames the way Mp4Muxer passes on what the encoder gives it.
+    */
+   private void checkWriter( String name, int mode, double budget, File directory ) throws Exception {
+      File output = new File( directory, "allocation_test.mp4" );
+      final Mp4Writer writer = new Mp4Writer( output, mode );
+      try {
+         final int track = writer.addVideoTrack( 1280, 720, SPS, PPS );
+         writer.start();
+
+         final ByteBuffer sample = createFrame( FRAME_SIZE );
+         check( name, budget, FRAMES, new Step() {
+            @Override
+            public void run( int frame ) throws Exception {
+               boolean sync = frame % SYNC_INTERVAL == 0;
+               sample.put( 4, (byte) ( sync ? 0x65 : 0x41 ) );
+               sample.clear();
+               writer.writeSample( track, sample, frame * FRAME_DURATION_US, sync );
+            }
+         } );
+
+         writer.finish();
+      } finally {
+         writer.close();
+         output.delete();
+      }
+   }
+
+   private void checkLatencyTracker() throws Exception {
+      final FrameLatencyTracker tracker = new FrameLatencyTracker( new LatencyHistogram() );
+      final LatencyHistogram histogram = new LatencyHistogram();
+      check( "FrameLatencyTracker", NO_ALLOCATION_BUDGET, FRAMES, new Step() {
+         @Override
+         public void run( int frame ) {
+            long startNs = System.nanoTime();
+            tracker.frameIn( frame * FRAME_DURATION_US );
+            tracker.frameOut( frame * FRAME_DURATION_US );
+            histogram.recordSince( startNs );
+         }
+      } );
+   }
+
+   private void checkEventTracer() throws Exception {
+      final EventTracer tracer = new EventTracer( EventTracer.DEFAULT_CAPACITY );
+      check( "EventTracer", NO_ALLOCATION_BUDGET, FRAMES, new Step() {
+         @Override
+         public void run( int frame ) {
+            tracer.begin( EventTracer.MUX_SAMPLE, FRAME_SIZE );
+            tracer.end( EventTracer.MUX_SAMPLE );
+            tracer.instant( EventTracer.ENCODER_OUTPUT, frame );
+         }
+      } );
+   }
+
+   /**
+    * An Annex B frame of size bytes: a start code, a NAL header and a payload without start code emulation.
+    */
+   static ByteBuffer createFrame( int size ) {
+      ByteBuffer frame = ByteBuffer.allocateDirect( size );
+      frame.putInt( 1 );
+      frame.put( (byte) 0x41 );
+      while ( frame.hasRemaining() ) {
+         frame.put( (byte) 1 );
+      }
+      frame.clear();
+      return frame;
+   }
+}
@@ -0,0 +1,134 @@
+/**
+   Copyright (c) 2014 Rory Hool
+   
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+   
+       http://www.apache.org/licenses/LICENSE-2.0
+   
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ **/
+
+package com.roryhool.commonvideolibrary;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Growable big-endian byte array for building ISO BMFF boxes. Box sizes are patched in when a box is ended, boxes can
+ * be nested.
+ */
+class BoxBuffer {
+
+   byte[] mData;
+
+   int mSize = 0;
+
+   int[] mBoxStarts = new int[16];
+
+   int mDepth = 0;
+
+   BoxBuffer( int capacity ) {
+      mData = new byte[capacity];
+   }
+
+   void reset() {
+      mSize = 0;
+      mDepth = 0;
+   }
+
+   int size() {
+      return mSize;
+   }
+
+   /**
+    * The built bytes, valid until the next write.
+    */
+   ByteBuffer toByteBuffer() {
+      return ByteBuffer.wrap( mData, 0, mSize );
+   }
+
+   void startBox( String type ) {
+      if ( mDepth == mBoxStarts.length ) {
+         int[] starts = new int[mBoxStarts.length * 2];
+         System.arraycopy( mBoxStarts, 0, starts, 0, mDepth );
+         mBoxStarts = starts;
+      }
+      mBoxStarts[mDepth++] = mSize;
+      putInt( 0 );
+      putFourCC( type );
+   }
+
+   void startFullBox( String type, int version, int flags ) {
+      startBox( type );
+      putInt( ( version << 24 ) | ( flags & 0xFFFFFF ) );
+   }
+
+   void endBox() {
+      int start = mBoxStarts[--mDepth];
+      setInt( start, mSize - start );
+   }
+
+   void putByte( int value ) {
+      ensure( 1 );
+      mData[mSize++] = (byte) value;
+   }
+
+   void putShort( int value ) {
+      ensure( 2 );
+      mData[mSize++] = (byte) ( value >> 8 );
+      mData[mSize++] = (byte) value;
+   }
+
+   void putInt( int value ) {
+      ensure( 4 );
+      mData[mSize++] = (byte) ( value >> 24 );
+      mData[mSize++] = (byte) ( value >> 16 );
+      mData[mSize++] = (byte) ( value >> 8 );
+      mData[mSize++] = (byte) value;
+   }
+
+   void putLong( long value ) {
+      putInt( (int) ( value >> 32 ) );
+      putInt( (int) value );
+   }
+
+   void putFourCC( String type ) {
+      ensure( 4 );
+      for ( int i = 0; i < 4; i++ ) {
+         mData[mSize++] = (byte) type.charAt( i );
+      }
+   }
+
+   void putBytes( byte[] bytes ) {
+      ensure( bytes.length );
+      System.arraycopy( bytes, 0, mData, mSize, bytes.length );
+      mSize += bytes.length;
+   }
+
+   void putZeros( int count ) {
+      ensure( count );
+      for ( int i = 0; i < count; i++ ) {
+         mData[mSize++] = 0;
+      }
+   }
+
+   void setInt( int position, int value ) {
+      mData[position] = (byte) ( value >> 24 );
+      mData[position + 1] = (byte) ( value >> 16 );
+      mData[position + 2] = (byte) ( value >> 8 );
+      mData[position + 3] = (byte) value;
+   }
+
+   private void ensure( int count ) {
+      if ( mSize + count > mData.length ) {
+         byte[] data = new byte[Math.max( mData.length * 2, mSize + count )];
+         System.arraycopy( mData, 0, data, 0, mSize );
+         mData = data;
+      }
+   }
+}
@@ -0,0 +1,46 @@
+/**
+   Copyright (c) 2014 Rory Hool
+   
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+   
+       http://www.apache.org/licenses/LICENSE-2.0
+   
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ **/
+
+package com.roryhool.commonvideolibrary;
+
+import java.nio.ByteBuffer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+/**
+ * What the encode and decode loops need from a started codec for every frame, the calls MediaCodec has. The loops go
+ * through {@link MediaCodecQueue} to a codec, {@link FakeCodecQueue} stands in for one where there is no hardware.
+ * Configuring, starting and releasing stay on the MediaCodec.
+ */
+public interface CodecQueue {
+
+   public ByteBuffer[] getInputBuffers();
+
+   public ByteBuffer[] getOutputBuffers();
+
+   public int dequeueInputBuffer( long timeoutUs );
+
+   public void queueInputBuffer( int index, int offset, int size, long presentationTimeUs, int flags );
+
+   public int dequeueOutputBuffer( MediaCodec.BufferInfo info, long timeoutUs );
+
+   public void releaseOutputBuffer( int index, boolean render );
+
+   public MediaFormat getOutputFormat();
+
+   public void signalEndOfInputStream();
+}
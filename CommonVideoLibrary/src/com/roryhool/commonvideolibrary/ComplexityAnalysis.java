@@ -0,0 +1,232 @@
+/**
+   Copyright (c) 2014 Rory Hool
+   
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+   
+       http://www.apache.org/licenses/LICENSE-2.0
+   
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ **/
+
+package com.roryhool.commonvideolibrary;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
+
+import android.util.Log;
+
+import com.coremedia.iso.IsoFile;
+import com.coremedia.iso.boxes.Box;
+import com.coremedia.iso.boxes.SampleSizeBox;
+import com.coremedia.iso.boxes.SampleTableBox;
+import com.coremedia.iso.boxes.TimeToSampleBox;
+import com.coremedia.iso.boxes.TrackBox;
+
+/**
+ * Cheap look at how hard each part of the output is to encode, from the sample tables of the source files. The source
+ * encoder already spent more bits where the picture is busy, so the bytes per second it wrote for a stretch of video
+ * is a good measure of that stretch's complexity. Nothing is decoded.
+ * <p>
+ * The output timeline, clips one after the other, is cut into fixed segments and the bits of a size budget are shared
+ * out between them by complexity.
+ */
+public class ComplexityAnalysis {
+
+   private static final String TAG = "ComplexityAnalysis";
+
+   public static final long DEFAULT_SEGMENT_US = 2000000;
+
+   // Source bytes don't grow linearly with how much a segment needs, flatten the differences a bit.
+   private static final double COMPLEXITY_EXPONENT = 0.6;
+
+   // Keep every segment within this factor of the average bitrate.
+   private static final double MAX_DEVIATION = 2.0;
+
+   // Share of the size budget left for the container.
+   private static final double CONTAINER_OVERHEAD = 0.02;
+
+   long mSegmentUs;
+
+   long[] mSegmentBytes = new long[16];
+
+   int mSegmentCount = 0;
+
+   long mDurationUs = 0;
+
+   public ComplexityAnalysis() {
+      this( DEFAULT_SEGMENT_US );
+   }
+
+   public ComplexityAnalysis( long segmentUs ) {
+      mSegmentUs = segmentUs;
+   }
+
+   /**
+    * Adds the part of the clip that will be encoded to the end of the timeline.
+    */
+   public void addClip( SamplerClip clip ) throws IOException {
+      long startUs = clip.getStartTime() == -1 ? 0 : clip.getStartTime() * 1000;
+      long endUs = ( clip.getEndTime() == -1 ? clip.getVideoDuration() : clip.getEndTime() ) * 1000;
+
+      IsoFile file = new IsoFile( clip.getUri().toString() );
+      try {
+         TrackBox track = findVideoTrack( file );
+         if ( track == null ) {
+            throw new IOException( "No video track in " + clip.getUri() );
+         }
+
+         long timescale = track.getMediaBox().getMediaHeaderBox().getTimescale();
+         SampleTableBox sampleTable = track.getSampleTableBox();
+         SampleSizeBox sampleSizes = sampleTable.getSampleSizeBox();
+         List<TimeToSampleBox.Entry> timeToSample = sampleTable.getTimeToSampleBox().getEntries();
+
+         long constantSize = sampleSizes.getSampleSize();
+         long[] sizes = constantSize == 0 ? sampleSizes.getSampleSizes() : null;
+
+         int sample = 0;
+         long time = 0;
+         for ( TimeToSampleBox.Entry entry : timeToSample ) {
+            for ( long i = 0; i < entry.getCount(); i++ ) {
+               long timeUs = time * 1000000 / timescale;
+               if ( timeUs >= startUs && timeUs < endUs ) {
+                  long size = sizes != null ? sizes[sample] : constantSize;
+                  addBytes( mDurationUs + timeUs - startUs, size );
+               }
+               time += entry.getDelta();
+               sample++;
+            }
+         }
+      } finally {
+         file.close();
+      }
+
+      mDurationUs += endUs - startUs;
+   }
+
+   public long getDurationUs() {
+      return mDurationUs;
+   }
+
+   public long getSegmentUs() {
+      return mSegmentUs;
+   }
+
+   public int getSegmentCount() {
+      return (int) ( ( mDurationUs + mSegmentUs - 1 ) / mSegmentUs );
+   }
+
+   /**
+    * Start time in the output of every segment, matching the bitrates from allocate.
+    */
+   public long[] getSegmentStartsUs() {
+      long[] starts = new long[getSegmentCount()];
+      for ( int i = 0; i < starts.length; i++ ) {
+         starts[i] = i * mSegmentUs;
+      }
+      return starts;
+   }
+
+   /**
+    * Shares the bits of targetBytes out between the segments, returns a bitrate per segment.
+    */
+   public int[] allocate( long targetBytes ) {
+      int count = getSegmentCount();
+      int[] bitRates = new int[count];
+      if ( count == 0 ) {
+         return bitRates;
+      }
+
+      double totalBits = targetBytes * 8 * ( 1 - CONTAINER_OVERHEAD );
+      double durationSec = mDurationUs / 1000000.0;
+      double average = totalBits / durationSec;
+
+      double[] weights = new double[count];
+      double[] durations = new double[count];
+      for ( int i = 0; i < count; i++ ) {
+         durations[i] = Math.min( mSegmentUs, mDurationUs - i * mSegmentUs ) / 1000000.0;
+         long bytes = i < mSegmentCount ? mSegmentBytes[i] : 0;
+         // A segment with nothing in it still gets a little, it has frames after all.
+         weights[i] = Math.pow( Math.max( 1, bytes / durations[i] ), COMPLEXITY_EXPONENT );
+      }
+
+      double[] rates = new double[count];
+      distribute( weights, durations, totalBits, rates );
+
+      // Clamping takes bits from some segments and gives to others, spread the difference over the rest.
+      for ( int pass = 0; pass < 3; pass++ ) {
+         double clampedBits = 0;
+         double freeBits = totalBits;
+         boolean clamped = false;
+         for ( int i = 0; i < count; i++ ) {
+            double rate = Math.max( average / MAX_DEVIATION, Math.min( average * MAX_DEVIATION, rates[i] ) );
+            if ( rate != rates[i] ) {
+               clamped = true;
+               weights[i] = 0;
+               clampedBits += rate * durations[i];
+               rates[i] = rate;
+            } else if ( weights[i] == 0 ) {
+               clampedBits += rate * durations[i];
+            }
+         }
+         if ( !clamped ) {
+            break;
+         }
+         freeBits -= clampedBits;
+         double[] free = new double[count];
+         distribute( weights, durations, freeBits, free );
+         for ( int i = 0; i < count; i++ ) {
+            if ( weights[i] != 0 ) {
+               rates[i] = free[i];
+            }
+         }
+      }
+
+      for ( int i = 0; i < count; i++ ) {
+         bitRates[i] = (int) rates[i];
+      }
+
+      Log.d( TAG, String.format( Locale.US, "%d segments, average %.0f bps for %d bytes", count, average, targetBytes ) );
+
+      return bitRates;
+   }
+
+   private static void distribute( double[] weights, double[] durations, double bits, double[] rates ) {
+      double weightedDuration = 0;
+      for ( int i = 0; i < weights.length; i++ ) {
+         weightedDuration += weights[i] * durations[i];
+      }
+      for ( int i = 0; i < weights.length; i++ ) {
+         rates[i] = weightedDuration > 0 ? bits * weights[i] / weightedDuration : 0;
+      }
+   }
+
+   private void addBytes( long timeUs, long bytes ) {
+      int segment = (int) ( timeUs / mSegmentUs );
+      if ( segment >= mSegmentBytes.length ) {
+         long[] grown = new long[Math.max( segment + 1, mSegmentBytes.length * 2 )];
+         System.arraycopy( mSegmentBytes, 0, grown, 0, mSegmentBytes.length );
+         mSegmentBytes = grown;
+      }
+      mSegmentBytes[segment] += bytes;
+      mSegmentCount = Math.max( mSegmentCount, segment + 1 );
+   }
+
+   private static TrackBox findVideoTrack( IsoFile file ) {
+      for ( Box box : file.getMovieBox().getBoxes() ) {
+         if ( box instanceof TrackBox ) {
+            TrackBox trackBox = (TrackBox) box;
+            if ( "vide".equals( trackBox.getMediaBox().getHandlerBox().getHandlerType() ) ) {
+               return trackBox;
+            }
+         }
+      }
+      return null;
+   }
+}
@@ -0,0 +1,124 @@
+/**
+   Copyright (c) 2014 Rory Hool
+   
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+   
+       http://www.apache.org/licenses/LICENSE-2.0
+   
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ **/
+
+package com.roryhool.commonvideolibrary;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Debug;
+import android.util.Log;
+
+/**
+ * {@link AllocationTest} on a device, counting with Debug's allocation counters. Adds the encode loop of
+ * VideoResampler, draining a {@link FakeCodecQueue} into a fragmented {@link Mp4Muxer}. The modules extend it with
+ * their own codec loops. The results go to the log.
+ */
+@TargetApi( Build.VERSION_CODES.JELLY_BEAN_MR2 )
+public class DeviceAllocationTest extends AllocationTest {
+
+   private static final String TAG = "AllocationTest";
+
+   // A fragmented Mp4Muxer behind the loop, its budget plus what BufferInfo handling may cost.
+   protected static final double ENCODE_LOOP_BUDGET = 8;
+
+   protected static final double DECODE_LOOP_BUDGET = NO_ALLOCATION_BUDGET;
+
+   /**
+    * The output format of an H.264 encoder, with the parameter sets Mp4Muxer needs.
+    */
+   public static MediaFormat createOutputFormat( int width, int height ) {
+      MediaFormat format = MediaFormat.createVideoFormat( MediaHelper.MIME_TYPE_AVC, width, height );
+      format.setByteBuffer( "csd-0", withStartCode( SPS ) );
+      format.setByteBuffer( "csd-1", withStartCode( PPS ) );
+      return format;
+   }
+
+   private static ByteBuffer withStartCode( byte[] nal ) {
+      ByteBuffer buffer = ByteBuffer.allocate( nal.length + 4 );
+      buffer.putInt( 1 );
+      buffer.put( nal );
+      buffer.flip();
+      return buffer;
+   }
+
+   /**
+    * Takes a while, keep it off the UI thread.
+    */
+   @Override
+   public boolean run( File directory ) throws Exception {
+      Debug.startAllocCounting();
+      try {
+         return super.run( directory );
+      } finally {
+         Debug.stopAllocCounting();
+      }
+   }
+
+   @Override
+   protected void runChecks( File directory ) throws Exception {
+      super.runChecks( directory );
+      checkResampler( directory );
+   }
+
+   @Override
+   long getAllocatedBytes() {
+      return Debug.getThreadAllocSize();
+   }
+
+   @Override
+   void report( String result ) {
+      Log.d( TAG, result );
+   }
+
+   private void checkResampler( File directory ) throws Exception {
+      File output = new File( directory, "allocation_test.mp4" );
+
+      final VideoResampler resampler = new VideoResampler();
+      final FakeCodecQueue encoder = new FakeCodecQueue( createOutputFormat( 1280, 720 ), FRAME_SIZE, FRAME_SIZE, SYNC_INTERVAL );
+
+      final Rendition rendition = new Rendition( 1280, 720, new EncoderSettings( 2000000, 30, 1 ), null );
+      rendition.mEncoderQueue = encoder;
+      rendition.mEncoderOutputBuffers = encoder.getOutputBuffers();
+      rendition.mEncodeLatency = new FrameLatencyTracker( new LatencyHistogram() );
+      rendition.mMuxer = new Mp4Muxer( output.getPath(), Mp4Writer.MODE_FRAGMENTED );
+      try {
+         check( "VideoResampler.drainEncoder", ENCODE_LOOP_BUDGET, FRAMES, new Step() {
+            @Override
+            public void run( int frame ) {
+               long timeUs = frame * FRAME_DURATION_US;
+               rendition.mEncodeLatency.frameIn( timeUs );
+               encoder.queueSurfaceFrame( timeUs );
+               while ( resampler.drainEncoder( rendition ) != MediaCodec.INFO_TRY_AGAIN_LATER ) {
+               }
+            }
+         } );
+
+         encoder.signalEndOfInputStream();
+         while ( !rendition.mOutputDone ) {
+            resampler.drainEncoder( rendition );
+         }
+         rendition.mMuxer.stop();
+      } finally {
+         rendition.mMuxer.release();
+         output.delete();
+      }
+   }
+}
@@ -0,0 +1,85 @@
+/**
+   Copyright (c) 2014 Rory Hool
+   
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+   
+       http://www.apache.org/licenses/LICENSE-2.0
+   
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ **/
+
+
+package com.roryhool.commonvideolibrary;
+
+import android.net.Uri;
+
+/**
+ * The parts of one video to keep, as in and out points in microseconds. {@link SmartRenderer} joins them into one
+ * output in the order they were added.
+ */
+public class EditDecisionList {
+
+   Uri mUri;
+
+   int mRangeCount = 0;
+   long[] mStartTimesUs = new long[8];
+   long[] mEndTimesUs = new long[8];
+
+   public EditDecisionList( Uri uri ) {
+      mUri = uri;
+   }
+
+   public Uri getUri() {
+      return mUri;
+   }
+
+   /**
+    * Keeps the video from startUs up to, not including, endUs.
+    */
+   public void addRange( long startUs, long endUs ) {
+      if ( startUs < 0 || endUs <= startUs ) {
+         throw new IllegalArgumentException( "Bad range " + startUs + " to " + endUs );
+      }
+
+      if ( mRangeCount == mStartTimesUs.length ) {
+         long[] starts = new long[mRangeCount * 2];
+         long[] ends = new long[mRangeCount * 2];
+         System.arraycopy( mStartTimesUs, 0, starts, 0, mRangeCount );
+         System.arraycopy( mEndTimesUs, 0, ends, 0, mRangeCount );
+         mStartTimesUs = starts;
+         mEndTimesUs = ends;
+      }
+      mStartTimesUs[mRangeCount] = startUs;
+      mEndTimesUs[mRangeCount] = endUs;
+      mRangeCount++;
+   }
+
+   public int getRangeCount() {
+      return mRangeCount;
+   }
+
+   public long getStartTimeUs( int index ) {
+      return mStartTimesUs[index];
+   }
+
+   public long getEndTimeUs( int index ) {
+      return mEndTimesUs[index];
+   }
+
+   /**
+    * How long the output will be, the sum of the ranges.
+    */
+   public long getDurationUs() {
+      long durationUs = 0;
+      for ( int i = 0; i < mRangeCount; i++ ) {
+         durationUs += mEndTimesUs[i] - mStartTimesUs[i];
+      }
+      return durationUs;
+   }
+}
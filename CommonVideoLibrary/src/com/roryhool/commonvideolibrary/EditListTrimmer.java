@@ -0,0 +1,414 @@
+/**
+   Copyright (c) 2014 Rory Hool
+   
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+   
+       http://www.apache.org/licenses/LICENSE-2.0
+   
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ **/
+
+
+package com.roryhool.commonvideolibrary;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import android.util.Log;
+
+import com.coremedia.iso.IsoFile;
+import com.coremedia.iso.boxes.Box;
+import com.coremedia.iso.boxes.ChunkOffset64BitBox;
+import com.coremedia.iso.boxes.ChunkOffsetBox;
+import com.coremedia.iso.boxes.CompositionTimeToSample;
+import com.coremedia.iso.boxes.EditBox;
+import com.coremedia.iso.boxes.EditListBox;
+import com.coremedia.iso.boxes.MediaHeaderBox;
+import com.coremedia.iso.boxes.MovieBox;
+import com.coremedia.iso.boxes.SampleSizeBox;
+import com.coremedia.iso.boxes.SampleTableBox;
+import com.coremedia.iso.boxes.SampleToChunkBox;
+import com.coremedia.iso.boxes.StaticChunkOffsetBox;
+import com.coremedia.iso.boxes.SyncSampleBox;
+import com.coremedia.iso.boxes.TimeToSampleBox;
+import com.coremedia.iso.boxes.TrackBox;
+import com.coremedia.iso.boxes.TrackHeaderBox;
+import com.coremedia.iso.boxes.fragment.MovieExtendsBox;
+
+/**
+ * Trims an mp4 without re-encoding or moving its media data. Every track gets an edit list that plays it from the
+ * trim start to the trim end, and its sample tables lose the samples after the end. {@link #trimInPlace} only writes
+ * the moov again, so it takes as long as parsing the moov however long the video is. {@link #trim} copies the whole
+ * file first, which is still disk speed but grows with the file.
+ * 
+ * The new moov goes at the end of the file and the old one is turned into a free box, so no chunk offset changes. The
+ * samples before the start stay in the file, a decoder needs them from the key frame before the start anyway. Players
+ * that ignore edit lists play them too.
+ */
+public class EditListTrimmer {
+
+   private static final String TAG = "EditListTrimmer";
+
+   /**
+    * Writes a trimmed copy of input to output. The whole file is copied, with FileChannel.transferTo so the kernel
+    * does it without passing the data through the process.
+    */
+   public static void trim( File input, File output, long startUs, long endUs ) throws IOException {
+      IsoFile isoFile = new IsoFile( input.getPath() );
+      try {
+         MovieBox moov = isoFile.getMovieBox();
+         trimMovie( moov, startUs, endUs );
+
+         FileInputStream in = new FileInputStream( input );
+         RandomAccessFile out = new RandomAccessFile( output, "rw" );
+         try {
+            FileChannel inChannel = in.getChannel();
+            FileChannel outChannel = out.getChannel();
+            outChannel.truncate( 0 );
+
+            long moovOffset = findMovieBox( inChannel );
+
+            long size = inChannel.size();
+            long position = 0;
+            while ( position < size ) {
+               position += inChannel.transferTo( position, size - position, outChannel );
+            }
+
+            outChannel.position( size );
+            moov.getBox( outChannel );
+            freeBox( outChannel, moovOffset );
+         } finally {
+            in.close();
+            out.close();
+         }
+      } finally {
+         isoFile.close();
+      }
+   }
+
+   /**
+    * Trims the file itself by appending the new moov. The old moov is only turned into a free box once the new one is
+    * written, an interrupted trim leaves the file as it was.
+    */
+   public static void trimInPlace( File file, long startUs, long endUs ) throws IOException {
+      IsoFile isoFile = new IsoFile( file.getPath() );
+      try {
+         MovieBox moov = isoFile.getMovieBox();
+         trimMovie( moov, startUs, endUs );
+
+         RandomAccessFile out = new RandomAccessFile( file, "rw" );
+         try {
+            FileChannel channel = out.getChannel();
+            long moovOffset = findMovieBox( channel );
+
+            channel.position( channel.size() );
+            moov.getBox( channel );
+            channel.force( false );
+            freeBox( channel, moovOffset );
+         } finally {
+            out.close();
+         }
+      } finally {
+         isoFile.close();
+      }
+   }
+
+   /**
+    * Finds the offset of the top level moov, and makes sure nothing runs to the end of the file that a box appended
+    * after it would end up inside of.
+    */
+   private static long findMovieBox( FileChannel channel ) throws IOException {
+      ByteBuffer header = ByteBuffer.allocate( 16 );
+      long size = channel.size();
+      long position = 0;
+      long moovOffset = -1;
+
+      while ( position + 8 <= size ) {
+         header.clear();
+         header.limit( 16 );
+         channel.read( header, position );
+         header.flip();
+
+         long boxSize = header.getInt() & 0xFFFFFFFFL;
+         String type = IsoFile.bytesToFourCC( new byte[] { header.get(), header.get(), header.get(), header.get() } );
+         if ( boxSize == 1 ) {
+            boxSize = header.getLong();
+         } else if ( boxSize == 0 ) {
+            throw new IOException( "The " + type + " box runs to the end of the file, nothing can be appended" );
+         }
+         if ( boxSize < 8 ) {
+            throw new IOException( "Damaged box at " + position );
+         }
+
+         if ( type.equals( MovieBox.TYPE ) ) {
+            moovOffset = position;
+         }
+         position += boxSize;
+      }
+
+      if ( moovOffset < 0 ) {
+         throw new IOException( "No moov box" );
+      }
+      return moovOffset;
+   }
+
+   private static void freeBox( FileChannel channel, long offset ) throws IOException {
+      ByteBuffer type = ByteBuffer.wrap( IsoFile.fourCCtoBytes( "free" ) );
+      channel.write( type, offset + 4 );
+   }
+
+   private static void trimMovie( MovieBox moov, long startUs, long endUs ) throws IOException {
+      if ( !moov.getBoxes( MovieExtendsBox.class ).isEmpty() ) {
+         throw new IOException( "Fragmented files keep their samples in the fragments, they can't be trimmed this way" );
+      }
+
+      long movieTimeScale = moov.getMovieHeaderBox().getTimescale();
+      long movieDurationUs = moov.getMovieHeaderBox().getDuration() * 1000000 / movieTimeScale;
+
+      endUs = Math.min( endUs, movieDurationUs );
+      startUs = Math.max( 0, startUs );
+      if ( endUs <= startUs ) {
+         throw new IOException( "Nothing left between " + startUs + " and " + endUs + " us" );
+      }
+
+      long movieDuration = 0;
+      for ( TrackBox trak : moov.getBoxes( TrackBox.class ) ) {
+         movieDuration = Math.max( movieDuration, trimTrack( trak, movieTimeScale, startUs, endUs ) );
+      }
+      moov.getMovieHeaderBox().setDuration( movieDuration );
+   }
+
+   /**
+    * Gives the track an edit list from start to end and drops its samples after the end. Returns the track's new
+    * duration in the movie time scale.
+    */
+   private static long trimTrack( TrackBox trak, long movieTimeScale, long startUs, long endUs ) throws IOException {
+      MediaHeaderBox mdhd = trak.getMediaBox().getMediaHeaderBox();
+      long timeScale = mdhd.getTimescale();
+
+      // An edit list from the encoder, e.g. for audio priming or a late start, is kept by building on it.
+      long delayUs = 0;
+      long mediaStart = 0;
+      EditBox oldEdts = null;
+      List<EditBox> editBoxes = trak.getBoxes( EditBox.class );
+      if ( !editBoxes.isEmpty() ) {
+         oldEdts = editBoxes.get( 0 );
+         List<EditListBox> lists = oldEdts.getBoxes( EditListBox.class );
+         if ( !lists.isEmpty() ) {
+            for ( EditListBox.Entry entry : lists.get( 0 ).getEntries() ) {
+               if ( entry.getMediaTime() == -1 ) {
+                  delayUs += entry.getSegmentDuration() * 1000000 / movieTimeScale;
+               } else {
+                  mediaStart = entry.getMediaTime();
+                  break;
+               }
+            }
+         }
+      }
+
+      SampleTableBox stbl = trak.getSampleTableBox();
+      long[] deltas = TimeToSampleBox.blowupTimeToSamples( stbl.getTimeToSampleBox().getEntries() );
+
+      // Where start and end fall in the track's media time.
+      long mediaTrimStart = mediaStart + Math.max( 0, startUs - delayUs ) * timeScale / 1000000;
+      long mediaTrimEnd = mediaStart + Math.max( 0, endUs - delayUs ) * timeScale / 1000000;
+
+      // The edit list is in presentation time, a sample is shown at its decode time plus its composition offset. With B
+      // frames those aren't in order, so every sample up to the last one shown before the end stays, along with the
+      // samples decoded ahead of it.
+      CompositionTimeToSample ctts = stbl.getCompositionTimeToSample();
+      int[] offsets = ctts != null ? CompositionTimeToSample.blowupCompositionTimes( ctts.getEntries() ) : null;
+
+      int keptSamples = 0;
+      long keptDuration = 0;
+      long keptEnd = 0;
+      long decodeTime = 0;
+      long presentationEnd = 0;
+      for ( int i = 0; i < deltas.length; i++ ) {
+         long presentationTime = decodeTime + ( offsets != null && i < offsets.length ? offsets[i] : 0 );
+         decodeTime += deltas[i];
+         presentationEnd = Math.max( presentationEnd, presentationTime + deltas[i] );
+         if ( i == 0 || presentationTime < mediaTrimEnd ) {
+            keptSamples = i + 1;
+            keptDuration = decodeTime;
+            keptEnd = presentationEnd;
+         }
+      }
+      mediaTrimEnd = Math.min( mediaTrimEnd, keptEnd );
+
+      if ( keptSamples < deltas.length ) {
+         truncateSamples( stbl, deltas, keptSamples );
+         mdhd.setDuration( keptDuration );
+      }
+
+      // The new edits: the part of the delay still ahead of the start, then the media up to the end.
+      List<EditListBox.Entry> entries = new ArrayList<EditListBox.Entry>();
+      EditListBox elst = new EditListBox();
+
+      long emptyDuration = Math.max( 0, delayUs - startUs ) * movieTimeScale / 1000000;
+      if ( emptyDuration > 0 ) {
+         entries.add( new EditListBox.Entry( elst, emptyDuration, -1, 1 ) );
+      }
+
+      long segmentDuration = Math.max( 0, mediaTrimEnd - mediaTrimStart ) * movieTimeScale / timeScale;
+      if ( segmentDuration > 0 ) {
+         entries.add( new EditListBox.Entry( elst, segmentDuration, mediaTrimStart, 1 ) );
+      } else if ( entries.isEmpty() ) {
+         // Nothing of this track is left between start and end, it stays silent or blank for the whole trim.
+         entries.add( new EditListBox.Entry( elst, ( endUs - startUs ) * movieTimeScale / 1000000, -1, 1 ) );
+      }
+
+      long trackDuration = 0;
+      for ( EditListBox.Entry entry : entries ) {
+         trackDuration += entry.getSegmentDuration();
+         if ( entry.getSegmentDuration() > 0xFFFFFFFFL || entry.getMediaTime() > Integer.MAX_VALUE ) {
+            elst.setVersion( 1 );
+         }
+      }
+      elst.setEntries( entries );
+
+      EditBox edts = new EditBox();
+      edts.addBox( elst );
+
+      // Edits go right after the track header.
+      List<Box> boxes = new ArrayList<Box>( trak.getBoxes() );
+      if ( oldEdts != null ) {
+         boxes.remove( oldEdts );
+      }
+      int index = 0;
+      while ( index < boxes.size() && !( boxes.get( index ) instanceof TrackHeaderBox ) ) {
+         index++;
+      }
+      boxes.add( Math.min( index + 1, boxes.size() ), edts );
+      trak.setBoxes( boxes );
+
+      trak.getTrackHeaderBox().setDuration( trackDuration );
+
+      Log.d( TAG, "track " + trak.getTrackHeaderBox().getTrackId() + ": " + keptSamples + " of " + deltas.length + " samples kept, media " + mediaTrimStart + " to " + mediaTrimEnd );
+
+      return trackDuration;
+   }
+
+   /**
+    * Cuts every sample table of the track after the first count samples.
+    */
+   private static void truncateSamples( SampleTableBox stbl, long[] deltas, int count ) throws IOException {
+      // Sample durations, run length encoded again.
+      List<TimeToSampleBox.Entry> timeToSample = new ArrayList<TimeToSampleBox.Entry>();
+      for ( int i = 0; i < count; i++ ) {
+         TimeToSampleBox.Entry last = timeToSample.isEmpty() ? null : timeToSample.get( timeToSample.size() - 1 );
+         if ( last != null && last.getDelta() == deltas[i] ) {
+            last.setCount( last.getCount() + 1 );
+         } else {
+            timeToSample.add( new TimeToSampleBox.Entry( 1, deltas[i] ) );
+         }
+      }
+      stbl.getTimeToSampleBox().setEntries( timeToSample );
+
+      SampleSizeBox stsz = stbl.getSampleSizeBox();
+      if ( stsz.getSampleSize() > 0 ) {
+         // The sample count of a constant size table can't be set, write the sizes out instead.
+         long[] sizes = new long[count];
+         Arrays.fill( sizes, stsz.getSampleSize() );
+         stsz.setSampleSize( 0 );
+         stsz.setSampleSizes( sizes );
+      } else {
+         stsz.setSampleSizes( Arrays.copyOf( stsz.getSampleSizes(), count ) );
+      }
+
+      SyncSampleBox stss = stbl.getSyncSampleBox();
+      if ( stss != null ) {
+         long[] syncSamples = stss.getSampleNumber();
+         int kept = 0;
+         while ( kept < syncSamples.length && syncSamples[kept] <= count ) {
+            kept++;
+         }
+         stss.setSampleNumber( Arrays.copyOf( syncSamples, kept ) );
+      }
+
+      CompositionTimeToSample ctts = stbl.getCompositionTimeToSample();
+      if ( ctts != null ) {
+         List<CompositionTimeToSample.Entry> offsets = new ArrayList<CompositionTimeToSample.Entry>();
+         int remaining = count;
+         for ( CompositionTimeToSample.Entry entry : ctts.getEntries() ) {
+            if ( remaining == 0 ) {
+               break;
+            }
+            int entryCount = Math.min( remaining, entry.getCount() );
+            offsets.add( new CompositionTimeToSample.Entry( entryCount, entry.getOffset() ) );
+            remaining -= entryCount;
+         }
+         ctts.setEntries( offsets );
+      }
+
+      truncateChunks( stbl, count );
+   }
+
+   /**
+    * Drops the chunks after the one holding the last kept sample, that one keeps only the kept samples.
+    */
+   private static void truncateChunks( SampleTableBox stbl, int count ) throws IOException {
+      SampleToChunkBox stsc = stbl.getSampleToChunkBox();
+      ChunkOffsetBox stco = stbl.getChunkOffsetBox();
+      long[] offsets = stco.getChunkOffsets();
+
+      List<SampleToChunkBox.Entry> oldEntries = stsc.getEntries();
+      List<SampleToChunkBox.Entry> entries = new ArrayList<SampleToChunkBox.Entry>();
+
+      long samples = 0;
+      int chunks = 0;
+      for ( int i = 0; i < oldEntries.size() && samples < count; i++ ) {
+         SampleToChunkBox.Entry entry = oldEntries.get( i );
+         long firstChunk = entry.getFirstChunk();
+         long lastChunk = i + 1 < oldEntries.size() ? oldEntries.get( i + 1 ).getFirstChunk() - 1 : offsets.length;
+
+         entries.add( new SampleToChunkBox.Entry( firstChunk, entry.getSamplesPerChunk(), entry.getSampleDescriptionIndex() ) );
+
+         for ( long chunk = firstChunk; chunk <= lastChunk && samples < count; chunk++ ) {
+            long inChunk = Math.min( entry.getSamplesPerChunk(), count - samples );
+            samples += inChunk;
+            chunks = (int) chunk;
+
+            if ( inChunk < entry.getSamplesPerChunk() ) {
+               // The last chunk is cut short, it needs an entry of its own.
+               if ( chunk == firstChunk ) {
+                  entries.remove( entries.size() - 1 );
+               }
+               entries.add( new SampleToChunkBox.Entry( chunk, inChunk, entry.getSampleDescriptionIndex() ) );
+            }
+         }
+      }
+      stsc.setEntries( entries );
+
+      long[] keptOffsets = Arrays.copyOf( offsets, chunks );
+      if ( stco instanceof StaticChunkOffsetBox ) {
+         ( (StaticChunkOffsetBox) stco ).setChunkOffsets( keptOffsets );
+      } else if ( stco instanceof ChunkOffset64BitBox ) {
+         // There is no way to set the offsets of a co64, the 32 bit box does as long as they fit.
+         for ( long offset : keptOffsets ) {
+            if ( offset > 0xFFFFFFFFL ) {
+               throw new IOException( "Chunk offsets past 4 GB can't be rewritten" );
+            }
+         }
+         StaticChunkOffsetBox newStco = new StaticChunkOffsetBox();
+         newStco.setChunkOffsets( keptOffsets );
+
+         List<Box> boxes = new ArrayList<Box>( stbl.getBoxes() );
+         boxes.set( boxes.indexOf( stco ), newStco );
+         stbl.setBoxes( boxes );
+      }
+   }
+}
@@ -0,0 +1,295 @@
+/**
+   Copyright (c) 2014 Rory Hool
+   
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+   
+       http://www.apache.org/licenses/LICENSE-2.0
+   
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ **/
+
+package com.roryhool.commonvideolibrary;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.Build;
+
+/**
+ * Everything that controls how a video encoder spends its bits. Applied to the encoder's MediaFormat before configure.
+ * <p>
+ * Bitrate mode, profile, level and B-frames are set through their format keys. Encoders that don't know a key ignore
+ * it, older platform versions pass them to the codec without understanding them, so treat them as requests.
+ */
+@TargetApi( Build.VERSION_CODES.JELLY_BEAN )
+public class EncoderSettings {
+
+   // Values of the "bitrate-mode" key, same as MediaCodecInfo.EncoderCapabilities.
+   public static final int BITRATE_MODE_CQ = 0;
+   public static final int BITRATE_MODE_VBR = 1;
+   public static final int BITRATE_MODE_CBR = 2;
+
+   public static final int UNSET = -1;
+
+   private static final String KEY_BITRATE_MODE = "bitrate-mode";
+   private static final String KEY_PROFILE = "profile";
+   private static final String KEY_LEVEL = "level";
+   private static final String KEY_MAX_B_FRAMES = "max-bframes";
+
+   // CodecProfileLevel values of levels newer than the API this builds against, AVCLevel52 came with API 21 and the
+   // level 6 ones with API 29.
+   private static final int AVC_LEVEL_52 = 0x10000;
+   private static final int AVC_LEVEL_6 = 0x20000;
+   private static final int AVC_LEVEL_61 = 0x40000;
+   private static final int AVC_LEVEL_62 = 0x80000;
+
+   int mBitRate;
+
+   int mFrameRate;
+
+   int mIFrameInterval;
+
+   int mBitRateMode = UNSET;
+
+   int mProfile = UNSET;
+
+   int mLevel = UNSET;
+
+   int mMaxBFrames = UNSET;
+
+   boolean mAdaptiveBitRate = false;
+
+   public EncoderSettings( int bitRate, int frameRate, int iFrameInterval ) {
+      mBitRate = bitRate;
+      mFrameRate = frameRate;
+      mIFrameInterval = iFrameInterval;
+   }
+
+   public EncoderSettings( EncoderSettings other ) {
+      mBitRate = other.mBitRate;
+      mFrameRate = other.mFrameRate;
+      mIFrameInterval = other.mIFrameInterval;
+      mBitRateMode = other.mBitRateMode;
+      mProfile = other.mProfile;
+      mLevel = other.mLevel;
+      mMaxBFrames = other.mMaxBFrames;
+      mAdaptiveBitRate = other.mAdaptiveBitRate;
+   }
+
+   /**
+    * Bits per second. With adaptive bitrate on this is the average the output should end up with.
+    */
+   public void setBitRate( int bitRate ) {
+      mBitRate = bitRate;
+   }
+
+   public int getBitRate() {
+      return mBitRate;
+   }
+
+   public void setFrameRate( int frameRate ) {
+      mFrameRate = frameRate;
+   }
+
+   public int getFrameRate() {
+      return mFrameRate;
+   }
+
+   /**
+    * Seconds between key frames.
+    */
+   public void setIFrameInterval( int iFrameInterval ) {
+      mIFrameInterval = iFrameInterval;
+   }
+
+   public int getIFrameInterval() {
+      return mIFrameInterval;
+   }
+
+   /**
+    * One of BITRATE_MODE_CQ, BITRATE_MODE_VBR or BITRATE_MODE_CBR.
+    */
+   public void setBitRateMode( int bitRateMode ) {
+      mBitRateMode = bitRateMode;
+   }
+
+   public int getBitRateMode() {
+      return mBitRateMode;
+   }
+
+   /**
+    * Profile and level from MediaCodecInfo.CodecProfileLevel, e.g. AVCProfileHigh and AVCLevel41. Pass UNSET as the
+    * level to let the encoder pick one for the size, frame rate and bitrate.
+    */
+   public void setProfileLevel( int profile, int level ) {
+      mProfile = profile;
+      mLevel = level;
+   }
+
+   /**
+    * Takes profile and level from an H.264 SPS (without start code), so an encoder's output can match another stream.
+    * A profile without a MediaCodec constant leaves the setting as it was, an unknown level leaves it to the encoder.
+    */
+   public void setProfileLevelFromSps( byte[] sps ) {
+      if ( sps.length < 4 ) {
+         return;
+      }
+
+      int profile = UNSET;
+      switch ( sps[1] & 0xFF ) {
+      case 66:
+         profile = MediaCodecInfo.CodecProfileLevel.AVCProfileBaseline;
+         break;
+      case 77:
+         profile = MediaCodecInfo.CodecProfileLevel.AVCProfileMain;
+         break;
+      case 88:
+         profile = MediaCodecInfo.CodecProfileLevel.AVCProfileExtended;
+         break;
+      case 100:
+         profile = MediaCodecInfo.CodecProfileLevel.AVCProfileHigh;
+         break;
+      case 110:
+         profile = MediaCodecInfo.CodecProfileLevel.AVCProfileHigh10;
+         break;
+      case 122:
+         profile = MediaCodecInfo.CodecProfileLevel.AVCProfileHigh422;
+         break;
+      case 244:
+         profile = MediaCodecInfo.CodecProfileLevel.AVCProfileHigh444;
+         break;
+      }
+
+      int level = UNSET;
+      switch ( sps[3] & 0xFF ) {
+      case 9:
+         level = MediaCodecInfo.CodecProfileLevel.AVCLevel1b;
+         break;
+      case 10:
+         level = MediaCodecInfo.CodecProfileLevel.AVCLevel1;
+         break;
+      case 11:
+         // Baseline, Main and Extended signal level 1b as 11 with constraint_set3_flag.
+         boolean constrained = profile == MediaCodecInfo.CodecProfileLevel.AVCProfileBaseline || profile == MediaCodecInfo.CodecProfileLevel.AVCProfileMain || profile == MediaCodecInfo.CodecProfileLevel.AVCProfileExtended;
+         if ( constrained && ( sps[2] & 0x10 ) != 0 ) {
+            level = MediaCodecInfo.CodecProfileLevel.AVCLevel1b;
+         } else {
+            level = MediaCodecInfo.CodecProfileLevel.AVCLevel11;
+         }
+         break;
+      case 12:
+         level = MediaCodecInfo.CodecProfileLevel.AVCLevel12;
+         break;
+      case 13:
+         level = MediaCodecInfo.CodecProfileLevel.AVCLevel13;
+         break;
+      case 20:
+         level = MediaCodecInfo.CodecProfileLevel.AVCLevel2;
+         break;
+      case 21:
+         level = MediaCodecInfo.CodecProfileLevel.AVCLevel21;
+         break;
+      case 22:
+         level = MediaCodecInfo.CodecProfileLevel.AVCLevel22;
+         break;
+      case 30:
+         level = MediaCodecInfo.CodecProfileLevel.AVCLevel3;
+         break;
+      case 31:
+         level = MediaCodecInfo.CodecProfileLevel.AVCLevel31;
+         break;
+      case 32:
+         level = MediaCodecInfo.CodecProfileLevel.AVCLevel32;
+         break;
+      case 40:
+         level = MediaCodecInfo.CodecProfileLevel.AVCLevel4;
+         break;
+      case 41:
+         level = MediaCodecInfo.CodecProfileLevel.AVCLevel41;
+         break;
+      case 42:
+         level = MediaCodecInfo.CodecProfileLevel.AVCLevel42;
+         break;
+      case 50:
+         level = MediaCodecInfo.CodecProfileLevel.AVCLevel5;
+         break;
+      case 51:
+         level = MediaCodecInfo.CodecProfileLevel.AVCLevel51;
+         break;
+      case 52:
+         level = AVC_LEVEL_52;
+         break;
+      case 60:
+         level = AVC_LEVEL_6;
+         break;
+      case 61:
+         level = AVC_LEVEL_61;
+         break;
+      case 62:
+         level = AVC_LEVEL_62;
+         break;
+      }
+
+      if ( profile != UNSET ) {
+         mProfile = profile;
+         mLevel = level;
+      }
+   }
+
+   public int getProfile() {
+      return mProfile;
+   }
+
+   public int getLevel() {
+      return mLevel;
+   }
+
+   /**
+    * Maximum number of B-frames between reference frames, 0 to disable them. Only honored by profiles that have them.
+    */
+   public void setMaxBFrames( int maxBFrames ) {
+      mMaxBFrames = maxBFrames;
+   }
+
+   public int getMaxBFrames() {
+      return mMaxBFrames;
+   }
+
+   /**
+    * Lets an {@link AdaptiveBitRateController} adjust the encoder while it runs so the output averages the bitrate.
+    */
+   public void setAdaptiveBitRate( boolean adaptiveBitRate ) {
+      mAdaptiveBitRate = adaptiveBitRate;
+   }
+
+   public boolean isAdaptiveBitRate() {
+      return mAdaptiveBitRate;
+   }
+
+   public void applyTo( MediaFormat format ) {
+      format.setInteger( MediaFormat.KEY_BIT_RATE, mBitRate );
+      format.setInteger( MediaFormat.KEY_FRAME_RATE, mFrameRate );
+      format.setInteger( MediaFormat.KEY_I_FRAME_INTERVAL, mIFrameInterval );
+
+      if ( mBitRateMode != UNSET ) {
+         format.setInteger( KEY_BITRATE_MODE, mBitRateMode );
+      }
+      if ( mProfile != UNSET ) {
+         format.setInteger( KEY_PROFILE, mProfile );
+      }
+      // Without a level the encoder derives one from the size, frame rate and bitrate. Guessing one could be too low
+      // for the stream and get the format rejected or the bitrate capped.
+      if ( mProfile != UNSET && mLevel != UNSET ) {
+         format.setInteger( KEY_LEVEL, mLevel );
+      }
+      if ( mMaxBFrames != UNSET ) {
+         format.setInteger( KEY_MAX_B_FRAMES, mMaxBFrames );
+      }
+   }
+}
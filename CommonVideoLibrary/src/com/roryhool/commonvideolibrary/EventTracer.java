@@ -0,0 +1,240 @@
+/**
+   Copyright (c) 2014 Rory Hool
+   
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+   
+       http://www.apache.org/licenses/LICENSE-2.0
+   
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ **/
+
+
+package com.roryhool.commonvideolibrary;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.util.Log;
+
+/**
+ * Records what the codec loops do, per frame, for a fraction of what logging it costs. Events are a numeric code, a
+ * timestamp, the thread and one number, written into arrays allocated up front and overwritten in a ring, so nothing is
+ * allocated or formatted while a job runs.
+ * 
+ * dump writes the events in the Chrome trace event format, open it in chrome://tracing or Perfetto.
+ */
+public class EventTracer {
+
+   private static final String TAG = "EventTracer";
+
+   public static final int DEFAULT_CAPACITY = 1 << 15;
+
+   private static final int PHASE_INSTANT = 0;
+   private static final int PHASE_BEGIN = 1;
+   private static final int PHASE_END = 2;
+
+   private static final String[] PHASE_NAMES = { "i", "B", "E" };
+
+   // Event codes, the number recorded with them in brackets.
+   public static final int EDIT_LOOP = 1;
+   public static final int DECODER_INPUT = 2; // (sample size)
+   public static final int DECODER_INPUT_EOS = 3;
+   public static final int DECODER_INPUT_UNAVAILABLE = 4;
+   public static final int DECODER_OUTPUT = 5; // (presentation time us)
+   public static final int DECODER_OUTPUT_UNAVAILABLE = 6;
+   public static final int DECODER_BUFFERS_CHANGED = 7;
+   public static final int ENCODER_OUTPUT = 8; // (size)
+   public static final int ENCODER_OUTPUT_UNAVAILABLE = 9;
+   public static final int ENCODER_BUFFERS_CHANGED = 10;
+   public static final int FRAME_TIME = 11; // (output time ms)
+   public static final int AWAIT_FRAME = 12;
+   public static final int DRAW_FRAME = 13;
+   public static final int SWAP_BUFFERS = 14;
+   public static final int MUX_SAMPLE = 15; // (size)
+   public static final int RENDER_FRAME = 16; // (frame time ms)
+   public static final int ENCODER_CONFIG = 17; // (size)
+   public static final int RELEASE_FRAME = 18; // (frame time ms, -1 when dropped)
+
+   private static final String[] EVENT_NAMES = {
+      null,
+      "edit_loop",
+      "decoder_input",
+      "decoder_input_eos",
+      "decoder_input_unavailable",
+      "decoder_output",
+      "decoder_output_unavailable",
+      "decoder_buffers_changed",
+      "encoder_output",
+      "encoder_output_unavailable",
+      "encoder_buffers_changed",
+      "frame_time",
+      "await_frame",
+      "draw_frame",
+      "swap_buffers",
+      "mux_sample",
+      "render_frame",
+      "encoder_config",
+      "release_frame",
+   };
+
+   private static EventTracer sInstance;
+
+   /**
+    * The tracer the library's codec loops record into.
+    */
+   public static synchronized EventTracer getInstance() {
+      if ( sInstance == null ) {
+         sInstance = new EventTracer( DEFAULT_CAPACITY );
+      }
+      return sInstance;
+   }
+
+   volatile boolean mEnabled = true;
+
+   int mMask;
+
+   // One slot per event: the code and phase packed into an int, the rest as they are.
+   int[] mEvents;
+   long[] mTimesNs;
+   long[] mThreadIds;
+   long[] mArgs;
+
+   AtomicLong mCursor = new AtomicLong();
+
+   /**
+    * Keeps the last capacity events, rounded up to a power of two.
+    */
+   public EventTracer( int capacity ) {
+      int size = Integer.highestOneBit( Math.max( 2, capacity ) - 1 ) << 1;
+      mMask = size - 1;
+      mEvents = new int[size];
+      mTimesNs = new long[size];
+      mThreadIds = new long[size];
+      mArgs = new long[size];
+   }
+
+   public void setEnabled( boolean enabled ) {
+      mEnabled = enabled;
+   }
+
+   public boolean isEnabled() {
+      return mEnabled;
+   }
+
+   public void instant( int event ) {
+      record( event, PHASE_INSTANT, 0 );
+   }
+
+   public void instant( int event, long arg ) {
+      record( event, PHASE_INSTANT, arg );
+   }
+
+   /**
+    * Starts a span, ended by end with the same event on the same thread.
+    */
+   public void begin( int event ) {
+      record( event, PHASE_BEGIN, 0 );
+   }
+
+   public void begin( int event, long arg ) {
+      record( event, PHASE_BEGIN, arg );
+   }
+
+   public void end( int event ) {
+      record( event, PHASE_END, 0 );
+   }
+
+   private void record( int event, int phase, long arg ) {
+      if ( !mEnabled ) {
+         return;
+      }
+
+      // Each writer owns its slot, a dump running at the same time may see a slot half written.
+      int slot = (int) ( mCursor.getAndIncrement() & mMask );
+      mEvents[slot] = ( event << 2 ) | phase;
+      mTimesNs[slot] = System.nanoTime();
+      mThreadIds[slot] = Thread.currentThread().getId();
+      mArgs[slot] = arg;
+   }
+
+   /**
+    * Forgets all events.
+    */
+   public void clear() {
+      mCursor.set( 0 );
+   }
+
+   /**
+    * Writes the events in the ring, oldest first, as a Chrome trace. Written next to the file and renamed over it.
+    */
+   public void dump( File file ) throws IOException {
+      long end = mCursor.get();
+      long start = Math.max( 0, end - mEvents.length );
+
+      File tempFile = new File( file.getPath() + ".tmp" );
+      Writer writer = new BufferedWriter( new OutputStreamWriter( new FileOutputStream( tempFile ), "UTF-8" ), 64 * 1024 );
+      try {
+         writer.write( "{\"traceEvents\":[\n" );
+         boolean first = true;
+         for ( long i = start; i < end; i++ ) {
+            int slot = (int) ( i & mMask );
+            int event = mEvents[slot] >>> 2;
+            int phase = mEvents[slot] & 3;
+
+            if ( !first ) {
+               writer.write( ",\n" );
+            }
+            first = false;
+
+            writer.write( String.format( Locale.US, "{\"name\":\"%s\",\"ph\":\"%s\",\"ts\":%.3f,\"pid\":0,\"tid\":%d", getEventName( event ), PHASE_NAMES[phase], mTimesNs[slot] / 1000.0, mThreadIds[slot] ) );
+            if ( phase == PHASE_INSTANT ) {
+               writer.write( ",\"s\":\"t\"" );
+            }
+            if ( phase != PHASE_END ) {
+               writer.write( ",\"args\":{\"value\":" + mArgs[slot] + "}" );
+            }
+            writer.write( "}" );
+         }
+         writer.write( "\n],\"displayTimeUnit\":\"ms\"}\n" );
+      } finally {
+         writer.close();
+      }
+      if ( !tempFile.renameTo( file ) ) {
+         throw new IOException( "Could not replace " + file );
+      }
+   }
+
+   /**
+    * Dumps to the file if there is one, for the end of a job. A failure is only logged.
+    */
+   public void dumpQuietly( File file ) {
+      if ( file == null ) {
+         return;
+      }
+
+      try {
+         dump( file );
+      } catch ( IOException e ) {
+         Log.e( TAG, "Could not write the trace", e );
+      }
+   }
+
+   private static String getEventName( int event ) {
+      if ( event > 0 && event < EVENT_NAMES.length ) {
+         return EVENT_NAMES[event];
+      }
+      return "event_" + event;
+   }
+}
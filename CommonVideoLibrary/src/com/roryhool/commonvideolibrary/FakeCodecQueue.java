@@ -0,0 +1,187 @@
+/**
+   Copyright (c) 2014 Rory Hool
+   
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+   
+       http://www.apache.org/licenses/LICENSE-2.0
+   
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ **/
+
+package com.roryhool.commonvideolibrary;
+
+import java.nio.ByteBuffer;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+
+/**
+ * A codec that gives back one frame for every frame put in, without hardware and without allocating once it is built.
+ * Frames go in through queueInputBuffer like a decoder's samples, or through queueSurfaceFrame like an encoder's
+ * input surface. Each output is an Annex B frame of the given size, a key frame every syncInterval frames, so it can go
+ * to a muxer. The first dequeueOutputBuffer reports the output format.
+ */
+@TargetApi( Build.VERSION_CODES.JELLY_BEAN_MR2 )
+public class FakeCodecQueue implements CodecQueue {
+
+   private static final int BUFFER_COUNT = 4;
+
+   MediaFormat mOutputFormat;
+
+   int mFrameSize;
+
+   int mSyncInterval;
+
+   ByteBuffer[] mInputBuffers = new ByteBuffer[BUFFER_COUNT];
+
+   ByteBuffer[] mOutputBuffers = new ByteBuffer[BUFFER_COUNT];
+
+   // Frames put in and not taken out yet, the oldest at mPendingStart.
+   long[] mPendingTimesUs = new long[BUFFER_COUNT];
+   int[] mPendingFlags = new int[BUFFER_COUNT];
+   int mPendingStart = 0;
+   int mPendingCount = 0;
+
+   int mNextInput = 0;
+
+   int mNextOutput = 0;
+
+   boolean mFormatReported = false;
+
+   long mFramesOut = 0;
+
+   long mReleasedCount = 0;
+
+   long mRenderedCount = 0;
+
+   public FakeCodecQueue( MediaFormat outputFormat, int inputSize, int frameSize, int syncInterval ) {
+      mOutputFormat = outputFormat;
+      mFrameSize = frameSize;
+      mSyncInterval = Math.max( 1, syncInterval );
+
+      for ( int i = 0; i < BUFFER_COUNT; i++ ) {
+         mInputBuffers[i] = ByteBuffer.allocateDirect( inputSize );
+
+         ByteBuffer output = ByteBuffer.allocateDirect( frameSize );
+         output.putInt( 1 );
+         output.put( (byte) 0x41 );
+         // No start code emulation in the payload.
+         while ( output.hasRemaining() ) {
+            output.put( (byte) 1 );
+         }
+         output.clear();
+         mOutputBuffers[i] = output;
+      }
+   }
+
+   /**
+    * Puts in a frame the way drawing to an encoder's input surface and swapping does.
+    */
+   public void queueSurfaceFrame( long presentationTimeUs ) {
+      addPending( presentationTimeUs, 0 );
+   }
+
+   public long getReleasedCount() {
+      return mReleasedCount;
+   }
+
+   public long getRenderedCount() {
+      return mRenderedCount;
+   }
+
+   @Override
+   public ByteBuffer[] getInputBuffers() {
+      return mInputBuffers;
+   }
+
+   @Override
+   public ByteBuffer[] getOutputBuffers() {
+      return mOutputBuffers;
+   }
+
+   @Override
+   public int dequeueInputBuffer( long timeoutUs ) {
+      if ( mPendingCount == BUFFER_COUNT ) {
+         return MediaCodec.INFO_TRY_AGAIN_LATER;
+      }
+
+      int index = mNextInput;
+      mNextInput = ( mNextInput + 1 ) % BUFFER_COUNT;
+      return index;
+   }
+
+   @Override
+   public void queueInputBuffer( int index, int offset, int size, long presentationTimeUs, int flags ) {
+      addPending( presentationTimeUs, flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM );
+   }
+
+   @Override
+   public int dequeueOutputBuffer( MediaCodec.BufferInfo info, long timeoutUs ) {
+      if ( !mFormatReported ) {
+         mFormatReported = true;
+         return MediaCodec.INFO_OUTPUT_FORMAT_CHANGED;
+      }
+      if ( mPendingCount == 0 ) {
+         return MediaCodec.INFO_TRY_AGAIN_LATER;
+      }
+
+      long presentationTimeUs = mPendingTimesUs[mPendingStart];
+      int flags = mPendingFlags[mPendingStart];
+      mPendingStart = ( mPendingStart + 1 ) % BUFFER_COUNT;
+      mPendingCount--;
+
+      int index = mNextOutput;
+      mNextOutput = ( mNextOutput + 1 ) % BUFFER_COUNT;
+
+      if ( flags != 0 ) {
+         info.set( 0, 0, presentationTimeUs, flags );
+         return index;
+      }
+
+      boolean sync = mFramesOut % mSyncInterval == 0;
+      mFramesOut++;
+
+      ByteBuffer output = mOutputBuffers[index];
+      output.clear();
+      output.put( 4, (byte) ( sync ? 0x65 : 0x41 ) );
+      info.set( 0, mFrameSize, presentationTimeUs, sync ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0 );
+      return index;
+   }
+
+   @Override
+   public void releaseOutputBuffer( int index, boolean render ) {
+      mReleasedCount++;
+      if ( render ) {
+         mRenderedCount++;
+      }
+   }
+
+   @Override
+   public MediaFormat getOutputFormat() {
+      return mOutputFormat;
+   }
+
+   @Override
+   public void signalEndOfInputStream() {
+      addPending( 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM );
+   }
+
+   private void addPending( long presentationTimeUs, int flags ) {
+      if ( mPendingCount == BUFFER_COUNT ) {
+         throw new IllegalStateException( "All " + BUFFER_COUNT + " buffers are waiting to be dequeued" );
+      }
+
+      int slot = ( mPendingStart + mPendingCount ) % BUFFER_COUNT;
+      mPendingTimesUs[slot] = presentationTimeUs;
+      mPendingFlags[slot] = flags;
+      mPendingCount++;
+   }
+}
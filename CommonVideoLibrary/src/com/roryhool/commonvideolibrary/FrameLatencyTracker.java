@@ -0,0 +1,77 @@
+/**
+   Copyright (c) 2014 Rory Hool
+   
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+   
+       http://www.apache.org/licenses/LICENSE-2.0
+   
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ **/
+
+
+package com.roryhool.commonvideolibrary;
+
+/**
+ * Times frames through a codec by their presentation time: when one goes in and when the same timestamp comes out.
+ * Codecs may reorder frames, so the match is by timestamp, not by order. Belongs to the one thread that feeds and
+ * drains the codec.
+ */
+public class FrameLatencyTracker {
+
+   // More frames than any codec keeps in flight.
+   private static final int CAPACITY = 64;
+
+   private static final long EMPTY = Long.MIN_VALUE;
+
+   long[] mTimesUs = new long[CAPACITY];
+
+   long[] mStartsNs = new long[CAPACITY];
+
+   int mNext = 0;
+
+   LatencyHistogram mHistogram;
+
+   public FrameLatencyTracker( LatencyHistogram histogram ) {
+      mHistogram = histogram;
+      clear();
+   }
+
+   /**
+    * Notes that the frame with the given presentation time went into the codec now.
+    */
+   public void frameIn( long presentationTimeUs ) {
+      mTimesUs[mNext] = presentationTimeUs;
+      mStartsNs[mNext] = System.nanoTime();
+      mNext = ( mNext + 1 ) % CAPACITY;
+   }
+
+   /**
+    * Records how long the frame with the given presentation time was in the codec, if it was seen going in.
+    */
+   public void frameOut( long presentationTimeUs ) {
+      // Newest first, frames usually come out soon after they went in.
+      for ( int i = 1; i <= CAPACITY; i++ ) {
+         int index = ( mNext - i + CAPACITY ) % CAPACITY;
+         if ( mTimesUs[index] == presentationTimeUs ) {
+            mHistogram.recordSince( mStartsNs[index] );
+            mTimesUs[index] = EMPTY;
+            return;
+         }
+      }
+   }
+
+   /**
+    * Forgets the frames in flight, after a flush or seek.
+    */
+   public void clear() {
+      for ( int i = 0; i < CAPACITY; i++ ) {
+         mTimesUs[i] = EMPTY;
+      }
+   }
+}
@@ -0,0 +1,246 @@
+/**
+   Copyright (c) 2014 Rory Hool
+   
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+   
+       http://www.apache.org/licenses/LICENSE-2.0
+   
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ **/
+
+package com.roryhool.commonvideolibrary;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Locale;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * Cuts encoded H.264 output into key frame aligned MPEG-TS segments and keeps an m3u8 playlist next to them. A segment
+ * is closed, and the playlist rewritten, at the first key frame after the segment duration is reached, so finished
+ * segments can be uploaded while the rest is still encoding. The encoder should be asked for a sync frame at each
+ * boundary, {@link VideoResampler} does that.
+ */
+@TargetApi( Build.VERSION_CODES.JELLY_BEAN )
+public class HlsSegmenter {
+
+   private static final String TAG = "HlsSegmenter";
+
+   public static final int DEFAULT_SEGMENT_DURATION_SEC = 6;
+
+   public interface SegmentListener {
+      /**
+       * Called on the encoding thread once a segment file is complete and listed in the playlist.
+       */
+      public void onSegmentComplete( File segment, double durationSec );
+   }
+
+   File mDirectory;
+
+   String mBaseName;
+
+   long mSegmentDurationUs;
+
+   SegmentListener mListener;
+
+   TsWriter mWriter;
+
+   OutputStream mOutput;
+
+   File mSegmentFile;
+
+   long mSegmentStartUs = -1;
+
+   long mLastSampleUs = -1;
+
+   long mLastSampleDurationUs = 0;
+
+   byte[] mCodecConfig = new byte[0];
+
+   ArrayList<String> mSegmentNames = new ArrayList<String>();
+
+   ArrayList<Double> mSegmentDurations = new ArrayList<Double>();
+
+   public HlsSegmenter( File directory, String baseName ) {
+      this( directory, baseName, DEFAULT_SEGMENT_DURATION_SEC );
+   }
+
+   public HlsSegmenter( File directory, String baseName, int segmentDurationSec ) {
+      mDirectory = directory;
+      mBaseName = baseName;
+      mSegmentDurationUs = segmentDurationSec * 1000000L;
+   }
+
+   public void setSegmentListener( SegmentListener listener ) {
+      mListener = listener;
+   }
+
+   public long getSegmentDurationUs() {
+      return mSegmentDurationUs;
+   }
+
+   public File getPlaylistFile() {
+      return new File( mDirectory, mBaseName + ".m3u8" );
+   }
+
+   /**
+    * Takes the SPS and PPS from the encoder's output format.
+    */
+   public void setOutputFormat( MediaFormat format ) {
+      ByteBuffer sps = format.getByteBuffer( "csd-0" );
+      ByteBuffer pps = format.getByteBuffer( "csd-1" );
+
+      int spsSize = sps != null ? sps.limit() : 0;
+      int ppsSize = pps != null ? pps.limit() : 0;
+
+      mCodecConfig = new byte[spsSize + ppsSize];
+      if ( sps != null ) {
+         sps.position( 0 );
+         sps.get( mCodecConfig, 0, spsSize );
+      }
+      if ( pps != null ) {
+         pps.position( 0 );
+         pps.get( mCodecConfig, spsSize, ppsSize );
+      }
+
+      if ( mWriter != null ) {
+         mWriter.setCodecConfig( mCodecConfig );
+      }
+   }
+
+   /**
+    * Writes one encoded sample, data from position to limit.
+    */
+   public void writeSampleData( ByteBuffer data, MediaCodec.BufferInfo info ) throws IOException {
+      if ( ( info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG ) != 0 ) {
+         return;
+      }
+
+      boolean keyFrame = ( info.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME ) != 0;
+
+      if ( mWriter == null ) {
+         if ( !keyFrame ) {
+            // A segment has to start with a key frame, anything before the first one can't be decoded anyway.
+            return;
+         }
+         startSegment( info.presentationTimeUs );
+      } else if ( keyFrame && info.presentationTimeUs - mSegmentStartUs >= mSegmentDurationUs ) {
+         finishSegment( info.presentationTimeUs );
+         startSegment( info.presentationTimeUs );
+      }
+
+      if ( mLastSampleUs >= 0 ) {
+         mLastSampleDurationUs = info.presentationTimeUs - mLastSampleUs;
+      }
+      mLastSampleUs = info.presentationTimeUs;
+
+      mWriter.writeSample( data, info.presentationTimeUs, keyFrame );
+   }
+
+   /**
+    * Closes the last segment and marks the playlist as complete.
+    */
+   public void finish() throws IOException {
+      if ( mWriter != null ) {
+         finishSegment( mLastSampleUs + mLastSampleDurationUs );
+      }
+      writePlaylist( true );
+   }
+
+   /**
+    * Closes the segment being written without adding it to the playlist, which keeps the segments finished so far.
+    */
+   public void abort() throws IOException {
+      if ( mOutput != null ) {
+         mOutput.close();
+         mOutput = null;
+         mWriter = null;
+      }
+   }
+
+   private void startSegment( long startUs ) throws IOException {
+      String name = String.format( Locale.US, "%s_%05d.ts", mBaseName, mSegmentNames.size() );
+      mSegmentFile = new File( mDirectory, name );
+      mOutput = new BufferedOutputStream( new FileOutputStream( mSegmentFile ), 64 * 1024 );
+
+      mWriter = new TsWriter( mOutput );
+      mWriter.setCodecConfig( mCodecConfig );
+      mWriter.writeTables();
+
+      mSegmentStartUs = startUs;
+   }
+
+   private void finishSegment( long endUs ) throws IOException {
+      mOutput.close();
+      mOutput = null;
+      mWriter = null;
+
+      double durationSec = ( endUs - mSegmentStartUs ) / 1000000.0;
+      mSegmentNames.add( mSegmentFile.getName() );
+      mSegmentDurations.add( durationSec );
+
+      writePlaylist( false );
+
+      Log.d( TAG, String.format( Locale.US, "segment %s done, %.3f s", mSegmentFile.getName(), durationSec ) );
+
+      if ( mListener != null ) {
+         mListener.onSegmentComplete( mSegmentFile, durationSec );
+      }
+   }
+
+   /**
+    * Rewrites the whole playlist next to the old one and renames it over, readers never see half a playlist.
+    */
+   private void writePlaylist( boolean complete ) throws IOException {
+      double maxDuration = 0;
+      for ( Double duration : mSegmentDurations ) {
+         maxDuration = Math.max( maxDuration, duration );
+      }
+
+      StringBuilder playlist = new StringBuilder();
+      playlist.append( "#EXTM3U\n" );
+      playlist.append( "#EXT-X-VERSION:3\n" );
+      playlist.append( "#EXT-X-PLAYLIST-TYPE:EVENT\n" );
+      playlist.append( "#EXT-X-TARGETDURATION:" ).append( (int) Math.ceil( Math.max( maxDuration, mSegmentDurationUs / 1000000.0 ) ) ).append( '\n' );
+      playlist.append( "#EXT-X-MEDIA-SEQUENCE:0\n" );
+      for ( int i = 0; i < mSegmentNames.size(); i++ ) {
+         playlist.append( String.format( Locale.US, "#EXTINF:%.3f,\n", mSegmentDurations.get( i ) ) );
+         playlist.append( mSegmentNames.get( i ) ).append( '\n' );
+      }
+      if ( complete ) {
+         playlist.append( "#EXT-X-ENDLIST\n" );
+      }
+
+      File playlistFile = getPlaylistFile();
+      File tempFile = new File( mDirectory, playlistFile.getName() + ".tmp" );
+
+      Writer writer = new OutputStreamWriter( new FileOutputStream( tempFile ), "UTF-8" );
+      try {
+         writer.write( playlist.toString() );
+      } finally {
+         writer.close();
+      }
+
+      if ( !tempFile.renameTo( playlistFile ) ) {
+         throw new IOException( "Could not replace " + playlistFile );
+      }
+   }
+}
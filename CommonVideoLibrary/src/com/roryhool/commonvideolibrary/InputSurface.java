@@ -29,7 +29,7 @@ import android.view.Surface;
  * <p>
  * The constructor takes a Surface obtained from MediaCodec.createInputSurface(), and uses that to create an EGL window surface. Calls to eglSwapBuffers() cause a frame of data to be sent to the video encoder.
  */
-class InputSurface {
+public class InputSurface {
    private static final String TAG = "InputSurface";
    private static final boolean VERBOSE = false;
    private static final int EGL_RECORDABLE_ANDROID = 0x3142;
@@ -43,17 +43,25 @@ class InputSurface {
     * Creates an InputSurface from a Surface.
     */
    public InputSurface( Surface surface ) {
+      this( surface, null );
+   }
+
+   /**
+    * Creates an InputSurface whose EGL context shares textures and programs with another one, so a texture filled
+    * once can be drawn into several encoders.
+    */
+   public InputSurface( Surface surface, InputSurface sharedWith ) {
       if ( surface == null ) {
          throw new NullPointerException();
       }
       mSurface = surface;
-      eglSetup();
+      eglSetup( sharedWith != null ? sharedWith.mEGLContext : EGL14.EGL_NO_CONTEXT );
    }
 
    /**
     * Prepares EGL. We want a GLES 2.0 context and a surface that supports recording.
     */
-   private void eglSetup() {
+   private void eglSetup( EGLContext sharedContext ) {
       mEGLDisplay = EGL14.eglGetDisplay( EGL14.EGL_DEFAULT_DISPLAY );
       if ( mEGLDisplay == EGL14.EGL_NO_DISPLAY ) {
          throw new RuntimeException( "unable to get EGL14 display" );
@@ -73,7 +81,7 @@ class InputSurface {
       }
       // Configure context for OpenGL ES 2.0.
       int[] attrib_list = { EGL14.EGL_CONTEXT_CLIENT_VERSION, 2, EGL14.EGL_NONE };
-      mEGLContext = EGL14.eglCreateContext( mEGLDisplay, configs[0], EGL14.EGL_NO_CONTEXT, attrib_list, 0 );
+      mEGLContext = EGL14.eglCreateContext( mEGLDisplay, configs[0], sharedContext, attrib_list, 0 );
       checkEglError( "eglCreateContext" );
       if ( mEGLContext == null ) {
          throw new RuntimeException( "null context" );
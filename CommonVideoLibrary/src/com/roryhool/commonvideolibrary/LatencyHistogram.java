@@ -0,0 +1,141 @@
+/**
+   Copyright (c) 2014 Rory Hool
+   
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+   
+       http://www.apache.org/licenses/LICENSE-2.0
+   
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ **/
+
+
+package com.roryhool.commonvideolibrary;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts durations in nanoseconds into log-linear buckets, the way HdrHistogram does: every power of two is split into
+ * 16 buckets, so a percentile is within about 6% of the real value whatever the magnitude. Recording is a few atomic
+ * operations, safe from any number of threads without locking.
+ */
+public class LatencyHistogram {
+
+   private static final int SUB_BUCKET_BITS = 4;
+   private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+   // Values below two sub bucket ranges are counted exactly, every power of two above gets SUB_BUCKET_COUNT buckets.
+   private static final int BUCKET_COUNT = ( 63 - SUB_BUCKET_BITS ) * SUB_BUCKET_COUNT + 2 * SUB_BUCKET_COUNT;
+
+   AtomicLongArray mCounts = new AtomicLongArray( BUCKET_COUNT );
+
+   AtomicLong mCount = new AtomicLong();
+
+   AtomicLong mSum = new AtomicLong();
+
+   AtomicLong mMin = new AtomicLong( Long.MAX_VALUE );
+
+   AtomicLong mMax = new AtomicLong( 0 );
+
+   public void record( long valueNs ) {
+      if ( valueNs < 0 ) {
+         valueNs = 0;
+      }
+
+      mCounts.incrementAndGet( getBucketIndex( valueNs ) );
+      mCount.incrementAndGet();
+      mSum.addAndGet( valueNs );
+
+      long min = mMin.get();
+      while ( valueNs < min && !mMin.compareAndSet( min, valueNs ) ) {
+         min = mMin.get();
+      }
+
+      long max = mMax.get();
+      while ( valueNs > max && !mMax.compareAndSet( max, valueNs ) ) {
+         max = mMax.get();
+      }
+   }
+
+   /**
+    * Records the time since startNs, a System.nanoTime() taken when the stage started.
+    */
+   public void recordSince( long startNs ) {
+      record( System.nanoTime() - startNs );
+   }
+
+   public long getCount() {
+      return mCount.get();
+   }
+
+   public long getMinNs() {
+      return mCount.get() == 0 ? 0 : mMin.get();
+   }
+
+   public long getMaxNs() {
+      return mMax.get();
+   }
+
+   public double getMeanNs() {
+      long count = mCount.get();
+      return count == 0 ? 0 : (double) mSum.get() / count;
+   }
+
+   /**
+    * The value below which the given share of the recorded values lie, percentile from 0 to 100. Reported as the top
+    * of its bucket, never above the largest value recorded.
+    */
+   public long getPercentileNs( double percentile ) {
+      long count = mCount.get();
+      if ( count == 0 ) {
+         return 0;
+      }
+
+      long rank = Math.max( 1, (long) Math.ceil( percentile / 100 * count ) );
+      long seen = 0;
+      for ( int i = 0; i < BUCKET_COUNT; i++ ) {
+         seen += mCounts.get( i );
+         if ( seen >= rank ) {
+            return Math.min( getBucketUpperBound( i ), getMaxNs() );
+         }
+      }
+      return getMaxNs();
+   }
+
+   /**
+    * Clears the histogram. Values recorded while it runs may or may not survive.
+    */
+   public void reset() {
+      for ( int i = 0; i < BUCKET_COUNT; i++ ) {
+         mCounts.set( i, 0 );
+      }
+      mCount.set( 0 );
+      mSum.set( 0 );
+      mMin.set( Long.MAX_VALUE );
+      mMax.set( 0 );
+   }
+
+   static int getBucketIndex( long value ) {
+      if ( value < 2 * SUB_BUCKET_COUNT ) {
+         return (int) value;
+      }
+      // The top SUB_BUCKET_BITS + 1 bits pick the bucket, the ones below are the part of the value it doesn't resolve.
+      int shift = 63 - Long.numberOfLeadingZeros( value ) - SUB_BUCKET_BITS;
+      return shift * SUB_BUCKET_COUNT + (int) ( value >>> shift );
+   }
+
+   static long getBucketUpperBound( int index ) {
+      if ( index < 2 * SUB_BUCKET_COUNT ) {
+         return index;
+      }
+      int shift = index / SUB_BUCKET_COUNT - 1;
+      long lowerBound = (long) ( index - shift * SUB_BUCKET_COUNT ) << shift;
+      return lowerBound + ( 1L << shift ) - 1;
+   }
+}
@@ -0,0 +1,74 @@
+/**
+   Copyright (c) 2014 Rory Hool
+   
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+   
+       http://www.apache.org/licenses/LICENSE-2.0
+   
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ **/
+
+package com.roryhool.commonvideolibrary;
+
+import java.nio.ByteBuffer;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+
+@TargetApi( Build.VERSION_CODES.JELLY_BEAN_MR2 )
+public class MediaCodecQueue implements CodecQueue {
+
+   MediaCodec mCodec;
+
+   public MediaCodecQueue( MediaCodec codec ) {
+      mCodec = codec;
+   }
+
+   @Override
+   public ByteBuffer[] getInputBuffers() {
+      return mCodec.getInputBuffers();
+   }
+
+   @Override
+   public ByteBuffer[] getOutputBuffers() {
+      return mCodec.getOutputBuffers();
+   }
+
+   @Override
+   public int dequeueInputBuffer( long timeoutUs ) {
+      return mCodec.dequeueInputBuffer( timeoutUs );
+   }
+
+   @Override
+   public void queueInputBuffer( int index, int offset, int size, long presentationTimeUs, int flags ) {
+      mCodec.queueInputBuffer( index, offset, size, presentationTimeUs, flags );
+   }
+
+   @Override
+   public int dequeueOutputBuffer( MediaCodec.BufferInfo info, long timeoutUs ) {
+      return mCodec.dequeueOutputBuffer( info, timeoutUs );
+   }
+
+   @Override
+   public void releaseOutputBuffer( int index, boolean render ) {
+      mCodec.releaseOutputBuffer( index, render );
+   }
+
+   @Override
+   public MediaFormat getOutputFormat() {
+      return mCodec.getOutputFormat();
+   }
+
+   @Override
+   public void signalEndOfInputStream() {
+      mCodec.signalEndOfInputStream();
+   }
+}
@@ -0,0 +1,70 @@
+/**
+   Copyright (c) 2014 Rory Hool
+   
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+   
+       http://www.apache.org/licenses/LICENSE-2.0
+   
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ **/
+
+package com.roryhool.commonvideolibrary;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.os.Build;
+
+@TargetApi( Build.VERSION_CODES.JELLY_BEAN_MR2 )
+public class MediaMuxerAdapter implements Muxer {
+
+   MediaMuxer mMuxer;
+
+   public MediaMuxerAdapter( String path ) {
+      try {
+         mMuxer = new MediaMuxer( path, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4 );
+      } catch ( IOException ioe ) {
+         throw new RuntimeException( "MediaMuxer creation failed", ioe );
+      }
+   }
+
+   @Override
+   public int addTrack( MediaFormat format ) {
+      return mMuxer.addTrack( format );
+   }
+
+   @Override
+   public void setOrientationHint( int degrees ) {
+      mMuxer.setOrientationHint( degrees );
+   }
+
+   @Override
+   public void start() {
+      mMuxer.start();
+   }
+
+   @Override
+   public void writeSampleData( int trackIndex, ByteBuffer data, MediaCodec.BufferInfo info ) {
+      mMuxer.writeSampleData( trackIndex, data, info );
+   }
+
+   @Override
+   public void stop() {
+      mMuxer.stop();
+   }
+
+   @Override
+   public void release() {
+      mMuxer.release();
+   }
+}
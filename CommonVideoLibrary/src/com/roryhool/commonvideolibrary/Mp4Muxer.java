@@ -0,0 +1,136 @@
+/**
+   Copyright (c) 2014 Rory Hool
+   
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+   
+       http://www.apache.org/licenses/LICENSE-2.0
+   
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ **/
+
+package com.roryhool.commonvideolibrary;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+
+/**
+ * {@link Muxer} on top of {@link Mp4Writer}, takes MediaCodec output formats and buffers.
+ */
+@TargetApi( Build.VERSION_CODES.JELLY_BEAN )
+public class Mp4Muxer implements Muxer {
+
+   Mp4Writer mWriter;
+
+   public Mp4Muxer( String path ) {
+      this( path, Mp4Writer.MODE_NORMAL );
+   }
+
+   public Mp4Muxer( String path, int mode ) {
+      try {
+         mWriter = new Mp4Writer( new File( path ), mode );
+      } catch ( IOException e ) {
+         throw new RuntimeException( "Mp4Writer creation failed", e );
+      }
+   }
+
+   public Mp4Writer getWriter() {
+      return mWriter;
+   }
+
+   @Override
+   public int addTrack( MediaFormat format ) {
+      String mime = format.getString( MediaFormat.KEY_MIME );
+
+      if ( mime.equals( MediaHelper.MIME_TYPE_AVC ) ) {
+         byte[] sps = stripStartCode( format.getByteBuffer( "csd-0" ) );
+         byte[] pps = stripStartCode( format.getByteBuffer( "csd-1" ) );
+         return mWriter.addVideoTrack( format.getInteger( MediaFormat.KEY_WIDTH ), format.getInteger( MediaFormat.KEY_HEIGHT ), sps, pps );
+      } else if ( mime.equals( "audio/mp4a-latm" ) ) {
+         byte[] config = stripStartCode( format.getByteBuffer( "csd-0" ) );
+         return mWriter.addAudioTrack( format.getInteger( MediaFormat.KEY_SAMPLE_RATE ), format.getInteger( MediaFormat.KEY_CHANNEL_COUNT ), config );
+      }
+
+      throw new IllegalArgumentException( "Unsupported track " + mime );
+   }
+
+   @Override
+   public void setOrientationHint( int degrees ) {
+      mWriter.setOrientationHint( degrees );
+   }
+
+   @Override
+   public void start() {
+      try {
+         mWriter.start();
+      } catch ( IOException e ) {
+         throw new RuntimeException( "Starting the mp4 failed", e );
+      }
+   }
+
+   @Override
+   public void writeSampleData( int trackIndex, ByteBuffer data, MediaCodec.BufferInfo info ) {
+      if ( ( info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG ) != 0 ) {
+         return;
+      }
+
+      data.position( info.offset );
+      data.limit( info.offset + info.size );
+
+      try {
+         mWriter.writeSample( trackIndex, data, info.presentationTimeUs, ( info.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME ) != 0 );
+      } catch ( IOException e ) {
+         throw new RuntimeException( "Writing the mp4 failed", e );
+      }
+   }
+
+   @Override
+   public void stop() {
+      try {
+         mWriter.finish();
+      } catch ( IOException e ) {
+         throw new RuntimeException( "Finishing the mp4 failed", e );
+      }
+   }
+
+   @Override
+   public void release() {
+      try {
+         mWriter.close();
+      } catch ( IOException e ) {
+         throw new RuntimeException( "Closing the mp4 failed", e );
+      }
+   }
+
+   /**
+    * Codec config buffers come with Annex B start codes, the sample entry wants them without.
+    */
+   static byte[] stripStartCode( ByteBuffer buffer ) {
+      buffer.position( 0 );
+      int start = 0;
+      int limit = buffer.limit();
+      if ( limit >= 4 && buffer.get( 0 ) == 0 && buffer.get( 1 ) == 0 ) {
+         if ( buffer.get( 2 ) == 1 ) {
+            start = 3;
+         } else if ( buffer.get( 2 ) == 0 && buffer.get( 3 ) == 1 ) {
+            start = 4;
+         }
+      }
+      byte[] bytes = new byte[limit - start];
+      buffer.position( start );
+      buffer.get( bytes );
+      buffer.position( 0 );
+      return bytes;
+   }
+}
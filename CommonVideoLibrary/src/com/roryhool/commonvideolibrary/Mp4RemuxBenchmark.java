@@ -0,0 +1,199 @@
+/**
+   Copyright (c) 2014 Rory Hool
+   
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+   
+       http://www.apache.org/licenses/LICENSE-2.0
+   
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ **/
+
+package com.roryhool.commonvideolibrary;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+
+/**
+ * Times remuxing an mp4 into {@link Mp4Writer} with the samples handed over by {@link Mp4SampleReader}, against
+ * reading every sample into a buffer first. Use a large file, a few hundred MB, so the page cache and the writer's
+ * batching show. Nothing here needs Android, it runs on a desktop JVM with the copying path reading through
+ * FileChannel:
+ * 
+ * java -cp bin com.roryhool.commonvideolibrary.Mp4RemuxBenchmark input.mp4 [directory]
+ * 
+ * {@link Mp4RemuxDeviceBenchmark} runs it on a device against MediaExtractor.
+ */
+public class Mp4RemuxBenchmark {
+
+   static final int ROUNDS = 5;
+
+   static final int PATH_MAPPED = 0;
+   static final int PATH_COPIED = 1;
+
+   public static void main( String[] args ) throws IOException {
+      if ( args.length < 1 ) {
+         System.out.println( "java com.roryhool.commonvideolibrary.Mp4RemuxBenchmark input.mp4 [directory]" );
+         return;
+      }
+      File directory = new File( args.length > 1 ? args[1] : System.getProperty( "java.io.tmpdir" ) );
+
+      Mp4RemuxBenchmark benchmark = new Mp4RemuxBenchmark( new File( args[0] ), new File( directory, "mp4remux_benchmark.mp4" ) );
+      for ( int round = 0; round < ROUNDS; round++ ) {
+         // The first round warms up the JIT and the page cache.
+         boolean report = round > 0;
+         print( benchmark.run( "read per sample", PATH_COPIED, report ) );
+         print( benchmark.run( "mapped reader", PATH_MAPPED, report ) );
+      }
+      benchmark.mOutput.delete();
+   }
+
+   private static void print( String result ) {
+      if ( result != null ) {
+         System.out.println( result );
+      }
+   }
+
+   File mInput;
+
+   File mOutput;
+
+   long mTotalBytes;
+
+   Mp4RemuxBenchmark( File input, File output ) throws IOException {
+      mInput = input;
+      mOutput = output;
+
+      Mp4SampleReader reader = new Mp4SampleReader( input );
+      try {
+         for ( int track = 0; track < reader.getTrackCount(); track++ ) {
+            for ( int sample = 0; sample < reader.getSampleCount( track ); sample++ ) {
+               mTotalBytes += reader.getSampleSize( track, sample );
+            }
+         }
+      } finally {
+         reader.close();
+      }
+   }
+
+   String run( String name, int path, boolean report ) throws IOException {
+      mOutput.delete();
+
+      long start = System.nanoTime();
+      remux( path );
+      long elapsedNs = System.nanoTime() - start;
+
+      if ( !report ) {
+         return null;
+      }
+      double seconds = elapsedNs / 1e9;
+      return String.format( Locale.US, "%-18s %8.1f ms %8.1f MB/s %6d KB file", name, elapsedNs / 1e6, mTotalBytes / seconds / ( 1024 * 1024 ), mOutput.length() / 1024 );
+   }
+
+   void remux( int path ) throws IOException {
+      remux( path == PATH_COPIED );
+   }
+
+   /**
+    * Copies every sample in file order. With copy set each one is read into a buffer with its own FileChannel read, a
+    * stand in for MediaExtractor where there is none.
+    */
+   private void remux( boolean copy ) throws IOException {
+      Mp4SampleReader reader = new Mp4SampleReader( mInput );
+      RandomAccessFile input = null;
+      Mp4Writer writer = new Mp4Writer( mOutput, Mp4Writer.MODE_NORMAL );
+      try {
+         int[] outputTracks = addTracks( reader, writer );
+         writer.start();
+
+         FileChannel channel = null;
+         ByteBuffer buffer = null;
+         if ( copy ) {
+            input = new RandomAccessFile( mInput, "r" );
+            channel = input.getChannel();
+            int maxSampleSize = 0;
+            for ( int track = 0; track < reader.getTrackCount(); track++ ) {
+               maxSampleSize = Math.max( maxSampleSize, reader.getMaxSampleSize( track ) );
+            }
+            buffer = ByteBuffer.allocateDirect( maxSampleSize );
+         }
+
+         int[] positions = new int[outputTracks.length];
+         int track;
+         while ( ( track = nextTrack( reader, outputTracks, positions ) ) >= 0 ) {
+            int sample = positions[track]++;
+
+            ByteBuffer data;
+            if ( copy ) {
+               buffer.clear();
+               buffer.limit( reader.getSampleSize( track, sample ) );
+               long position = reader.getSampleOffset( track, sample );
+               while ( buffer.hasRemaining() ) {
+                  int read = channel.read( buffer, position );
+                  if ( read < 0 ) {
+                     throw new IOException( "Unexpected end of file" );
+                  }
+                  position += read;
+               }
+               buffer.flip();
+               data = buffer;
+            } else {
+               data = reader.readSample( track, sample );
+            }
+
+            writer.writeMp4Sample( outputTracks[track], data, reader.getSampleTimeUs( track, sample ), reader.isSyncSample( track, sample ) );
+         }
+
+         writer.finish();
+      } finally {
+         writer.close();
+         reader.close();
+         if ( input != null ) {
+            input.close();
+         }
+      }
+   }
+
+   private static int[] addTracks( Mp4SampleReader reader, Mp4Writer writer ) throws IOException {
+      int[] outputTracks = new int[reader.getTrackCount()];
+      for ( int track = 0; track < outputTracks.length; track++ ) {
+         outputTracks[track] = -1;
+         if ( reader.isVideoTrack( track ) && reader.getSps( track ) != null ) {
+            if ( reader.getNalLengthSize( track ) != 4 ) {
+               throw new IOException( "NAL units with " + reader.getNalLengthSize( track ) + " byte lengths, Mp4Writer writes 4" );
+            }
+            outputTracks[track] = writer.addVideoTrack( reader.getWidth( track ), reader.getHeight( track ), reader.getSps( track ), reader.getPps( track ) );
+         } else if ( reader.isAudioTrack( track ) && reader.getDecoderSpecificInfo( track ) != null ) {
+            outputTracks[track] = writer.addAudioTrack( reader.getSampleRate( track ), reader.getChannelCount( track ), reader.getDecoderSpecificInfo( track ) );
+         }
+      }
+      return outputTracks;
+   }
+
+   /**
+    * The track whose next sample comes first in the file, so the input is read front to back. -1 when all are done.
+    */
+   private static int nextTrack( Mp4SampleReader reader, int[] outputTracks, int[] positions ) {
+      int next = -1;
+      long nextOffset = Long.MAX_VALUE;
+      for ( int track = 0; track < outputTracks.length; track++ ) {
+         if ( outputTracks[track] >= 0 && positions[track] < reader.getSampleCount( track ) ) {
+            long offset = reader.getSampleOffset( track, positions[track] );
+            if ( offset < nextOffset ) {
+               next = track;
+               nextOffset = offset;
+            }
+         }
+      }
+      return next;
+   }
+}
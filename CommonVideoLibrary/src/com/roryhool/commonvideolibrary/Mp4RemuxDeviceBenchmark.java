@@ -0,0 +1,122 @@
+/**
+   Copyright (c) 2014 Rory Hool
+   
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+   
+       http://www.apache.org/licenses/LICENSE-2.0
+   
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ **/
+
+package com.roryhool.commonvideolibrary;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import android.annotation.TargetApi;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * {@link Mp4RemuxBenchmark} on a device, with a third path that reads the samples with MediaExtractor.readSampleData.
+ * The results go to the log.
+ */
+@TargetApi( Build.VERSION_CODES.JELLY_BEAN_MR2 )
+public class Mp4RemuxDeviceBenchmark extends Mp4RemuxBenchmark {
+
+   private static final String TAG = "Mp4RemuxBenchmark";
+
+   static final int PATH_EXTRACTOR = 2;
+
+   /**
+    * Takes a while, keep it off the UI thread.
+    */
+   public static void run( File input, File directory ) throws IOException {
+      Mp4RemuxDeviceBenchmark benchmark = new Mp4RemuxDeviceBenchmark( input, new File( directory, "mp4remux_benchmark.mp4" ) );
+      for ( int round = 0; round < ROUNDS; round++ ) {
+         // The first round warms up the JIT and the page cache.
+         boolean report = round > 0;
+         log( benchmark.run( "MediaExtractor", PATH_EXTRACTOR, report ) );
+         log( benchmark.run( "read per sample", PATH_COPIED, report ) );
+         log( benchmark.run( "mapped reader", PATH_MAPPED, report ) );
+      }
+      benchmark.mOutput.delete();
+   }
+
+   private static void log( String result ) {
+      if ( result != null ) {
+         Log.d( TAG, result );
+      }
+   }
+
+   Mp4RemuxDeviceBenchmark( File input, File output ) throws IOException {
+      super( input, output );
+   }
+
+   @Override
+   void remux( int path ) throws IOException {
+      if ( path == PATH_EXTRACTOR ) {
+         remuxWithExtractor();
+      } else {
+         super.remux( path );
+      }
+   }
+
+   private void remuxWithExtractor() throws IOException {
+      MediaExtractor extractor = new MediaExtractor();
+      Mp4Writer writer = new Mp4Writer( mOutput, Mp4Writer.MODE_NORMAL );
+      try {
+         extractor.setDataSource( mInput.getPath() );
+
+         int[] outputTracks = new int[extractor.getTrackCount()];
+         int maxSampleSize = 64 * 1024;
+         for ( int i = 0; i < outputTracks.length; i++ ) {
+            MediaFormat format = extractor.getTrackFormat( i );
+            String mime = format.getString( MediaFormat.KEY_MIME );
+            outputTracks[i] = -1;
+            if ( MediaHelper.MIME_TYPE_AVC.equals( mime ) ) {
+               byte[] sps = Mp4Muxer.stripStartCode( format.getByteBuffer( "csd-0" ) );
+               byte[] pps = Mp4Muxer.stripStartCode( format.getByteBuffer( "csd-1" ) );
+               outputTracks[i] = writer.addVideoTrack( format.getInteger( MediaFormat.KEY_WIDTH ), format.getInteger( MediaFormat.KEY_HEIGHT ), sps, pps );
+            } else if ( "audio/mp4a-latm".equals( mime ) ) {
+               byte[] config = Mp4Muxer.stripStartCode( format.getByteBuffer( "csd-0" ) );
+               outputTracks[i] = writer.addAudioTrack( format.getInteger( MediaFormat.KEY_SAMPLE_RATE ), format.getInteger( MediaFormat.KEY_CHANNEL_COUNT ), config );
+            }
+            if ( outputTracks[i] >= 0 ) {
+               extractor.selectTrack( i );
+               if ( format.containsKey( MediaFormat.KEY_MAX_INPUT_SIZE ) ) {
+                  maxSampleSize = Math.max( maxSampleSize, format.getInteger( MediaFormat.KEY_MAX_INPUT_SIZE ) );
+               }
+            }
+         }
+         writer.start();
+
+         ByteBuffer buffer = ByteBuffer.allocateDirect( maxSampleSize );
+         int track;
+         while ( ( track = extractor.getSampleTrackIndex() ) >= 0 ) {
+            int size = extractor.readSampleData( buffer, 0 );
+            buffer.position( 0 );
+            buffer.limit( size );
+
+            // Samples come with start codes, the writer turns them back into lengths.
+            boolean sync = ( extractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC ) != 0;
+            writer.writeSample( outputTracks[track], buffer, extractor.getSampleTime(), sync );
+            extractor.advance();
+         }
+
+         writer.finish();
+      } finally {
+         writer.close();
+         extractor.release();
+      }
+   }
+}
@@ -0,0 +1,559 @@
+/**
+   Copyright (c) 2014 Rory Hool
+   
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+   
+       http://www.apache.org/licenses/LICENSE-2.0
+   
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ **/
+
+package com.roryhool.commonvideolibrary;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+/**
+ * Reads the samples of a non-fragmented mp4 straight from the file, for jobs that copy samples without decoding them.
+ * The sample tables are resolved once into arrays of offsets, sizes, times and key frame flags, and the file is mapped
+ * read-only in windows so a sample is handed out as a ByteBuffer over the mapping, no JNI call and no copy per sample
+ * the way MediaExtractor.readSampleData has.
+ * <p>
+ * Samples are as stored in the file: H.264 as NAL units with length prefixes, see {@link #getNalLengthSize(int)}, write
+ * them with {@link Mp4Writer#writeMp4Sample}. Times are presentation times from the sample tables, edit lists are not
+ * applied. Not thread safe.
+ */
+public class Mp4SampleReader {
+
+   // Large enough that a window holds many samples, small enough for the address space of a 32 bit process.
+   private static final long WINDOW_SIZE = 64 * 1024 * 1024;
+
+   private static final long MAX_UINT32 = 0xFFFFFFFFL;
+
+   private static class Track {
+
+      boolean mVideo;
+
+      boolean mAudio;
+
+      int mTimeScale;
+
+      int mSampleCount;
+
+      long[] mOffsets;
+
+      int[] mSizes;
+
+      long[] mTimesUs;
+
+      // Null when every sample is a key frame.
+      boolean[] mSyncSamples;
+
+      int mMaxSampleSize;
+
+      int mWidth;
+      int mHeight;
+
+      byte[] mSps;
+      byte[] mPps;
+
+      int mNalLengthSize;
+
+      int mSampleRate;
+      int mChannelCount;
+
+      byte[] mDecoderSpecificInfo;
+   }
+
+   RandomAccessFile mFile;
+
+   FileChannel mChannel;
+
+   long mFileSize;
+
+   ArrayList<Track> mTracks = new ArrayList<Track>();
+
+   MappedByteBuffer mWindow;
+
+   long mWindowStart = 0;
+   long mWindowEnd = 0;
+
+   ByteBuffer mSample;
+
+   public Mp4SampleReader( File file ) throws IOException {
+      mFile = new RandomAccessFile( file, "r" );
+      try {
+         mChannel = mFile.getChannel();
+         mFileSize = mChannel.size();
+         parseMovie( readMovieBox() );
+      } catch ( IOException e ) {
+         mFile.close();
+         throw e;
+      } catch ( RuntimeException e ) {
+         mFile.close();
+         throw new IOException( "Can't read the sample tables of " + file, e );
+      }
+   }
+
+   public int getTrackCount() {
+      return mTracks.size();
+   }
+
+   public boolean isVideoTrack( int track ) {
+      return mTracks.get( track ).mVideo;
+   }
+
+   public boolean isAudioTrack( int track ) {
+      return mTracks.get( track ).mAudio;
+   }
+
+   public int getSampleCount( int track ) {
+      return mTracks.get( track ).mSampleCount;
+   }
+
+   /**
+    * Presentation time of a sample. Samples are numbered in decode order, with B-frames times go back now and then.
+    */
+   public long getSampleTimeUs( int track, int sample ) {
+      return mTracks.get( track ).mTimesUs[sample];
+   }
+
+   public boolean isSyncSample( int track, int sample ) {
+      boolean[] syncSamples = mTracks.get( track ).mSyncSamples;
+      return syncSamples == null || syncSamples[sample];
+   }
+
+   public int getSampleSize( int track, int sample ) {
+      return mTracks.get( track ).mSizes[sample];
+   }
+
+   public long getSampleOffset( int track, int sample ) {
+      return mTracks.get( track ).mOffsets[sample];
+   }
+
+   public int getMaxSampleSize( int track ) {
+      return mTracks.get( track ).mMaxSampleSize;
+   }
+
+   public int getWidth( int track ) {
+      return mTracks.get( track ).mWidth;
+   }
+
+   public int getHeight( int track ) {
+      return mTracks.get( track ).mHeight;
+   }
+
+   /**
+    * First SPS of an H.264 track, without start code. Null for other tracks.
+    */
+   public byte[] getSps( int track ) {
+      return mTracks.get( track ).mSps;
+   }
+
+   public byte[] getPps( int track ) {
+      return mTracks.get( track ).mPps;
+   }
+
+   /**
+    * Bytes in the length before each NAL unit of an H.264 sample, 0 for other tracks. Mp4Writer writes 4.
+    */
+   public int getNalLengthSize( int track ) {
+      return mTracks.get( track ).mNalLengthSize;
+   }
+
+   public int getSampleRate( int track ) {
+      return mTracks.get( track ).mSampleRate;
+   }
+
+   public int getChannelCount( int track ) {
+      return mTracks.get( track ).mChannelCount;
+   }
+
+   /**
+    * AudioSpecificConfig of an AAC track.
+    */
+   public byte[] getDecoderSpecificInfo( int track ) {
+      return mTracks.get( track ).mDecoderSpecificInfo;
+   }
+
+   /**
+    * The sample's bytes, from position to limit of a buffer over the mapped file. The buffer is read only and reused,
+    * it is only valid until the next call.
+    */
+   public ByteBuffer readSample( int track, int sample ) throws IOException {
+      Track t = mTracks.get( track );
+      long offset = t.mOffsets[sample];
+      int size = t.mSizes[sample];
+
+      if ( offset < mWindowStart || offset + size > mWindowEnd ) {
+         mapWindow( offset, size );
+      }
+
+      int position = (int) ( offset - mWindowStart );
+      mSample.clear();
+      mSample.position( position );
+      mSample.limit( position + size );
+      return mSample;
+   }
+
+   /**
+    * Closes the file. Mapped windows are unmapped once they are garbage collected.
+    */
+   public void close() throws IOException {
+      mWindow = null;
+      mSample = null;
+      mWindowStart = 0;
+      mWindowEnd = 0;
+      mFile.close();
+   }
+
+   private void mapWindow( long offset, int size ) throws IOException {
+      if ( offset + size > mFileSize ) {
+         throw new IOException( "Sample at " + offset + " runs past the end of the file" );
+      }
+      long length = Math.min( Math.max( WINDOW_SIZE, size ), mFileSize - offset );
+
+      mWindow = mChannel.map( FileChannel.MapMode.READ_ONLY, offset, length );
+      mSample = mWindow.duplicate();
+      mWindowStart = offset;
+      mWindowEnd = offset + length;
+   }
+
+   private ByteBuffer readMovieBox() throws IOException {
+      ByteBuffer header = ByteBuffer.allocate( 16 );
+      long position = 0;
+
+      while ( position + 8 <= mFileSize ) {
+         header.clear();
+         readFully( header, position );
+         header.flip();
+
+         long size = header.getInt( 0 ) & MAX_UINT32;
+         if ( size == 1 && header.limit() >= 16 ) {
+            size = header.getLong( 8 );
+         } else if ( size == 0 ) {
+            size = mFileSize - position;
+         }
+         if ( size < 8 || position + size > mFileSize ) {
+            throw new IOException( "Damaged box at " + position );
+         }
+
+         if ( header.get( 4 ) == 'm' && header.get( 5 ) == 'o' && header.get( 6 ) == 'o' && header.get( 7 ) == 'v' ) {
+            if ( size > Integer.MAX_VALUE ) {
+               throw new IOException( "moov box of " + size + " bytes" );
+            }
+            ByteBuffer moov = ByteBuffer.allocate( (int) size );
+            readFully( moov, position );
+            moov.flip();
+            return moov;
+         }
+         position += size;
+      }
+
+      throw new IOException( "No moov box" );
+   }
+
+   private void readFully( ByteBuffer buffer, long position ) throws IOException {
+      while ( buffer.hasRemaining() ) {
+         int read = mChannel.read( buffer, position );
+         if ( read < 0 ) {
+            if ( buffer.position() > 0 ) {
+               return;
+            }
+            throw new IOException( "Unexpected end of file" );
+         }
+         position += read;
+      }
+   }
+
+   private void parseMovie( ByteBuffer moov ) throws IOException {
+      int end = moov.limit();
+      if ( findBox( moov, 8, end, "mvex" ) >= 0 ) {
+         throw new IOException( "Fragmented files keep their samples in the fragments, they can't be read this way" );
+      }
+
+      int trak = findBox( moov, 8, end, "trak" );
+      while ( trak >= 0 ) {
+         int trakEnd = trak + moov.getInt( trak );
+         mTracks.add( parseTrack( moov, trak, trakEnd ) );
+         trak = findBox( moov, trakEnd, end, "trak" );
+      }
+   }
+
+   private static Track parseTrack( ByteBuffer moov, int trak, int trakEnd ) throws IOException {
+      Track track = new Track();
+
+      int mdia = requireBox( moov, trak + 8, trakEnd, "mdia" );
+      int mdiaEnd = mdia + moov.getInt( mdia );
+
+      int mdhd = requireBox( moov, mdia + 8, mdiaEnd, "mdhd" );
+      track.mTimeScale = moov.getInt( mdhd + ( moov.get( mdhd + 8 ) == 1 ? 28 : 20 ) );
+
+      int hdlr = requireBox( moov, mdia + 8, mdiaEnd, "hdlr" );
+      track.mVideo = moov.get( hdlr + 16 ) == 'v';
+      track.mAudio = moov.get( hdlr + 16 ) == 's';
+
+      int minf = requireBox( moov, mdia + 8, mdiaEnd, "minf" );
+      int minfEnd = minf + moov.getInt( minf );
+      int stbl = requireBox( moov, minf + 8, minfEnd, "stbl" );
+      int stblEnd = stbl + moov.getInt( stbl );
+
+      parseSampleDescription( moov, requireBox( moov, stbl + 8, stblEnd, "stsd" ), track );
+      parseSampleSizes( moov, requireBox( moov, stbl + 8, stblEnd, "stsz" ), track );
+      parseSampleOffsets( moov, stbl, stblEnd, track );
+      parseSampleTimes( moov, stbl, stblEnd, track );
+
+      int stss = findBox( moov, stbl + 8, stblEnd, "stss" );
+      if ( stss >= 0 ) {
+         track.mSyncSamples = new boolean[track.mSampleCount];
+         int count = moov.getInt( stss + 12 );
+         for ( int i = 0; i < count; i++ ) {
+            int sample = moov.getInt( stss + 16 + i * 4 ) - 1;
+            if ( sample >= 0 && sample < track.mSampleCount ) {
+               track.mSyncSamples[sample] = true;
+            }
+         }
+      }
+
+      return track;
+   }
+
+   /**
+    * Size and parameter sets from the first avc1 entry, sample rate, channels and AudioSpecificConfig from the first
+    * mp4a entry. Other entries are only counted on for their samples.
+    */
+   private static void parseSampleDescription( ByteBuffer moov, int stsd, Track track ) {
+      int entry = stsd + 16;
+      int entryEnd = entry + moov.getInt( entry );
+      String type = fourCC( moov, entry + 4 );
+
+      if ( type.equals( "avc1" ) || type.equals( "avc3" ) ) {
+         track.mWidth = moov.getShort( entry + 32 ) & 0xFFFF;
+         track.mHeight = moov.getShort( entry + 34 ) & 0xFFFF;
+
+         int avcC = findBox( moov, entry + 86, entryEnd, "avcC" );
+         if ( avcC >= 0 ) {
+            int position = avcC + 8;
+            track.mNalLengthSize = ( moov.get( position + 4 ) & 0x03 ) + 1;
+            position += 5;
+
+            int spsCount = moov.get( position++ ) & 0x1F;
+            for ( int i = 0; i < spsCount; i++ ) {
+               int length = moov.getShort( position ) & 0xFFFF;
+               if ( track.mSps == null ) {
+                  track.mSps = copy( moov, position + 2, length );
+               }
+               position += 2 + length;
+            }
+
+            int ppsCount = moov.get( position++ ) & 0xFF;
+            for ( int i = 0; i < ppsCount; i++ ) {
+               int length = moov.getShort( position ) & 0xFFFF;
+               if ( track.mPps == null ) {
+                  track.mPps = copy( moov, position + 2, length );
+               }
+               position += 2 + length;
+            }
+         }
+      } else if ( type.equals( "mp4a" ) ) {
+         track.mChannelCount = moov.getShort( entry + 24 ) & 0xFFFF;
+         track.mSampleRate = moov.getShort( entry + 32 ) & 0xFFFF;
+
+         int esds = findBox( moov, entry + 36, entryEnd, "esds" );
+         if ( esds >= 0 ) {
+            track.mDecoderSpecificInfo = parseDecoderSpecificInfo( moov, esds + 12, esds + moov.getInt( esds ) );
+         }
+      }
+   }
+
+   /**
+    * Walks the ES_Descriptor down to its DecoderSpecificInfo.
+    */
+   private static byte[] parseDecoderSpecificInfo( ByteBuffer moov, int position, int end ) {
+      while ( position + 2 <= end ) {
+         int tag = moov.get( position++ ) & 0xFF;
+         int length = 0;
+         for ( int i = 0; i < 4; i++ ) {
+            int b = moov.get( position++ ) & 0xFF;
+            length = ( length << 7 ) | ( b & 0x7F );
+            if ( ( b & 0x80 ) == 0 ) {
+               break;
+            }
+         }
+
+         if ( tag == 0x03 ) {
+            int flags = moov.get( position + 2 ) & 0xFF;
+            position += 3;
+            if ( ( flags & 0x80 ) != 0 ) {
+               position += 2;
+            }
+            if ( ( flags & 0x40 ) != 0 ) {
+               position += 1 + ( moov.get( position ) & 0xFF );
+            }
+            if ( ( flags & 0x20 ) != 0 ) {
+               position += 2;
+            }
+         } else if ( tag == 0x04 ) {
+            position += 13;
+         } else if ( tag == 0x05 ) {
+            return copy( moov, position, Math.min( length, end - position ) );
+         } else {
+            position += length;
+         }
+      }
+      return null;
+   }
+
+   private static void parseSampleSizes( ByteBuffer moov, int stsz, Track track ) {
+      int sampleSize = moov.getInt( stsz + 12 );
+      int count = moov.getInt( stsz + 16 );
+
+      track.mSampleCount = count;
+      track.mSizes = new int[count];
+      for ( int i = 0; i < count; i++ ) {
+         int size = sampleSize != 0 ? sampleSize : moov.getInt( stsz + 20 + i * 4 );
+         track.mSizes[i] = size;
+         track.mMaxSampleSize = Math.max( track.mMaxSampleSize, size );
+      }
+   }
+
+   /**
+    * Each sample's file offset, from the chunk offsets, the samples per chunk and the sample sizes.
+    */
+   private static void parseSampleOffsets( ByteBuffer moov, int stbl, int stblEnd, Track track ) throws IOException {
+      long[] chunkOffsets;
+      int stco = findBox( moov, stbl + 8, stblEnd, "stco" );
+      if ( stco >= 0 ) {
+         chunkOffsets = new long[moov.getInt( stco + 12 )];
+         for ( int i = 0; i < chunkOffsets.length; i++ ) {
+            chunkOffsets[i] = moov.getInt( stco + 16 + i * 4 ) & MAX_UINT32;
+         }
+      } else {
+         int co64 = requireBox( moov, stbl + 8, stblEnd, "co64" );
+         chunkOffsets = new long[moov.getInt( co64 + 12 )];
+         for ( int i = 0; i < chunkOffsets.length; i++ ) {
+            chunkOffsets[i] = moov.getLong( co64 + 16 + i * 8 );
+         }
+      }
+
+      int stsc = requireBox( moov, stbl + 8, stblEnd, "stsc" );
+      int entryCount = moov.getInt( stsc + 12 );
+
+      track.mOffsets = new long[track.mSampleCount];
+      int sample = 0;
+      for ( int entry = 0; entry < entryCount; entry++ ) {
+         int position = stsc + 16 + entry * 12;
+         int firstChunk = moov.getInt( position ) - 1;
+         int samplesPerChunk = moov.getInt( position + 4 );
+         int lastChunk = entry + 1 < entryCount ? moov.getInt( position + 12 ) - 1 : chunkOffsets.length;
+
+         for ( int chunk = firstChunk; chunk < lastChunk && chunk < chunkOffsets.length; chunk++ ) {
+            long offset = chunkOffsets[chunk];
+            for ( int i = 0; i < samplesPerChunk && sample < track.mSampleCount; i++ ) {
+               track.mOffsets[sample] = offset;
+               offset += track.mSizes[sample];
+               sample++;
+            }
+         }
+      }
+
+      if ( sample < track.mSampleCount ) {
+         throw new IOException( "Chunks hold " + sample + " of " + track.mSampleCount + " samples" );
+      }
+   }
+
+   /**
+    * Presentation times from the decode time deltas and, with B-frames, the composition offsets.
+    */
+   private static void parseSampleTimes( ByteBuffer moov, int stbl, int stblEnd, Track track ) throws IOException {
+      long[] times = new long[track.mSampleCount];
+
+      int stts = requireBox( moov, stbl + 8, stblEnd, "stts" );
+      int entryCount = moov.getInt( stts + 12 );
+      long decodeTime = 0;
+      int sample = 0;
+      for ( int entry = 0; entry < entryCount; entry++ ) {
+         int count = moov.getInt( stts + 16 + entry * 8 );
+         long delta = moov.getInt( stts + 20 + entry * 8 ) & MAX_UINT32;
+         for ( int i = 0; i < count && sample < times.length; i++ ) {
+            times[sample++] = decodeTime;
+            decodeTime += delta;
+         }
+      }
+      // A short table leaves the last samples at the end of the last one.
+      while ( sample < times.length ) {
+         times[sample++] = decodeTime;
+      }
+
+      int ctts = findBox( moov, stbl + 8, stblEnd, "ctts" );
+      if ( ctts >= 0 ) {
+         entryCount = moov.getInt( ctts + 12 );
+         sample = 0;
+         for ( int entry = 0; entry < entryCount; entry++ ) {
+            int count = moov.getInt( ctts + 16 + entry * 8 );
+            // Version 0 offsets are unsigned, but nothing writes ones that large.
+            int offset = moov.getInt( ctts + 20 + entry * 8 );
+            for ( int i = 0; i < count && sample < times.length; i++ ) {
+               times[sample++] += offset;
+            }
+         }
+      }
+
+      if ( track.mTimeScale <= 0 ) {
+         throw new IOException( "Track without a time scale" );
+      }
+      for ( int i = 0; i < times.length; i++ ) {
+         times[i] = times[i] * 1000000 / track.mTimeScale;
+      }
+      track.mTimesUs = times;
+   }
+
+   /**
+    * Position of the first child box of the given type between start and end, -1 if there is none.
+    */
+   private static int findBox( ByteBuffer data, int start, int end, String type ) {
+      int position = start;
+      while ( position + 8 <= end ) {
+         int size = data.getInt( position );
+         if ( size < 8 ) {
+            return -1;
+         }
+         if ( data.get( position + 4 ) == type.charAt( 0 ) && data.get( position + 5 ) == type.charAt( 1 ) && data.get( position + 6 ) == type.charAt( 2 ) && data.get( position + 7 ) == type.charAt( 3 ) ) {
+            return position;
+         }
+         position += size;
+      }
+      return -1;
+   }
+
+   private static int requireBox( ByteBuffer data, int start, int end, String type ) throws IOException {
+      int position = findBox( data, start, end, type );
+      if ( position < 0 ) {
+         throw new IOException( "No " + type + " box" );
+      }
+      return position;
+   }
+
+   private static String fourCC( ByteBuffer data, int position ) {
+      return new String( new char[] { (char) data.get( position ), (char) data.get( position + 1 ), (char) data.get( position + 2 ), (char) data.get( position + 3 ) } );
+   }
+
+   private static byte[] copy( ByteBuffer data, int position, int length ) {
+      byte[] bytes = new byte[length];
+      for ( int i = 0; i < length; i++ ) {
+         bytes[i] = data.get( position + i );
+      }
+      return bytes;
+   }
+}
@@ -0,0 +1,619 @@
+/**
+   Copyright (c) 2014 Rory Hool
+   
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+   
+       http://www.apache.org/licenses/LICENSE-2.0
+   
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ **/
+
+package com.roryhool.commonvideolibrary;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Codec configuration and sample tables of one {@link Mp4Writer} track. Tables are kept in primitive arrays that
+ * double when full, so a long recording doesn't box a Long per sample.
+ * <p>
+ * Samples come in decode order with their presentation times. As long as those only go up, decode and presentation
+ * times are the same. Once one goes back, the track has B-frames: decode times are then worked out from the sorted
+ * presentation times and the difference goes into ctts, or the trun of a fragment.
+ */
+class Mp4Track {
+
+   static final int VIDEO_TIME_SCALE = 90000;
+
+   static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+
+   static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;
+
+   int mTrackId;
+
+   boolean mVideo;
+
+   int mTimeScale;
+
+   int mWidth;
+
+   int mHeight;
+
+   // One avc1 sample description per SPS and PPS pair, the first is the one the track was added with.
+   ArrayList<byte[]> mSpsList = new ArrayList<byte[]>();
+   ArrayList<byte[]> mPpsList = new ArrayList<byte[]>();
+
+   // Description of the samples being written. A chunk never mixes descriptions.
+   int mDescription = 0;
+
+   // Set when the description changes, the next sample carries its SPS and PPS in band too.
+   boolean mParameterSetsPending = false;
+
+   int mChannelCount;
+
+   byte[] mDecoderSpecificInfo;
+
+   // Sample tables. In fragmented mode they only hold the fragment being built.
+   int mSampleCount = 0;
+   int[] mSampleSizes = new int[256];
+   long[] mSampleTimesUs = new long[256];
+   boolean[] mSyncSamples = new boolean[256];
+
+   // Set once a presentation time is lower than the one before it. Decode times are only kept for such tracks.
+   boolean mReordered = false;
+   long[] mDecodeTimesUs;
+
+   int mChunkCount = 0;
+   long[] mChunkOffsets = new long[64];
+   int[] mChunkSampleCounts = new int[64];
+   int[] mChunkDescriptions = new int[64];
+
+   long mStartTimeUs = -1;
+
+   // Samples before this are already in a resumed file.
+   long mResumeEndTimeUs = -1;
+
+   // The chunk (or fragment run) being filled.
+   int mChunkFirstSample = 0;
+   long mChunkBytes = 0;
+   ArrayList<ByteBuffer> mChunkBuffers = new ArrayList<ByteBuffer>();
+
+   static Mp4Track createVideo( int trackId, int width, int height, byte[] sps, byte[] pps ) {
+      Mp4Track track = new Mp4Track();
+      track.mTrackId = trackId;
+      track.mVideo = true;
+      track.mTimeScale = VIDEO_TIME_SCALE;
+      track.mWidth = width;
+      track.mHeight = height;
+      track.mSpsList.add( sps );
+      track.mPpsList.add( pps );
+      return track;
+   }
+
+   static Mp4Track createAudio( int trackId, int sampleRate, int channelCount, byte[] decoderSpecificInfo ) {
+      Mp4Track track = new Mp4Track();
+      track.mTrackId = trackId;
+      track.mVideo = false;
+      track.mTimeScale = sampleRate;
+      track.mChannelCount = channelCount;
+      track.mDecoderSpecificInfo = decoderSpecificInfo;
+      return track;
+   }
+
+   void addSample( int size, long presentationTimeUs, boolean sync ) {
+      if ( mSampleCount == mSampleSizes.length ) {
+         int capacity = mSampleCount * 2;
+         int[] sizes = new int[capacity];
+         long[] times = new long[capacity];
+         boolean[] syncs = new boolean[capacity];
+         System.arraycopy( mSampleSizes, 0, sizes, 0, mSampleCount );
+         System.arraycopy( mSampleTimesUs, 0, times, 0, mSampleCount );
+         System.arraycopy( mSyncSamples, 0, syncs, 0, mSampleCount );
+         mSampleSizes = sizes;
+         mSampleTimesUs = times;
+         mSyncSamples = syncs;
+      }
+      if ( mStartTimeUs < 0 ) {
+         mStartTimeUs = presentationTimeUs;
+      }
+      if ( mSampleCount > 0 && presentationTimeUs < mSampleTimesUs[mSampleCount - 1] ) {
+         mReordered = true;
+      }
+      mSampleSizes[mSampleCount] = size;
+      mSampleTimesUs[mSampleCount] = presentationTimeUs;
+      mSyncSamples[mSampleCount] = sync;
+      mSampleCount++;
+   }
+
+   /**
+    * Records a chunk at an offset relative to the start of the mdat payload.
+    */
+   void addChunk( long offset, int sampleCount ) {
+      if ( mChunkCount == mChunkOffsets.length ) {
+         long[] offsets = new long[mChunkCount * 2];
+         int[] counts = new int[mChunkCount * 2];
+         int[] descriptions = new int[mChunkCount * 2];
+         System.arraycopy( mChunkOffsets, 0, offsets, 0, mChunkCount );
+         System.arraycopy( mChunkSampleCounts, 0, counts, 0, mChunkCount );
+         System.arraycopy( mChunkDescriptions, 0, descriptions, 0, mChunkCount );
+         mChunkOffsets = offsets;
+         mChunkSampleCounts = counts;
+         mChunkDescriptions = descriptions;
+      }
+      mChunkOffsets[mChunkCount] = offset;
+      mChunkSampleCounts[mChunkCount] = sampleCount;
+      mChunkDescriptions[mChunkCount] = mDescription;
+      mChunkCount++;
+   }
+
+   /**
+    * Index of the sample description with this SPS and PPS, which is added if the track doesn't have it yet.
+    */
+   int addDescription( byte[] sps, byte[] pps ) {
+      for ( int i = 0; i < mSpsList.size(); i++ ) {
+         if ( Arrays.equals( mSpsList.get( i ), sps ) && Arrays.equals( mPpsList.get( i ), pps ) ) {
+            return i;
+         }
+      }
+      mSpsList.add( sps );
+      mPpsList.add( pps );
+      return mSpsList.size() - 1;
+   }
+
+   /**
+    * Drops the samples of a written fragment, the start time is kept so later fragments stay on the same timeline.
+    */
+   void clearSamples() {
+      mSampleCount = 0;
+      mChunkFirstSample = 0;
+      mChunkCount = 0;
+   }
+
+   /**
+    * Works out the decode times of a reordered track: the presentation times in order, moved back just enough that no
+    * sample is shown before it is decoded if shift is set. Without the shift some composition offsets are negative,
+    * which only a version 1 trun can hold. Shifted, the track starts at its first decode time and an edit list skips
+    * the shift.
+    */
+   void updateDecodeTimes( boolean shift ) {
+      if ( !mReordered ) {
+         return;
+      }
+
+      long[] decodeTimes = Arrays.copyOf( mSampleTimesUs, mSampleCount );
+      Arrays.sort( decodeTimes );
+
+      if ( shift ) {
+         long delayUs = 0;
+         for ( int i = 0; i < mSampleCount; i++ ) {
+            delayUs = Math.max( delayUs, decodeTimes[i] - mSampleTimesUs[i] );
+         }
+         for ( int i = 0; i < mSampleCount; i++ ) {
+            decodeTimes[i] -= delayUs;
+         }
+         if ( mSampleCount > 0 ) {
+            mStartTimeUs = decodeTimes[0];
+         }
+      }
+
+      mDecodeTimesUs = decodeTimes;
+   }
+
+   long getDecodeTimeUs( int index ) {
+      return mReordered ? mDecodeTimesUs[index] : mSampleTimesUs[index];
+   }
+
+   /**
+    * Presentation minus decode time of a sample, in the track time scale.
+    */
+   int getCompositionOffset( int index ) {
+      return (int) ( toTimeScale( mSampleTimesUs[index] ) - toTimeScale( getDecodeTimeUs( index ) ) );
+   }
+
+   long toTimeScale( long timeUs ) {
+      return ( ( timeUs - mStartTimeUs ) * mTimeScale + 500000 ) / 1000000;
+   }
+
+   /**
+    * Duration of a sample in the track time scale. The last one has nothing after it, it gets nextTimeUs if that is
+    * known (>= 0) or the duration of the sample before it.
+    */
+   int getSampleDuration( int index, long nextTimeUs ) {
+      if ( index + 1 < mSampleCount ) {
+         return (int) Math.max( 0, toTimeScale( getDecodeTimeUs( index + 1 ) ) - toTimeScale( getDecodeTimeUs( index ) ) );
+      }
+      if ( nextTimeUs >= 0 ) {
+         return (int) Math.max( 0, toTimeScale( nextTimeUs ) - toTimeScale( getDecodeTimeUs( index ) ) );
+      }
+      if ( index > 0 ) {
+         return getSampleDuration( index - 1, -1 );
+      }
+      return mVideo ? mTimeScale / 30 : 1024;
+   }
+
+   long getDuration() {
+      if ( mSampleCount == 0 ) {
+         return 0;
+      }
+      int last = mSampleCount - 1;
+      return toTimeScale( getDecodeTimeUs( last ) ) - toTimeScale( getDecodeTimeUs( 0 ) ) + getSampleDuration( last, -1 );
+   }
+
+   void writeTrak( BoxBuffer out, int movieTimeScale, int orientation, long dataOffset, boolean co64, boolean fragmented ) {
+      long duration = fragmented ? 0 : getDuration();
+      long movieDuration = duration * movieTimeScale / mTimeScale;
+
+      out.startBox( "trak" );
+
+      writeTkhd( out, movieDuration, orientation );
+
+      if ( mReordered && !fragmented && mSampleCount > 0 ) {
+         writeEdts( out, movieDuration );
+      }
+
+      out.startBox( "mdia" );
+
+      out.startFullBox( "mdhd", duration > 0xFFFFFFFFL ? 1 : 0, 0 );
+      if ( duration > 0xFFFFFFFFL ) {
+         out.putLong( 0 );
+         out.putLong( 0 );
+         out.putInt( mTimeScale );
+         out.putLong( duration );
+      } else {
+         out.putInt( 0 );
+         out.putInt( 0 );
+         out.putInt( mTimeScale );
+         out.putInt( (int) duration );
+      }
+      out.putShort( 0x55C4 ); // "und"
+      out.putShort( 0 );
+      out.endBox();
+
+      out.startFullBox( "hdlr", 0, 0 );
+      out.putInt( 0 );
+      out.putFourCC( mVideo ? "vide" : "soun" );
+      out.putZeros( 12 );
+      out.putBytes( ( mVideo ? "VideoHandle" : "SoundHandle" ).getBytes() );
+      out.putByte( 0 );
+      out.endBox();
+
+      out.startBox( "minf" );
+      if ( mVideo ) {
+         out.startFullBox( "vmhd", 0, 1 );
+         out.putZeros( 8 );
+         out.endBox();
+      } else {
+         out.startFullBox( "smhd", 0, 0 );
+         out.putZeros( 4 );
+         out.endBox();
+      }
+
+      out.startBox( "dinf" );
+      out.startFullBox( "dref", 0, 0 );
+      out.putInt( 1 );
+      out.startFullBox( "url ", 0, 1 );
+      out.endBox();
+      out.endBox();
+      out.endBox();
+
+      writeStbl( out, dataOffset, co64, fragmented );
+
+      out.endBox(); // minf
+      out.endBox(); // mdia
+      out.endBox(); // trak
+   }
+
+   private void writeTkhd( BoxBuffer out, long movieDuration, int orientation ) {
+      boolean large = movieDuration > 0xFFFFFFFFL;
+      out.startFullBox( "tkhd", large ? 1 : 0, 0x07 );
+      if ( large ) {
+         out.putLong( 0 );
+         out.putLong( 0 );
+         out.putInt( mTrackId );
+         out.putInt( 0 );
+         out.putLong( movieDuration );
+      } else {
+         out.putInt( 0 );
+         out.putInt( 0 );
+         out.putInt( mTrackId );
+         out.putInt( 0 );
+         out.putInt( (int) movieDuration );
+      }
+      out.putZeros( 8 );
+      out.putShort( 0 ); // layer
+      out.putShort( 0 ); // alternate group
+      out.putShort( mVideo ? 0 : 0x0100 );
+      out.putShort( 0 );
+      writeMatrix( out, mVideo ? orientation : 0 );
+      out.putInt( mVideo ? mWidth << 16 : 0 );
+      out.putInt( mVideo ? mHeight << 16 : 0 );
+      out.endBox();
+   }
+
+   /**
+    * One edit that starts the track at its first presentation time instead of its first decode time.
+    */
+   private void writeEdts( BoxBuffer out, long movieDuration ) {
+      long firstPresentationTimeUs = mSampleTimesUs[0];
+      for ( int i = 1; i < mSampleCount; i++ ) {
+         firstPresentationTimeUs = Math.min( firstPresentationTimeUs, mSampleTimesUs[i] );
+      }
+
+      out.startBox( "edts" );
+      out.startFullBox( "elst", 0, 0 );
+      out.putInt( 1 );
+      out.putInt( (int) movieDuration );
+      out.putInt( (int) toTimeScale( firstPresentationTimeUs ) );
+      out.putInt( 0x00010000 ); // rate
+      out.endBox();
+      out.endBox();
+   }
+
+   static void writeMatrix( BoxBuffer out, int orientation ) {
+      int a = 0x10000, b = 0, c = 0, d = 0x10000;
+      if ( orientation == 90 ) {
+         a = 0;
+         b = 0x10000;
+         c = -0x10000;
+         d = 0;
+      } else if ( orientation == 180 ) {
+         a = -0x10000;
+         d = -0x10000;
+      } else if ( orientation == 270 ) {
+         a = 0;
+         b = -0x10000;
+         c = 0x10000;
+         d = 0;
+      }
+      out.putInt( a );
+      out.putInt( b );
+      out.putInt( 0 );
+      out.putInt( c );
+      out.putInt( d );
+      out.putInt( 0 );
+      out.putInt( 0 );
+      out.putInt( 0 );
+      out.putInt( 0x40000000 );
+   }
+
+   private void writeStbl( BoxBuffer out, long dataOffset, boolean co64, boolean fragmented ) {
+      int sampleCount = fragmented ? 0 : mSampleCount;
+      int chunkCount = fragmented ? 0 : mChunkCount;
+
+      out.startBox( "stbl" );
+
+      out.startFullBox( "stsd", 0, 0 );
+      out.putInt( mVideo ? mSpsList.size() : 1 );
+      if ( mVideo ) {
+         for ( int i = 0; i < mSpsList.size(); i++ ) {
+            writeAvc1( out, mSpsList.get( i ), mPpsList.get( i ) );
+         }
+      } else {
+         writeMp4a( out );
+      }
+      out.endBox();
+
+      // stts, one entry per run of equal durations
+      out.startFullBox( "stts", 0, 0 );
+      int countPosition = out.size();
+      out.putInt( 0 );
+      int entries = 0;
+      int i = 0;
+      while ( i < sampleCount ) {
+         int duration = getSampleDuration( i, -1 );
+         int run = 1;
+         while ( i + run < sampleCount && getSampleDuration( i + run, -1 ) == duration ) {
+            run++;
+         }
+         out.putInt( run );
+         out.putInt( duration );
+         entries++;
+         i += run;
+      }
+      out.setInt( countPosition, entries );
+      out.endBox();
+
+      if ( mReordered ) {
+         // ctts, runs of equal composition offsets
+         out.startFullBox( "ctts", 0, 0 );
+         countPosition = out.size();
+         out.putInt( 0 );
+         entries = 0;
+         i = 0;
+         while ( i < sampleCount ) {
+            int offset = getCompositionOffset( i );
+            int run = 1;
+            while ( i + run < sampleCount && getCompositionOffset( i + run ) == offset ) {
+               run++;
+            }
+            out.putInt( run );
+            out.putInt( offset );
+            entries++;
+            i += run;
+         }
+         out.setInt( countPosition, entries );
+         out.endBox();
+      }
+
+      if ( mVideo ) {
+         out.startFullBox( "stss", 0, 0 );
+         countPosition = out.size();
+         out.putInt( 0 );
+         entries = 0;
+         for ( i = 0; i < sampleCount; i++ ) {
+            if ( mSyncSamples[i] ) {
+               out.putInt( i + 1 );
+               entries++;
+            }
+         }
+         out.setInt( countPosition, entries );
+         out.endBox();
+      }
+
+      out.startFullBox( "stsc", 0, 0 );
+      countPosition = out.size();
+      out.putInt( 0 );
+      entries = 0;
+      for ( i = 0; i < chunkCount; i++ ) {
+         if ( i == 0 || mChunkSampleCounts[i] != mChunkSampleCounts[i - 1] || mChunkDescriptions[i] != mChunkDescriptions[i - 1] ) {
+            out.putInt( i + 1 );
+            out.putInt( mChunkSampleCounts[i] );
+            out.putInt( mChunkDescriptions[i] + 1 );
+            entries++;
+         }
+      }
+      out.setInt( countPosition, entries );
+      out.endBox();
+
+      out.startFullBox( "stsz", 0, 0 );
+      boolean constant = sampleCount > 0;
+      for ( i = 1; i < sampleCount && constant; i++ ) {
+         constant = mSampleSizes[i] == mSampleSizes[0];
+      }
+      out.putInt( constant ? mSampleSizes[0] : 0 );
+      out.putInt( sampleCount );
+      if ( !constant ) {
+         for ( i = 0; i < sampleCount; i++ ) {
+            out.putInt( mSampleSizes[i] );
+         }
+      }
+      out.endBox();
+
+      out.startFullBox( co64 ? "co64" : "stco", 0, 0 );
+      out.putInt( chunkCount );
+      for ( i = 0; i < chunkCount; i++ ) {
+         if ( co64 ) {
+            out.putLong( dataOffset + mChunkOffsets[i] );
+         } else {
+            out.putInt( (int) ( dataOffset + mChunkOffsets[i] ) );
+         }
+      }
+      out.endBox();
+
+      out.endBox(); // stbl
+   }
+
+   private void writeAvc1( BoxBuffer out, byte[] sps, byte[] pps ) {
+      out.startBox( "avc1" );
+      out.putZeros( 6 );
+      out.putShort( 1 ); // data reference index
+      out.putZeros( 16 );
+      out.putShort( mWidth );
+      out.putShort( mHeight );
+      out.putInt( 0x00480000 );
+      out.putInt( 0x00480000 );
+      out.putInt( 0 );
+      out.putShort( 1 ); // frame count
+      out.putZeros( 32 ); // compressor name
+      out.putShort( 0x0018 );
+      out.putShort( 0xFFFF );
+
+      out.startBox( "avcC" );
+      out.putByte( 1 );
+      out.putByte( sps.length > 1 ? sps[1] : 0 );
+      out.putByte( sps.length > 2 ? sps[2] : 0 );
+      out.putByte( sps.length > 3 ? sps[3] : 0 );
+      out.putByte( 0xFF ); // 4 byte NAL lengths
+      out.putByte( 0xE1 ); // one SPS
+      out.putShort( sps.length );
+      out.putBytes( sps );
+      out.putByte( 1 );
+      out.putShort( pps.length );
+      out.putBytes( pps );
+      out.endBox();
+
+      out.endBox();
+   }
+
+   private void writeMp4a( BoxBuffer out ) {
+      out.startBox( "mp4a" );
+      out.putZeros( 6 );
+      out.putShort( 1 ); // data reference index
+      out.putZeros( 8 );
+      out.putShort( mChannelCount );
+      out.putShort( 16 );
+      out.putZeros( 4 );
+      out.putInt( mTimeScale << 16 );
+
+      int dsiLength = mDecoderSpecificInfo.length;
+
+      out.startFullBox( "esds", 0, 0 );
+      out.putByte( 0x03 ); // ES_Descriptor
+      out.putByte( 3 + 15 + 2 + dsiLength + 3 );
+      out.putShort( 0 );
+      out.putByte( 0 );
+      out.putByte( 0x04 ); // DecoderConfigDescriptor
+      out.putByte( 13 + 2 + dsiLength );
+      out.putByte( 0x40 ); // AAC
+      out.putByte( 0x15 ); // audio stream
+      out.putByte( 0 );
+      out.putShort( 0 ); // buffer size
+      out.putInt( 0 ); // max bitrate
+      out.putInt( 0 ); // average bitrate
+      out.putByte( 0x05 ); // DecoderSpecificInfo
+      out.putByte( dsiLength );
+      out.putBytes( mDecoderSpecificInfo );
+      out.putByte( 0x06 ); // SLConfigDescriptor
+      out.putByte( 1 );
+      out.putByte( 0x02 );
+      out.endBox();
+
+      out.endBox();
+   }
+
+   void writeTrex( BoxBuffer out ) {
+      out.startFullBox( "trex", 0, 0 );
+      out.putInt( mTrackId );
+      out.putInt( 1 );
+      out.putInt( 0 );
+      out.putInt( 0 );
+      out.putInt( 0 );
+      out.endBox();
+   }
+
+   /**
+    * Writes the traf of the fragment in the sample tables. Returns the position of the trun data offset, which the
+    * writer fills in once the moof size is known.
+    */
+   int writeTraf( BoxBuffer out, long nextTimeUs ) {
+      out.startBox( "traf" );
+
+      out.startFullBox( "tfhd", 0, 0x020000 ); // default-base-is-moof
+      out.putInt( mTrackId );
+      out.endBox();
+
+      out.startFullBox( "tfdt", 1, 0 );
+      out.putLong( toTimeScale( getDecodeTimeUs( 0 ) ) );
+      out.endBox();
+
+      // data offset, durations, sizes, flags and, with B-frames, signed composition offsets
+      if ( mReordered ) {
+         out.startFullBox( "trun", 1, 0x000F01 );
+      } else {
+         out.startFullBox( "trun", 0, 0x000701 );
+      }
+      out.putInt( mSampleCount );
+      int dataOffsetPosition = out.size();
+      out.putInt( 0 );
+      for ( int i = 0; i < mSampleCount; i++ ) {
+         out.putInt( getSampleDuration( i, nextTimeUs ) );
+         out.putInt( mSampleSizes[i] );
+         out.putInt( mSyncSamples[i] || !mVideo ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC );
+         if ( mReordered ) {
+            out.putInt( getCompositionOffset( i ) );
+         }
+      }
+      out.endBox();
+
+      out.endBox();
+
+      return dataOffsetPosition;
+   }
+}
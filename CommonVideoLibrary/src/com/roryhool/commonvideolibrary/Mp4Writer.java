@@ -0,0 +1,1015 @@
+/**
+   Copyright (c) 2014 Rory Hool
+   
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+   
+       http://www.apache.org/licenses/LICENSE-2.0
+   
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ **/
+
+package com.roryhool.commonvideolibrary;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+/**
+ * Writes H.264 and AAC samples to an MP4 file without MediaMuxer. Samples are copied into large direct buffers, grouped
+ * into chunks per track and written with one gathering write per batch of chunks. Sample tables are kept in primitive
+ * arrays and written as co64 when the file passes 4 GB.
+ * 
+ * Three layouts are supported: MODE_NORMAL puts the moov at the end, MODE_FAST_START moves it in front of the media
+ * data when finishing, and MODE_FRAGMENTED writes an empty moov up front and a moof and mdat per fragment, so
+ * everything written so far stays playable. A fragmented file left by a job that died can be picked up again with
+ * {@link #resume(long)}.
+ * 
+ * Plain Java only, so it can be run and benchmarked off the device. {@link Mp4Muxer} adapts it to MediaCodec output.
+ */
+public class Mp4Writer {
+
+   public static final int MODE_NORMAL = 0;
+
+   public static final int MODE_FAST_START = 1;
+
+   public static final int MODE_FRAGMENTED = 2;
+
+   public static final long DEFAULT_CHUNK_DURATION_US = 500000;
+
+   public static final long DEFAULT_FRAGMENT_DURATION_US = 2000000;
+
+   public static final int DEFAULT_WRITE_BATCH_BYTES = 4 * 1024 * 1024;
+
+   private static final int BUFFER_SIZE = 256 * 1024;
+
+   private static final int MOVIE_TIME_SCALE = 1000;
+
+   private static final long MAX_UINT32 = 0xFFFFFFFFL;
+
+   File mFile;
+
+   int mMode;
+
+   RandomAccessFile mOutput;
+
+   FileChannel mChannel;
+
+   // Fast start writes the media data here first.
+   File mDataFile;
+   RandomAccessFile mDataOutput;
+   FileChannel mDataChannel;
+
+   ArrayList<Mp4Track> mTracks = new ArrayList<Mp4Track>();
+
+   int mOrientation = 0;
+
+   long mChunkDurationUs = DEFAULT_CHUNK_DURATION_US;
+
+   long mFragmentDurationUs = DEFAULT_FRAGMENT_DURATION_US;
+
+   int mWriteBatchBytes = DEFAULT_WRITE_BATCH_BYTES;
+
+   boolean mStarted = false;
+
+   boolean mFinished = false;
+
+   // Where the mdat header sits in MODE_NORMAL, written last when the size is known.
+   long mMdatHeaderPosition;
+
+   // Bytes of sample data handed to the file so far, chunk offsets are relative to this.
+   long mDataSize = 0;
+
+   ArrayList<ByteBuffer> mWriteQueue = new ArrayList<ByteBuffer>();
+
+   long mWriteQueueBytes = 0;
+
+   ArrayList<ByteBuffer> mFreeBuffers = new ArrayList<ByteBuffer>();
+
+   BoxBuffer mBoxes = new BoxBuffer( 64 * 1024 );
+
+   int mFragmentSequence = 0;
+
+   long mFragmentStartUs = -1;
+
+   int mReferenceTrack = -1;
+
+   // Set by resume, start() then appends to the fragments kept in the file.
+   long mResumeOffset = -1;
+   int mResumeTrackCount;
+   long[] mResumeEndTimesUs;
+
+   public Mp4Writer( File file, int mode ) throws IOException {
+      mFile = file;
+      mMode = mode;
+      mOutput = new RandomAccessFile( file, "rw" );
+      mChannel = mOutput.getChannel();
+   }
+
+   /**
+    * Rotation in degrees, 0, 90, 180 or 270. Players apply it to the video track.
+    */
+   public void setOrientationHint( int degrees ) {
+      mOrientation = degrees;
+   }
+
+   /**
+    * How much of a track goes into one chunk before switching to the next track's chunk.
+    */
+   public void setChunkDurationUs( long durationUs ) {
+      mChunkDurationUs = durationUs;
+   }
+
+   /**
+    * Minimum fragment length in MODE_FRAGMENTED. Fragments are cut at the next key frame after it.
+    */
+   public void setFragmentDurationUs( long durationUs ) {
+      mFragmentDurationUs = durationUs;
+   }
+
+   /**
+    * How many bytes of finished chunks are collected before they go to the file in one gathering write.
+    */
+   public void setWriteBatchBytes( int bytes ) {
+      mWriteBatchBytes = bytes;
+   }
+
+   /**
+    * Adds an H.264 track. The SPS and PPS are given without start codes.
+    */
+   public int addVideoTrack( int width, int height, byte[] sps, byte[] pps ) {
+      checkNotStarted();
+      mTracks.add( Mp4Track.createVideo( mTracks.size() + 1, width, height, sps, pps ) );
+      if ( mReferenceTrack < 0 ) {
+         mReferenceTrack = mTracks.size() - 1;
+      }
+      return mTracks.size() - 1;
+   }
+
+   /**
+    * Adds an AAC track, decoderSpecificInfo is the AudioSpecificConfig (csd-0).
+    */
+   public int addAudioTrack( int sampleRate, int channelCount, byte[] decoderSpecificInfo ) {
+      checkNotStarted();
+      mTracks.add( Mp4Track.createAudio( mTracks.size() + 1, sampleRate, channelCount, decoderSpecificInfo ) );
+      return mTracks.size() - 1;
+   }
+
+   /**
+    * Adds another SPS and PPS to a video track, for samples from an encoder that configured itself differently, and
+    * returns the index to pass to setSampleDescription. A pair the track already has gives its existing index, the one
+    * the track was added with is 0. Fragments only refer to the first description, so not in MODE_FRAGMENTED.
+    */
+   public int addSampleDescription( int trackIndex, byte[] sps, byte[] pps ) {
+      if ( mMode == MODE_FRAGMENTED ) {
+         throw new IllegalStateException( "Fragmented files have one sample description per track" );
+      }
+      Mp4Track track = mTracks.get( trackIndex );
+      if ( !track.mVideo ) {
+         throw new IllegalArgumentException( "Only video tracks take more sample descriptions" );
+      }
+      return track.addDescription( sps, pps );
+   }
+
+   /**
+    * Samples written to the track from now on use the given sample description. The first of them also carries its
+    * SPS and PPS in band, for players that only look at the first description.
+    */
+   public void setSampleDescription( int trackIndex, int description ) throws IOException {
+      Mp4Track track = mTracks.get( trackIndex );
+      int count = track.mVideo ? track.mSpsList.size() : 1;
+      if ( description < 0 || description >= count ) {
+         throw new IllegalArgumentException( "No sample description " + description );
+      }
+      if ( description == track.mDescription ) {
+         return;
+      }
+
+      closeChunk( track );
+      track.mDescription = description;
+      track.mParameterSetsPending = true;
+   }
+
+   /**
+    * Picks up a fragmented file left behind by an interrupted job. Complete fragments that end by maxTimeUs are kept,
+    * anything after them is cut off and start() appends new fragments behind them. Returns the time the kept
+    * fragments end at, which is where encoding should restart, or -1 when nothing could be kept and the file will be
+    * written from scratch. Call before start(), the same tracks have to be added again.
+    * 
+    * Samples before the end of their track's kept fragments are dropped, so the encoder may restart a little early.
+    */
+   public long resume( long maxTimeUs ) throws IOException {
+      checkNotStarted();
+      if ( mMode != MODE_FRAGMENTED ) {
+         throw new IllegalStateException( "Only fragmented files can be resumed" );
+      }
+
+      FragmentScan scan = scanFragments( mChannel, maxTimeUs );
+      if ( scan.mEndOffset < 0 ) {
+         return -1;
+      }
+
+      mOutput.setLength( scan.mEndOffset );
+      mChannel.position( scan.mEndOffset );
+      mResumeOffset = scan.mEndOffset;
+      mResumeTrackCount = scan.mEndTimesUs.length;
+      mResumeEndTimesUs = scan.mEndTimesUs;
+      mFragmentSequence = scan.mSequence;
+
+      return scan.mEndTimesUs[scan.mReferenceTrack];
+   }
+
+   /**
+    * Where a job writing this fragmented file would resume, -1 if it holds no complete fragment.
+    */
+   public static long findResumeTimeUs( File file ) throws IOException {
+      if ( !file.exists() ) {
+         return -1;
+      }
+
+      RandomAccessFile input = new RandomAccessFile( file, "r" );
+      try {
+         FragmentScan scan = scanFragments( input.getChannel(), Long.MAX_VALUE );
+         return scan.mEndOffset < 0 ? -1 : scan.mEndTimesUs[scan.mReferenceTrack];
+      } finally {
+         input.close();
+      }
+   }
+
+   public void start() throws IOException {
+      checkNotStarted();
+      if ( mTracks.isEmpty() ) {
+         throw new IllegalStateException( "No tracks added" );
+      }
+      if ( mReferenceTrack < 0 ) {
+         mReferenceTrack = 0;
+      }
+
+      if ( mMode == MODE_FRAGMENTED ) {
+         // Fragment times are plain presentation times, a resumed job continues on the same timeline.
+         for ( Mp4Track track : mTracks ) {
+            track.mStartTimeUs = 0;
+         }
+      }
+
+      if ( mResumeOffset >= 0 ) {
+         if ( mTracks.size() != mResumeTrackCount ) {
+            throw new IllegalStateException( "Tracks don't match the file being resumed" );
+         }
+         for ( int i = 0; i < mTracks.size(); i++ ) {
+            Mp4Track track = mTracks.get( i );
+            track.mResumeEndTimeUs = mResumeEndTimesUs[i];
+            // The avcC in the file is the one the interrupted encoder had. A restarted encoder may pick other
+            // parameter sets, so the first resumed sample carries its own in band.
+            track.mParameterSetsPending = track.mVideo;
+         }
+         mStarted = true;
+         return;
+      }
+
+      mOutput.setLength( 0 );
+
+      mBoxes.reset();
+      writeFtyp( mBoxes );
+
+      if ( mMode == MODE_FRAGMENTED ) {
+         writeMoov( mBoxes, 0, false );
+         writeFully( mChannel, mBoxes.toByteBuffer() );
+      } else if ( mMode == MODE_FAST_START ) {
+         writeFully( mChannel, mBoxes.toByteBuffer() );
+
+         mDataFile = new File( mFile.getPath() + ".mdat" );
+         mDataOutput = new RandomAccessFile( mDataFile, "rw" );
+         mDataOutput.setLength( 0 );
+         mDataChannel = mDataOutput.getChannel();
+      } else {
+         // Room for a 64 bit mdat header, it turns into free + mdat if the data stays under 4 GB.
+         mMdatHeaderPosition = mBoxes.size();
+         mBoxes.putZeros( 16 );
+         writeFully( mChannel, mBoxes.toByteBuffer() );
+      }
+
+      mStarted = true;
+   }
+
+   /**
+    * Writes one sample, data from position to limit. H.264 samples may be in Annex B form, start codes are replaced
+    * with NAL unit lengths. Samples of a track must come in decode order, as encoders and MediaExtractor give them. With
+    * B-frames their presentation times go back and forth, the decode times and composition offsets are worked out
+    * from them.
+    */
+   public void writeSample( int trackIndex, ByteBuffer data, long presentationTimeUs, boolean syncSample ) throws IOException {
+      writeSample( trackIndex, data, presentationTimeUs, syncSample, true );
+   }
+
+   /**
+    * Writes a sample that is already in mp4 form, e.g. one read with {@link Mp4SampleReader}. H.264 samples are NAL
+    * units with 4 byte lengths and go in as they are, writeSample could take a length like 00 00 01 xx for a start code.
+    */
+   public void writeMp4Sample( int trackIndex, ByteBuffer data, long presentationTimeUs, boolean syncSample ) throws IOException {
+      writeSample( trackIndex, data, presentationTimeUs, syncSample, false );
+   }
+
+   private void writeSample( int trackIndex, ByteBuffer data, long presentationTimeUs, boolean syncSample, boolean annexB ) throws IOException {
+      if ( !mStarted || mFinished ) {
+         throw new IllegalStateException( "Writer not started" );
+      }
+
+      Mp4Track track = mTracks.get( trackIndex );
+
+      if ( presentationTimeUs < track.mResumeEndTimeUs ) {
+         // Already in the file from before the resume.
+         return;
+      }
+
+      if ( mMode == MODE_FRAGMENTED ) {
+         if ( mFragmentStartUs < 0 ) {
+            mFragmentStartUs = presentationTimeUs;
+         } else if ( trackIndex == mReferenceTrack && syncSample && presentationTimeUs - mFragmentStartUs >= mFragmentDurationUs ) {
+            writeFragment( presentationTimeUs );
+            mFragmentStartUs = presentationTimeUs;
+         }
+      } else if ( track.mSampleCount > track.mChunkFirstSample ) {
+         long chunkStartUs = track.mSampleTimesUs[track.mChunkFirstSample];
+         if ( presentationTimeUs - chunkStartUs >= mChunkDurationUs || track.mChunkBytes >= mWriteBatchBytes ) {
+            closeChunk( track );
+         }
+      }
+
+      int size = 0;
+      if ( track.mParameterSetsPending ) {
+         size += appendParameterSets( track );
+         track.mParameterSetsPending = false;
+      }
+
+      if ( annexB && track.mVideo && hasStartCode( data, data.position() ) ) {
+         size += appendAnnexB( track, data );
+      } else {
+         size += data.remaining();
+         append( track, data );
+      }
+
+      track.addSample( size, presentationTimeUs, syncSample );
+   }
+
+   /**
+    * Writes what is left and the sample tables. The writer can't be used afterwards.
+    */
+   public void finish() throws IOException {
+      if ( !mStarted || mFinished ) {
+         throw new IllegalStateException( "Writer not started" );
+      }
+      mFinished = true;
+
+      if ( mMode == MODE_FRAGMENTED ) {
+         writeFragment( -1 );
+      } else {
+         for ( Mp4Track track : mTracks ) {
+            closeChunk( track );
+            track.updateDecodeTimes( true );
+         }
+         flushWriteQueue();
+
+         if ( mMode == MODE_FAST_START ) {
+            finishFastStart();
+         } else {
+            finishNormal();
+         }
+      }
+
+      mChannel.force( false );
+   }
+
+   /**
+    * Closes the file, also after a failure. A writer that wasn't finished leaves an incomplete file behind.
+    */
+   public void close() throws IOException {
+      mOutput.close();
+      if ( mDataOutput != null ) {
+         mDataOutput.close();
+         mDataFile.delete();
+         mDataOutput = null;
+      }
+   }
+
+   private void checkNotStarted() {
+      if ( mStarted ) {
+         throw new IllegalStateException( "Writer already started" );
+      }
+   }
+
+   private void finishNormal() throws IOException {
+      long dataStart = mMdatHeaderPosition + 16;
+      boolean co64 = dataStart + mDataSize > MAX_UINT32;
+
+      mBoxes.reset();
+      writeMoov( mBoxes, dataStart, co64 );
+      writeFully( mChannel, mBoxes.toByteBuffer(), dataStart + mDataSize );
+
+      ByteBuffer header = ByteBuffer.allocate( 16 );
+      if ( mDataSize + 16 > MAX_UINT32 ) {
+         header.putInt( 1 );
+         header.put( fourCC( "mdat" ) );
+         header.putLong( mDataSize + 16 );
+      } else {
+         header.putInt( 8 );
+         header.put( fourCC( "free" ) );
+         header.putInt( (int) ( mDataSize + 8 ) );
+         header.put( fourCC( "mdat" ) );
+      }
+      header.flip();
+      writeFully( mChannel, header, mMdatHeaderPosition );
+   }
+
+   /**
+    * Puts the moov between the ftyp and the media data, the data is copied over from the side file with transferTo.
+    */
+   private void finishFastStart() throws IOException {
+      long ftypSize = mChannel.position();
+      int mdatHeaderSize = mDataSize + 8 > MAX_UINT32 ? 16 : 8;
+
+      mBoxes.reset();
+      writeMoov( mBoxes, 0, false );
+      boolean co64 = ftypSize + mBoxes.size() + mdatHeaderSize + mDataSize > MAX_UINT32;
+
+      // The moov size doesn't depend on the offsets, only on co64.
+      mBoxes.reset();
+      writeMoov( mBoxes, 0, co64 );
+      long dataStart = ftypSize + mBoxes.size() + mdatHeaderSize;
+
+      mBoxes.reset();
+      writeMoov( mBoxes, dataStart, co64 );
+      if ( mdatHeaderSize == 16 ) {
+         mBoxes.putInt( 1 );
+         mBoxes.putFourCC( "mdat" );
+         mBoxes.putLong( mDataSize + 16 );
+      } else {
+         mBoxes.putInt( (int) ( mDataSize + 8 ) );
+         mBoxes.putFourCC( "mdat" );
+      }
+      writeFully( mChannel, mBoxes.toByteBuffer() );
+
+      long position = 0;
+      while ( position < mDataSize ) {
+         position += mDataChannel.transferTo( position, mDataSize - position, mChannel );
+      }
+
+      mDataOutput.close();
+      mDataFile.delete();
+      mDataOutput = null;
+   }
+
+   private void writeFtyp( BoxBuffer out ) {
+      out.startBox( "ftyp" );
+      out.putFourCC( "isom" );
+      out.putInt( 0x200 );
+      out.putFourCC( "isom" );
+      out.putFourCC( "iso2" );
+      if ( mMode == MODE_FRAGMENTED ) {
+         out.putFourCC( "iso6" );
+      }
+      out.putFourCC( "avc1" );
+      out.putFourCC( "mp41" );
+      out.endBox();
+   }
+
+   private void writeMoov( BoxBuffer out, long dataStart, boolean co64 ) {
+      boolean fragmented = mMode == MODE_FRAGMENTED;
+
+      long duration = 0;
+      if ( !fragmented ) {
+         for ( Mp4Track track : mTracks ) {
+            duration = Math.max( duration, track.getDuration() * MOVIE_TIME_SCALE / track.mTimeScale );
+         }
+      }
+
+      out.startBox( "moov" );
+
+      out.startFullBox( "mvhd", 0, 0 );
+      out.putInt( 0 );
+      out.putInt( 0 );
+      out.putInt( MOVIE_TIME_SCALE );
+      out.putInt( (int) duration );
+      out.putInt( 0x00010000 ); // rate
+      out.putShort( 0x0100 ); // volume
+      out.putZeros( 10 );
+      Mp4Track.writeMatrix( out, 0 );
+      out.putZeros( 24 );
+      out.putInt( mTracks.size() + 1 );
+      out.endBox();
+
+      for ( Mp4Track track : mTracks ) {
+         track.writeTrak( out, MOVIE_TIME_SCALE, mOrientation, dataStart, co64, fragmented );
+      }
+
+      if ( fragmented ) {
+         out.startBox( "mvex" );
+         for ( Mp4Track track : mTracks ) {
+            track.writeTrex( out );
+         }
+         out.endBox();
+      }
+
+      out.endBox();
+   }
+
+   /**
+    * Writes the samples collected since the last fragment as moof + mdat. nextTimeUs is the time of the sample that
+    * starts the next fragment, -1 for the last one.
+    */
+   private void writeFragment( long nextTimeUs ) throws IOException {
+      boolean empty = true;
+      for ( Mp4Track track : mTracks ) {
+         empty &= track.mSampleCount == 0;
+      }
+      if ( empty ) {
+         return;
+      }
+
+      mBoxes.reset();
+      mBoxes.startBox( "moof" );
+
+      mBoxes.startFullBox( "mfhd", 0, 0 );
+      mBoxes.putInt( ++mFragmentSequence );
+      mBoxes.endBox();
+
+      int[] dataOffsetPositions = new int[mTracks.size()];
+      for ( int i = 0; i < mTracks.size(); i++ ) {
+         Mp4Track track = mTracks.get( i );
+         dataOffsetPositions[i] = -1;
+         if ( track.mSampleCount > 0 ) {
+            // Fragments share one timeline, a shift would have to be known before the first one.
+            track.updateDecodeTimes( false );
+            dataOffsetPositions[i] = track.writeTraf( mBoxes, i == mReferenceTrack ? nextTimeUs : -1 );
+         }
+      }
+      mBoxes.endBox();
+
+      long dataBytes = 0;
+      for ( Mp4Track track : mTracks ) {
+         dataBytes += track.mChunkBytes;
+      }
+
+      // Data offsets are relative to the start of the moof, the track data follows the mdat header in track order.
+      long offset = mBoxes.size() + 8;
+      for ( int i = 0; i < mTracks.size(); i++ ) {
+         if ( dataOffsetPositions[i] >= 0 ) {
+            mBoxes.setInt( dataOffsetPositions[i], (int) offset );
+            offset += mTracks.get( i ).mChunkBytes;
+         }
+      }
+
+      mBoxes.putInt( (int) ( dataBytes + 8 ) );
+      mBoxes.putFourCC( "mdat" );
+
+      mWriteQueue.add( mBoxes.toByteBuffer() );
+      for ( Mp4Track track : mTracks ) {
+         queueChunkBuffers( track );
+         track.clearSamples();
+      }
+      flushWriteQueue();
+   }
+
+   /**
+    * Ends the track's current chunk and queues its data for writing.
+    */
+   private void closeChunk( Mp4Track track ) throws IOException {
+      int sampleCount = track.mSampleCount - track.mChunkFirstSample;
+      if ( sampleCount == 0 ) {
+         return;
+      }
+
+      track.addChunk( mDataSize + mWriteQueueBytes, sampleCount );
+      track.mChunkFirstSample = track.mSampleCount;
+
+      queueChunkBuffers( track );
+
+      if ( mWriteQueueBytes >= mWriteBatchBytes ) {
+         flushWriteQueue();
+      }
+   }
+
+   private void queueChunkBuffers( Mp4Track track ) {
+      for ( ByteBuffer buffer : track.mChunkBuffers ) {
+         buffer.flip();
+         mWriteQueue.add( buffer );
+      }
+      mWriteQueueBytes += track.mChunkBytes;
+      track.mChunkBuffers.clear();
+      track.mChunkBytes = 0;
+   }
+
+   /**
+    * Writes all queued buffers with gathering writes and returns them to the pool.
+    */
+   private void flushWriteQueue() throws IOException {
+      if ( mWriteQueue.isEmpty() ) {
+         return;
+      }
+
+      ByteBuffer[] buffers = mWriteQueue.toArray( new ByteBuffer[mWriteQueue.size()] );
+      FileChannel channel = mDataChannel != null ? mDataChannel : mChannel;
+
+      long remaining = 0;
+      for ( ByteBuffer buffer : buffers ) {
+         remaining += buffer.remaining();
+      }
+      int first = 0;
+      while ( remaining > 0 ) {
+         remaining -= channel.write( buffers, first, buffers.length - first );
+         while ( first < buffers.length && !buffers[first].hasRemaining() ) {
+            first++;
+         }
+      }
+
+      if ( mMode != MODE_FRAGMENTED ) {
+         mDataSize += mWriteQueueBytes;
+      }
+
+      for ( ByteBuffer buffer : buffers ) {
+         if ( buffer.isDirect() && buffer.capacity() == BUFFER_SIZE ) {
+            buffer.clear();
+            mFreeBuffers.add( buffer );
+         }
+      }
+      mWriteQueue.clear();
+      mWriteQueueBytes = 0;
+   }
+
+   private ByteBuffer currentBuffer( Mp4Track track ) {
+      int count = track.mChunkBuffers.size();
+      if ( count > 0 ) {
+         ByteBuffer buffer = track.mChunkBuffers.get( count - 1 );
+         if ( buffer.hasRemaining() ) {
+            return buffer;
+         }
+      }
+
+      ByteBuffer buffer;
+      if ( mFreeBuffers.isEmpty() ) {
+         buffer = ByteBuffer.allocateDirect( BUFFER_SIZE );
+      } else {
+         buffer = mFreeBuffers.remove( mFreeBuffers.size() - 1 );
+      }
+      track.mChunkBuffers.add( buffer );
+      return buffer;
+   }
+
+   /**
+    * Copies src into the track's chunk, a sample may run across buffers since they are written back to back.
+    */
+   private void append( Mp4Track track, ByteBuffer src ) {
+      int limit = src.limit();
+      while ( src.hasRemaining() ) {
+         ByteBuffer buffer = currentBuffer( track );
+         int count = Math.min( buffer.remaining(), src.remaining() );
+         src.limit( src.position() + count );
+         buffer.put( src );
+         src.limit( limit );
+         track.mChunkBytes += count;
+      }
+   }
+
+   private void appendInt( Mp4Track track, int value ) {
+      ByteBuffer buffer = currentBuffer( track );
+      if ( buffer.remaining() >= 4 ) {
+         buffer.putInt( value );
+      } else {
+         for ( int shift = 24; shift >= 0; shift -= 8 ) {
+            currentBuffer( track ).put( (byte) ( value >> shift ) );
+         }
+      }
+      track.mChunkBytes += 4;
+   }
+
+   /**
+    * Copies an Annex B sample as length prefixed NAL units. Returns the size written.
+    */
+   private int appendAnnexB( Mp4Track track, ByteBuffer data ) {
+      int end = data.limit();
+      int size = 0;
+
+      int nalStart = skipStartCode( data, data.position() );
+      while ( nalStart < end ) {
+         int next = findStartCode( data, nalStart, end );
+         int nalEnd = next;
+         // The leading zero of a four byte start code isn't part of the NAL unit.
+         while ( nalEnd > nalStart && data.get( nalEnd - 1 ) == 0 && next < end ) {
+            nalEnd--;
+         }
+
+         appendInt( track, nalEnd - nalStart );
+         data.limit( nalEnd );
+         data.position( nalStart );
+         append( track, data );
+         data.limit( end );
+         size += 4 + nalEnd - nalStart;
+
+         nalStart = next < end ? skipStartCode( data, next ) : end;
+      }
+      data.position( end );
+
+      return size;
+   }
+
+   /**
+    * Copies the SPS and PPS of the track's current sample description as length prefixed NAL units. Returns the size
+    * written.
+    */
+   private int appendParameterSets( Mp4Track track ) {
+      byte[] sps = track.mSpsList.get( track.mDescription );
+      byte[] pps = track.mPpsList.get( track.mDescription );
+
+      appendInt( track, sps.length );
+      append( track, ByteBuffer.wrap( sps ) );
+      appendInt( track, pps.length );
+      append( track, ByteBuffer.wrap( pps ) );
+
+      return 8 + sps.length + pps.length;
+   }
+
+   private static class FragmentScan {
+      long mEndOffset = -1;
+      int mSequence = 0;
+      int mReferenceTrack = 0;
+      long[] mEndTimesUs;
+   }
+
+   /**
+    * Walks the top level boxes of a fragmented file and finds the end of the last complete moof + mdat pair whose
+    * reference track ends by maxTimeUs. A box cut short by a crash ends the walk.
+    */
+   private static FragmentScan scanFragments( FileChannel channel, long maxTimeUs ) throws IOException {
+      FragmentScan scan = new FragmentScan();
+
+      long length = channel.size();
+      long position = 0;
+      ByteBuffer header = ByteBuffer.allocate( 16 );
+
+      int[] timeScales = null;
+      long[] endTimes = null;
+
+      while ( position + 8 <= length ) {
+         long size = readBoxSize( channel, header, position, length );
+         if ( size < 0 ) {
+            break;
+         }
+         String type = new String( header.array(), 4, 4, "US-ASCII" );
+
+         if ( type.equals( "moov" ) ) {
+            ByteBuffer moov = readBox( channel, position, size );
+            timeScales = parseTimeScales( moov, scan );
+            endTimes = new long[timeScales.length];
+            scan.mEndTimesUs = new long[timeScales.length];
+         } else if ( type.equals( "moof" ) ) {
+            if ( timeScales == null ) {
+               break;
+            }
+
+            long mdatPosition = position + size;
+            long mdatSize = readBoxSize( channel, header, mdatPosition, length );
+            if ( mdatSize < 0 || header.get( 4 ) != 'm' || header.get( 5 ) != 'd' ) {
+               break;
+            }
+
+            long[] fragmentEnds = endTimes.clone();
+            ByteBuffer moof = readBox( channel, position, size );
+            int sequence = parseFragment( moof, fragmentEnds );
+
+            int reference = scan.mReferenceTrack;
+            long referenceEndUs = fragmentEnds[reference] * 1000000 / timeScales[reference];
+            if ( sequence < 0 || referenceEndUs > maxTimeUs ) {
+               break;
+            }
+
+            endTimes = fragmentEnds;
+            for ( int i = 0; i < endTimes.length; i++ ) {
+               scan.mEndTimesUs[i] = endTimes[i] * 1000000 / timeScales[i];
+            }
+            scan.mSequence = sequence;
+            scan.mEndOffset = mdatPosition + mdatSize;
+
+            position = mdatPosition + mdatSize;
+            continue;
+         }
+
+         position += size;
+      }
+
+      return scan;
+   }
+
+   /**
+    * Size of the box at position, its header left in the buffer. -1 if the box doesn't fit in the file.
+    */
+   private static long readBoxSize( FileChannel channel, ByteBuffer header, long position, long length ) throws IOException {
+      if ( position + 8 > length ) {
+         return -1;
+      }
+      header.clear();
+      header.limit( position + 16 <= length ? 16 : 8 );
+      readFully( channel, header, position );
+
+      long size = header.getInt( 0 ) & MAX_UINT32;
+      int headerSize = 8;
+      if ( size == 1 ) {
+         if ( header.limit() < 16 ) {
+            return -1;
+         }
+         size = header.getLong( 8 );
+         headerSize = 16;
+      }
+      if ( size < headerSize || position + size > length ) {
+         return -1;
+      }
+      return size;
+   }
+
+   private static ByteBuffer readBox( FileChannel channel, long position, long size ) throws IOException {
+      ByteBuffer box = ByteBuffer.allocate( (int) size );
+      readFully( channel, box, position );
+      box.flip();
+      return box;
+   }
+
+   private static void readFully( FileChannel channel, ByteBuffer buffer, long position ) throws IOException {
+      while ( buffer.hasRemaining() ) {
+         int read = channel.read( buffer, position );
+         if ( read < 0 ) {
+            throw new IOException( "Unexpected end of file" );
+         }
+         position += read;
+      }
+   }
+
+   /**
+    * Position of the first child box of the given type between start and end, -1 if there is none.
+    */
+   private static int findBox( ByteBuffer data, int start, int end, String type ) {
+      int position = start;
+      while ( position + 8 <= end ) {
+         int size = data.getInt( position );
+         if ( size < 8 ) {
+            return -1;
+         }
+         if ( data.get( position + 4 ) == type.charAt( 0 ) && data.get( position + 5 ) == type.charAt( 1 ) && data.get( position + 6 ) == type.charAt( 2 ) && data.get( position + 7 ) == type.charAt( 3 ) ) {
+            return position;
+         }
+         position += size;
+      }
+      return -1;
+   }
+
+   /**
+    * Time scales of the moov's tracks in order, the first video track becomes the scan's reference track.
+    */
+   private static int[] parseTimeScales( ByteBuffer moov, FragmentScan scan ) {
+      ArrayList<Integer> timeScales = new ArrayList<Integer>();
+      int reference = -1;
+
+      int end = moov.limit();
+      int trak = findBox( moov, 8, end, "trak" );
+      while ( trak >= 0 ) {
+         int trakEnd = trak + moov.getInt( trak );
+         int mdia = findBox( moov, trak + 8, trakEnd, "mdia" );
+         int mdiaEnd = mdia + moov.getInt( mdia );
+
+         int mdhd = findBox( moov, mdia + 8, mdiaEnd, "mdhd" );
+         int version = moov.get( mdhd + 8 );
+         timeScales.add( moov.getInt( mdhd + ( version == 1 ? 28 : 20 ) ) );
+
+         int hdlr = findBox( moov, mdia + 8, mdiaEnd, "hdlr" );
+         if ( reference < 0 && moov.get( hdlr + 16 ) == 'v' ) {
+            reference = timeScales.size() - 1;
+         }
+
+         trak = findBox( moov, trakEnd, end, "trak" );
+      }
+
+      scan.mReferenceTrack = Math.max( 0, reference );
+
+      int[] result = new int[timeScales.size()];
+      for ( int i = 0; i < result.length; i++ ) {
+         result[i] = timeScales.get( i );
+      }
+      return result;
+   }
+
+   /**
+    * Moves each track's end time, in its time scale, to the end of its run in the moof. Returns the fragment
+    * sequence number, -1 for a moof this writer can't read.
+    */
+   private static int parseFragment( ByteBuffer moof, long[] endTimes ) {
+      int end = moof.limit();
+
+      int mfhd = findBox( moof, 8, end, "mfhd" );
+      if ( mfhd < 0 ) {
+         return -1;
+      }
+      int sequence = moof.getInt( mfhd + 12 );
+
+      int traf = findBox( moof, 8, end, "traf" );
+      while ( traf >= 0 ) {
+         int trafEnd = traf + moof.getInt( traf );
+
+         int tfhd = findBox( moof, traf + 8, trafEnd, "tfhd" );
+         int tfdt = findBox( moof, traf + 8, trafEnd, "tfdt" );
+         int trun = findBox( moof, traf + 8, trafEnd, "trun" );
+         if ( tfhd < 0 || tfdt < 0 || trun < 0 ) {
+            return -1;
+         }
+
+         int track = moof.getInt( tfhd + 12 ) - 1;
+         if ( track < 0 || track >= endTimes.length ) {
+            return -1;
+         }
+
+         long time = moof.get( tfdt + 8 ) == 1 ? moof.getLong( tfdt + 12 ) : moof.getInt( tfdt + 12 ) & MAX_UINT32;
+
+         int flags = moof.getInt( trun + 8 ) & 0xFFFFFF;
+         if ( ( flags & 0x100 ) == 0 ) {
+            // Durations come from trex defaults, which this writer never uses.
+            return -1;
+         }
+         int sampleCount = moof.getInt( trun + 12 );
+         int position = trun + 16;
+         if ( ( flags & 0x001 ) != 0 ) {
+            position += 4;
+         }
+         if ( ( flags & 0x004 ) != 0 ) {
+            position += 4;
+         }
+         int sampleFieldsSize = 4 * Integer.bitCount( flags & 0xF00 );
+         for ( int i = 0; i < sampleCount; i++ ) {
+            time += moof.getInt( position ) & MAX_UINT32;
+            position += sampleFieldsSize;
+         }
+
+         endTimes[track] = time;
+
+         traf = findBox( moof, trafEnd, end, "traf" );
+      }
+
+      return sequence;
+   }
+
+   private static boolean hasStartCode( ByteBuffer data, int position ) {
+      int remaining = data.limit() - position;
+      if ( remaining >= 3 && data.get( position ) == 0 && data.get( position + 1 ) == 0 ) {
+         if ( data.get( position + 2 ) == 1 ) {
+            return true;
+         }
+         return remaining >= 4 && data.get( position + 2 ) == 0 && data.get( position + 3 ) == 1;
+      }
+      return false;
+   }
+
+   private static int skipStartCode( ByteBuffer data, int position ) {
+      while ( data.get( position ) == 0 ) {
+         position++;
+      }
+      return position + 1;
+   }
+
+   /**
+    * Position of the next 00 00 01 at or after from, or end.
+    */
+   private static int findStartCode( ByteBuffer data, int from, int end ) {
+      for ( int i = from; i + 2 < end; i++ ) {
+         if ( ( data.get( i + 2 ) & 0xFF ) > 1 ) {
+            i += 2;
+         } else if ( data.get( i ) == 0 && data.get( i + 1 ) == 0 && data.get( i + 2 ) == 1 ) {
+            return i;
+         }
+      }
+      return end;
+   }
+
+   private static byte[] fourCC( String type ) {
+      byte[] bytes = new byte[4];
+      for ( int i = 0; i < 4; i++ ) {
+         bytes[i] = (byte) type.charAt( i );
+      }
+      return bytes;
+   }
+
+   private static void writeFully( FileChannel channel, ByteBuffer buffer ) throws IOException {
+      while ( buffer.hasRemaining() ) {
+         channel.write( buffer );
+      }
+   }
+
+   private static void writeFully( FileChannel channel, ByteBuffer buffer, long position ) throws IOException {
+      while ( buffer.hasRemaining() ) {
+         position += channel.write( buffer, position );
+      }
+   }
+}
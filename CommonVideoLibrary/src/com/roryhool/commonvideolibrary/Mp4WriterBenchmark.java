@@ -0,0 +1,183 @@
+/**
+   Copyright (c) 2014 Rory Hool
+   
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+   
+       http://www.apache.org/licenses/LICENSE-2.0
+   
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ **/
+
+package com.roryhool.commonvideolibrary;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Times {@link Mp4Writer} on synthetic 30 fps H.264 and AAC samples, against writing every sample with its own
+ * FileChannel write the way a per-sample muxer does. Runs on a desktop JVM:
+ * 
+ * java -cp bin com.roryhool.commonvideolibrary.Mp4WriterBenchmark [directory] [seconds] [video bitrate]
+ */
+public class Mp4WriterBenchmark {
+
+   private static final int ROUNDS = 5;
+
+   public static void main( String[] args ) throws IOException {
+      File directory = new File( args.length > 0 ? args[0] : System.getProperty( "java.io.tmpdir" ) );
+      int seconds = args.length > 1 ? Integer.parseInt( args[1] ) : 600;
+      int bitRate = args.length > 2 ? Integer.parseInt( args[2] ) : 8000000;
+
+      Mp4WriterBenchmark benchmark = new Mp4WriterBenchmark( seconds, bitRate );
+
+      File file = new File( directory, "mp4writer_benchmark.mp4" );
+      for ( int round = 0; round < ROUNDS; round++ ) {
+         // The first round warms up the JIT and the page cache.
+         boolean report = round > 0;
+         benchmark.run( "per sample writes", file, -1, report );
+         benchmark.run( "normal", file, Mp4Writer.MODE_NORMAL, report );
+         benchmark.run( "fast start", file, Mp4Writer.MODE_FAST_START, report );
+         benchmark.run( "fragmented", file, Mp4Writer.MODE_FRAGMENTED, report );
+      }
+      file.delete();
+   }
+
+   int mVideoFrameCount;
+
+   int mAudioFrameCount;
+
+   ByteBuffer mKeyFrame;
+
+   ByteBuffer mFrame;
+
+   ByteBuffer mAudioFrame;
+
+   long mTotalBytes;
+
+   Mp4WriterBenchmark( int seconds, int bitRate ) {
+      mVideoFrameCount = seconds * 30;
+      mAudioFrameCount = seconds * 44100 / 1024;
+
+      int frameSize = bitRate / 8 / 30;
+      mKeyFrame = createAnnexBFrame( frameSize * 4, 0x65 );
+      mFrame = createAnnexBFrame( frameSize, 0x41 );
+      mAudioFrame = ByteBuffer.allocateDirect( 128000 / 8 * 1024 / 44100 );
+
+      long keyFrames = mVideoFrameCount / 30 + 1;
+      mTotalBytes = keyFrames * mKeyFrame.capacity() + ( mVideoFrameCount - keyFrames ) * mFrame.capacity() + (long) mAudioFrameCount * mAudioFrame.capacity();
+   }
+
+   private static ByteBuffer createAnnexBFrame( int size, int nalHeader ) {
+      byte[] bytes = new byte[size];
+      new Random( size ).nextBytes( bytes );
+      // No start code emulation in the payload.
+      for ( int i = 0; i < size; i++ ) {
+         if ( bytes[i] == 0 ) {
+            bytes[i] = 1;
+         }
+      }
+      bytes[0] = 0;
+      bytes[1] = 0;
+      bytes[2] = 0;
+      bytes[3] = 1;
+      bytes[4] = (byte) nalHeader;
+
+      ByteBuffer buffer = ByteBuffer.allocateDirect( size );
+      buffer.put( bytes );
+      buffer.flip();
+      return buffer;
+   }
+
+   void run( String name, File file, int mode, boolean report ) throws IOException {
+      file.delete();
+
+      long start = System.nanoTime();
+      if ( mode < 0 ) {
+         writePerSample( file );
+      } else {
+         writeMp4( file, mode );
+      }
+      long elapsedNs = System.nanoTime() - start;
+
+      if ( report ) {
+         double seconds = elapsedNs / 1e9;
+         System.out.println( String.format( Locale.US, "%-18s %8.1f ms %8.1f MB/s %6d KB file", name, elapsedNs / 1e6, mTotalBytes / seconds / ( 1024 * 1024 ), file.length() / 1024 ) );
+      }
+   }
+
+   private void writeMp4( File file, int mode ) throws IOException {
+      Mp4Writer writer = new Mp4Writer( file, mode );
+      try {
+         byte[] sps = new byte[] { 0x67, 0x42, (byte) 0x80, 0x1F, (byte) 0xDA, 0x01, 0x40 };
+         byte[] pps = new byte[] { 0x68, (byte) 0xCE, 0x06, (byte) 0xE2 };
+         int video = writer.addVideoTrack( 1280, 720, sps, pps );
+         int audio = writer.addAudioTrack( 44100, 2, new byte[] { 0x12, 0x10 } );
+         writer.start();
+
+         int audioFrame = 0;
+         for ( int frame = 0; frame < mVideoFrameCount; frame++ ) {
+            long timeUs = frame * 1000000L / 30;
+            boolean keyFrame = frame % 30 == 0;
+            ByteBuffer data = keyFrame ? mKeyFrame : mFrame;
+            data.position( 0 );
+            writer.writeSample( video, data, timeUs, keyFrame );
+
+            while ( audioFrame < mAudioFrameCount && audioFrame * 1024 * 1000000L / 44100 <= timeUs ) {
+               mAudioFrame.position( 0 );
+               writer.writeSample( audio, mAudioFrame, audioFrame * 1024 * 1000000L / 44100, true );
+               audioFrame++;
+            }
+         }
+
+         writer.finish();
+      } finally {
+         writer.close();
+      }
+   }
+
+   /**
+    * One write call per sample and no tables, a lower bound for what a per-sample muxer costs.
+    */
+   private void writePerSample( File file ) throws IOException {
+      RandomAccessFile output = new RandomAccessFile( file, "rw" );
+      try {
+         FileChannel channel = output.getChannel();
+         ByteBuffer length = ByteBuffer.allocateDirect( 4 );
+
+         int audioFrame = 0;
+         for ( int frame = 0; frame < mVideoFrameCount; frame++ ) {
+            long timeUs = frame * 1000000L / 30;
+            ByteBuffer data = frame % 30 == 0 ? mKeyFrame : mFrame;
+
+            length.clear();
+            length.putInt( data.capacity() - 4 );
+            length.flip();
+            channel.write( length );
+            data.position( 4 );
+            while ( data.hasRemaining() ) {
+               channel.write( data );
+            }
+
+            while ( audioFrame < mAudioFrameCount && audioFrame * 1024 * 1000000L / 44100 <= timeUs ) {
+               mAudioFrame.position( 0 );
+               channel.write( mAudioFrame );
+               audioFrame++;
+            }
+         }
+         channel.force( false );
+      } finally {
+         output.close();
+      }
+   }
+}
@@ -0,0 +1,41 @@
+/**
+   Copyright (c) 2014 Rory Hool
+   
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+   
+       http://www.apache.org/licenses/LICENSE-2.0
+   
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ **/
+
+package com.roryhool.commonvideolibrary;
+
+import java.nio.ByteBuffer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+/**
+ * What the encoders need from a muxer, the calls MediaMuxer has. Lets output go to {@link Mp4Muxer} or to MediaMuxer
+ * through {@link MediaMuxerAdapter}.
+ */
+public interface Muxer {
+
+   public int addTrack( MediaFormat format );
+
+   public void setOrientationHint( int degrees );
+
+   public void start();
+
+   public void writeSampleData( int trackIndex, ByteBuffer data, MediaCodec.BufferInfo info );
+
+   public void stop();
+
+   public void release();
+}
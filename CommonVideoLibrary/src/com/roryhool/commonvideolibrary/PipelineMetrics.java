@@ -0,0 +1,198 @@
+/**
+   Copyright (c) 2014 Rory Hool
+   
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+   
+       http://www.apache.org/licenses/LICENSE-2.0
+   
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ **/
+
+
+package com.roryhool.commonvideolibrary;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.util.Log;
+
+/**
+ * Named stage timings and counters of a video pipeline, to tell which stage holds a slow job up. Components look
+ * their histograms and counters up once and keep them, recording into them takes no locks.
+ * 
+ * A snapshot of everything is written as JSON to the snapshot file, if one is set, when a job ends.
+ */
+public class PipelineMetrics {
+
+   private static final String TAG = "PipelineMetrics";
+
+   // Reading one sample from the MediaExtractor.
+   public static final String STAGE_EXTRACT = "extract";
+
+   // From a sample going into the decoder to its frame coming out.
+   public static final String STAGE_DECODE = "decode";
+
+   // Waiting for a decoded frame to arrive in the SurfaceTexture.
+   public static final String STAGE_AWAIT_IMAGE = "await_image";
+
+   // Drawing a frame into an encoder's input surface, or a source rendering one.
+   public static final String STAGE_DRAW = "draw";
+
+   // Handing a drawn frame to the encoder, swapBuffers blocks while the encoder is behind.
+   public static final String STAGE_SUBMIT = "submit";
+
+   // From a frame going into the encoder to its sample coming out.
+   public static final String STAGE_ENCODE = "encode";
+
+   // Writing an encoded sample to the muxer.
+   public static final String STAGE_MUX = "mux";
+
+   // Releasing a decoded frame to the screen.
+   public static final String STAGE_RENDER = "render";
+
+   public static final String COUNTER_SAMPLES_EXTRACTED = "samples_extracted";
+   public static final String COUNTER_FRAMES_DECODED = "frames_decoded";
+   public static final String COUNTER_FRAMES_DROPPED = "frames_dropped";
+   public static final String COUNTER_FRAMES_ENCODED = "frames_encoded";
+   public static final String COUNTER_BYTES_WRITTEN = "bytes_written";
+
+   String mName;
+
+   File mSnapshotFile;
+
+   Map<String, LatencyHistogram> mHistograms = new LinkedHashMap<String, LatencyHistogram>();
+
+   Map<String, AtomicLong> mCounters = new LinkedHashMap<String, AtomicLong>();
+
+   public PipelineMetrics( String name ) {
+      mName = name;
+   }
+
+   public String getName() {
+      return mName;
+   }
+
+   /**
+    * Where writeSnapshot() puts the JSON at the end of a job, null for nowhere.
+    */
+   public void setSnapshotFile( File file ) {
+      mSnapshotFile = file;
+   }
+
+   public synchronized LatencyHistogram getHistogram( String name ) {
+      LatencyHistogram histogram = mHistograms.get( name );
+      if ( histogram == null ) {
+         histogram = new LatencyHistogram();
+         mHistograms.put( name, histogram );
+      }
+      return histogram;
+   }
+
+   public synchronized AtomicLong getCounter( String name ) {
+      AtomicLong counter = mCounters.get( name );
+      if ( counter == null ) {
+         counter = new AtomicLong();
+         mCounters.put( name, counter );
+      }
+      return counter;
+   }
+
+   /**
+    * Zeroes every histogram and counter. The ones components hold stay valid.
+    */
+   public synchronized void reset() {
+      for ( LatencyHistogram histogram : mHistograms.values() ) {
+         histogram.reset();
+      }
+      for ( AtomicLong counter : mCounters.values() ) {
+         counter.set( 0 );
+      }
+   }
+
+   /**
+    * Histograms as count, min, mean, percentiles and max in microseconds, and the counters as they are.
+    */
+   public synchronized JSONObject toJson() throws JSONException {
+      JSONObject json = new JSONObject();
+      json.put( "name", mName );
+      json.put( "time", System.currentTimeMillis() );
+
+      JSONObject stages = new JSONObject();
+      for ( Map.Entry<String, LatencyHistogram> entry : mHistograms.entrySet() ) {
+         LatencyHistogram histogram = entry.getValue();
+         JSONObject stage = new JSONObject();
+         stage.put( "count", histogram.getCount() );
+         stage.put( "min_us", histogram.getMinNs() / 1000.0 );
+         stage.put( "mean_us", histogram.getMeanNs() / 1000.0 );
+         stage.put( "p50_us", histogram.getPercentileNs( 50 ) / 1000.0 );
+         stage.put( "p90_us", histogram.getPercentileNs( 90 ) / 1000.0 );
+         stage.put( "p99_us", histogram.getPercentileNs( 99 ) / 1000.0 );
+         stage.put( "max_us", histogram.getMaxNs() / 1000.0 );
+         stages.put( entry.getKey(), stage );
+      }
+      json.put( "stages", stages );
+
+      JSONObject counters = new JSONObject();
+      for ( Map.Entry<String, AtomicLong> entry : mCounters.entrySet() ) {
+         counters.put( entry.getKey(), entry.getValue().get() );
+      }
+      json.put( "counters", counters );
+
+      return json;
+   }
+
+   /**
+    * Writes the snapshot next to the file and renames it over, a reader never sees half of one.
+    */
+   public void writeSnapshot( File file ) throws IOException {
+      String snapshot;
+      try {
+         snapshot = toJson().toString( 2 );
+      } catch ( JSONException e ) {
+         throw new IOException( "Could not build the metrics snapshot: " + e.getMessage() );
+      }
+
+      File tempFile = new File( file.getPath() + ".tmp" );
+      Writer writer = new OutputStreamWriter( new FileOutputStream( tempFile ), "UTF-8" );
+      try {
+         writer.write( snapshot );
+      } finally {
+         writer.close();
+      }
+      if ( !tempFile.renameTo( file ) ) {
+         throw new IOException( "Could not replace " + file );
+      }
+   }
+
+   /**
+    * Writes the snapshot to the snapshot file, if there is one. Called by the components when a job ends, a failure
+    * is only logged so it never fails the job.
+    */
+   public void writeSnapshot() {
+      File file = mSnapshotFile;
+      if ( file == null ) {
+         return;
+      }
+
+      try {
+         writeSnapshot( file );
+      } catch ( IOException e ) {
+         Log.e( TAG, "Could not write the metrics snapshot", e );
+      }
+   }
+}
@@ -0,0 +1,93 @@
+/**
+   Copyright (c) 2014 Rory Hool
+   
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+   
+       http://www.apache.org/licenses/LICENSE-2.0
+   
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ **/
+
+package com.roryhool.commonvideolibrary;
+
+import java.nio.ByteBuffer;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+
+/**
+ * One output of a {@link VideoResampler} job: a resolution, encoder settings and a file. A job with several renditions
+ * decodes its source once and draws every frame into each rendition's encoder.
+ */
+@TargetApi( Build.VERSION_CODES.JELLY_BEAN_MR2 )
+public class Rendition {
+
+   int mWidth;
+
+   int mHeight;
+
+   EncoderSettings mEncoderSettings;
+
+   Uri mOutputUri;
+
+   HlsSegmenter mSegmenter;
+
+   // Set up while the job runs.
+   MediaCodec mEncoder;
+   CodecQueue mEncoderQueue;
+   InputSurface mInputSurface;
+   ByteBuffer[] mEncoderOutputBuffers;
+   MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+   Muxer mMuxer;
+   int mTrackIndex = -1;
+   boolean mMuxerStarted = false;
+   boolean mOutputDone = false;
+   AdaptiveBitRateController mBitRateController;
+   long mSyncIntervalUs = 0;
+   long mNextSyncRequestUs;
+   Bundle mSyncRequest;
+   FrameLatencyTracker mEncodeLatency;
+
+   public Rendition( int width, int height, EncoderSettings settings, Uri outputUri ) {
+      mWidth = width;
+      mHeight = height;
+      mEncoderSettings = new EncoderSettings( settings );
+      mOutputUri = outputUri;
+   }
+
+   public int getWidth() {
+      return mWidth;
+   }
+
+   public int getHeight() {
+      return mHeight;
+   }
+
+   public EncoderSettings getEncoderSettings() {
+      return mEncoderSettings;
+   }
+
+   public Uri getOutputUri() {
+      return mOutputUri;
+   }
+
+   /**
+    * Also writes this rendition as HLS segments. The output uri may be null to only write segments.
+    */
+   public void setHlsSegmenter( HlsSegmenter segmenter ) {
+      mSegmenter = segmenter;
+   }
+
+   public HlsSegmenter getHlsSegmenter() {
+      return mSegmenter;
+   }
+}
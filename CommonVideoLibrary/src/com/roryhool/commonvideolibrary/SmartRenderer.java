@@ -0,0 +1,619 @@
+/**
+   Copyright (c) 2014 Rory Hool
+   
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+   
+       http://www.apache.org/licenses/LICENSE-2.0
+   
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ **/
+
+
+package com.roryhool.commonvideolibrary;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * Renders an {@link EditDecisionList} into one mp4, copying the source's samples wherever it can. Every range is copied
+ * from its first key frame on, only the frames between the in point and that key frame are decoded and encoded again.
+ * Audio is copied as it is. Copied video samples are read with an {@link Mp4SampleReader} where the source allows it,
+ * MediaExtractor otherwise. Without B-frames out points need no encoding either, a GOP cut short still decodes since no
+ * frame in it refers forward. With B-frames whole GOPs are copied and the frames after the last one copied are
+ * encoded, as are the B-frames an open GOP shows before its key frame. Samples are copied in decode order, the writer
+ * works out their composition offsets.
+ * <p>
+ * The encoder is set up with the source's size, profile and level so its SPS and PPS come out the same where it can.
+ * Where they don't the encoded frames get their own sample description, and both are repeated in band where the
+ * description changes.
+ */
+@TargetApi( Build.VERSION_CODES.JELLY_BEAN_MR2 )
+public class SmartRenderer {
+
+   private static final String TAG = "SmartRenderer";
+
+   private static final int TIMEOUT_USEC = 10000;
+
+   // Encoded runs are shorter than a GOP, the encoder only needs the key frame it starts with.
+   private static final int ENCODER_IFRAME_INTERVAL = 10;
+
+   private static final int DEFAULT_FRAME_RATE = 30;
+
+   EditDecisionList mEdl;
+
+   File mOutput;
+
+   int mBitRate = -1;
+
+   volatile boolean mCancelled = false;
+
+   MediaExtractor mVideoExtractor;
+   MediaExtractor mAudioExtractor;
+
+   MediaFormat mVideoFormat;
+
+   // Reads the copied video samples straight from the file, null when the source needs MediaExtractor.
+   Mp4SampleReader mReader;
+
+   int mReaderTrack = -1;
+
+   int mWidth;
+   int mHeight;
+
+   byte[] mSps;
+
+   Mp4Writer mWriter;
+
+   int mVideoTrack = -1;
+   int mAudioTrack = -1;
+
+   ByteBuffer mSampleBuffer;
+   ByteBuffer mAudioBuffer;
+
+   // Presentation time and key frame flag of every video sample of the source, in decode order.
+   int mSampleCount = 0;
+   long[] mSampleTimesUs = new long[1024];
+   boolean[] mSyncSamples = new boolean[1024];
+
+   // Set when samples come in a different order than they are shown, the source has B-frames.
+   boolean mReordered = false;
+
+   // The range being rendered and how far its source times are moved to land in the output.
+   long mRangeStartUs;
+   long mRangeEndUs;
+   long mOffsetUs;
+
+   MediaCodec.BufferInfo mEncoderInfo = new MediaCodec.BufferInfo();
+   MediaCodec.BufferInfo mDecoderInfo = new MediaCodec.BufferInfo();
+
+   int mCopiedFrameCount = 0;
+
+   int mEncodedFrameCount = 0;
+
+   public SmartRenderer( EditDecisionList edl, File output ) {
+      mEdl = edl;
+      mOutput = output;
+   }
+
+   /**
+    * Bit rate of the encoded frames, by default that of the source.
+    */
+   public void setBitRate( int bitRate ) {
+      mBitRate = bitRate;
+   }
+
+   /**
+    * Stops a render running on another thread, render() then throws a CancellationException.
+    */
+   public void cancel() {
+      mCancelled = true;
+   }
+
+   public int getCopiedFrameCount() {
+      return mCopiedFrameCount;
+   }
+
+   public int getEncodedFrameCount() {
+      return mEncodedFrameCount;
+   }
+
+   public void render() throws IOException {
+      mCopiedFrameCount = 0;
+      mEncodedFrameCount = 0;
+
+      boolean finished = false;
+      try {
+         setup();
+
+         long durationUs = mVideoFormat.containsKey( MediaFormat.KEY_DURATION ) ? mVideoFormat.getLong( MediaFormat.KEY_DURATION ) : Long.MAX_VALUE;
+
+         long outputTimeUs = 0;
+         for ( int i = 0; i < mEdl.getRangeCount(); i++ ) {
+            long startUs = mEdl.getStartTimeUs( i );
+            long endUs = Math.min( mEdl.getEndTimeUs( i ), durationUs );
+            if ( startUs >= endUs ) {
+               continue;
+            }
+
+            renderRange( startUs, endUs, outputTimeUs );
+            outputTimeUs += endUs - startUs;
+         }
+
+         mWriter.finish();
+         finished = true;
+      } finally {
+         release( finished );
+      }
+
+      int frameCount = mCopiedFrameCount + mEncodedFrameCount;
+      Log.d( TAG, String.format( "%d of %d frames copied, %d encoded (%.1f%%)", mCopiedFrameCount, frameCount, mEncodedFrameCount, frameCount > 0 ? 100f * mEncodedFrameCount / frameCount : 0f ) );
+   }
+
+   private void setup() throws IOException {
+      String path = mEdl.getUri().toString();
+
+      mVideoExtractor = new MediaExtractor();
+      mVideoExtractor.setDataSource( path );
+
+      int audioTrackIndex = -1;
+      for ( int i = 0; i < mVideoExtractor.getTrackCount(); i++ ) {
+         MediaFormat format = mVideoExtractor.getTrackFormat( i );
+         String mime = format.getString( MediaFormat.KEY_MIME );
+         if ( mime == null ) {
+            continue;
+         }
+         if ( mime.equals( MediaHelper.MIME_TYPE_AVC ) && mVideoFormat == null ) {
+            mVideoFormat = format;
+            mVideoExtractor.selectTrack( i );
+         } else if ( mime.equals( "audio/mp4a-latm" ) && audioTrackIndex < 0 ) {
+            audioTrackIndex = i;
+         }
+      }
+      if ( mVideoFormat == null ) {
+         throw new IOException( "No H.264 track in " + path );
+      }
+
+      mWidth = mVideoFormat.getInteger( MediaFormat.KEY_WIDTH );
+      mHeight = mVideoFormat.getInteger( MediaFormat.KEY_HEIGHT );
+      mSps = Mp4Muxer.stripStartCode( mVideoFormat.getByteBuffer( "csd-0" ) );
+      byte[] pps = Mp4Muxer.stripStartCode( mVideoFormat.getByteBuffer( "csd-1" ) );
+
+      int maxInputSize = mVideoFormat.containsKey( MediaFormat.KEY_MAX_INPUT_SIZE ) ? mVideoFormat.getInteger( MediaFormat.KEY_MAX_INPUT_SIZE ) : mWidth * mHeight * 3 / 2;
+      mSampleBuffer = ByteBuffer.allocateDirect( maxInputSize );
+
+      indexSamples();
+      openReader( path );
+
+      mWriter = new Mp4Writer( mOutput, Mp4Writer.MODE_NORMAL );
+      mWriter.setOrientationHint( MediaHelper.GetRotation( mEdl.getUri() ) );
+      mVideoTrack = mWriter.addVideoTrack( mWidth, mHeight, mSps, pps );
+
+      if ( audioTrackIndex >= 0 ) {
+         MediaFormat audioFormat = mVideoExtractor.getTrackFormat( audioTrackIndex );
+
+         mAudioExtractor = new MediaExtractor();
+         mAudioExtractor.setDataSource( path );
+         mAudioExtractor.selectTrack( audioTrackIndex );
+
+         byte[] config = Mp4Muxer.stripStartCode( audioFormat.getByteBuffer( "csd-0" ) );
+         mAudioTrack = mWriter.addAudioTrack( audioFormat.getInteger( MediaFormat.KEY_SAMPLE_RATE ), audioFormat.getInteger( MediaFormat.KEY_CHANNEL_COUNT ), config );
+
+         int audioInputSize = audioFormat.containsKey( MediaFormat.KEY_MAX_INPUT_SIZE ) ? audioFormat.getInteger( MediaFormat.KEY_MAX_INPUT_SIZE ) : 64 * 1024;
+         mAudioBuffer = ByteBuffer.allocateDirect( audioInputSize );
+      }
+
+      mWriter.start();
+   }
+
+   /**
+    * Walks the video samples once for their times and key frames. Only sample times and flags are read.
+    */
+   private void indexSamples() {
+      long timeUs;
+      while ( ( timeUs = mVideoExtractor.getSampleTime() ) >= 0 ) {
+         checkCancelled();
+
+         if ( mSampleCount == mSampleTimesUs.length ) {
+            mSampleTimesUs = Arrays.copyOf( mSampleTimesUs, mSampleCount * 2 );
+            mSyncSamples = Arrays.copyOf( mSyncSamples, mSampleCount * 2 );
+         }
+         mSampleTimesUs[mSampleCount] = timeUs;
+         mSyncSamples[mSampleCount] = ( mVideoExtractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC ) != 0;
+         if ( mSampleCount > 0 && timeUs < mSampleTimesUs[mSampleCount - 1] ) {
+            mReordered = true;
+         }
+         mSampleCount++;
+
+         mVideoExtractor.advance();
+      }
+   }
+
+   /**
+    * Position of the first key frame shown at or after timeUs, mSampleCount if there is none.
+    */
+   private int findKeyFrameAfter( long timeUs ) {
+      for ( int i = 0; i < mSampleCount; i++ ) {
+         if ( mSyncSamples[i] && mSampleTimesUs[i] >= timeUs ) {
+            return i;
+         }
+      }
+      return mSampleCount;
+   }
+
+   /**
+    * Position of the last key frame shown at or before timeUs, where decoding for the frames from timeUs on starts.
+    */
+   private int findKeyFrameBefore( long timeUs ) {
+      int position = 0;
+      for ( int i = 0; i < mSampleCount; i++ ) {
+         if ( mSyncSamples[i] ) {
+            if ( mSampleTimesUs[i] > timeUs ) {
+               break;
+            }
+            position = i;
+         }
+      }
+      return position;
+   }
+
+   /**
+    * Position of the first key frame after position whose GOP only shows frames from timeUs on, decoding for the frames
+    * before timeUs can stop there.
+    */
+   private int findDecodeEnd( int position, long timeUs ) {
+      for ( int i = position + 1; i < mSampleCount; i++ ) {
+         if ( mSyncSamples[i] && getGopStartTimeUs( i ) >= timeUs ) {
+            return i;
+         }
+      }
+      return mSampleCount;
+   }
+
+   /**
+    * Earliest presentation time in the GOP of a key frame. With B-frames in an open GOP it is before the key frame's.
+    */
+   private long getGopStartTimeUs( int keyFrame ) {
+      long timeUs = mSampleTimesUs[keyFrame];
+      for ( int i = keyFrame + 1; i < mSampleCount && !mSyncSamples[i]; i++ ) {
+         timeUs = Math.min( timeUs, mSampleTimesUs[i] );
+      }
+      return timeUs;
+   }
+
+   private boolean hasFramesBetween( long fromUs, long toUs ) {
+      for ( int i = 0; i < mSampleCount; i++ ) {
+         if ( mSampleTimesUs[i] >= fromUs && mSampleTimesUs[i] < toUs ) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   private void renderRange( long startUs, long endUs, long outputTimeUs ) throws IOException {
+      mRangeStartUs = startUs;
+      mRangeEndUs = endUs;
+      mOffsetUs = outputTimeUs - startUs;
+
+      if ( mAudioExtractor != null ) {
+         mAudioExtractor.seekTo( startUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC );
+      }
+
+      // The copy starts at the range's first key frame. It ends before the first sample shown after the range, or with
+      // B-frames before the last key frame ahead of that, since a B-frame may refer to a frame shown after it.
+      int copyStart = findKeyFrameAfter( startUs );
+      int copyEnd = copyStart;
+      int i = copyStart;
+      while ( i < mSampleCount && mSampleTimesUs[i] < endUs ) {
+         i++;
+         if ( i == mSampleCount || !mReordered || mSyncSamples[i] ) {
+            copyEnd = i;
+         }
+      }
+
+      if ( copyEnd == copyStart ) {
+         encodeFrames( startUs, endUs );
+      } else {
+         long copyStartUs = mSampleTimesUs[copyStart];
+         long copyEndUs = copyEnd < mSampleCount ? Math.min( getGopStartTimeUs( copyEnd ), endUs ) : endUs;
+
+         if ( hasFramesBetween( startUs, copyStartUs ) ) {
+            encodeFrames( startUs, copyStartUs );
+         }
+         copyFrames( copyStart, copyEnd );
+         if ( hasFramesBetween( copyEndUs, endUs ) ) {
+            encodeFrames( copyEndUs, endUs );
+         }
+      }
+
+      copyAudio( endUs );
+   }
+
+   /**
+    * Opens the source with an Mp4SampleReader if it holds the same video samples the extractor found, in the form
+    * Mp4Writer takes them.
+    */
+   private void openReader( String path ) {
+      try {
+         mReader = new Mp4SampleReader( new File( path ) );
+      } catch ( IOException e ) {
+         Log.d( TAG, "copying with MediaExtractor, " + e.getMessage() );
+         return;
+      }
+
+      for ( int i = 0; i < mReader.getTrackCount(); i++ ) {
+         if ( mReader.isVideoTrack( i ) && mReader.getSps( i ) != null ) {
+            if ( mReader.getSampleCount( i ) == mSampleCount && mReader.getNalLengthSize( i ) == 4 ) {
+               mReaderTrack = i;
+            }
+            break;
+         }
+      }
+
+      if ( mReaderTrack < 0 ) {
+         Log.d( TAG, "copying with MediaExtractor, the sample tables don't match it" );
+         closeReader();
+      }
+   }
+
+   /**
+    * Copies the video samples from the key frame at position from up to position to, in decode order.
+    */
+   private void copyFrames( int from, int to ) throws IOException {
+      mWriter.setSampleDescription( mVideoTrack, 0 );
+
+      long keyFrameTimeUs = mSampleTimesUs[from];
+      if ( mReader == null ) {
+         mVideoExtractor.seekTo( keyFrameTimeUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC );
+      }
+
+      for ( int i = from; i < to; i++ ) {
+         checkCancelled();
+
+         // B-frames an open GOP shows before its key frame refer to the GOP before, which isn't copied. The frames
+         // encoded up to the key frame take their place.
+         if ( mSampleTimesUs[i] >= keyFrameTimeUs ) {
+            if ( mReader != null ) {
+               copyAudio( mSampleTimesUs[i] );
+               mWriter.writeMp4Sample( mVideoTrack, mReader.readSample( mReaderTrack, i ), mSampleTimesUs[i] + mOffsetUs, mSyncSamples[i] );
+            } else {
+               int size = mVideoExtractor.readSampleData( mSampleBuffer, 0 );
+               mSampleBuffer.position( 0 );
+               mSampleBuffer.limit( size );
+
+               writeVideoSample( mSampleBuffer, mSampleTimesUs[i], mSyncSamples[i] );
+            }
+            mCopiedFrameCount++;
+         }
+
+         if ( mReader == null ) {
+            mVideoExtractor.advance();
+         }
+      }
+   }
+
+   /**
+    * Decodes from the key frame before fromUs and encodes the frames shown from fromUs up to toUs. Decoding goes on to
+    * the first GOP that only shows frames after toUs, B-frames after a key frame can be shown before it.
+    */
+   private void encodeFrames( long fromUs, long toUs ) throws IOException {
+      MediaCodec decoder = null;
+      MediaCodec encoder = null;
+      InputSurface inputSurface = null;
+      OutputSurface outputSurface = null;
+
+      try {
+         int frameRate = mVideoFormat.containsKey( MediaFormat.KEY_FRAME_RATE ) ? mVideoFormat.getInteger( MediaFormat.KEY_FRAME_RATE ) : DEFAULT_FRAME_RATE;
+         int bitRate = mBitRate > 0 ? mBitRate : MediaHelper.GetBitRate( mEdl.getUri() );
+         if ( bitRate <= 0 ) {
+            bitRate = VideoResampler.BITRATE_720P;
+         }
+
+         EncoderSettings settings = new EncoderSettings( bitRate, frameRate, ENCODER_IFRAME_INTERVAL );
+         settings.setProfileLevelFromSps( mSps );
+         settings.setMaxBFrames( 0 );
+
+         MediaFormat outputFormat = MediaFormat.createVideoFormat( MediaHelper.MIME_TYPE_AVC, mWidth, mHeight );
+         outputFormat.setInteger( MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface );
+         settings.applyTo( outputFormat );
+
+         encoder = MediaCodec.createEncoderByType( MediaHelper.MIME_TYPE_AVC );
+         encoder.configure( outputFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE );
+         inputSurface = new InputSurface( encoder.createInputSurface() );
+         inputSurface.makeCurrent();
+         encoder.start();
+
+         outputSurface = new OutputSurface();
+
+         decoder = MediaCodec.createDecoderByType( MediaHelper.MIME_TYPE_AVC );
+         decoder.configure( mVideoFormat, outputSurface.getSurface(), null, 0 );
+         decoder.start();
+
+         int decodeStart = findKeyFrameBefore( fromUs );
+         int decodeEnd = findDecodeEnd( decodeStart, toUs );
+         mVideoExtractor.seekTo( mSampleTimesUs[decodeStart], MediaExtractor.SEEK_TO_PREVIOUS_SYNC );
+
+         encodeFrames( decoder, encoder, inputSurface, outputSurface, decodeEnd - decodeStart, fromUs, toUs );
+      } finally {
+         if ( outputSurface != null ) {
+            outputSurface.release();
+         }
+         if ( decoder != null ) {
+            decoder.stop();
+            decoder.release();
+         }
+         if ( encoder != null ) {
+            encoder.stop();
+            encoder.release();
+         }
+         if ( inputSurface != null ) {
+            inputSurface.release();
+         }
+      }
+   }
+
+   private void encodeFrames( MediaCodec decoder, MediaCodec encoder, InputSurface inputSurface, OutputSurface outputSurface, int sampleCount, long fromUs, long toUs ) throws IOException {
+      ByteBuffer[] decoderInputBuffers = decoder.getInputBuffers();
+      ByteBuffer[] encoderOutputBuffers = encoder.getOutputBuffers();
+      MediaCodec.BufferInfo info = mDecoderInfo;
+
+      boolean inputDone = false;
+      boolean decoderDone = false;
+      boolean encoderDone = false;
+
+      while ( !encoderDone ) {
+         checkCancelled();
+
+         if ( !inputDone ) {
+            int inputIndex = decoder.dequeueInputBuffer( TIMEOUT_USEC );
+            if ( inputIndex >= 0 ) {
+               if ( sampleCount == 0 ) {
+                  decoder.queueInputBuffer( inputIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM );
+                  inputDone = true;
+               } else {
+                  int size = mVideoExtractor.readSampleData( decoderInputBuffers[inputIndex], 0 );
+                  decoder.queueInputBuffer( inputIndex, 0, size, mVideoExtractor.getSampleTime(), 0 );
+                  mVideoExtractor.advance();
+                  sampleCount--;
+               }
+            }
+         }
+
+         int encoderStatus;
+         do {
+            encoderStatus = encoder.dequeueOutputBuffer( mEncoderInfo, TIMEOUT_USEC );
+            if ( encoderStatus == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED ) {
+               encoderOutputBuffers = encoder.getOutputBuffers();
+            } else if ( encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED ) {
+               useEncoderFormat( encoder.getOutputFormat() );
+            } else if ( encoderStatus >= 0 ) {
+               ByteBuffer encodedData = encoderOutputBuffers[encoderStatus];
+               if ( mEncoderInfo.size != 0 && ( mEncoderInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG ) == 0 ) {
+                  encodedData.position( mEncoderInfo.offset );
+                  encodedData.limit( mEncoderInfo.offset + mEncoderInfo.size );
+                  boolean sync = ( mEncoderInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME ) != 0;
+                  writeVideoSample( encodedData, mEncoderInfo.presentationTimeUs - mOffsetUs, sync );
+               }
+               encoderDone = ( mEncoderInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM ) != 0;
+               encoder.releaseOutputBuffer( encoderStatus, false );
+            }
+         } while ( encoderStatus != MediaCodec.INFO_TRY_AGAIN_LATER && !encoderDone );
+
+         if ( !decoderDone ) {
+            int decoderStatus = decoder.dequeueOutputBuffer( info, TIMEOUT_USEC );
+            if ( decoderStatus >= 0 ) {
+               // Frames before fromUs are only decoded for the ones after them.
+               boolean render = info.size != 0 && info.presentationTimeUs >= fromUs && info.presentationTimeUs < toUs;
+               decoder.releaseOutputBuffer( decoderStatus, render );
+               if ( render ) {
+                  outputSurface.awaitNewImage();
+                  outputSurface.drawImage();
+                  inputSurface.setPresentationTime( ( info.presentationTimeUs + mOffsetUs ) * 1000 );
+                  inputSurface.swapBuffers();
+                  mEncodedFrameCount++;
+               }
+               if ( ( info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM ) != 0 ) {
+                  encoder.signalEndOfInputStream();
+                  decoderDone = true;
+               }
+            }
+         }
+      }
+   }
+
+   /**
+    * Points the video track at the sample description for the encoder's SPS and PPS, the source's own if they match.
+    */
+   private void useEncoderFormat( MediaFormat format ) throws IOException {
+      byte[] sps = Mp4Muxer.stripStartCode( format.getByteBuffer( "csd-0" ) );
+      byte[] pps = Mp4Muxer.stripStartCode( format.getByteBuffer( "csd-1" ) );
+
+      int description = mWriter.addSampleDescription( mVideoTrack, sps, pps );
+      if ( description != 0 ) {
+         Log.d( TAG, "encoder SPS/PPS differ from the source, encoded frames use sample description " + ( description + 1 ) );
+      }
+      mWriter.setSampleDescription( mVideoTrack, description );
+   }
+
+   /**
+    * Writes a video sample at its place in the output, after the audio that comes before it.
+    */
+   private void writeVideoSample( ByteBuffer data, long sourceTimeUs, boolean sync ) throws IOException {
+      copyAudio( sourceTimeUs );
+      mWriter.writeSample( mVideoTrack, data, sourceTimeUs + mOffsetUs, sync );
+   }
+
+   /**
+    * Copies the audio of the current range up to untilUs.
+    */
+   private void copyAudio( long untilUs ) throws IOException {
+      if ( mAudioExtractor == null ) {
+         return;
+      }
+
+      long limitUs = Math.min( untilUs, mRangeEndUs );
+      long timeUs;
+      while ( ( timeUs = mAudioExtractor.getSampleTime() ) >= 0 && timeUs < limitUs ) {
+         if ( timeUs >= mRangeStartUs ) {
+            int size = mAudioExtractor.readSampleData( mAudioBuffer, 0 );
+            mAudioBuffer.position( 0 );
+            mAudioBuffer.limit( size );
+            mWriter.writeSample( mAudioTrack, mAudioBuffer, timeUs + mOffsetUs, true );
+         }
+         mAudioExtractor.advance();
+      }
+   }
+
+   private void checkCancelled() {
+      if ( mCancelled ) {
+         throw new CancellationException( "Render of " + mEdl.getUri() + " cancelled" );
+      }
+   }
+
+   private void closeReader() {
+      try {
+         mReader.close();
+      } catch ( IOException e ) {
+         Log.w( TAG, "closing " + mEdl.getUri(), e );
+      }
+      mReader = null;
+      mReaderTrack = -1;
+   }
+
+   private void release( boolean finished ) throws IOException {
+      if ( mReader != null ) {
+         closeReader();
+      }
+      if ( mVideoExtractor != null ) {
+         mVideoExtractor.release();
+         mVideoExtractor = null;
+      }
+      if ( mAudioExtractor != null ) {
+         mAudioExtractor.release();
+         mAudioExtractor = null;
+      }
+      if ( mWriter != null ) {
+         mWriter.close();
+         mWriter = null;
+         if ( !finished ) {
+            mOutput.delete();
+         }
+      }
+   }
+}
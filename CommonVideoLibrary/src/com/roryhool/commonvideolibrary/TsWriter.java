@@ -0,0 +1,259 @@
+/**
+   Copyright (c) 2014 Rory Hool
+   
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+   
+       http://www.apache.org/licenses/LICENSE-2.0
+   
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ **/
+
+package com.roryhool.commonvideolibrary;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Minimal MPEG-2 transport stream writer for a single H.264 video stream, enough for HLS segments. Samples are expected
+ * in Annex B form, the way MediaCodec's AVC encoder outputs them. Each access unit gets an access unit delimiter, key
+ * frames get the SPS and PPS in front so every segment decodes on its own.
+ * <p>
+ * Only PTS is written. Streams with B-frames need DTS too, so use this with encoders that don't produce them.
+ */
+public class TsWriter {
+
+   private static final int PACKET_SIZE = 188;
+
+   private static final int PID_PAT = 0x0000;
+   private static final int PID_PMT = 0x1000;
+   private static final int PID_VIDEO = 0x0100;
+
+   private static final int STREAM_TYPE_H264 = 0x1B;
+   private static final int STREAM_ID_VIDEO = 0xE0;
+
+   // PTS runs this far ahead of PCR, gives the decoder some room.
+   private static final long PTS_OFFSET = 63000;
+
+   private static final byte[] ACCESS_UNIT_DELIMITER = { 0, 0, 0, 1, 0x09, (byte) 0xF0 };
+
+   private static int[] sCrcTable;
+
+   OutputStream mOutput;
+
+   byte[] mCodecConfig = new byte[0];
+
+   byte[] mPacket = new byte[PACKET_SIZE];
+
+   byte[] mPes = new byte[64 * 1024];
+
+   int mPatContinuity = 0;
+   int mPmtContinuity = 0;
+   int mVideoContinuity = 0;
+
+   public TsWriter( OutputStream output ) {
+      mOutput = output;
+   }
+
+   /**
+    * SPS and PPS in Annex B form, csd-0 followed by csd-1 from the encoder's output format.
+    */
+   public void setCodecConfig( byte[] codecConfig ) {
+      mCodecConfig = codecConfig;
+   }
+
+   /**
+    * Writes the PAT and PMT. Call at the start of the stream, and of every segment.
+    */
+   public void writeTables() throws IOException {
+      writeSection( PID_PAT, mPatContinuity++, buildPat() );
+      writeSection( PID_PMT, mPmtContinuity++, buildPmt() );
+   }
+
+   /**
+    * Writes one access unit from position to limit of data.
+    */
+   public void writeSample( ByteBuffer data, long presentationTimeUs, boolean keyFrame ) throws IOException {
+      long pts = presentationTimeUs * 9 / 100 + PTS_OFFSET;
+      long pcr = pts - PTS_OFFSET;
+
+      int size = data.remaining();
+      int configSize = keyFrame ? mCodecConfig.length : 0;
+      int pesSize = 14 + ACCESS_UNIT_DELIMITER.length + configSize + size;
+      if ( mPes.length < pesSize ) {
+         mPes = new byte[pesSize + pesSize / 2];
+      }
+
+      // PES header, unbounded length as usual for video
+      int p = 0;
+      mPes[p++] = 0;
+      mPes[p++] = 0;
+      mPes[p++] = 1;
+      mPes[p++] = (byte) STREAM_ID_VIDEO;
+      mPes[p++] = 0;
+      mPes[p++] = 0;
+      mPes[p++] = (byte) 0x80;
+      mPes[p++] = (byte) 0x80; // PTS only
+      mPes[p++] = 5;
+      mPes[p++] = (byte) ( 0x21 | ( ( pts >> 29 ) & 0x0E ) );
+      mPes[p++] = (byte) ( pts >> 22 );
+      mPes[p++] = (byte) ( 0x01 | ( ( pts >> 14 ) & 0xFE ) );
+      mPes[p++] = (byte) ( pts >> 7 );
+      mPes[p++] = (byte) ( 0x01 | ( ( pts << 1 ) & 0xFE ) );
+
+      System.arraycopy( ACCESS_UNIT_DELIMITER, 0, mPes, p, ACCESS_UNIT_DELIMITER.length );
+      p += ACCESS_UNIT_DELIMITER.length;
+      System.arraycopy( mCodecConfig, 0, mPes, p, configSize );
+      p += configSize;
+      data.get( mPes, p, size );
+      p += size;
+
+      writePes( mPes, p, pcr, keyFrame );
+   }
+
+   private void writePes( byte[] pes, int length, long pcr, boolean keyFrame ) throws IOException {
+      int offset = 0;
+      boolean first = true;
+
+      while ( offset < length ) {
+         int remaining = length - offset;
+
+         // The first packet carries the PCR, the last one is padded with adaptation field stuffing.
+         int adaptationLength = first ? 8 : 0;
+         int payload = Math.min( remaining, PACKET_SIZE - 4 - adaptationLength );
+         if ( payload < PACKET_SIZE - 4 - adaptationLength ) {
+            adaptationLength = PACKET_SIZE - 4 - payload;
+         }
+
+         int p = writeHeader( PID_VIDEO, first, adaptationLength > 0, mVideoContinuity++ );
+
+         if ( adaptationLength > 0 ) {
+            int end = p + adaptationLength;
+            mPacket[p++] = (byte) ( adaptationLength - 1 );
+            if ( adaptationLength > 1 ) {
+               int flags = 0;
+               if ( first ) {
+                  flags |= 0x10;
+                  if ( keyFrame ) {
+                     flags |= 0x40;
+                  }
+               }
+               mPacket[p++] = (byte) flags;
+               if ( first ) {
+                  mPacket[p++] = (byte) ( pcr >> 25 );
+                  mPacket[p++] = (byte) ( pcr >> 17 );
+                  mPacket[p++] = (byte) ( pcr >> 9 );
+                  mPacket[p++] = (byte) ( pcr >> 1 );
+                  mPacket[p++] = (byte) ( ( ( pcr & 1 ) << 7 ) | 0x7E );
+                  mPacket[p++] = 0;
+               }
+               while ( p < end ) {
+                  mPacket[p++] = (byte) 0xFF;
+               }
+            }
+         }
+
+         System.arraycopy( pes, offset, mPacket, p, payload );
+         offset += payload;
+         first = false;
+
+         mOutput.write( mPacket, 0, PACKET_SIZE );
+      }
+   }
+
+   private int writeHeader( int pid, boolean payloadStart, boolean adaptation, int continuity ) {
+      mPacket[0] = 0x47;
+      mPacket[1] = (byte) ( ( payloadStart ? 0x40 : 0 ) | ( ( pid >> 8 ) & 0x1F ) );
+      mPacket[2] = (byte) pid;
+      mPacket[3] = (byte) ( ( adaptation ? 0x30 : 0x10 ) | ( continuity & 0x0F ) );
+      return 4;
+   }
+
+   private void writeSection( int pid, int continuity, byte[] section ) throws IOException {
+      int p = writeHeader( pid, true, false, continuity );
+      mPacket[p++] = 0; // pointer field
+      System.arraycopy( section, 0, mPacket, p, section.length );
+      p += section.length;
+      for ( int i = p; i < PACKET_SIZE; i++ ) {
+         mPacket[i] = (byte) 0xFF;
+      }
+      mOutput.write( mPacket, 0, PACKET_SIZE );
+   }
+
+   private static byte[] buildPat() {
+      byte[] section = new byte[16];
+      section[0] = 0x00; // table id
+      section[1] = (byte) 0xB0;
+      section[2] = 13; // section length
+      section[3] = 0;
+      section[4] = 1; // transport stream id
+      section[5] = (byte) 0xC1;
+      section[6] = 0;
+      section[7] = 0;
+      section[8] = 0;
+      section[9] = 1; // program number
+      section[10] = (byte) ( 0xE0 | ( PID_PMT >> 8 ) );
+      section[11] = (byte) PID_PMT;
+      putCrc( section, 12 );
+      return section;
+   }
+
+   private static byte[] buildPmt() {
+      byte[] section = new byte[21];
+      section[0] = 0x02; // table id
+      section[1] = (byte) 0xB0;
+      section[2] = 18; // section length
+      section[3] = 0;
+      section[4] = 1; // program number
+      section[5] = (byte) 0xC1;
+      section[6] = 0;
+      section[7] = 0;
+      section[8] = (byte) ( 0xE0 | ( PID_VIDEO >> 8 ) ); // PCR PID
+      section[9] = (byte) PID_VIDEO;
+      section[10] = (byte) 0xF0;
+      section[11] = 0; // program info length
+      section[12] = STREAM_TYPE_H264;
+      section[13] = (byte) ( 0xE0 | ( PID_VIDEO >> 8 ) );
+      section[14] = (byte) PID_VIDEO;
+      section[15] = (byte) 0xF0;
+      section[16] = 0; // ES info length
+      putCrc( section, 17 );
+      return section;
+   }
+
+   private static void putCrc( byte[] section, int length ) {
+      int crc = crc32( section, length );
+      section[length] = (byte) ( crc >> 24 );
+      section[length + 1] = (byte) ( crc >> 16 );
+      section[length + 2] = (byte) ( crc >> 8 );
+      section[length + 3] = (byte) crc;
+   }
+
+   /**
+    * The CRC the MPEG-2 sections use, polynomial 0x04C11DB7 without reflection.
+    */
+   private static synchronized int crc32( byte[] data, int length ) {
+      if ( sCrcTable == null ) {
+         sCrcTable = new int[256];
+         for ( int i = 0; i < 256; i++ ) {
+            int crc = i << 24;
+            for ( int j = 0; j < 8; j++ ) {
+               crc = ( crc & 0x80000000 ) != 0 ? ( crc << 1 ) ^ 0x04C11DB7 : crc << 1;
+            }
+            sCrcTable[i] = crc;
+         }
+      }
+
+      int crc = 0xFFFFFFFF;
+      for ( int i = 0; i < length; i++ ) {
+         crc = ( crc << 8 ) ^ sCrcTable[( ( crc >>> 24 ) ^ data[i] ) & 0xFF];
+      }
+      return crc;
+   }
+}
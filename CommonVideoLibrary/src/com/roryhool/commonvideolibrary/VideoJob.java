@@ -0,0 +1,273 @@
+/**
+   Copyright (c) 2014 Rory Hool
+   
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+   
+       http://www.apache.org/licenses/LICENSE-2.0
+   
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ **/
+
+package com.roryhool.commonvideolibrary;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.net.Uri;
+
+/**
+ * A resample, trim or join for {@link VideoJobScheduler}: the clips, the output and its settings. Everything in it is
+ * kept in the scheduler's journal, so a job outlives the activity and the process that queued it.
+ */
+public class VideoJob {
+
+   public static final int PRIORITY_LOW = 0;
+   public static final int PRIORITY_NORMAL = 1;
+   public static final int PRIORITY_HIGH = 2;
+
+   public static final int STATE_QUEUED = 0;
+   public static final int STATE_RUNNING = 1;
+   public static final int STATE_FINISHED = 2;
+   public static final int STATE_FAILED = 3;
+   public static final int STATE_CANCELLED = 4;
+
+   long mId = -1;
+
+   String mTitle;
+
+   int mPriority = PRIORITY_NORMAL;
+
+   int mState = STATE_QUEUED;
+
+   // Clip uris and their start and end times in ms, -1 for the whole clip.
+   List<Uri> mClipUris = new ArrayList<Uri>();
+   List<Long> mClipStartTimes = new ArrayList<Long>();
+   List<Long> mClipEndTimes = new ArrayList<Long>();
+
+   Uri mOutputUri;
+
+   int mWidth = 0;
+
+   int mHeight = 0;
+
+   int mBitRate = 0;
+
+   int mFrameRate = 0;
+
+   int mIFrameInterval = 0;
+
+   long mTargetFileSize = -1;
+
+   boolean mResumable = false;
+
+   volatile float mProgress = 0;
+
+   // Why a failed job failed.
+   String mError;
+
+   // While it runs.
+   VideoResampler mResampler;
+
+   public VideoJob( Uri outputUri ) {
+      mOutputUri = outputUri;
+   }
+
+   public void addClip( Uri uri ) {
+      addClip( uri, -1, -1 );
+   }
+
+   /**
+    * Adds a clip cut to startTime and endTime, in ms. -1 keeps the clip's own start or end.
+    */
+   public void addClip( Uri uri, long startTime, long endTime ) {
+      mClipUris.add( uri );
+      mClipStartTimes.add( startTime );
+      mClipEndTimes.add( endTime );
+   }
+
+   public void setTitle( String title ) {
+      mTitle = title;
+   }
+
+   public String getTitle() {
+      return mTitle;
+   }
+
+   /**
+    * Higher priorities run first, jobs of the same priority in the order they were submitted.
+    */
+   public void setPriority( int priority ) {
+      mPriority = priority;
+   }
+
+   public int getPriority() {
+      return mPriority;
+   }
+
+   /**
+    * Output size, 0 keeps VideoResampler's default.
+    */
+   public void setOutputResolution( int width, int height ) {
+      mWidth = width;
+      mHeight = height;
+   }
+
+   /**
+    * 0 keeps VideoResampler's default.
+    */
+   public void setOutputBitRate( int bitRate ) {
+      mBitRate = bitRate;
+   }
+
+   public void setOutputFrameRate( int frameRate ) {
+      mFrameRate = frameRate;
+   }
+
+   public void setOutputIFrameInterval( int iFrameInterval ) {
+      mIFrameInterval = iFrameInterval;
+   }
+
+   public void setTargetFileSize( long bytes ) {
+      mTargetFileSize = bytes;
+   }
+
+   /**
+    * Writes the output as fragmented mp4, so a run cut short by the process dying is picked up again from its last
+    * complete fragment instead of starting over. Off by default, not every player handles fragmented files well.
+    */
+   public void setResumable( boolean resumable ) {
+      mResumable = resumable;
+   }
+
+   public boolean isResumable() {
+      return mResumable;
+   }
+
+   public long getId() {
+      return mId;
+   }
+
+   public int getState() {
+      return mState;
+   }
+
+   public Uri getOutputUri() {
+      return mOutputUri;
+   }
+
+   /**
+    * The error message of a failed job, null otherwise.
+    */
+   public String getError() {
+      return mError;
+   }
+
+   boolean isDone() {
+      return mState == STATE_FINISHED || mState == STATE_FAILED || mState == STATE_CANCELLED;
+   }
+
+   /**
+    * Between 0 and 1 while running.
+    */
+   public float getProgress() {
+      return mProgress;
+   }
+
+   /**
+    * A resampler set up to do this job. A resumable one picks up an output left by an earlier, interrupted run.
+    */
+   VideoResampler createResampler() {
+      VideoResampler resampler = new VideoResampler();
+
+      for ( int i = 0; i < mClipUris.size(); i++ ) {
+         SamplerClip clip = new SamplerClip( mClipUris.get( i ) );
+         clip.setStartTime( mClipStartTimes.get( i ) );
+         clip.setEndTime( (int) (long) mClipEndTimes.get( i ) );
+         resampler.addSamplerClip( clip );
+      }
+
+      resampler.setOutput( mOutputUri );
+
+      if ( mWidth > 0 && mHeight > 0 ) {
+         resampler.setOutputResolution( mWidth, mHeight );
+      }
+      if ( mBitRate > 0 ) {
+         resampler.setOutputBitRate( mBitRate );
+      }
+      if ( mFrameRate > 0 ) {
+         resampler.setOutputFrameRate( mFrameRate );
+      }
+      if ( mIFrameInterval > 0 ) {
+         resampler.setOutputIFrameInterval( mIFrameInterval );
+      }
+      resampler.setTargetFileSize( mTargetFileSize );
+      resampler.setResumable( mResumable );
+
+      return resampler;
+   }
+
+   JSONObject toJson() throws JSONException {
+      JSONObject json = new JSONObject();
+      json.put( "id", mId );
+      json.put( "title", mTitle );
+      json.put( "priority", mPriority );
+      json.put( "state", mState );
+      json.put( "output", mOutputUri.toString() );
+      json.put( "width", mWidth );
+      json.put( "height", mHeight );
+      json.put( "bitRate", mBitRate );
+      json.put( "frameRate", mFrameRate );
+      json.put( "iFrameInterval", mIFrameInterval );
+      json.put( "targetFileSize", mTargetFileSize );
+      json.put( "resumable", mResumable );
+      if ( mError != null ) {
+         json.put( "error", mError );
+      }
+
+      JSONArray clips = new JSONArray();
+      for ( int i = 0; i < mClipUris.size(); i++ ) {
+         JSONObject clip = new JSONObject();
+         clip.put( "uri", mClipUris.get( i ).toString() );
+         clip.put( "start", mClipStartTimes.get( i ) );
+         clip.put( "end", mClipEndTimes.get( i ) );
+         clips.put( clip );
+      }
+      json.put( "clips", clips );
+
+      return json;
+   }
+
+   static VideoJob fromJson( JSONObject json ) throws JSONException {
+      VideoJob job = new VideoJob( Uri.parse( json.getString( "output" ) ) );
+      job.mId = json.getLong( "id" );
+      job.mTitle = json.optString( "title", null );
+      job.mPriority = json.getInt( "priority" );
+      job.mState = json.getInt( "state" );
+      job.mWidth = json.getInt( "width" );
+      job.mHeight = json.getInt( "height" );
+      job.mBitRate = json.getInt( "bitRate" );
+      job.mFrameRate = json.getInt( "frameRate" );
+      job.mIFrameInterval = json.getInt( "iFrameInterval" );
+      job.mTargetFileSize = json.getLong( "targetFileSize" );
+      job.mResumable = json.optBoolean( "resumable", false );
+      job.mError = json.optString( "error", null );
+
+      JSONArray clips = json.getJSONArray( "clips" );
+      for ( int i = 0; i < clips.length(); i++ ) {
+         JSONObject clip = clips.getJSONObject( i );
+         job.addClip( Uri.parse( clip.getString( "uri" ) ), clip.getLong( "start" ), clip.getLong( "end" ) );
+      }
+
+      return job;
+   }
+}
@@ -0,0 +1,469 @@
+/**
+   Copyright (c) 2014 Rory Hool
+   
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+   
+       http://www.apache.org/licenses/LICENSE-2.0
+   
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ **/
+
+package com.roryhool.commonvideolibrary;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * Runs {@link VideoJob}s in the background, highest priority first, never more at once than the codec limit. Queued
+ * and running jobs are kept in a journal in the app's files directory and {@link VideoJobService} keeps the process
+ * around while there is work, so jobs survive their activity and are picked up again after the process dies. Resumable
+ * jobs continue from their last complete fragment, the others start over.
+ * 
+ * Listeners are called on the main thread.
+ */
+@TargetApi( Build.VERSION_CODES.JELLY_BEAN_MR2 )
+public class VideoJobScheduler {
+
+   private static final String TAG = "VideoJobScheduler";
+
+   private static final String JOURNAL_FILE = "video_jobs.json";
+
+   // Every job holds a decoder and at least one encoder, most devices run out of hardware codecs beyond two.
+   public static final int DEFAULT_MAX_CONCURRENT_JOBS = 2;
+
+   private static final long PROGRESS_INTERVAL_MS = 500;
+
+   // Done jobs kept so an activity that was away when its job ended can still find out how it went.
+   private static final int MAX_DONE_JOBS = 20;
+
+   public interface JobListener {
+      public void onJobProgress( VideoJob job, float progress );
+
+      public void onJobFinished( VideoJob job );
+
+      public void onJobFailed( VideoJob job, Throwable error );
+   }
+
+   // Runs a task on the calling thread. A job already has a pool thread of its own, the resampler needs no other.
+   private static final Executor CALLING_THREAD = new Executor() {
+      @Override
+      public void execute( Runnable command ) {
+         command.run();
+      }
+   };
+
+   private static VideoJobScheduler sInstance;
+
+   public static synchronized VideoJobScheduler getInstance( Context context ) {
+      if ( sInstance == null ) {
+         sInstance = new VideoJobScheduler( context.getApplicationContext() );
+      }
+      return sInstance;
+   }
+
+   Context mContext;
+
+   File mJournal;
+
+   Handler mMainHandler = new Handler( Looper.getMainLooper() );
+
+   // Journal writes happen here, never under the scheduler lock or on the caller's thread.
+   Handler mJournalHandler;
+
+   final Object mJournalLock = new Object();
+
+   // Latest journal contents not written yet, only the newest one is worth writing.
+   String mPendingJournal;
+
+   PriorityQueue<VideoJob> mQueue = new PriorityQueue<VideoJob>( 11, new Comparator<VideoJob>() {
+      @Override
+      public int compare( VideoJob lhs, VideoJob rhs ) {
+         if ( lhs.mPriority != rhs.mPriority ) {
+            return lhs.mPriority > rhs.mPriority ? -1 : 1;
+         }
+         return lhs.mId < rhs.mId ? -1 : ( lhs.mId == rhs.mId ? 0 : 1 );
+      }
+   } );
+
+   List<VideoJob> mRunningJobs = new ArrayList<VideoJob>();
+
+   // Finished, failed and cancelled jobs, oldest first.
+   List<VideoJob> mDoneJobs = new ArrayList<VideoJob>();
+
+   List<JobListener> mListeners = new ArrayList<JobListener>();
+
+   // One thread per running job. Its threads have no Looper, which the resampler needs.
+   Executor mJobExecutor = Executors.newCachedThreadPool();
+
+   int mMaxConcurrentJobs = DEFAULT_MAX_CONCURRENT_JOBS;
+
+   long mNextId = 1;
+
+   private VideoJobScheduler( Context context ) {
+      mContext = context;
+      mJournal = new File( context.getFilesDir(), JOURNAL_FILE );
+
+      HandlerThread journalThread = new HandlerThread( TAG );
+      journalThread.start();
+      mJournalHandler = new Handler( journalThread.getLooper() );
+
+      loadJournal();
+   }
+
+   public synchronized void addJobListener( JobListener listener ) {
+      mListeners.add( listener );
+   }
+
+   public synchronized void removeJobListener( JobListener listener ) {
+      mListeners.remove( listener );
+   }
+
+   /**
+    * How many jobs may hold codecs at the same time.
+    */
+   public synchronized void setMaxConcurrentJobs( int maxConcurrentJobs ) {
+      mMaxConcurrentJobs = Math.max( 1, maxConcurrentJobs );
+      schedule();
+   }
+
+   public synchronized long submit( VideoJob job ) {
+      job.mId = mNextId++;
+      job.mState = VideoJob.STATE_QUEUED;
+      mQueue.add( job );
+      saveJournal();
+
+      schedule();
+
+      return job.mId;
+   }
+
+   /**
+    * Takes a queued job out of the queue, or stops a running one before its next frame. A stopped job's listeners get
+    * onJobFailed with a CancellationException once its codecs are released.
+    */
+   public synchronized boolean cancel( long jobId ) {
+      for ( VideoJob job : mQueue ) {
+         if ( job.mId == jobId ) {
+            mQueue.remove( job );
+            job.mState = VideoJob.STATE_CANCELLED;
+            addDoneJob( job );
+            saveJournal();
+            return true;
+         }
+      }
+      for ( VideoJob job : mRunningJobs ) {
+         if ( job.mId == jobId ) {
+            job.mState = VideoJob.STATE_CANCELLED;
+            if ( job.mResampler != null ) {
+               job.mResampler.cancel();
+            }
+            // A journal still showing it running would start it again after the process dies.
+            saveJournal();
+            return true;
+         }
+      }
+      return false;
+   }
+
+   /**
+    * The running jobs followed by the queued ones.
+    */
+   public synchronized List<VideoJob> getJobs() {
+      List<VideoJob> jobs = new ArrayList<VideoJob>( mRunningJobs );
+      jobs.addAll( mQueue );
+      return jobs;
+   }
+
+   /**
+    * A queued, running or recently done job, null if the scheduler doesn't know it (anymore). Check its state when
+    * coming back to a job, its callbacks may have come while nobody was listening.
+    */
+   public synchronized VideoJob getJob( long jobId ) {
+      for ( VideoJob job : mRunningJobs ) {
+         if ( job.mId == jobId ) {
+            return job;
+         }
+      }
+      for ( VideoJob job : mQueue ) {
+         if ( job.mId == jobId ) {
+            return job;
+         }
+      }
+      for ( VideoJob job : mDoneJobs ) {
+         if ( job.mId == jobId ) {
+            return job;
+         }
+      }
+      return null;
+   }
+
+   public synchronized boolean isIdle() {
+      return mQueue.isEmpty() && mRunningJobs.isEmpty();
+   }
+
+   /**
+    * Starts queued jobs while there is room for them, and makes sure the service is up while anything runs.
+    */
+   synchronized void schedule() {
+      boolean started = false;
+
+      while ( mRunningJobs.size() < mMaxConcurrentJobs && !mQueue.isEmpty() ) {
+         VideoJob job = mQueue.poll();
+         job.mState = VideoJob.STATE_RUNNING;
+         job.mProgress = 0;
+         mRunningJobs.add( job );
+         startJob( job );
+         started = true;
+      }
+
+      if ( started ) {
+         saveJournal();
+         mContext.startService( new Intent( mContext, VideoJobService.class ) );
+         mMainHandler.removeCallbacks( mProgressRunnable );
+         mMainHandler.postDelayed( mProgressRunnable, PROGRESS_INTERVAL_MS );
+      }
+   }
+
+   private synchronized void onJobDone( final VideoJob job, final Throwable error ) {
+      mRunningJobs.remove( job );
+      job.mResampler = null;
+      if ( error == null ) {
+         job.mState = VideoJob.STATE_FINISHED;
+      } else if ( !( error instanceof CancellationException ) ) {
+         job.mState = VideoJob.STATE_FAILED;
+         job.mError = error.getMessage() != null ? error.getMessage() : error.getClass().getSimpleName();
+      }
+      addDoneJob( job );
+      saveJournal();
+
+      final List<JobListener> listeners = new ArrayList<JobListener>( mListeners );
+      mMainHandler.post( new Runnable() {
+         @Override
+         public void run() {
+            for ( JobListener listener : listeners ) {
+               if ( error == null ) {
+                  listener.onJobFinished( job );
+               } else {
+                  listener.onJobFailed( job, error );
+               }
+            }
+         }
+      } );
+
+      schedule();
+
+      if ( isIdle() ) {
+         mContext.stopService( new Intent( mContext, VideoJobService.class ) );
+      }
+   }
+
+   private void addDoneJob( VideoJob job ) {
+      mDoneJobs.add( job );
+      if ( mDoneJobs.size() > MAX_DONE_JOBS ) {
+         mDoneJobs.remove( 0 );
+      }
+   }
+
+   private Runnable mProgressRunnable = new Runnable() {
+      @Override
+      public void run() {
+         List<VideoJob> jobs;
+         List<JobListener> listeners;
+         synchronized ( VideoJobScheduler.this ) {
+            for ( VideoJob job : mRunningJobs ) {
+               if ( job.mResampler != null ) {
+                  job.mProgress = job.mResampler.getProgress();
+               }
+            }
+            jobs = new ArrayList<VideoJob>( mRunningJobs );
+            listeners = new ArrayList<JobListener>( mListeners );
+         }
+
+         for ( VideoJob job : jobs ) {
+            for ( JobListener listener : listeners ) {
+               listener.onJobProgress( job, job.mProgress );
+            }
+         }
+
+         if ( !jobs.isEmpty() ) {
+            mMainHandler.postDelayed( this, PROGRESS_INTERVAL_MS );
+         }
+      }
+   };
+
+   private void startJob( final VideoJob job ) {
+      mJobExecutor.execute( new Runnable() {
+         @Override
+         public void run() {
+            runJob( job );
+         }
+      } );
+   }
+
+   /**
+    * Runs the job's resampler right on this pool thread, start returns once the resampler let go of its codecs.
+    */
+   private void runJob( VideoJob job ) {
+      Throwable error = null;
+      try {
+         VideoResampler resampler = job.createResampler();
+         synchronized ( this ) {
+            job.mResampler = resampler;
+            if ( job.mState == VideoJob.STATE_CANCELLED ) {
+               resampler.cancel();
+            }
+         }
+         resampler.start( CALLING_THREAD ).get();
+      } catch ( CancellationException e ) {
+         Log.d( TAG, "Job " + job.mId + " cancelled" );
+         error = e;
+      } catch ( ExecutionException e ) {
+         Log.e( TAG, "Job " + job.mId + " failed", e.getCause() );
+         error = e.getCause();
+      } catch ( Throwable e ) {
+         Log.e( TAG, "Job " + job.mId + " failed", e );
+         error = e;
+      }
+      onJobDone( job, error );
+   }
+
+   /**
+    * Queued and running jobs go back in the queue, the running ones start again. Done jobs are only remembered.
+    */
+   private void loadJournal() {
+      if ( !mJournal.exists() ) {
+         return;
+      }
+
+      try {
+         InputStream input = new FileInputStream( mJournal );
+         byte[] bytes;
+         try {
+            bytes = new byte[(int) mJournal.length()];
+            int read = 0;
+            while ( read < bytes.length ) {
+               int count = input.read( bytes, read, bytes.length - read );
+               if ( count < 0 ) {
+                  break;
+               }
+               read += count;
+            }
+         } finally {
+            input.close();
+         }
+
+         JSONArray jobs = new JSONArray( new String( bytes, "UTF-8" ) );
+         for ( int i = 0; i < jobs.length(); i++ ) {
+            VideoJob job = VideoJob.fromJson( jobs.getJSONObject( i ) );
+            if ( job.isDone() ) {
+               addDoneJob( job );
+            } else {
+               job.mState = VideoJob.STATE_QUEUED;
+               mQueue.add( job );
+            }
+            mNextId = Math.max( mNextId, job.mId + 1 );
+         }
+         Log.d( TAG, "Loaded " + mQueue.size() + " jobs from the journal" );
+      } catch ( IOException e ) {
+         Log.e( TAG, "Could not read the job journal", e );
+      } catch ( JSONException e ) {
+         Log.e( TAG, "Job journal is damaged", e );
+      }
+   }
+
+   /**
+    * Hands the queued, running and done jobs to the journal thread. Called with the scheduler lock held, only builds the
+    * JSON.
+    */
+   private void saveJournal() {
+      JSONArray jobs = new JSONArray();
+      try {
+         for ( VideoJob job : mRunningJobs ) {
+            jobs.put( job.toJson() );
+         }
+         for ( VideoJob job : mQueue ) {
+            jobs.put( job.toJson() );
+         }
+         for ( VideoJob job : mDoneJobs ) {
+            jobs.put( job.toJson() );
+         }
+      } catch ( JSONException e ) {
+         throw new RuntimeException( "Could not write the job journal", e );
+      }
+
+      synchronized ( mJournalLock ) {
+         boolean posted = mPendingJournal != null;
+         mPendingJournal = jobs.toString();
+         if ( !posted ) {
+            mJournalHandler.post( mWriteJournal );
+         }
+      }
+   }
+
+   private Runnable mWriteJournal = new Runnable() {
+      @Override
+      public void run() {
+         String journal;
+         synchronized ( mJournalLock ) {
+            journal = mPendingJournal;
+            mPendingJournal = null;
+         }
+         writeJournal( journal );
+      }
+   };
+
+   /**
+    * Writes the journal next to the old one, syncs it to disk and renames it over, so a crash leaves either the old
+    * or the new journal, never half of one.
+    */
+   private void writeJournal( String journal ) {
+      File tempFile = new File( mJournal.getPath() + ".tmp" );
+      try {
+         FileOutputStream output = new FileOutputStream( tempFile );
+         try {
+            Writer writer = new OutputStreamWriter( output, "UTF-8" );
+            writer.write( journal );
+            writer.flush();
+            output.getFD().sync();
+         } finally {
+            output.close();
+         }
+         if ( !tempFile.renameTo( mJournal ) ) {
+            throw new IOException( "Could not replace " + mJournal );
+         }
+      } catch ( IOException e ) {
+         Log.e( TAG, "Could not write the job journal", e );
+      }
+   }
+}
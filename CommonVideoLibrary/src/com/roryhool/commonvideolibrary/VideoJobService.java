@@ -0,0 +1,49 @@
+/**
+   Copyright (c) 2014 Rory Hool
+   
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+   
+       http://www.apache.org/licenses/LICENSE-2.0
+   
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ **/
+
+package com.roryhool.commonvideolibrary;
+
+import android.app.Service;
+import android.content.Intent;
+import android.os.IBinder;
+
+/**
+ * Keeps the process alive while {@link VideoJobScheduler} has work, and brings the journal's jobs back when the system
+ * restarts it after killing the process. Apps using the scheduler declare it in their manifest.
+ */
+public class VideoJobService extends Service {
+
+   @Override
+   public void onCreate() {
+      super.onCreate();
+
+      VideoJobScheduler.getInstance( this ).schedule();
+   }
+
+   @Override
+   public int onStartCommand( Intent intent, int flags, int startId ) {
+      if ( VideoJobScheduler.getInstance( this ).isIdle() ) {
+         stopSelf();
+         return START_NOT_STICKY;
+      }
+      return START_STICKY;
+   }
+
+   @Override
+   public IBinder onBind( Intent intent ) {
+      return null;
+   }
+}
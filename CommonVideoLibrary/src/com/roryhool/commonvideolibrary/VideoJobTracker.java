@@ -0,0 +1,164 @@
+/**
+   Copyright (c) 2014 Rory Hool
+   
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+   
+       http://www.apache.org/licenses/LICENSE-2.0
+   
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ **/
+
+package com.roryhool.commonvideolibrary;
+
+import java.util.Locale;
+
+import android.annotation.TargetApi;
+import android.app.Activity;
+import android.content.Intent;
+import android.os.Build;
+import android.os.Bundle;
+import android.view.View;
+import android.widget.ProgressBar;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import com.roryhool.commonvideolibrary.VideoJobScheduler.JobListener;
+
+/**
+ * Follows the job an activity submitted: shows its progress, reports it if it fails and opens the output once it is
+ * done. The job id is kept in the activity's saved state and the job is looked up again on resume, so a job that ended
+ * while the activity was paused or recreated still gets its result shown.
+ * 
+ * Call the lifecycle methods from the activity's own.
+ */
+@TargetApi( Build.VERSION_CODES.JELLY_BEAN_MR2 )
+public class VideoJobTracker implements JobListener {
+
+   private static final String STATE_JOB_ID = "video_job_tracker_job_id";
+
+   Activity mActivity;
+
+   ProgressBar mProgressBar;
+
+   TextView mStatusView;
+
+   long mJobId = -1;
+
+   public VideoJobTracker( Activity activity, ProgressBar progressBar, TextView statusView ) {
+      mActivity = activity;
+      mProgressBar = progressBar;
+      mStatusView = statusView;
+
+      mProgressBar.setMax( 100 );
+   }
+
+   public void onCreate( Bundle savedInstanceState ) {
+      if ( savedInstanceState != null ) {
+         mJobId = savedInstanceState.getLong( STATE_JOB_ID, -1 );
+      }
+   }
+
+   public void onSaveInstanceState( Bundle outState ) {
+      outState.putLong( STATE_JOB_ID, mJobId );
+   }
+
+   public void onResume() {
+      VideoJobScheduler scheduler = VideoJobScheduler.getInstance( mActivity );
+      scheduler.addJobListener( this );
+
+      if ( mJobId < 0 ) {
+         return;
+      }
+
+      VideoJob job = scheduler.getJob( mJobId );
+      if ( job == null ) {
+         mJobId = -1;
+         hideProgress();
+      } else if ( job.getState() == VideoJob.STATE_FINISHED ) {
+         onJobFinished( job );
+      } else if ( job.getState() == VideoJob.STATE_FAILED ) {
+         onJobFailed( job, null );
+      } else if ( job.getState() == VideoJob.STATE_CANCELLED ) {
+         mJobId = -1;
+         hideProgress();
+      } else {
+         showProgress( job );
+      }
+   }
+
+   public void onPause() {
+      VideoJobScheduler.getInstance( mActivity ).removeJobListener( this );
+   }
+
+   /**
+    * Submits the job and follows it.
+    */
+   public void submit( VideoJob job ) {
+      mJobId = VideoJobScheduler.getInstance( mActivity ).submit( job );
+      showProgress( job );
+   }
+
+   @Override
+   public void onJobProgress( VideoJob job, float progress ) {
+      if ( job.getId() == mJobId ) {
+         showProgress( job );
+      }
+   }
+
+   @Override
+   public void onJobFinished( VideoJob job ) {
+      if ( job.getId() != mJobId ) {
+         return;
+      }
+      mJobId = -1;
+      hideProgress();
+
+      Intent intent = new Intent( Intent.ACTION_VIEW );
+      intent.setDataAndType( job.getOutputUri(), "video/mp4" );
+      mActivity.startActivity( intent );
+   }
+
+   @Override
+   public void onJobFailed( VideoJob job, Throwable error ) {
+      if ( job.getId() != mJobId ) {
+         return;
+      }
+      mJobId = -1;
+      mProgressBar.setVisibility( View.GONE );
+
+      if ( job.getState() == VideoJob.STATE_CANCELLED ) {
+         mStatusView.setVisibility( View.GONE );
+         return;
+      }
+
+      String message = String.format( Locale.US, "%s failed: %s", job.getTitle() != null ? job.getTitle() : "Job", job.getError() );
+      mStatusView.setText( message );
+      mStatusView.setVisibility( View.VISIBLE );
+      Toast.makeText( mActivity, message, Toast.LENGTH_LONG ).show();
+   }
+
+   private void showProgress( VideoJob job ) {
+      int percent = (int) ( job.getProgress() * 100 );
+      mProgressBar.setProgress( percent );
+      mProgressBar.setVisibility( View.VISIBLE );
+
+      String title = job.getTitle() != null ? job.getTitle() : "Job";
+      if ( job.getState() == VideoJob.STATE_QUEUED ) {
+         mStatusView.setText( title + ": waiting" );
+      } else {
+         mStatusView.setText( String.format( Locale.US, "%s: %d%%", title, percent ) );
+      }
+      mStatusView.setVisibility( View.VISIBLE );
+   }
+
+   private void hideProgress() {
+      mProgressBar.setVisibility( View.GONE );
+      mStatusView.setVisibility( View.GONE );
+   }
+}
@@ -16,19 +16,34 @@
 
 package com.roryhool.commonvideolibrary;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Writer;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.annotation.TargetApi;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaExtractor;
 import android.media.MediaFormat;
-import android.media.MediaMuxer;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Bundle;
 import android.util.Log;
 
 @TargetApi( Build.VERSION_CODES.JELLY_BEAN_MR2 )
@@ -49,8 +64,10 @@ public class VideoResampler {
    public static final int BITRATE_720P = 6000000;
 
    private static final String TAG = "VideoResampler";
+
+   public static final long DEFAULT_PROGRESS_INTERVAL_MS = 250;
    private static final boolean WORK_AROUND_BUGS = false; // avoid fatal codec bugs
-   private static final boolean VERBOSE = true; // lots of logging
+   private static final boolean VERBOSE = true; // format changes and per clip stats, per frame events go to the EventTracer
 
    // parameters for the encoder
    public static final int FPS_30 = 30; // 30fps
@@ -61,25 +78,36 @@ public class VideoResampler {
    private int mWidth = WIDTH_720P;
    private int mHeight = HEIGHT_720P;
 
-   // bit rate, in bits per second
-   private int mBitRate = BITRATE_720P;
+   // bit rate, frame rate, key frames and rate control
+   private EncoderSettings mEncoderSettings = new EncoderSettings( BITRATE_720P, FPS_30, IFRAME_INTERVAL_10 );
+
 
-   private int mFrameRate = FPS_30;
+   long mTargetFileSize = -1;
 
-   private int mIFrameInterval = IFRAME_INTERVAL_10;
+   ComplexityAnalysis mComplexityAnalysis;
 
    // private Uri mInputUri;
    private Uri mOutputUri;
 
-   InputSurface mInputSurface;
+   private HlsSegmenter mSegmenter;
+
+   int mMp4Mode = Mp4Writer.MODE_NORMAL;
+
+   boolean mUseMediaMuxer = false;
+
+   boolean mResumable = false;
+
+   // Output time the encoders restart at when resuming, in nanoseconds like mEncoderPresentationTimeUs.
+   long mResumeTimeNs = 0;
+
+   File mClipJournal;
 
    OutputSurface mOutputSurface;
 
-   MediaCodec mEncoder = null;
+   // The output set with setOutput first, then the ones added with addRendition.
+   List<Rendition> mRenditions = new ArrayList<Rendition>();
 
-   MediaMuxer mMuxer = null;
-   int mTrackIndex = -1;
-   boolean mMuxerStarted = false;
+   List<Rendition> mExtraRenditions = new ArrayList<Rendition>();
 
    // MediaExtractor mExtractor = null;
 
@@ -93,12 +121,81 @@ public class VideoResampler {
 
    // int mEndTime = -1;
 
-   long mLastSampleTime = 0;
-
    long mEncoderPresentationTimeUs = 0;
 
-   public VideoResampler() {
+   // Output time the clip being fed starts at and that of its last frame so far, in the same nanoseconds as
+   // mEncoderPresentationTimeUs.
+   long mClipOutputStartNs = 0;
+   long mLastFrameTimeNs = -1;
+
+   long mTotalDurationMs = 0;
+
+   volatile float mProgress = 0;
+
+   volatile boolean mCancelled = false;
+
+   // Output time the next frame is due at, in the same nanoseconds as mEncoderPresentationTimeUs.
+   long mNextOutputFrameTimeNs = 0;
+
+   int mDroppedFrameCount = 0;
+
+   /**
+    * Told how far a job got, on the thread the job runs on, at most once per progress interval and once more when the
+    * job is done. Keep it short, the next frame waits for it.
+    */
+   public interface ProgressListener {
+      /**
+       * @param processedUs source time decoded so far, across all clips
+       * @param totalUs duration of all clips together
+       * @param instantFps source frames per second since the last report
+       * @param averageFps source frames per second since the job started
+       * @param etaMs time left at the average speed, -1 until there is one
+       */
+      public void onProgress( long processedUs, long totalUs, float instantFps, float averageFps, long etaMs );
+   }
+
+   ProgressListener mProgressListener;
+
+   long mProgressIntervalNs = DEFAULT_PROGRESS_INTERVAL_MS * 1000000L;
 
+   // Source time of the clips already done, and of those plus the decoded part of the current one, in microseconds.
+   long mCompletedClipsUs = 0;
+
+   long mProcessedUs = 0;
+
+   // Where this run started, a resumed job doesn't count what the earlier run did in its speed.
+   long mStartProcessedUs = 0;
+
+   long mStartTimeNs = 0;
+
+   int mFrameCount = 0;
+
+   long mLastReportTimeNs = 0;
+
+   int mLastReportFrameCount = 0;
+
+   PipelineMetrics mMetrics;
+
+   EventTracer mTracer = EventTracer.getInstance();
+
+   File mTraceFile;
+
+   LatencyHistogram mExtractTime;
+   LatencyHistogram mAwaitImageTime;
+   LatencyHistogram mDrawTime;
+   LatencyHistogram mSubmitTime;
+   LatencyHistogram mMuxTime;
+
+   FrameLatencyTracker mDecodeLatency;
+
+   AtomicLong mSamplesExtracted;
+   AtomicLong mFramesDecoded;
+   AtomicLong mFramesDropped;
+   AtomicLong mFramesEncoded;
+   AtomicLong mBytesWritten;
+
+   public VideoResampler() {
+      setMetrics( new PipelineMetrics( TAG ) );
    }
 
    /*
@@ -113,6 +210,39 @@ public class VideoResampler {
       mOutputUri = outputUri;
    }
 
+   /**
+    * Writes the main output as HLS segments and a playlist while encoding, with or without an mp4 from setOutput.
+    */
+   public void setHlsOutput( HlsSegmenter segmenter ) {
+      mSegmenter = segmenter;
+   }
+
+   /**
+    * File layout of the mp4 outputs, one of the Mp4Writer modes.
+    */
+   public void setMp4Mode( int mode ) {
+      mMp4Mode = mode;
+   }
+
+   /**
+    * Writes the outputs with the platform MediaMuxer instead of Mp4Writer. The mp4 mode doesn't apply then.
+    */
+   public void setUseMediaMuxer( boolean useMediaMuxer ) {
+      mUseMediaMuxer = useMediaMuxer;
+   }
+
+   /**
+    * Writes fragmented mp4 outputs, so an interrupted job leaves files that play up to the last fragment, and picks
+    * such a job up again: when the outputs already hold fragments from an earlier run of the same job, encoding
+    * restarts at the end of the last complete fragment instead of at the beginning.
+    * 
+    * Which clip and source time an output time came from is kept in a small journal next to the main output, it is
+    * deleted when the job finishes.
+    */
+   public void setResumable( boolean resumable ) {
+      mResumable = resumable;
+   }
+
    public void setOutputResolution( int width, int height ) {
       if ( ( width % 16 ) != 0 || ( height % 16 ) != 0 ) {
          Log.w( TAG, "WARNING: width or height not multiple of 16" );
@@ -122,15 +252,97 @@ public class VideoResampler {
    }
 
    public void setOutputBitRate( int bitRate ) {
-      mBitRate = bitRate;
+      mEncoderSettings.setBitRate( bitRate );
    }
 
    public void setOutputFrameRate( int frameRate ) {
-      mFrameRate = frameRate;
+      mEncoderSettings.setFrameRate( frameRate );
    }
 
    public void setOutputIFrameInterval( int IFrameInterval ) {
-      mIFrameInterval = IFrameInterval;
+      mEncoderSettings.setIFrameInterval( IFrameInterval );
+   }
+
+   /**
+    * Replaces all encoder settings, including the ones set with setOutputBitRate, setOutputFrameRate and
+    * setOutputIFrameInterval.
+    */
+   public void setEncoderSettings( EncoderSettings settings ) {
+      mEncoderSettings = new EncoderSettings( settings );
+   }
+
+   public EncoderSettings getEncoderSettings() {
+      return mEncoderSettings;
+   }
+
+   /**
+    * Adds another output made from the same decoded frames, e.g. a lower resolution of an ABR ladder. The source is
+    * decoded once however many renditions there are. Frame rate decimation follows the main output's frame rate.
+    */
+   public Rendition addRendition( int width, int height, EncoderSettings settings, Uri outputUri ) {
+      Rendition rendition = new Rendition( width, height, settings, outputUri );
+      mExtraRenditions.add( rendition );
+      return rendition;
+   }
+
+   /**
+    * Encodes once to about the given size in bytes instead of a fixed bitrate. The source sample tables are analysed
+    * first to give busy parts of the video more of the budget than quiet ones, and the encoder is steered to that plan
+    * while it runs. -1 turns it off.
+    */
+   public void setTargetFileSize( long bytes ) {
+      mTargetFileSize = bytes;
+   }
+
+   public void setProgressListener( ProgressListener listener ) {
+      mProgressListener = listener;
+   }
+
+   /**
+    * Least time between two progress reports, DEFAULT_PROGRESS_INTERVAL_MS unless set.
+    */
+   public void setProgressInterval( long intervalMs ) {
+      mProgressIntervalNs = intervalMs * 1000000L;
+   }
+
+   /**
+    * Where the stage timings and counters of the job go, a registry of its own unless set. It is reset when a job
+    * starts and its snapshot written when the job ends.
+    */
+   public void setMetrics( PipelineMetrics metrics ) {
+      mMetrics = metrics;
+
+      mExtractTime = metrics.getHistogram( PipelineMetrics.STAGE_EXTRACT );
+      mAwaitImageTime = metrics.getHistogram( PipelineMetrics.STAGE_AWAIT_IMAGE );
+      mDrawTime = metrics.getHistogram( PipelineMetrics.STAGE_DRAW );
+      mSubmitTime = metrics.getHistogram( PipelineMetrics.STAGE_SUBMIT );
+      mMuxTime = metrics.getHistogram( PipelineMetrics.STAGE_MUX );
+
+      mDecodeLatency = new FrameLatencyTracker( metrics.getHistogram( PipelineMetrics.STAGE_DECODE ) );
+
+      mSamplesExtracted = metrics.getCounter( PipelineMetrics.COUNTER_SAMPLES_EXTRACTED );
+      mFramesDecoded = metrics.getCounter( PipelineMetrics.COUNTER_FRAMES_DECODED );
+      mFramesDropped = metrics.getCounter( PipelineMetrics.COUNTER_FRAMES_DROPPED );
+      mFramesEncoded = metrics.getCounter( PipelineMetrics.COUNTER_FRAMES_ENCODED );
+      mBytesWritten = metrics.getCounter( PipelineMetrics.COUNTER_BYTES_WRITTEN );
+   }
+
+   public PipelineMetrics getMetrics() {
+      return mMetrics;
+   }
+
+   /**
+    * Dumps the {@link EventTracer} there when a job ends, for a look at what each frame went through.
+    */
+   public void setTraceFile( File file ) {
+      mTraceFile = file;
+   }
+
+   /**
+    * How much of the output has been encoded, from 0 to 1. Can be read from any thread while the job runs.
+    */
+   public float getProgress() {
+      return mProgress;
    }
 
    /*
@@ -139,74 +351,449 @@ public class VideoResampler {
     * public void setEndTime( int endTime ) { mEndTime = endTime; }
     */
    public void start() throws Throwable {
-      VideoEditWrapper wrapper = new VideoEditWrapper();
-      Thread th = new Thread( wrapper, "codec test" );
+      ResampleTask task = new ResampleTask();
+      Thread th = new Thread( task, "codec test" );
       th.start();
       th.join();
-      if ( wrapper.mThrowable != null ) {
-         throw wrapper.mThrowable;
+      try {
+         task.get();
+      } catch ( ExecutionException e ) {
+         throw e.getCause();
       }
    }
 
    /**
-    * Wraps resampleVideo, running it in a new thread. Required because of the way 
+    * Runs the job on one of the executor's threads and returns right away. The future gives the main output's uri
+    * when the job is done, or the error that stopped it.
+    * 
+    * Cancelling the future stops the job before the next frame and releases the codecs, surfaces and muxers. The
+    * outputs are left as far as they got, so a resumable job can be picked up again later. get() and isDone() wait for
+    * that release, once get() returns or throws the codecs are free for the next job, cancelled or not.
+    * 
+    * The executor's threads must not have a Looper, see ResampleTask.
+    */
+   public Future<Uri> start( Executor executor ) {
+      ResampleTask task = new ResampleTask();
+      executor.execute( task );
+      return task;
+   }
+
+   /**
+    * Stops a running job before its next frame, for callers of the blocking start(), which then throws a
+    * CancellationException. A cancelled resampler can't be started again.
+    */
+   public void cancel() {
+      mCancelled = true;
+   }
+
+   public boolean isCancelled() {
+      return mCancelled;
+   }
+
+   /**
+    * Wraps resampleVideo so it can run in a new thread. Required because of the way
     * SurfaceTexture.OnFrameAvailableListener works when the current thread has a Looper configured.
     */
-   private class VideoEditWrapper implements Runnable {
-      private Throwable mThrowable;
+   private class ResampleTask extends FutureTask<Uri> {
+
+      // Counted down once the job let go of its codecs, surfaces and muxers, or when it was cancelled before it ran.
+      CountDownLatch mReleased = new CountDownLatch( 1 );
+
+      boolean mRunStarted = false;
+
+      public ResampleTask() {
+         super( new Callable<Uri>() {
+            @Override
+            public Uri call() {
+               resampleVideo();
+               return mOutputUri;
+            }
+         } );
+      }
 
       @Override
       public void run() {
+         synchronized ( this ) {
+            mRunStarted = true;
+         }
          try {
-            resampleVideo();
-         } catch ( Throwable th ) {
-            mThrowable = th;
+            super.run();
+         } finally {
+            mReleased.countDown();
          }
       }
-   }
 
-   private void setupEncoder() {
+      @Override
+      public boolean cancel( boolean mayInterruptIfRunning ) {
+         mCancelled = true;
+         boolean cancelled = super.cancel( mayInterruptIfRunning );
+         synchronized ( this ) {
+            // A job that never ran holds nothing, one that runs counts down when its resources are released.
+            if ( !mRunStarted ) {
+               mReleased.countDown();
+            }
+         }
+         return cancelled;
+      }
+
+      @Override
+      public boolean isDone() {
+         return mReleased.getCount() == 0 && super.isDone();
+      }
 
-      MediaFormat outputFormat = MediaFormat.createVideoFormat( MediaHelper.MIME_TYPE_AVC, mWidth, mHeight );
-      outputFormat.setInteger( MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface );
-      outputFormat.setInteger( MediaFormat.KEY_BIT_RATE, mBitRate );
+      @Override
+      public Uri get() throws InterruptedException, ExecutionException {
+         mReleased.await();
+         return super.get();
+      }
 
-      outputFormat.setInteger( MediaFormat.KEY_FRAME_RATE, mFrameRate );
-      outputFormat.setInteger( MediaFormat.KEY_I_FRAME_INTERVAL, mIFrameInterval );
+      @Override
+      public Uri get( long timeout, TimeUnit unit ) throws InterruptedException, ExecutionException, TimeoutException {
+         if ( !mReleased.await( timeout, unit ) ) {
+            throw new TimeoutException();
+         }
+         return super.get( 0, TimeUnit.NANOSECONDS );
+      }
 
-      mEncoder = MediaCodec.createEncoderByType( MediaHelper.MIME_TYPE_AVC );
-      mEncoder.configure( outputFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE );
-      mInputSurface = new InputSurface( mEncoder.createInputSurface() );
-      mInputSurface.makeCurrent();
-      mEncoder.start();
+      @Override
+      protected void setException( Throwable t ) {
+         if ( t instanceof CancellationException ) {
+            // Stopped through VideoResampler.cancel(), the future reports it like its own cancel.
+            super.cancel( false );
+         } else {
+            super.setException( t );
+         }
+      }
    }
 
-   private void setupMuxer() {
+   private void checkCancelled() {
+      if ( mCancelled ) {
+         throw new CancellationException( "Resampling was cancelled" );
+      }
+   }
 
+   /**
+    * Turns the target file size into a bitrate plan, the average goes into the encoder settings.
+    */
+   private void analyzeComplexity() {
+      mComplexityAnalysis = new ComplexityAnalysis();
       try {
-         mMuxer = new MediaMuxer( mOutputUri.toString(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4 );
-      } catch ( IOException ioe ) {
-         throw new RuntimeException( "MediaMuxer creation failed", ioe );
+         for ( SamplerClip clip : mClips ) {
+            mComplexityAnalysis.addClip( clip );
+         }
+      } catch ( IOException e ) {
+         throw new RuntimeException( "Analysing the source failed", e );
+      }
+
+      long durationUs = mComplexityAnalysis.getDurationUs();
+      if ( durationUs <= 0 ) {
+         return;
+      }
+
+      mEncoderSettings.setBitRate( (int) ( mTargetFileSize * 8 * 1000000 / durationUs ) );
+      mEncoderSettings.setAdaptiveBitRate( true );
+      if ( mEncoderSettings.getBitRateMode() == EncoderSettings.UNSET ) {
+         mEncoderSettings.setBitRateMode( EncoderSettings.BITRATE_MODE_VBR );
+      }
+   }
+
+   private void setupRenditions() {
+      mRenditions.clear();
+      Rendition mainRendition = new Rendition( mWidth, mHeight, mEncoderSettings, mOutputUri );
+      mainRendition.setHlsSegmenter( mSegmenter );
+      mRenditions.add( mainRendition );
+      mRenditions.addAll( mExtraRenditions );
+
+      InputSurface sharedWith = null;
+
+      for ( Rendition rendition : mRenditions ) {
+         setupEncoder( rendition, sharedWith );
+         setupMuxer( rendition );
+         sharedWith = rendition.mInputSurface;
+      }
+
+      Rendition main = mRenditions.get( 0 );
+      if ( main.mBitRateController != null && mComplexityAnalysis != null ) {
+         main.mBitRateController.setSchedule( mComplexityAnalysis.getSegmentStartsUs(), mComplexityAnalysis.allocate( mTargetFileSize ) );
+      }
+
+      // The decoder's texture lives in the main rendition's context.
+      main.mInputSurface.makeCurrent();
+   }
+
+   private void setupEncoder( Rendition rendition, InputSurface sharedWith ) {
+
+      EncoderSettings settings = rendition.getEncoderSettings();
+
+      HlsSegmenter segmenter = rendition.getHlsSegmenter();
+      if ( segmenter != null ) {
+         rendition.mSyncIntervalUs = segmenter.getSegmentDurationUs();
+      } else if ( mResumable ) {
+         // Key frames at the same times in every rendition cut their fragments at the same times, so they all have
+         // the same place to resume from.
+         rendition.mSyncIntervalUs = Mp4Writer.DEFAULT_FRAGMENT_DURATION_US;
+      }
+
+      if ( rendition.mSyncIntervalUs > 0 ) {
+         // Sync frames are requested at each boundary, the key frame interval is the fallback for encoders that
+         // ignore the request.
+         int intervalSeconds = (int) ( rendition.mSyncIntervalUs / 1000000 );
+         if ( settings.getIFrameInterval() > intervalSeconds ) {
+            settings = new EncoderSettings( settings );
+            settings.setIFrameInterval( Math.max( 1, intervalSeconds ) );
+         }
+         rendition.mNextSyncRequestUs = mResumeTimeNs / 1000 + rendition.mSyncIntervalUs;
+      }
+
+      MediaFormat outputFormat = MediaFormat.createVideoFormat( MediaHelper.MIME_TYPE_AVC, rendition.getWidth(), rendition.getHeight() );
+      outputFormat.setInteger( MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface );
+      settings.applyTo( outputFormat );
+
+      rendition.mEncoder = MediaCodec.createEncoderByType( MediaHelper.MIME_TYPE_AVC );
+      rendition.mEncoder.configure( outputFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE );
+      rendition.mInputSurface = new InputSurface( rendition.mEncoder.createInputSurface(), sharedWith );
+      rendition.mInputSurface.makeCurrent();
+      rendition.mEncoder.start();
+      rendition.mEncoderQueue = new MediaCodecQueue( rendition.mEncoder );
+      rendition.mEncoderOutputBuffers = rendition.mEncoderQueue.getOutputBuffers();
+      rendition.mTrackIndex = -1;
+      rendition.mMuxerStarted = false;
+      rendition.mOutputDone = false;
+      rendition.mEncodeLatency = new FrameLatencyTracker( mMetrics.getHistogram( PipelineMetrics.STAGE_ENCODE ) );
+
+      if ( settings.isAdaptiveBitRate() ) {
+         rendition.mBitRateController = new AdaptiveBitRateController( rendition.mEncoder, settings.getBitRate() );
+      }
+   }
+
+   private void setupMuxer( Rendition rendition ) {
+
+      if ( rendition.getOutputUri() == null ) {
+         return;
+      }
+
+      String path = rendition.getOutputUri().toString();
+      if ( mUseMediaMuxer ) {
+         rendition.mMuxer = new MediaMuxerAdapter( path );
+      } else if ( mResumable ) {
+         Mp4Muxer muxer = new Mp4Muxer( path, Mp4Writer.MODE_FRAGMENTED );
+         if ( mResumeTimeNs > 0 ) {
+            try {
+               muxer.getWriter().resume( mResumeTimeNs / 1000 );
+            } catch ( IOException e ) {
+               throw new RuntimeException( "Resuming " + path + " failed", e );
+            }
+         }
+         rendition.mMuxer = muxer;
+      } else {
+         rendition.mMuxer = new Mp4Muxer( path, mMp4Mode );
       }
    }
    
    private void resampleVideo() {
 
-      setupEncoder();
-      setupMuxer();
+      if ( mTargetFileSize > 0 ) {
+         analyzeComplexity();
+      }
 
+      mMetrics.reset();
+
+      mEncoderPresentationTimeUs = 0;
+      mClipOutputStartNs = 0;
+      mLastFrameTimeNs = -1;
+      mProgress = 0;
+      mTotalDurationMs = 0;
       for ( SamplerClip clip : mClips ) {
-         feedClipToEncoder( clip );
+         mTotalDurationMs += getClipDurationMs( clip );
+      }
+      mNextOutputFrameTimeNs = 0;
+      mDroppedFrameCount = 0;
+      mResumeTimeNs = 0;
+
+      int firstClip = 0;
+      long resumeClipOffsetUs = -1;
+
+      if ( mResumable ) {
+         if ( mUseMediaMuxer || mOutputUri == null || mSegmenter != null ) {
+            throw new IllegalStateException( "Resuming needs an mp4 output written with Mp4Writer and no HLS output" );
+         }
+
+         mClipJournal = new File( mOutputUri.toString() + ".clips" );
+
+         long[] resumePoint = findResumePoint();
+         if ( resumePoint != null ) {
+            firstClip = (int) resumePoint[0];
+            mClipOutputStartNs = resumePoint[1] * 1000;
+            mEncoderPresentationTimeUs = mClipOutputStartNs;
+            resumeClipOffsetUs = resumePoint[2];
+            mResumeTimeNs = resumePoint[3] * 1000;
+            mNextOutputFrameTimeNs = mResumeTimeNs;
+            Log.d( TAG, "Resuming clip " + firstClip + " " + resumeClipOffsetUs + " us in, output time " + resumePoint[3] + " us" );
+         }
+
+         // Started again from the clip being resumed.
+         mClipJournal.delete();
+      }
+
+      boolean finished = false;
+
+      try {
+         setupRenditions();
+
+         mCompletedClipsUs = 0;
+         for ( int i = 0; i < firstClip; i++ ) {
+            mCompletedClipsUs += getClipDurationMs( mClips.get( i ) ) * 1000;
+         }
+         mProcessedUs = mCompletedClipsUs + Math.max( 0, resumeClipOffsetUs );
+         mStartProcessedUs = mProcessedUs;
+         mFrameCount = 0;
+         mLastReportFrameCount = 0;
+         mStartTimeNs = System.nanoTime();
+         mLastReportTimeNs = mStartTimeNs;
+
+         for ( int i = firstClip; i < mClips.size(); i++ ) {
+            checkCancelled();
+            if ( mResumable ) {
+               appendToClipJournal( i, mClipOutputStartNs / 1000 );
+            }
+            feedClipToEncoder( mClips.get( i ), i == firstClip ? resumeClipOffsetUs : -1 );
+
+            // The next clip starts a frame after this one's last.
+            if ( mLastFrameTimeNs >= mClipOutputStartNs ) {
+               mClipOutputStartNs = mLastFrameTimeNs + 1000000000L / mEncoderSettings.getFrameRate();
+            }
+
+            mCompletedClipsUs += getClipDurationMs( mClips.get( i ) ) * 1000;
+            mProcessedUs = mCompletedClipsUs;
+         }
+
+         for ( Rendition rendition : mRenditions ) {
+            rendition.mEncoderQueue.signalEndOfInputStream();
+         }
+
+         finished = true;
+      } finally {
+         releaseOutputResources( finished );
+         mMetrics.writeSnapshot();
+         mTracer.dumpQuietly( mTraceFile );
       }
 
-      mEncoder.signalEndOfInputStream();
+      mProgress = 1;
+      reportProgress( true );
 
-      releaseOutputResources();
+      if ( mResumable ) {
+         mClipJournal.delete();
+      }
    }
 
-   private void feedClipToEncoder( SamplerClip clip ) {
+   private long getClipDurationMs( SamplerClip clip ) {
+      long endTime = clip.getEndTime() != -1 ? clip.getEndTime() : clip.getVideoDuration();
+      return endTime - Math.max( 0, clip.getStartTime() );
+   }
+
+   /**
+    * Calls the progress listener when the interval has passed since the last call, or right away when forced.
+    */
+   private void reportProgress( boolean force ) {
+      if ( mProgressListener == null ) {
+         return;
+      }
+
+      long now = System.nanoTime();
+      if ( !force && now - mLastReportTimeNs < mProgressIntervalNs ) {
+         return;
+      }
+
+      long sinceLastNs = now - mLastReportTimeNs;
+      long sinceStartNs = now - mStartTimeNs;
+      float instantFps = sinceLastNs > 0 ? ( mFrameCount - mLastReportFrameCount ) * 1000000000f / sinceLastNs : 0;
+      float averageFps = sinceStartNs > 0 ? mFrameCount * 1000000000f / sinceStartNs : 0;
 
-      mLastSampleTime = 0;
+      long totalUs = mTotalDurationMs * 1000;
+      long doneUs = mProcessedUs - mStartProcessedUs;
+      long etaMs = -1;
+      if ( doneUs > 0 ) {
+         etaMs = (long) ( Math.max( 0, totalUs - mProcessedUs ) * ( sinceStartNs / 1000000.0 ) / doneUs );
+      }
+
+      mLastReportTimeNs = now;
+      mLastReportFrameCount = mFrameCount;
+
+      mProgressListener.onProgress( mProcessedUs, totalUs, instantFps, averageFps, etaMs );
+   }
+
+   /**
+    * Works out where an interrupted run of this job stopped: the earliest end of the fragments kept in the outputs,
+    * and the clip that was playing then according to the journal. Returns { clip index, output time the clip started
+    * at, how far into the clip to seek, output time to resume at }, or null to start over.
+    */
+   private long[] findResumePoint() {
+      long resumeTimeUs = Long.MAX_VALUE;
+      try {
+         resumeTimeUs = Math.min( resumeTimeUs, Mp4Writer.findResumeTimeUs( new File( mOutputUri.toString() ) ) );
+         for ( Rendition rendition : mExtraRenditions ) {
+            if ( rendition.getOutputUri() != null ) {
+               resumeTimeUs = Math.min( resumeTimeUs, Mp4Writer.findResumeTimeUs( new File( rendition.getOutputUri().toString() ) ) );
+            }
+         }
+      } catch ( IOException e ) {
+         Log.w( TAG, "Could not read the previous output, starting over", e );
+         return null;
+      }
+
+      if ( resumeTimeUs <= 0 || !mClipJournal.exists() ) {
+         return null;
+      }
+
+      long[] resumePoint = null;
+
+      try {
+         BufferedReader reader = new BufferedReader( new FileReader( mClipJournal ) );
+         try {
+            String line;
+            while ( ( line = reader.readLine() ) != null ) {
+               String[] fields = line.split( " " );
+               if ( fields.length != 2 ) {
+                  break;
+               }
+               int clipIndex = Integer.parseInt( fields[0] );
+               long clipStartUs = Long.parseLong( fields[1] );
+               if ( clipStartUs > resumeTimeUs || clipIndex >= mClips.size() ) {
+                  break;
+               }
+               resumePoint = new long[] { clipIndex, clipStartUs, resumeTimeUs - clipStartUs, resumeTimeUs };
+            }
+         } finally {
+            reader.close();
+         }
+      } catch ( IOException e ) {
+         Log.w( TAG, "Could not read the clip journal, starting over", e );
+         return null;
+      } catch ( NumberFormatException e ) {
+         Log.w( TAG, "Clip journal is damaged, starting over", e );
+         return null;
+      }
+
+      return resumePoint;
+   }
+
+   /**
+    * Notes the output time a clip starts at, written through right away so it survives the process.
+    */
+   private void appendToClipJournal( int clipIndex, long outputTimeUs ) {
+      try {
+         Writer writer = new FileWriter( mClipJournal, true );
+         try {
+            writer.write( clipIndex + " " + outputTimeUs + "\n" );
+         } finally {
+            writer.close();
+         }
+      } catch ( IOException e ) {
+         throw new RuntimeException( "Writing the clip journal failed", e );
+      }
+   }
+
+   private void feedClipToEncoder( SamplerClip clip, long resumeOffsetUs ) {
 
       MediaCodec decoder = null;
 
@@ -225,20 +812,28 @@ public class VideoResampler {
          extractor.seekTo( clip.getStartTime() * 1000, MediaExtractor.SEEK_TO_PREVIOUS_SYNC );
          clip.setStartTime( extractor.getSampleTime() / 1000 );
       }
+
+      if ( resumeOffsetUs >= 0 ) {
+         // Frames between the key frame and the resume time are decoded but not encoded again.
+         extractor.seekTo( Math.max( 0, clip.getStartTime() ) * 1000 + resumeOffsetUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC );
+      }
       
       try {
          decoder = MediaCodec.createDecoderByType( MediaHelper.MIME_TYPE_AVC );
+         mRenditions.get( 0 ).mInputSurface.makeCurrent();
          mOutputSurface = new OutputSurface();
 
          decoder.configure( clipFormat, mOutputSurface.getSurface(), null, 0 );
          decoder.start();
+         mDecodeLatency.clear();
 
-         resampleVideo( extractor, decoder, clip );
+         resampleVideo( extractor, new MediaCodecQueue( decoder ), clip );
 
       } finally {
 
          if ( mOutputSurface != null ) {
             mOutputSurface.release();
+            mOutputSurface = null;
          }
          if ( decoder != null ) {
             decoder.stop();
@@ -282,27 +877,174 @@ public class VideoResampler {
       return -1;
    }
 
-   private void releaseOutputResources() {
+   /**
+    * Decides whether the frame at the given output time (ns) is kept, to reach the output frame rate. A quarter frame of
+    * slack keeps sources that are only slightly faster, e.g. 30 fps into 29.97, from losing frames.
+    */
+   private boolean isOutputFrameDue( long timeNs ) {
+      long intervalNs = 1000000000L / mEncoderSettings.getFrameRate();
+
+      if ( timeNs + intervalNs / 4 < mNextOutputFrameTimeNs ) {
+         mDroppedFrameCount++;
+         mFramesDropped.incrementAndGet();
+         return false;
+      }
+
+      mNextOutputFrameTimeNs += intervalNs;
+      if ( mNextOutputFrameTimeNs < timeNs ) {
+         // A gap in the source, restart the cadence from here.
+         mNextOutputFrameTimeNs = timeNs + intervalNs;
+      }
+      return true;
+   }
+
+   /**
+    * Asks the encoder for a key frame when the frame about to be submitted starts a new segment or fragment, so they
+    * come out close to the requested duration.
+    */
+   @TargetApi( Build.VERSION_CODES.KITKAT )
+   private void requestSyncFrameIfDue( Rendition rendition, long frameTimeUs ) {
+      if ( frameTimeUs < rendition.mNextSyncRequestUs ) {
+         return;
+      }
 
-      if ( mInputSurface != null ) {
-         mInputSurface.release();
+      while ( rendition.mNextSyncRequestUs <= frameTimeUs ) {
+         rendition.mNextSyncRequestUs += rendition.mSyncIntervalUs;
       }
 
-      if ( mEncoder != null ) {
-         mEncoder.stop();
-         mEncoder.release();
+      if ( Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT ) {
+         if ( rendition.mSyncRequest == null ) {
+            rendition.mSyncRequest = new Bundle();
+            rendition.mSyncRequest.putInt( MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0 );
+         }
+         rendition.mEncoder.setParameters( rendition.mSyncRequest );
       }
+   }
+
+   /**
+    * Releases the encoders, their surfaces and the muxers. The outputs are only completed when the job finished, after
+    * a failure or cancel they are closed as they are.
+    */
+   private void releaseOutputResources( boolean finished ) {
+
+      for ( Rendition rendition : mRenditions ) {
+         if ( rendition.mInputSurface != null ) {
+            rendition.mInputSurface.release();
+            rendition.mInputSurface = null;
+         }
+
+         if ( rendition.mEncoder != null ) {
+            rendition.mEncoder.stop();
+            rendition.mEncoder.release();
+            rendition.mEncoder = null;
+            rendition.mEncoderQueue = null;
+         }
+
+         if ( rendition.mMuxer != null ) {
+            if ( finished && rendition.mMuxerStarted ) {
+               rendition.mMuxer.stop();
+            }
+            rendition.mMuxer.release();
+            rendition.mMuxer = null;
+            rendition.mMuxerStarted = false;
+         }
+
+         if ( rendition.mSegmenter != null ) {
+            try {
+               if ( finished ) {
+                  rendition.mSegmenter.finish();
+               } else {
+                  rendition.mSegmenter.abort();
+               }
+            } catch ( IOException e ) {
+               throw new RuntimeException( "Finishing the HLS playlist failed", e );
+            }
+         }
+      }
+   }
+
+   /**
+    * Takes one buffer of output from the rendition's encoder to its muxer. Returns the dequeue status,
+    * INFO_TRY_AGAIN_LATER when there was nothing to take.
+    */
+   int drainEncoder( Rendition rendition ) {
+      MediaCodec.BufferInfo info = rendition.mBufferInfo;
+
+      int encoderStatus = rendition.mEncoderQueue.dequeueOutputBuffer( info, TIMEOUT_USEC );
+      if ( encoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER ) {
+         // no output available yet
+         mTracer.instant( EventTracer.ENCODER_OUTPUT_UNAVAILABLE );
+      } else if ( encoderStatus == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED ) {
+         rendition.mEncoderOutputBuffers = rendition.mEncoderQueue.getOutputBuffers();
+         mTracer.instant( EventTracer.ENCODER_BUFFERS_CHANGED );
+      } else if ( encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED ) {
+
+         MediaFormat newFormat = rendition.mEncoderQueue.getOutputFormat();
+
+         if ( rendition.mMuxer != null ) {
+            rendition.mTrackIndex = rendition.mMuxer.addTrack( newFormat );
+            rendition.mMuxer.start();
+            rendition.mMuxerStarted = true;
+         }
+
+         if ( rendition.mSegmenter != null ) {
+            rendition.mSegmenter.setOutputFormat( newFormat );
+         }
+         if ( VERBOSE )
+            Log.d( TAG, "encoder output format changed: " + newFormat );
+      } else if ( encoderStatus < 0 ) {
+         // fail( "unexpected result from encoder.dequeueOutputBuffer: " + encoderStatus );
+      } else { // encoderStatus >= 0
+         ByteBuffer encodedData = rendition.mEncoderOutputBuffers[encoderStatus];
+         if ( encodedData == null ) {
+            // fail( "encoderOutputBuffer " + encoderStatus + " was null" );
+         }
+         // Write the data to the output "file".
+         if ( info.size != 0 ) {
+            encodedData.position( info.offset );
+            encodedData.limit( info.offset + info.size );
+
+            if ( ( info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG ) == 0 ) {
+               rendition.mEncodeLatency.frameOut( info.presentationTimeUs );
+               mFramesEncoded.incrementAndGet();
+            }
+            mBytesWritten.addAndGet( info.size );
+
+            long muxStartNs = System.nanoTime();
+            mTracer.begin( EventTracer.MUX_SAMPLE, info.size );
+
+            if ( rendition.mMuxerStarted ) {
+               rendition.mMuxer.writeSampleData( rendition.mTrackIndex, encodedData, info );
+            }
+
+            if ( rendition.mSegmenter != null ) {
+               encodedData.position( info.offset );
+               try {
+                  rendition.mSegmenter.writeSampleData( encodedData, info );
+               } catch ( IOException e ) {
+                  throw new RuntimeException( "Writing the HLS segment failed", e );
+               }
+            }
+
+            mMuxTime.recordSince( muxStartNs );
+            mTracer.end( EventTracer.MUX_SAMPLE );
+
+            if ( rendition.mBitRateController != null ) {
+               rendition.mBitRateController.onSampleWritten( info.size, info.presentationTimeUs );
+            }
 
-      if ( mMuxer != null ) {
-         mMuxer.stop();
-         mMuxer.release();
-         mMuxer = null;
+            mTracer.instant( EventTracer.ENCODER_OUTPUT, info.size );
+         }
+         rendition.mOutputDone = ( info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM ) != 0;
+
+         rendition.mEncoderQueue.releaseOutputBuffer( encoderStatus, false );
       }
+
+      return encoderStatus;
    }
 
-   private void resampleVideo( MediaExtractor extractor, MediaCodec decoder, SamplerClip clip ) {
+   private void resampleVideo( MediaExtractor extractor, CodecQueue decoder, SamplerClip clip ) {
       ByteBuffer[] decoderInputBuffers = decoder.getInputBuffers();
-      ByteBuffer[] encoderOutputBuffers = mEncoder.getOutputBuffers();
       MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
       int inputChunk = 0;
       int outputCount = 0;
@@ -320,8 +1062,8 @@ public class VideoResampler {
       boolean decoderDone = false;
       
       while ( !outputDone ) {
-         if ( VERBOSE )
-            Log.d( TAG, "edit loop" );
+         checkCancelled();
+         mTracer.instant( EventTracer.EDIT_LOOP );
          // Feed more data to the decoder.
          if ( !inputDone ) {
             int inputBufIndex = decoder.dequeueInputBuffer( TIMEOUT_USEC );
@@ -330,29 +1072,32 @@ public class VideoResampler {
                   // End of stream -- send empty frame with EOS flag set.
                   decoder.queueInputBuffer( inputBufIndex, 0, 0, 0L, MediaCodec.BUFFER_FLAG_END_OF_STREAM );
                   inputDone = true;
-                  if ( VERBOSE )
-                     Log.d( TAG, "sent input EOS (with zero-length frame)" );
+                  mTracer.instant( EventTracer.DECODER_INPUT_EOS );
                } else {
                   // Copy a chunk of input to the decoder. The first chunk should have
                   // the BUFFER_FLAG_CODEC_CONFIG flag set.
                   ByteBuffer inputBuf = decoderInputBuffers[inputBufIndex];
                   inputBuf.clear();
 
+                  long extractStartNs = System.nanoTime();
                   int sampleSize = extractor.readSampleData( inputBuf, 0 );
+                  mExtractTime.recordSince( extractStartNs );
                   if ( sampleSize < 0 ) {
-                     Log.d( TAG, "InputBuffer BUFFER_FLAG_END_OF_STREAM" );
+                     mTracer.instant( EventTracer.DECODER_INPUT_EOS );
                      decoder.queueInputBuffer( inputBufIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM );
                   } else {
-                     Log.d( TAG, "InputBuffer ADVANCING" );
-                     decoder.queueInputBuffer( inputBufIndex, 0, sampleSize, extractor.getSampleTime(), 0 );
+                     mTracer.instant( EventTracer.DECODER_INPUT, sampleSize );
+                     long sampleTime = extractor.getSampleTime();
+                     mDecodeLatency.frameIn( sampleTime );
+                     decoder.queueInputBuffer( inputBufIndex, 0, sampleSize, sampleTime, 0 );
                      extractor.advance();
+                     mSamplesExtracted.incrementAndGet();
                   }
 
                   inputChunk++;
                }
             } else {
-               if ( VERBOSE )
-                  Log.d( TAG, "input buffer not available" );
+               mTracer.instant( EventTracer.DECODER_INPUT_UNAVAILABLE );
             }
          }
          
@@ -360,55 +1105,30 @@ public class VideoResampler {
          boolean decoderOutputAvailable = !decoderDone;
          boolean encoderOutputAvailable = true;
          while ( decoderOutputAvailable || encoderOutputAvailable ) {
-            // Start by draining any pending output from the encoder. It's important to
+            // Start by draining any pending output from the encoders. It's important to
             // do this before we try to stuff any more data in.
-            int encoderStatus = mEncoder.dequeueOutputBuffer( info, TIMEOUT_USEC );
-            if ( encoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER ) {
-               // no output available yet
-               if ( VERBOSE )
-                  Log.d( TAG, "no output from encoder available" );
-               encoderOutputAvailable = false;
-            } else if ( encoderStatus == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED ) {
-               encoderOutputBuffers = mEncoder.getOutputBuffers();
-               if ( VERBOSE )
-                  Log.d( TAG, "encoder output buffers changed" );
-            } else if ( encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED ) {
-
-               MediaFormat newFormat = mEncoder.getOutputFormat();
-
-               mTrackIndex = mMuxer.addTrack( newFormat );
-               mMuxer.start();
-               mMuxerStarted = true;
-               if ( VERBOSE )
-                  Log.d( TAG, "encoder output format changed: " + newFormat );
-            } else if ( encoderStatus < 0 ) {
-               // fail( "unexpected result from encoder.dequeueOutputBuffer: " + encoderStatus );
-            } else { // encoderStatus >= 0
-               ByteBuffer encodedData = encoderOutputBuffers[encoderStatus];
-               if ( encodedData == null ) {
-                  // fail( "encoderOutputBuffer " + encoderStatus + " was null" );
+            boolean encoderBusy = false;
+            outputDone = true;
+            for ( int i = 0; i < mRenditions.size(); i++ ) {
+               Rendition rendition = mRenditions.get( i );
+               int encoderStatus = drainEncoder( rendition );
+               if ( encoderStatus != MediaCodec.INFO_TRY_AGAIN_LATER ) {
+                  encoderBusy = true;
                }
-               // Write the data to the output "file".
-               if ( info.size != 0 ) {
-                  encodedData.position( info.offset );
-                  encodedData.limit( info.offset + info.size );
+               if ( i == 0 && encoderStatus >= 0 && rendition.mBufferInfo.size != 0 ) {
                   outputCount++;
-
-                  mMuxer.writeSampleData( mTrackIndex, encodedData, info );
-
-                  if ( VERBOSE )
-                     Log.d( TAG, "encoder output " + info.size + " bytes" );
                }
-               outputDone = ( info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM ) != 0;
-
-               mEncoder.releaseOutputBuffer( encoderStatus, false );
+               outputDone &= rendition.mOutputDone;
+            }
+            if ( !encoderBusy ) {
+               encoderOutputAvailable = false;
             }
 
             if ( outputDoneNextTimeWeCheck ) {
                outputDone = true;
             }
 
-            if ( encoderStatus != MediaCodec.INFO_TRY_AGAIN_LATER ) {
+            if ( encoderBusy ) {
                // Continue attempts to drain output.
                continue;
             }
@@ -419,13 +1139,11 @@ public class VideoResampler {
                int decoderStatus = decoder.dequeueOutputBuffer( info, TIMEOUT_USEC );
                if ( decoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER ) {
                   // no output available yet
-                  if ( VERBOSE )
-                     Log.d( TAG, "no output from decoder available" );
+                  mTracer.instant( EventTracer.DECODER_OUTPUT_UNAVAILABLE );
                   decoderOutputAvailable = false;
                } else if ( decoderStatus == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED ) {
                   // decoderOutputBuffers = decoder.getOutputBuffers();
-                  if ( VERBOSE )
-                     Log.d( TAG, "decoder output buffers changed (we don't care)" );
+                  mTracer.instant( EventTracer.DECODER_BUFFERS_CHANGED );
                } else if ( decoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED ) {
                   // expected before first buffer of data
                   MediaFormat newFormat = decoder.getOutputFormat();
@@ -434,11 +1152,42 @@ public class VideoResampler {
                } else if ( decoderStatus < 0 ) {
                   // fail( "unexpected result from decoder.dequeueOutputBuffer: " + decoderStatus );
                } else { // decoderStatus >= 0
-                  if ( VERBOSE )
-                     Log.d( TAG, "surface decoder given buffer " + decoderStatus + " (size=" + info.size + ")" );
+                  mTracer.instant( EventTracer.DECODER_OUTPUT, info.presentationTimeUs );
                   // The ByteBuffers are null references, but we still get a nonzero
                   // size for the decoded data.
                   boolean doRender = ( info.size != 0 );
+
+                  mDecodeLatency.frameOut( info.presentationTimeUs );
+
+                  if ( doRender ) {
+                     mFramesDecoded.incrementAndGet();
+
+                     // Each frame is placed by its own time from the clip start, not by the step from the frame
+                     // before, so B-frames and frames an open GOP shows before its key frame can't go back in time.
+                     long clipOffsetNs = ( info.presentationTimeUs - Math.max( 0, clip.getStartTime() ) * 1000 ) * 1000;
+
+                     mTracer.instant( EventTracer.FRAME_TIME, clipOffsetNs / ( 1000 * 1000 ) );
+
+                     if ( clipOffsetNs < 0 ) {
+                        // Before the clip start, only decoded for the frames after it.
+                        doRender = false;
+                     } else {
+                        mEncoderPresentationTimeUs = mClipOutputStartNs + clipOffsetNs;
+                        mLastFrameTimeNs = mEncoderPresentationTimeUs;
+
+                        // Frames above the output frame rate are never drawn, the encoder only sees the ones we keep.
+                        // Neither are the ones a resumed job already has.
+                        doRender = mEncoderPresentationTimeUs >= mResumeTimeNs && isOutputFrameDue( mEncoderPresentationTimeUs );
+                     }
+
+                     mFrameCount++;
+                     mProcessedUs = mCompletedClipsUs + Math.max( 0, info.presentationTimeUs - Math.max( 0, clip.getStartTime() ) * 1000 );
+                     if ( mTotalDurationMs > 0 ) {
+                        mProgress = Math.min( 1f, mProcessedUs / 1000f / mTotalDurationMs );
+                     }
+                     reportProgress( false );
+                  }
+
                   // As soon as we call releaseOutputBuffer, the buffer will be forwarded
                   // to SurfaceTexture to convert to a texture. The API doesn't
                   // guarantee that the texture will be available before the call
@@ -446,30 +1195,40 @@ public class VideoResampler {
                   // fire. If we don't wait, we risk rendering from the previous frame.
                   decoder.releaseOutputBuffer( decoderStatus, doRender );
                   if ( doRender ) {
-                     // This waits for the image and renders it after it arrives.
-                     if ( VERBOSE )
-                        Log.d( TAG, "awaiting frame" );
+                     // This waits for the image and renders it after it arrives. The texture belongs
+                     // to the main rendition's context.
+                     mRenditions.get( 0 ).mInputSurface.makeCurrent();
+                     long awaitStartNs = System.nanoTime();
+                     mTracer.begin( EventTracer.AWAIT_FRAME );
                      mOutputSurface.awaitNewImage();
-                     mOutputSurface.drawImage();
-                     // Send it to the encoder.
-                     
-                     long nSecs = info.presentationTimeUs * 1000;
-
-                     if ( clip.getStartTime() != -1 ) {
-                        nSecs = ( info.presentationTimeUs - ( clip.getStartTime() * 1000 ) ) * 1000;
+                     mTracer.end( EventTracer.AWAIT_FRAME );
+                     mAwaitImageTime.recordSince( awaitStartNs );
+
+                     // Draw the same texture into every encoder, each at its own size.
+                     for ( int i = 0; i < mRenditions.size(); i++ ) {
+                        Rendition rendition = mRenditions.get( i );
+                        InputSurface inputSurface = rendition.mInputSurface;
+                        if ( i > 0 ) {
+                           inputSurface.makeCurrent();
+                        }
+                        long drawStartNs = System.nanoTime();
+                        mTracer.begin( EventTracer.DRAW_FRAME, i );
+                        mOutputSurface.drawImage();
+                        mTracer.end( EventTracer.DRAW_FRAME );
+                        mDrawTime.recordSince( drawStartNs );
+
+                        if ( rendition.mSyncIntervalUs > 0 ) {
+                           requestSyncFrameIfDue( rendition, mEncoderPresentationTimeUs / 1000 );
+                        }
+
+                        long submitStartNs = System.nanoTime();
+                        rendition.mEncodeLatency.frameIn( mEncoderPresentationTimeUs / 1000 );
+                        inputSurface.setPresentationTime( mEncoderPresentationTimeUs );
+                        mTracer.begin( EventTracer.SWAP_BUFFERS, i );
+                        inputSurface.swapBuffers();
+                        mTracer.end( EventTracer.SWAP_BUFFERS );
+                        mSubmitTime.recordSince( submitStartNs );
                      }
-                     
-                     Log.d( "this", "Setting presentation time " + nSecs / ( 1000 * 1000 ) );
-                     nSecs = Math.max( 0, nSecs );
-                     
-                     mEncoderPresentationTimeUs += ( nSecs - mLastSampleTime );
-
-                     mLastSampleTime = nSecs;
-                     
-                     mInputSurface.setPresentationTime( mEncoderPresentationTimeUs );
-                     if ( VERBOSE )
-                        Log.d( TAG, "swapBuffers" );
-                     mInputSurface.swapBuffers();
                   }
                   if ( ( info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM ) != 0 ) {
                      // mEncoder.signalEndOfInputStream();
@@ -479,6 +1238,9 @@ public class VideoResampler {
             }
          }
       }
+      if ( VERBOSE )
+         Log.d( TAG, "dropped " + mDroppedFrameCount + " frames for the output frame rate so far" );
+
       if ( inputChunk != outputCount ) {
          // throw new RuntimeException( "frame lost: " + inputChunk + " in, " + outputCount + " out" );
       }
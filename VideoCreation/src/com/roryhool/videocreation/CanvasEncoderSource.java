@@ -0,0 +1,306 @@
+/**
+   Copyright (c) 2014 Rory Hool
+   
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+   
+       http://www.apache.org/licenses/LICENSE-2.0
+   
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ **/
+
+package com.roryhool.videocreation;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.opengl.GLES20;
+import android.opengl.GLUtils;
+import android.util.Log;
+
+import com.roryhool.videocreation.SurfaceEncoder.EncoderSource;
+import com.roryhool.videocreation.SurfaceEncoder.FrameChangeHint;
+import com.roryhool.videocreation.SurfaceEncoder.GLEncoderSource;
+
+/**
+ * Runs a Canvas {@link EncoderSource} on the GL encoder path. Each frame is drawn into a Bitmap in software, uploaded to
+ * a texture and drawn over the whole encoder surface. Slower than a real {@link GLEncoderSource}, but lets existing
+ * Canvas sources keep working unchanged.
+ */
+public class CanvasEncoderSource implements GLEncoderSource, FrameChangeHint {
+
+   private static final String TAG = "CanvasEncoderSource";
+
+   private static final int FLOAT_SIZE_BYTES = 4;
+   private static final int VERTICES_DATA_STRIDE_BYTES = 4 * FLOAT_SIZE_BYTES;
+   private static final int VERTICES_DATA_POS_OFFSET = 0;
+   private static final int VERTICES_DATA_UV_OFFSET = 2;
+
+   // Bitmap rows start at the top, so the top of the quad samples v = 0.
+   private final float[] mVerticesData = {
+         // X, Y, U, V
+         -1.0f, -1.0f, 0.f, 1.f, 1.0f, -1.0f, 1.f, 1.f, -1.0f, 1.0f, 0.f, 0.f, 1.0f, 1.0f, 1.f, 0.f, };
+
+   private static final String VERTEX_SHADER = "attribute vec4 aPosition;\n" + "attribute vec2 aTextureCoord;\n" + "varying vec2 vTextureCoord;\n" + "void main() {\n" + "  gl_Position = aPosition;\n" + "  vTextureCoord = aTextureCoord;\n" + "}\n";
+   private static final String FRAGMENT_SHADER = "precision mediump float;\n" + "varying vec2 vTextureCoord;\n" + "uniform sampler2D sTexture;\n" + "void main() {\n" + "  gl_FragColor = texture2D(sTexture, vTextureCoord);\n" + "}\n";
+
+   EncoderSource mSource;
+
+   int mFrameRate = SurfaceEncoder.DEFAULT_FRAME_RATE;
+
+   Bitmap mBitmap;
+
+   Canvas mCanvas;
+
+   private FloatBuffer mVertices;
+
+   private int mProgram;
+   private int mTextureID;
+   private int maPositionHandle;
+   private int maTextureHandle;
+
+   private boolean mTextureAllocated;
+
+   // With content hashing on, a frame whose pixels hash like the previously uploaded one is not uploaded again.
+   boolean mContentHashing = false;
+
+   boolean mHasUploadedFrame = false;
+
+   long mLastHash;
+
+   boolean mDuplicateFrame = false;
+
+   int[] mHashRow;
+
+   public CanvasEncoderSource( EncoderSource source ) {
+      mSource = source;
+
+      mVertices = ByteBuffer.allocateDirect( mVerticesData.length * FLOAT_SIZE_BYTES ).order( ByteOrder.nativeOrder() ).asFloatBuffer();
+      mVertices.put( mVerticesData ).position( 0 );
+   }
+
+   public EncoderSource getCanvasSource() {
+      return mSource;
+   }
+
+   /**
+    * Frame rate the encoder runs at, set by SurfaceEncoder before the surface is created.
+    */
+   void setFrameRate( int frameRate ) {
+      mFrameRate = frameRate;
+   }
+
+   public boolean hasFrameChangeHint() {
+      return mSource instanceof FrameChangeHint;
+   }
+
+   @Override
+   public boolean hasFrameChanged( long previousTime, long time ) {
+      if ( mSource instanceof FrameChangeHint ) {
+         return ( (FrameChangeHint) mSource ).hasFrameChanged( previousTime, time );
+      }
+      return true;
+   }
+
+   public void setContentHashing( boolean contentHashing ) {
+      mContentHashing = contentHashing;
+   }
+
+   /**
+    * True when content hashing found the last rendered frame identical to the one before it.
+    */
+   public boolean isDuplicateFrame() {
+      return mDuplicateFrame;
+   }
+
+   @Override
+   public void onSurfaceCreated() {
+      mBitmap = Bitmap.createBitmap( mSource.getWidth(), mSource.getHeight(), Bitmap.Config.ARGB_8888 );
+      mCanvas = new Canvas( mBitmap );
+
+      mProgram = createProgram( VERTEX_SHADER, FRAGMENT_SHADER );
+      if ( mProgram == 0 ) {
+         throw new RuntimeException( "failed creating program" );
+      }
+      maPositionHandle = GLES20.glGetAttribLocation( mProgram, "aPosition" );
+      checkGlError( "glGetAttribLocation aPosition" );
+      maTextureHandle = GLES20.glGetAttribLocation( mProgram, "aTextureCoord" );
+      checkGlError( "glGetAttribLocation aTextureCoord" );
+
+      int[] textures = new int[1];
+      GLES20.glGenTextures( 1, textures, 0 );
+      mTextureID = textures[0];
+      GLES20.glBindTexture( GLES20.GL_TEXTURE_2D, mTextureID );
+      GLES20.glTexParameteri( GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST );
+      GLES20.glTexParameteri( GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_NEAREST );
+      GLES20.glTexParameteri( GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE );
+      GLES20.glTexParameteri( GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE );
+      checkGlError( "glTexParameter" );
+      mTextureAllocated = false;
+
+      GLES20.glViewport( 0, 0, mSource.getWidth(), mSource.getHeight() );
+   }
+
+   @Override
+   public void renderFrame( long time, long interval ) {
+      mBitmap.eraseColor( 0 );
+      mSource.renderFrame( mCanvas, time, interval );
+
+      long hash = 0;
+      if ( mContentHashing ) {
+         if ( mHashRow == null ) {
+            mHashRow = new int[mBitmap.getWidth()];
+         }
+         hash = hashBitmap( mBitmap, mHashRow );
+      }
+
+      drawBitmap( mBitmap, hash );
+   }
+
+   /**
+    * Uploads the bitmap into the texture and draws it over the whole surface. The bitmap has to be the size of the
+    * source. With content hashing on, the upload is skipped when the hash matches the last uploaded frame, the texture
+    * still holds those pixels.
+    */
+   void drawBitmap( Bitmap bitmap, long hash ) {
+      mDuplicateFrame = mContentHashing && mHasUploadedFrame && hash == mLastHash;
+      if ( !mDuplicateFrame ) {
+         uploadBitmap( bitmap );
+         mLastHash = hash;
+         mHasUploadedFrame = true;
+      }
+
+      drawTexture();
+   }
+
+   private void uploadBitmap( Bitmap bitmap ) {
+      GLES20.glBindTexture( GLES20.GL_TEXTURE_2D, mTextureID );
+      if ( mTextureAllocated ) {
+         GLUtils.texSubImage2D( GLES20.GL_TEXTURE_2D, 0, 0, 0, bitmap );
+      } else {
+         GLUtils.texImage2D( GLES20.GL_TEXTURE_2D, 0, bitmap, 0 );
+         mTextureAllocated = true;
+      }
+      checkGlError( "texImage2D" );
+   }
+
+   private void drawTexture() {
+      GLES20.glBindTexture( GLES20.GL_TEXTURE_2D, mTextureID );
+      GLES20.glUseProgram( mProgram );
+      checkGlError( "glUseProgram" );
+
+      mVertices.position( VERTICES_DATA_POS_OFFSET );
+      GLES20.glVertexAttribPointer( maPositionHandle, 2, GLES20.GL_FLOAT, false, VERTICES_DATA_STRIDE_BYTES, mVertices );
+      GLES20.glEnableVertexAttribArray( maPositionHandle );
+      mVertices.position( VERTICES_DATA_UV_OFFSET );
+      GLES20.glVertexAttribPointer( maTextureHandle, 2, GLES20.GL_FLOAT, false, VERTICES_DATA_STRIDE_BYTES, mVertices );
+      GLES20.glEnableVertexAttribArray( maTextureHandle );
+
+      GLES20.glDrawArrays( GLES20.GL_TRIANGLE_STRIP, 0, 4 );
+      checkGlError( "glDrawArrays" );
+   }
+
+   @Override
+   public void onSurfaceDestroyed() {
+      GLES20.glDeleteTextures( 1, new int[] { mTextureID }, 0 );
+      GLES20.glDeleteProgram( mProgram );
+
+      if ( mBitmap != null ) {
+         mBitmap.recycle();
+         mBitmap = null;
+         mCanvas = null;
+      }
+   }
+
+   @Override
+   public int getWidth() {
+      return mSource.getWidth();
+   }
+
+   @Override
+   public int getHeight() {
+      return mSource.getHeight();
+   }
+
+   @Override
+   public long getDuration() {
+      return mSource.getDuration();
+   }
+
+   /**
+    * 64 bit FNV-1a over the pixels, a row at a time. row has to be at least as wide as the bitmap.
+    */
+   static long hashBitmap( Bitmap bitmap, int[] row ) {
+      int width = bitmap.getWidth();
+      int height = bitmap.getHeight();
+
+      long hash = 0xcbf29ce484222325L;
+      for ( int y = 0; y < height; y++ ) {
+         bitmap.getPixels( row, 0, width, 0, y, width, 1 );
+         for ( int x = 0; x < width; x++ ) {
+            hash ^= row[x];
+            hash *= 0x100000001b3L;
+         }
+      }
+      return hash;
+   }
+
+   private int loadShader( int shaderType, String source ) {
+      int shader = GLES20.glCreateShader( shaderType );
+      checkGlError( "glCreateShader type=" + shaderType );
+      GLES20.glShaderSource( shader, source );
+      GLES20.glCompileShader( shader );
+      int[] compiled = new int[1];
+      GLES20.glGetShaderiv( shader, GLES20.GL_COMPILE_STATUS, compiled, 0 );
+      if ( compiled[0] == 0 ) {
+         Log.e( TAG, "Could not compile shader " + shaderType + ":" );
+         Log.e( TAG, " " + GLES20.glGetShaderInfoLog( shader ) );
+         GLES20.glDeleteShader( shader );
+         shader = 0;
+      }
+      return shader;
+   }
+
+   private int createProgram( String vertexSource, String fragmentSource ) {
+      int vertexShader = loadShader( GLES20.GL_VERTEX_SHADER, vertexSource );
+      if ( vertexShader == 0 ) {
+         return 0;
+      }
+      int pixelShader = loadShader( GLES20.GL_FRAGMENT_SHADER, fragmentSource );
+      if ( pixelShader == 0 ) {
+         return 0;
+      }
+      int program = GLES20.glCreateProgram();
+      checkGlError( "glCreateProgram" );
+      GLES20.glAttachShader( program, vertexShader );
+      checkGlError( "glAttachShader" );
+      GLES20.glAttachShader( program, pixelShader );
+      checkGlError( "glAttachShader" );
+      GLES20.glLinkProgram( program );
+      int[] linkStatus = new int[1];
+      GLES20.glGetProgramiv( program, GLES20.GL_LINK_STATUS, linkStatus, 0 );
+      if ( linkStatus[0] != GLES20.GL_TRUE ) {
+         Log.e( TAG, "Could not link program: " );
+         Log.e( TAG, GLES20.glGetProgramInfoLog( program ) );
+         GLES20.glDeleteProgram( program );
+         program = 0;
+      }
+      return program;
+   }
+
+   private void checkGlError( String op ) {
+      int error;
+      while ( ( error = GLES20.glGetError() ) != GLES20.GL_NO_ERROR ) {
+         Log.e( TAG, op + ": glError " + error );
+         throw new RuntimeException( op + ": glError " + error );
+      }
+   }
+}
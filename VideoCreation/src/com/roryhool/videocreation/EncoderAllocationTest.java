@@ -0,0 +1,74 @@
+/**
+   Copyright (c) 2014 Rory Hool
+   
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+   
+       http://www.apache.org/licenses/LICENSE-2.0
+   
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ **/
+
+package com.roryhool.videocreation;
+
+import java.io.File;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.os.Build;
+
+import com.roryhool.commonvideolibrary.DeviceAllocationTest;
+import com.roryhool.commonvideolibrary.FakeCodecQueue;
+import com.roryhool.commonvideolibrary.Mp4Muxer;
+import com.roryhool.commonvideolibrary.Mp4Writer;
+
+/**
+ * {@link DeviceAllocationTest} plus the drain loop of {@link SurfaceEncoder}, fed by a {@link FakeCodecQueue} as if
+ * frames were swapped into the input surface. SurfaceEncoder posts its result to the creating thread, run it on one
+ * with a Looper, e.g. a HandlerThread.
+ */
+@TargetApi( Build.VERSION_CODES.JELLY_BEAN_MR2 )
+public class EncoderAllocationTest extends DeviceAllocationTest {
+
+   @Override
+   protected void runChecks( File directory ) throws Exception {
+      super.runChecks( directory );
+      checkSurfaceEncoder( directory );
+   }
+
+   private void checkSurfaceEncoder( File directory ) throws Exception {
+      File output = new File( directory, "allocation_test.mp4" );
+
+      final SurfaceEncoder surfaceEncoder = new SurfaceEncoder();
+      final FakeCodecQueue encoder = new FakeCodecQueue( createOutputFormat( 1280, 720 ), FRAME_SIZE, FRAME_SIZE, SYNC_INTERVAL );
+
+      surfaceEncoder.mEncoderQueue = encoder;
+      surfaceEncoder.mEncoderOutputBuffers = encoder.getOutputBuffers();
+      surfaceEncoder.mBufferInfo = new MediaCodec.BufferInfo();
+      surfaceEncoder.mMuxer = new Mp4Muxer( output.getPath(), Mp4Writer.MODE_FRAGMENTED );
+      surfaceEncoder.mTrackIndex = -1;
+      surfaceEncoder.mMuxerStarted = false;
+      try {
+         check( "SurfaceEncoder.drainEncoder", ENCODE_LOOP_BUDGET, FRAMES, new Step() {
+            @Override
+            public void run( int frame ) {
+               long timeUs = frame * FRAME_DURATION_US;
+               surfaceEncoder.mEncodeLatency.frameIn( timeUs );
+               encoder.queueSurfaceFrame( timeUs );
+               surfaceEncoder.drainEncoder( false );
+            }
+         } );
+
+         surfaceEncoder.drainEncoder( true );
+         surfaceEncoder.mMuxer.stop();
+      } finally {
+         surfaceEncoder.mMuxer.release();
+         output.delete();
+      }
+   }
+}
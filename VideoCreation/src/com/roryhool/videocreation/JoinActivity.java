@@ -23,18 +23,18 @@ import android.app.Activity;
 import android.content.Intent;
 import android.graphics.Bitmap;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.view.View;
 import android.widget.Button;
 import android.widget.ImageView;
+import android.widget.ProgressBar;
 import android.widget.TextView;
 
 import com.roryhool.commonvideolibrary.Intents;
 import com.roryhool.commonvideolibrary.MediaHelper;
-import com.roryhool.commonvideolibrary.SamplerClip;
 import com.roryhool.commonvideolibrary.UriHelper;
-import com.roryhool.commonvideolibrary.VideoResampler;
+import com.roryhool.commonvideolibrary.VideoJob;
+import com.roryhool.commonvideolibrary.VideoJobTracker;
 
 public class JoinActivity extends Activity {
 
@@ -54,6 +54,8 @@ public class JoinActivity extends Activity {
    Uri mUri1;
    Uri mUri2;
 
+   VideoJobTracker mJobTracker;
+
    @Override
    public void onCreate( Bundle savedInstanceState ) {
       super.onCreate( savedInstanceState );
@@ -68,12 +70,46 @@ public class JoinActivity extends Activity {
       
       mJoinButton = (Button) findViewById( R.id.join_button );
 
+      mJobTracker = new VideoJobTracker( this, (ProgressBar) findViewById( R.id.job_progress ), (TextView) findViewById( R.id.job_status ) );
+      mJobTracker.onCreate( savedInstanceState );
+
       loadUri1( getIntent().getData() );
    }
 
+   @Override
+   protected void onResume() {
+      super.onResume();
+
+      mJobTracker.onResume();
+   }
+
+   @Override
+   protected void onPause() {
+      mJobTracker.onPause();
+
+      super.onPause();
+   }
+
+   @Override
+   protected void onSaveInstanceState( Bundle outState ) {
+      super.onSaveInstanceState( outState );
+
+      mJobTracker.onSaveInstanceState( outState );
+   }
+
    public void onJoinClicked( View view ) {
 
-      new JoinTask().execute( mUri1, mUri2 );
+      String pathWithoutExtension1 = mUri1.toString().replace( ".mp4", "" );
+
+      String joinedFileName = String.format( Locale.US, "%s_joined_to_other.mp4", pathWithoutExtension1 );
+
+      VideoJob job = new VideoJob( Uri.parse( joinedFileName ) );
+      job.setTitle( "Join " + mVideo1Name.getText() + " and " + mVideo2Name.getText() );
+      job.addClip( mUri1 );
+      job.addClip( mUri2 );
+      job.setPriority( VideoJob.PRIORITY_HIGH );
+
+      mJobTracker.submit( job );
    }
 
    public void onSelectClicked1( View view ) {
@@ -126,49 +162,4 @@ public class JoinActivity extends Activity {
       mJoinButton.setEnabled( true );
    }
 
-   class JoinTask extends AsyncTask<Uri, Void, Uri> {
-
-      @Override
-      protected Uri doInBackground( Uri... uris ) {
-
-         if ( uris.length < 2 ) {
-            return null;
-         }
-
-         Uri uri1 = uris[0];
-         Uri uri2 = uris[1];
-
-         VideoResampler resampler = new VideoResampler();
-         SamplerClip clip1 = new SamplerClip( uri1 );
-         resampler.addSamplerClip( clip1 );
-         SamplerClip clip2 = new SamplerClip( uri2 );
-         resampler.addSamplerClip( clip2 );
-
-         String pathWithoutExtension1 = uri1.toString().replace( ".mp4", "" );
-         String pathWithoutExtension2 = uri2.toString().replace( ".mp4", "" );
-
-         String resampledFileName = String.format( Locale.US, "%s_joined_to_other.mp4", pathWithoutExtension1 );
-
-         Uri outputUri = Uri.parse( resampledFileName );
-
-         resampler.setOutput( outputUri );
-
-         try {
-            resampler.start();
-         } catch ( Throwable e ) {
-            e.printStackTrace();
-         }
-
-         return outputUri;
-      }
-
-      @Override
-      protected void onPostExecute( Uri outputUri ) {
-         Intent sendIntent = new Intent();
-         sendIntent.setAction( Intent.ACTION_VIEW );
-         sendIntent.setDataAndType( outputUri, "video/mp4" );
-         startActivity( sendIntent );
-      }
-   }
-
 }
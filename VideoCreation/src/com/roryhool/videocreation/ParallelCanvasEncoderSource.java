@@ -0,0 +1,263 @@
+/**
+   Copyright (c) 2014 Rory Hool
+   
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+   
+       http://www.apache.org/licenses/LICENSE-2.0
+   
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ **/
+
+package com.roryhool.videocreation;
+
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.roryhool.videocreation.SurfaceEncoder.EncoderSource;
+
+/**
+ * Renders a Canvas {@link EncoderSource} ahead of the encoder on several worker threads. Frames are pure functions of
+ * their time, so each worker takes a free Bitmap from the pool, claims the next frame and draws it, while the encoder
+ * thread only uploads finished frames in order. The source's renderFrame is called from several threads at once and
+ * must be safe for that.
+ */
+public class ParallelCanvasEncoderSource extends CanvasEncoderSource {
+
+   private static final String TAG = "ParallelCanvasEncoderSource";
+
+   private static final long STATS_INTERVAL_MS = 1000;
+
+   int mWorkerCount;
+
+   int mPoolSize;
+
+   ArrayList<RenderWorker> mWorkers = new ArrayList<RenderWorker>();
+
+   ArrayBlockingQueue<Bitmap> mFreeBitmaps;
+
+   // Rendered frames waiting for the encoder, slot is frame index modulo the pool size. A frame can only be claimed
+   // while holding a free bitmap, so no more than mPoolSize frames are ever in flight and slots never collide.
+   Bitmap[] mRenderedBitmaps;
+   int[] mRenderedFrames;
+   long[] mRenderedHashes;
+
+   AtomicInteger mNextFrameToRender = new AtomicInteger();
+
+   int mNextFrameToEncode = 0;
+
+   int mRenderedCount = 0;
+
+   volatile boolean mStopped = false;
+
+   long mStatsStartMs;
+
+   int mStatsFrameCount;
+
+   float mFramesPerSecond;
+
+   public ParallelCanvasEncoderSource( EncoderSource source ) {
+      this( source, Math.max( 1, Runtime.getRuntime().availableProcessors() - 1 ) );
+   }
+
+   public ParallelCanvasEncoderSource( EncoderSource source, int workerCount ) {
+      this( source, workerCount, workerCount * 2 );
+   }
+
+   public ParallelCanvasEncoderSource( EncoderSource source, int workerCount, int poolSize ) {
+      super( source );
+      mWorkerCount = Math.max( 1, workerCount );
+      mPoolSize = Math.max( mWorkerCount, poolSize );
+   }
+
+   @Override
+   public void onSurfaceCreated() {
+      super.onSurfaceCreated();
+
+      mFreeBitmaps = new ArrayBlockingQueue<Bitmap>( mPoolSize );
+      for ( int i = 0; i < mPoolSize; i++ ) {
+         mFreeBitmaps.add( Bitmap.createBitmap( getWidth(), getHeight(), Bitmap.Config.ARGB_8888 ) );
+      }
+
+      mRenderedBitmaps = new Bitmap[mPoolSize];
+      mRenderedFrames = new int[mPoolSize];
+      mRenderedHashes = new long[mPoolSize];
+
+      mStatsStartMs = SystemClock.elapsedRealtime();
+
+      for ( int i = 0; i < mWorkerCount; i++ ) {
+         RenderWorker worker = new RenderWorker( i );
+         mWorkers.add( worker );
+         worker.start();
+      }
+   }
+
+   @Override
+   public void renderFrame( long time, long interval ) {
+      // Frames the encoder dropped as duplicates were rendered anyway, give their bitmaps back.
+      while ( SurfaceEncoder.computeFrameTimeMs( mNextFrameToEncode, mFrameRate ) < time ) {
+         mFreeBitmaps.add( takeRendered( mNextFrameToEncode ) );
+         mNextFrameToEncode++;
+      }
+
+      int frameIndex = mNextFrameToEncode;
+      if ( SurfaceEncoder.computeFrameTimeMs( frameIndex, mFrameRate ) != time ) {
+         // Not the frame sequence we rendered ahead, draw it here.
+         super.renderFrame( time, interval );
+         return;
+      }
+
+      int slot = frameIndex % mPoolSize;
+      Bitmap bitmap = takeRendered( frameIndex );
+
+      drawBitmap( bitmap, mRenderedHashes[slot] );
+      mFreeBitmaps.add( bitmap );
+      mNextFrameToEncode++;
+
+      updateStats();
+   }
+
+   private Bitmap takeRendered( int frameIndex ) {
+      int slot = frameIndex % mPoolSize;
+
+      synchronized ( this ) {
+         while ( mRenderedBitmaps[slot] == null || mRenderedFrames[slot] != frameIndex ) {
+            try {
+               wait();
+            } catch ( InterruptedException e ) {
+               throw new RuntimeException( "Interrupted waiting for frame " + frameIndex, e );
+            }
+         }
+         Bitmap bitmap = mRenderedBitmaps[slot];
+         mRenderedBitmaps[slot] = null;
+         mRenderedCount--;
+         return bitmap;
+      }
+   }
+
+   @Override
+   public void onSurfaceDestroyed() {
+      mStopped = true;
+      for ( RenderWorker worker : mWorkers ) {
+         worker.interrupt();
+      }
+      for ( RenderWorker worker : mWorkers ) {
+         try {
+            worker.join();
+         } catch ( InterruptedException e ) {
+            break;
+         }
+      }
+      mWorkers.clear();
+
+      for ( Bitmap bitmap : mFreeBitmaps ) {
+         bitmap.recycle();
+      }
+      mFreeBitmaps.clear();
+      for ( int i = 0; i < mRenderedBitmaps.length; i++ ) {
+         if ( mRenderedBitmaps[i] != null ) {
+            mRenderedBitmaps[i].recycle();
+            mRenderedBitmaps[i] = null;
+         }
+      }
+
+      super.onSurfaceDestroyed();
+   }
+
+   /**
+    * Frames per second handed to the encoder over the last stats interval.
+    */
+   public float getFramesPerSecond() {
+      return mFramesPerSecond;
+   }
+
+   /**
+    * Number of rendered frames waiting for the encoder. Staying close to the pool size means the encoder is the
+    * bottleneck, close to zero means the workers are.
+    */
+   public synchronized int getPoolOccupancy() {
+      return mRenderedCount;
+   }
+
+   public int getPoolSize() {
+      return mPoolSize;
+   }
+
+   private void updateStats() {
+      mStatsFrameCount++;
+
+      long now = SystemClock.elapsedRealtime();
+      long elapsed = now - mStatsStartMs;
+      if ( elapsed >= STATS_INTERVAL_MS ) {
+         mFramesPerSecond = mStatsFrameCount * 1000f / elapsed;
+         Log.d( TAG, String.format( Locale.US, "%.1f fps, pool %d/%d", mFramesPerSecond, getPoolOccupancy(), mPoolSize ) );
+         mStatsStartMs = now;
+         mStatsFrameCount = 0;
+      }
+   }
+
+   private void putRendered( int frameIndex, Bitmap bitmap, long hash ) {
+      int slot = frameIndex % mPoolSize;
+      synchronized ( this ) {
+         mRenderedBitmaps[slot] = bitmap;
+         mRenderedFrames[slot] = frameIndex;
+         mRenderedHashes[slot] = hash;
+         mRenderedCount++;
+         notifyAll();
+      }
+   }
+
+   private class RenderWorker extends Thread {
+
+      public RenderWorker( int index ) {
+         super( "RenderWorker-" + index );
+      }
+
+      int[] mHashRow;
+
+      @Override
+      public void run() {
+         while ( !mStopped ) {
+            Bitmap bitmap;
+            try {
+               bitmap = mFreeBitmaps.take();
+            } catch ( InterruptedException e ) {
+               return;
+            }
+
+            int frameIndex = mNextFrameToRender.getAndIncrement();
+            long time = SurfaceEncoder.computeFrameTimeMs( frameIndex, mFrameRate );
+            if ( time >= getDuration() ) {
+               mFreeBitmaps.add( bitmap );
+               return;
+            }
+
+            bitmap.eraseColor( 0 );
+            mSource.renderFrame( new Canvas( bitmap ), time, 1000 / mFrameRate );
+
+            // Hashing is part of the per frame work, so it is spread over the workers too.
+            long hash = 0;
+            if ( mContentHashing ) {
+               if ( mHashRow == null ) {
+                  mHashRow = new int[bitmap.getWidth()];
+               }
+               hash = hashBitmap( bitmap, mHashRow );
+            }
+
+            putRendered( frameIndex, bitmap, hash );
+         }
+      }
+   }
+}
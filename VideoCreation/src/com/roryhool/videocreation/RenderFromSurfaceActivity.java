@@ -16,6 +16,8 @@
 
 package com.roryhool.videocreation;
 
+import java.util.Random;
+
 import android.app.Activity;
 import android.content.Intent;
 import android.graphics.Canvas;
@@ -47,7 +49,8 @@ public class RenderFromSurfaceActivity extends Activity {
       mOutputUri = Uri.parse( Environment.getExternalStorageDirectory().getPath() + "/test.mp4" );
       SurfaceEncoder encoder = new SurfaceEncoder();
 
-      encoder.setEncoderSource( mEncoderSource );
+      // The source only depends on time, so frames can be drawn ahead on several threads.
+      encoder.setEncoderSource( new ParallelCanvasEncoderSource( mEncoderSource ) );
       encoder.addEncoderListener( mEncoderListener );
       encoder.setOutputUri( mOutputUri );
       encoder.start();
@@ -57,7 +60,9 @@ public class RenderFromSurfaceActivity extends Activity {
 
       @Override
       public void renderFrame( Canvas canvas, long time, long interval ) {
-         canvas.drawRGB( (int) ( Math.random() * 255 ), (int) ( Math.random() * 255 ), (int) ( Math.random() * 255 ) );
+         // A random colour seeded with the frame time, the same whichever thread draws the frame and when.
+         Random random = new Random( time );
+         canvas.drawRGB( random.nextInt( 256 ), random.nextInt( 256 ), random.nextInt( 256 ) );
       }
 
       @Override
@@ -16,21 +16,34 @@
 
 package com.roryhool.videocreation;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.graphics.Canvas;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
-import android.media.MediaMuxer;
 import android.net.Uri;
 import android.os.Handler;
 import android.os.Message;
 import android.util.Log;
 import android.view.Surface;
-import android.view.Surface.OutOfResourcesException;
+
+import com.roryhool.commonvideolibrary.AdaptiveBitRateController;
+import com.roryhool.commonvideolibrary.CodecQueue;
+import com.roryhool.commonvideolibrary.EncoderSettings;
+import com.roryhool.commonvideolibrary.EventTracer;
+import com.roryhool.commonvideolibrary.FrameLatencyTracker;
+import com.roryhool.commonvideolibrary.InputSurface;
+import com.roryhool.commonvideolibrary.LatencyHistogram;
+import com.roryhool.commonvideolibrary.MediaCodecQueue;
+import com.roryhool.commonvideolibrary.Mp4Muxer;
+import com.roryhool.commonvideolibrary.Mp4Writer;
+import com.roryhool.commonvideolibrary.Muxer;
+import com.roryhool.commonvideolibrary.PipelineMetrics;
 
 public class SurfaceEncoder {
 
@@ -46,7 +59,31 @@ public class SurfaceEncoder {
       public int getHeight();
       public long getDuration();
    }
+
+   /**
+    * A source that draws with OpenGL ES 2.0 straight into the encoder's input surface. All calls happen on the encoder
+    * thread with the EGL context current, the frame is sent to the encoder when renderFrame returns.
+    */
+   public interface GLEncoderSource {
+      public void onSurfaceCreated();
+      public void renderFrame( long time, long interval );
+      public void onSurfaceDestroyed();
+      public int getWidth();
+      public int getHeight();
+      public long getDuration();
+   }
    
+   /**
+    * Optional, implemented by a source that knows when its content changes. With duplicate frame dropping on, frames
+    * the source reports as unchanged are neither rendered nor encoded.
+    */
+   public interface FrameChangeHint {
+      /**
+       * Returns false when the frame at time looks exactly like the frame at previousTime.
+       */
+      public boolean hasFrameChanged( long previousTime, long time );
+   }
+
    public interface EncoderListener {
       public void encoderSucceeded();
       public void encoderFailed();
@@ -55,25 +92,46 @@ public class SurfaceEncoder {
    private static final String TAG = "Encoder";
 
    private static final String MIME_TYPE = "video/avc";
-   private static final int FRAME_RATE = 30;
-   private static final int IFRAME_INTERVAL = 1;
+   public static final int DEFAULT_BIT_RATE = 2000000;
+   public static final int DEFAULT_FRAME_RATE = 30;
+   public static final int DEFAULT_IFRAME_INTERVAL = 1;
+
+   // Even a static picture gets a frame this often, keeps seeking and players happy.
+   private static final long MAX_FRAME_GAP_MS = 1000;
 
    Uri                        mUri;
 
    int mWidth;
    int mHeight;
 
-   int mBitRate = 2000000;
+   EncoderSettings mSettings = new EncoderSettings( DEFAULT_BIT_RATE, DEFAULT_FRAME_RATE, DEFAULT_IFRAME_INTERVAL );
+
+   AdaptiveBitRateController mBitRateController;
+
+   boolean mDropDuplicateFrames = false;
+
+   int mMp4Mode = Mp4Writer.MODE_NORMAL;
+
+   boolean mResumable = false;
+
+   long mResumeTimeUs = 0;
 
    private MediaCodec            mEncoder;
    private Surface               mSurface;
-   private MediaMuxer            mMuxer;
-   private int                   mTrackIndex;
-   private boolean               mMuxerStarted;
+   private InputSurface          mInputSurface;
 
-   private MediaCodec.BufferInfo mBufferInfo;
+   // The loop's side of mEncoder, drainEncoder goes through it.
+   CodecQueue                    mEncoderQueue;
+   Muxer                         mMuxer;
+   int                           mTrackIndex;
+   boolean                       mMuxerStarted;
 
-   EncoderSource mSource;
+   MediaCodec.BufferInfo         mBufferInfo;
+
+   // Fetched once, getOutputBuffers makes a new array every call. Replaced when the encoder says they changed.
+   ByteBuffer[]                  mEncoderOutputBuffers;
+
+   GLEncoderSource mSource;
 
    EncoderThread                 mThread;
 
@@ -81,9 +139,26 @@ public class SurfaceEncoder {
 
    EncoderHandler                mHandler;
 
+   PipelineMetrics               mMetrics;
+
+   LatencyHistogram              mDrawTime;
+   LatencyHistogram              mSubmitTime;
+   LatencyHistogram              mMuxTime;
+
+   FrameLatencyTracker           mEncodeLatency;
+
+   AtomicLong                    mFramesEncoded;
+   AtomicLong                    mFramesDropped;
+   AtomicLong                    mBytesWritten;
+
+   EventTracer                   mTracer         = EventTracer.getInstance();
+
+   File                          mTraceFile;
+
    public SurfaceEncoder() {
       mHandler = new EncoderHandler( this );
       mThread = new EncoderThread();
+      setMetrics( new PipelineMetrics( TAG ) );
    }
 
    public void setOutputUri( Uri uri ) {
@@ -92,10 +167,82 @@ public class SurfaceEncoder {
       mThread.prepareEncoder();
    }
 
+   /**
+    * Bitrate, frame rate, key frame cadence and rate control of the output. Set before setOutputUri.
+    */
+   public void setEncoderSettings( EncoderSettings settings ) {
+      mSettings = new EncoderSettings( settings );
+   }
+
+   public EncoderSettings getEncoderSettings() {
+      return mSettings;
+   }
+
+   /**
+    * Sets a Canvas source. It is drawn in software and uploaded to the GPU every frame, use a {@link GLEncoderSource}
+    * when speed matters.
+    */
    public void setEncoderSource( EncoderSource source ) {
+      mSource = new CanvasEncoderSource( source );
+   }
+
+   public void setEncoderSource( GLEncoderSource source ) {
       mSource = source;
    }
 
+   /**
+    * Skips frames that look like the previous one and writes variable frame rate timestamps instead, the previous
+    * frame simply stays on screen longer. Uses the source's {@link FrameChangeHint} when it has one, Canvas sources
+    * without one are compared by a hash of their pixels.
+    */
+   public void setDropDuplicateFrames( boolean dropDuplicateFrames ) {
+      mDropDuplicateFrames = dropDuplicateFrames;
+   }
+
+   /**
+    * File layout of the output, one of the Mp4Writer modes. Set before setOutputUri.
+    */
+   public void setMp4Mode( int mode ) {
+      mMp4Mode = mode;
+   }
+
+   /**
+    * Writes a fragmented mp4 that plays up to the last fragment if the encoder dies, and continues such a file after
+    * its last complete fragment instead of starting over. Set before setOutputUri.
+    */
+   public void setResumable( boolean resumable ) {
+      mResumable = resumable;
+   }
+
+   /**
+    * Where the time spent rendering, submitting, encoding and muxing frames goes, a registry of its own unless set.
+    * Reset when encoding starts, its snapshot is written when encoding ends. Set before start.
+    */
+   public void setMetrics( PipelineMetrics metrics ) {
+      mMetrics = metrics;
+
+      mDrawTime = metrics.getHistogram( PipelineMetrics.STAGE_DRAW );
+      mSubmitTime = metrics.getHistogram( PipelineMetrics.STAGE_SUBMIT );
+      mMuxTime = metrics.getHistogram( PipelineMetrics.STAGE_MUX );
+
+      mEncodeLatency = new FrameLatencyTracker( metrics.getHistogram( PipelineMetrics.STAGE_ENCODE ) );
+
+      mFramesEncoded = metrics.getCounter( PipelineMetrics.COUNTER_FRAMES_ENCODED );
+      mFramesDropped = metrics.getCounter( PipelineMetrics.COUNTER_FRAMES_DROPPED );
+      mBytesWritten = metrics.getCounter( PipelineMetrics.COUNTER_BYTES_WRITTEN );
+   }
+
+   public PipelineMetrics getMetrics() {
+      return mMetrics;
+   }
+
+   /**
+    * Dumps the {@link EventTracer} there when encoding ends.
+    */
+   public void setTraceFile( File file ) {
+      mTraceFile = file;
+   }
+
    public ArrayList<EncoderListener> getListeners() {
       return mListeners;
    }
@@ -141,15 +288,72 @@ public class SurfaceEncoder {
             throw new NullPointerException( "Need to set an encoder source on the surfaceEncoder" );
          }
 
+         mMetrics.reset();
+
          boolean succeeded = true;
          try {
-            
+
+            mInputSurface = new InputSurface( mSurface );
+            mInputSurface.makeCurrent();
+
+            FrameChangeHint hint = null;
+            if ( mDropDuplicateFrames ) {
+               if ( mSource instanceof FrameChangeHint ) {
+                  hint = (FrameChangeHint) mSource;
+               }
+               if ( mSource instanceof CanvasEncoderSource ) {
+                  CanvasEncoderSource canvasSource = (CanvasEncoderSource) mSource;
+                  canvasSource.setContentHashing( !canvasSource.hasFrameChangeHint() );
+               }
+            }
+
+            if ( mSource instanceof CanvasEncoderSource ) {
+               ( (CanvasEncoderSource) mSource ).setFrameRate( mSettings.getFrameRate() );
+            }
+
+            mSource.onSurfaceCreated();
+
             int frameCount = 0;
+            int submittedCount = 0;
+
+            // A resumed file already has everything before the resume time.
+            while ( computePresentationTimeMs( frameCount ) * 1000 < mResumeTimeUs ) {
+               frameCount++;
+            }
+            long lastSubmittedTime = -1;
 
             while ( computePresentationTimeMs( frameCount ) < mSource.getDuration() ) {
                drainEncoder( false );
-               renderFromSource( computePresentationTimeMs( frameCount ) );
+
+               long time = computePresentationTimeMs( frameCount );
                frameCount++;
+
+               // The last frame is always sent so the output keeps the full duration.
+               boolean mayDrop = mDropDuplicateFrames && lastSubmittedTime >= 0 && time - lastSubmittedTime < MAX_FRAME_GAP_MS && computePresentationTimeMs( frameCount ) < mSource.getDuration();
+
+               if ( mayDrop && hint != null && !hint.hasFrameChanged( lastSubmittedTime, time ) ) {
+                  mFramesDropped.incrementAndGet();
+                  continue;
+               }
+
+               long drawStartNs = System.nanoTime();
+               mTracer.begin( EventTracer.RENDER_FRAME, time );
+               mSource.renderFrame( time, 1000 / mSettings.getFrameRate() );
+               mTracer.end( EventTracer.RENDER_FRAME );
+               mDrawTime.recordSince( drawStartNs );
+
+               if ( mayDrop && mSource instanceof CanvasEncoderSource && ( (CanvasEncoderSource) mSource ).isDuplicateFrame() ) {
+                  mFramesDropped.incrementAndGet();
+                  continue;
+               }
+
+               submitFrame( time );
+               lastSubmittedTime = time;
+               submittedCount++;
+            }
+
+            if ( mDropDuplicateFrames ) {
+               Log.d( TAG, "Submitted " + submittedCount + " of " + frameCount + " frames" );
             }
 
             drainEncoder( true );
@@ -157,7 +361,9 @@ public class SurfaceEncoder {
             succeeded = false;
             e.printStackTrace();
          } finally {
-            releaseEncoder();
+            releaseEncoder( succeeded );
+            mMetrics.writeSnapshot();
+            mTracer.dumpQuietly( mTraceFile );
          }
 
          int status = -1;
@@ -177,140 +383,186 @@ public class SurfaceEncoder {
          MediaFormat format = MediaFormat.createVideoFormat( MIME_TYPE, mSource.getWidth(), mSource.getHeight() );
 
          format.setInteger( MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface );
-         format.setInteger( MediaFormat.KEY_BIT_RATE, mBitRate );
-         format.setInteger( MediaFormat.KEY_FRAME_RATE, FRAME_RATE );
-         format.setInteger( MediaFormat.KEY_I_FRAME_INTERVAL, IFRAME_INTERVAL );
+         mSettings.applyTo( format );
 
          mEncoder = MediaCodec.createEncoderByType( MIME_TYPE );
          mEncoder.configure( format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE );
          mSurface = mEncoder.createInputSurface();
          mEncoder.start();
+         mEncoderQueue = new MediaCodecQueue( mEncoder );
+         mEncoderOutputBuffers = mEncoderQueue.getOutputBuffers();
 
-         try {
-            mMuxer = new MediaMuxer( mUri.toString(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4 );
-         } catch ( IOException ioe ) {
-            throw new RuntimeException( "MediaMuxer creation failed", ioe );
+         if ( mSettings.isAdaptiveBitRate() ) {
+            mBitRateController = new AdaptiveBitRateController( mEncoder, mSettings.getBitRate() );
+         }
+
+         if ( mResumable ) {
+            Mp4Muxer muxer = new Mp4Muxer( mUri.toString(), Mp4Writer.MODE_FRAGMENTED );
+            try {
+               mResumeTimeUs = Math.max( 0, muxer.getWriter().resume( Long.MAX_VALUE ) );
+            } catch ( IOException e ) {
+               throw new RuntimeException( "Resuming " + mUri + " failed", e );
+            }
+            if ( mResumeTimeUs > 0 ) {
+               Log.d( TAG, "Resuming at " + mResumeTimeUs + " us" );
+            }
+            mMuxer = muxer;
+         } else {
+            mMuxer = new Mp4Muxer( mUri.toString(), mMp4Mode );
          }
 
          mTrackIndex = -1;
          mMuxerStarted = false;
       }
 
-      private void renderFromSource( long time ) {
-
-         Canvas canvas = null;
-         try {
-            canvas = mSurface.lockCanvas( null );
-         } catch ( IllegalArgumentException e ) {
-            e.printStackTrace();
-            return;
-         } catch ( OutOfResourcesException e ) {
-            e.printStackTrace();
-            return;
-         }
-
-         mSource.renderFrame( canvas, time, 1000 / FRAME_RATE );
-
-         mSurface.unlockCanvasAndPost( canvas );
+      private void submitFrame( long time ) {
+         long submitStartNs = System.nanoTime();
+         mEncodeLatency.frameIn( time * 1000 );
+         mInputSurface.setPresentationTime( time * 1000000 );
+         mTracer.begin( EventTracer.SWAP_BUFFERS );
+         mInputSurface.swapBuffers();
+         mTracer.end( EventTracer.SWAP_BUFFERS );
+         mSubmitTime.recordSince( submitStartNs );
       }
 
-      private void releaseEncoder() {
+      /**
+       * The output is only completed when the encode finished, after a failure it is closed as it is.
+       */
+      private void releaseEncoder( boolean finished ) {
+
+         if ( mInputSurface != null ) {
+            mSource.onSurfaceDestroyed();
+            // Also releases mSurface.
+            mInputSurface.release();
+            mInputSurface = null;
+            mSurface = null;
+         }
 
          if ( mEncoder != null ) {
             mEncoder.stop();
             mEncoder.release();
             mEncoder = null;
+            mEncoderQueue = null;
          }
          if ( mSurface != null ) {
             mSurface.release();
             mSurface = null;
          }
          if ( mMuxer != null ) {
-            mMuxer.stop();
-            mMuxer.release();
-            mMuxer = null;
+            try {
+               // A muxer that never got the output format has nothing to finish.
+               if ( finished && mMuxerStarted ) {
+                  mMuxer.stop();
+               }
+            } finally {
+               mMuxer.release();
+               mMuxer = null;
+               mMuxerStarted = false;
+            }
          }
       }
 
-      private void drainEncoder( boolean endOfStream ) {
+      private long computePresentationTimeMs( int frameIndex ) {
+         // Called several times per frame, the time of each rendered frame is in its render_frame trace event.
+         return computeFrameTimeMs( frameIndex, mSettings.getFrameRate() );
+      }
+   }
 
-         if ( endOfStream ) {
-            mEncoder.signalEndOfInputStream();
-         }
+   /**
+    * Moves everything the encoder has ready to the muxer. At the end of the stream it signals the encoder and keeps
+    * going until the last buffer is out.
+    */
+   void drainEncoder( boolean endOfStream ) {
 
-         ByteBuffer[] encoderOutputBuffers = mEncoder.getOutputBuffers();
-         while ( true ) {
-            int encoderStatus = mEncoder.dequeueOutputBuffer( mBufferInfo, TIMEOUT_USEC );
-            if ( encoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER ) {
-               // no output available yet
-               if ( !endOfStream ) {
-                  break; // out of while
-               } else {
-                  Log.d( TAG, "no output available, spinning to await EOS" );
-               }
-            } else if ( encoderStatus == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED ) {
-               // not expected for an encoder
-               encoderOutputBuffers = mEncoder.getOutputBuffers();
-            } else if ( encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED ) {
-               // should happen before receiving buffers, and should only happen once
-               if ( mMuxerStarted ) {
-                  throw new RuntimeException( "format changed twice" );
-               }
-               MediaFormat newFormat = mEncoder.getOutputFormat();
-               Log.d( TAG, "encoder output format changed: " + newFormat );
-
-               // now that we have the Magic Goodies, start the muxer
-               mTrackIndex = mMuxer.addTrack( newFormat );
-               mMuxer.start();
-               mMuxerStarted = true;
-            } else if ( encoderStatus < 0 ) {
-               Log.w( TAG, "unexpected result from encoder.dequeueOutputBuffer: " + encoderStatus );
-               // let's ignore it
+      if ( endOfStream ) {
+         mEncoderQueue.signalEndOfInputStream();
+      }
+
+      while ( true ) {
+         int encoderStatus = mEncoderQueue.dequeueOutputBuffer( mBufferInfo, TIMEOUT_USEC );
+         if ( encoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER ) {
+            // no output available yet
+            if ( !endOfStream ) {
+               break; // out of while
             } else {
-               ByteBuffer encodedData = encoderOutputBuffers[encoderStatus];
-               if ( encodedData == null ) {
-                  throw new RuntimeException( "encoderOutputBuffer " + encoderStatus + " was null" );
-               }
+               mTracer.instant( EventTracer.ENCODER_OUTPUT_UNAVAILABLE );
+            }
+         } else if ( encoderStatus == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED ) {
+            // not expected for an encoder
+            mEncoderOutputBuffers = mEncoderQueue.getOutputBuffers();
+         } else if ( encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED ) {
+            // should happen before receiving buffers, and should only happen once
+            if ( mMuxerStarted ) {
+               throw new RuntimeException( "format changed twice" );
+            }
+            MediaFormat newFormat = mEncoderQueue.getOutputFormat();
+            Log.d( TAG, "encoder output format changed: " + newFormat );
+
+            // now that we have the Magic Goodies, start the muxer
+            mTrackIndex = mMuxer.addTrack( newFormat );
+            mMuxer.start();
+            mMuxerStarted = true;
+         } else if ( encoderStatus < 0 ) {
+            Log.w( TAG, "unexpected result from encoder.dequeueOutputBuffer: " + encoderStatus );
+            // let's ignore it
+         } else {
+            ByteBuffer encodedData = mEncoderOutputBuffers[encoderStatus];
+            if ( encodedData == null ) {
+               throw new RuntimeException( "encoderOutputBuffer " + encoderStatus + " was null" );
+            }
 
-               if ( ( mBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG ) != 0 ) {
-                  // The codec config data was pulled out and fed to the muxer when we got
-                  // the INFO_OUTPUT_FORMAT_CHANGED status. Ignore it.
-                  Log.d( TAG, "ignoring BUFFER_FLAG_CODEC_CONFIG" );
-                  mBufferInfo.size = 0;
+            if ( ( mBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG ) != 0 ) {
+               // The codec config data was pulled out and fed to the muxer when we got
+               // the INFO_OUTPUT_FORMAT_CHANGED status. Ignore it.
+               mTracer.instant( EventTracer.ENCODER_CONFIG, mBufferInfo.size );
+               mBufferInfo.size = 0;
+            }
+
+            if ( mBufferInfo.size != 0 ) {
+               if ( !mMuxerStarted ) {
+                  throw new RuntimeException( "muxer hasn't started" );
                }
 
-               if ( mBufferInfo.size != 0 ) {
-                  if ( !mMuxerStarted ) {
-                     throw new RuntimeException( "muxer hasn't started" );
-                  }
+               // adjust the ByteBuffer values to match BufferInfo (not needed?)
+               encodedData.position( mBufferInfo.offset );
+               encodedData.limit( mBufferInfo.offset + mBufferInfo.size );
+
+               mEncodeLatency.frameOut( mBufferInfo.presentationTimeUs );
+
+               long muxStartNs = System.nanoTime();
+               mTracer.begin( EventTracer.MUX_SAMPLE, mBufferInfo.size );
+               mMuxer.writeSampleData( mTrackIndex, encodedData, mBufferInfo );
+               mTracer.end( EventTracer.MUX_SAMPLE );
+               mMuxTime.recordSince( muxStartNs );
 
-                  // adjust the ByteBuffer values to match BufferInfo (not needed?)
-                  encodedData.position( mBufferInfo.offset );
-                  encodedData.limit( mBufferInfo.offset + mBufferInfo.size );
+               mFramesEncoded.incrementAndGet();
+               mBytesWritten.addAndGet( mBufferInfo.size );
 
-                  mMuxer.writeSampleData( mTrackIndex, encodedData, mBufferInfo );
-                  Log.d( TAG, "sent " + mBufferInfo.size + " bytes to muxer" );
+               if ( mBitRateController != null ) {
+                  mBitRateController.onSampleWritten( mBufferInfo.size, mBufferInfo.presentationTimeUs );
                }
+               mTracer.instant( EventTracer.ENCODER_OUTPUT, mBufferInfo.size );
+            }
 
-               mEncoder.releaseOutputBuffer( encoderStatus, false );
+            mEncoderQueue.releaseOutputBuffer( encoderStatus, false );
 
-               if ( ( mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM ) != 0 ) {
-                  if ( !endOfStream ) {
-                     Log.w( TAG, "reached end of stream unexpectedly" );
-                  } else {
-                     Log.d( TAG, "end of stream reached" );
-                  }
-                  break; // out of while
+            if ( ( mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM ) != 0 ) {
+               if ( !endOfStream ) {
+                  Log.w( TAG, "reached end of stream unexpectedly" );
+               } else {
+                  Log.d( TAG, "end of stream reached" );
                }
+               break; // out of while
             }
          }
       }
+   }
 
-      private long computePresentationTimeMs( int frameIndex ) {
-         long result = frameIndex * 1000 / FRAME_RATE;
-         Log.d( "this", "Computing time for index " + frameIndex + " of " + result );
-         return result;
-      }
+   /**
+    * Time of the frame at frameIndex in the output, also used by sources that render ahead of the encoder.
+    */
+   static long computeFrameTimeMs( int frameIndex, int frameRate ) {
+      return frameIndex * 1000L / frameRate;
    }
 
    public Surface getSurface() {
@@ -24,26 +24,25 @@ import java.util.Locale;
 
 import android.annotation.TargetApi;
 import android.app.Activity;
-import android.content.Intent;
 import android.graphics.Bitmap;
 import android.media.MediaCodec;
 import android.media.MediaCodec.BufferInfo;
 import android.media.MediaExtractor;
 import android.media.MediaMuxer;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
 import android.view.View;
 import android.widget.ArrayAdapter;
 import android.widget.ImageView;
+import android.widget.ProgressBar;
 import android.widget.Spinner;
 import android.widget.TextView;
 
 import com.roryhool.commonvideolibrary.MediaHelper;
 import com.roryhool.commonvideolibrary.Resolution;
-import com.roryhool.commonvideolibrary.SamplerClip;
-import com.roryhool.commonvideolibrary.VideoResampler;
+import com.roryhool.commonvideolibrary.VideoJob;
+import com.roryhool.commonvideolibrary.VideoJobTracker;
 
 @TargetApi( Build.VERSION_CODES.JELLY_BEAN_MR2 )
 public class ResampleActivity extends Activity {
@@ -51,6 +50,8 @@ public class ResampleActivity extends Activity {
    Uri mInputUri = Uri.parse( "/mnt/sdcard/test2.mp4" );
    Uri mOutputUri;
 
+   VideoJobTracker mJobTracker;
+
    MediaCodec mDecoder;
    MediaCodec mEncoder;
 
@@ -88,7 +89,7 @@ public class ResampleActivity extends Activity {
 
    List<String> mResolutions = Arrays.asList( "1080P", "720P", "480P", "360P", "QVGA", "QCIF" );
    
-   List<String> mBitRates = Arrays.asList( "2Mbps", "1Mbps", "500Kbps", "56Kbps" );
+   List<String> mBitRates = Arrays.asList( "2Mbps", "1Mbps", "500Kbps", "56Kbps", "Fit 25MB", "Fit 10MB" );
 
    List<String> mFrameRates = Arrays.asList( "30fps", "15fps" );
 
@@ -117,6 +118,9 @@ public class ResampleActivity extends Activity {
       mFrameRateSpinner = (Spinner) findViewById( R.id.frameRateSpinner );
       mIFrameIntervalSpinner = (Spinner) findViewById( R.id.IFrameIntervalSpinner );
 
+      mJobTracker = new VideoJobTracker( this, (ProgressBar) findViewById( R.id.job_progress ), (TextView) findViewById( R.id.job_status ) );
+      mJobTracker.onCreate( savedInstanceState );
+
       Uri data = getIntent().getData();
 
       if ( data != null ) {
@@ -140,6 +144,27 @@ public class ResampleActivity extends Activity {
       setupSpinner( mIFrameIntervalSpinner, mIFrameIntervals );
    }
 
+   @Override
+   protected void onResume() {
+      super.onResume();
+
+      mJobTracker.onResume();
+   }
+
+   @Override
+   protected void onPause() {
+      mJobTracker.onPause();
+
+      super.onPause();
+   }
+
+   @Override
+   protected void onSaveInstanceState( Bundle outState ) {
+      super.onSaveInstanceState( outState );
+
+      mJobTracker.onSaveInstanceState( outState );
+   }
+
    private void setupSpinner( Spinner spinner, List<String> items ) {
       ArrayAdapter<String> adapter = new ArrayAdapter<String>( this, android.R.layout.simple_spinner_item, items );
       adapter.setDropDownViewResource( android.R.layout.simple_spinner_dropdown_item );
@@ -170,6 +195,7 @@ public class ResampleActivity extends Activity {
 
    Resolution mOutputResolution;
    int mOutputBitRate;
+   long mOutputFileSize;
    int mOutputFrameRate;
    int mOutputIFrameInterval;
 
@@ -197,6 +223,8 @@ public class ResampleActivity extends Activity {
 
       String selectedBitRate = (String) mBitRateSpinner.getSelectedItem();
 
+      mOutputFileSize = -1;
+
       if ( selectedBitRate.equals( "2Mbps" ) ) {
          mOutputBitRate = 2097152;
       } else if ( selectedBitRate.equals( "1Mbps" ) ) {
@@ -205,6 +233,10 @@ public class ResampleActivity extends Activity {
          mOutputBitRate = 512000;
       } else if ( selectedBitRate.equals( "56Kbps" ) ) {
          mOutputBitRate = 57344;
+      } else if ( selectedBitRate.equals( "Fit 25MB" ) ) {
+         mOutputFileSize = 25 * 1024 * 1024;
+      } else if ( selectedBitRate.equals( "Fit 10MB" ) ) {
+         mOutputFileSize = 10 * 1024 * 1024;
       }
 
       String selectedFrameRate = (String) mFrameRateSpinner.getSelectedItem();
@@ -225,46 +257,16 @@ public class ResampleActivity extends Activity {
          mOutputIFrameInterval = 10;
       }
 
-      new ResampleTask().execute( mInputUri, mOutputUri );
-   }
-
-   class ResampleTask extends AsyncTask<Uri, Void, Uri> {
-
-      @Override
-      protected Uri doInBackground( Uri... uris ) {
-
-         if ( uris.length < 2 ) {
-            return null;
-         }
-
-         Uri inputUri = uris[0];
-         Uri outputUri = uris[1];
-
-         VideoResampler resampler = new VideoResampler();
-         resampler.addSamplerClip( new SamplerClip( inputUri ) );
-         // resampler.setInput( inputUri );
-         resampler.setOutput( outputUri );
-
-         resampler.setOutputResolution( mOutputResolution.getWidth(), mOutputResolution.getHeight() );
-         resampler.setOutputBitRate( mOutputBitRate );
-         resampler.setOutputFrameRate( mOutputFrameRate );
-         resampler.setOutputIFrameInterval( mOutputIFrameInterval );
-
-         try {
-            resampler.start();
-         } catch ( Throwable e ) {
-            e.printStackTrace();
-         }
-
-         return outputUri;
-      }
-
-      @Override
-      protected void onPostExecute( Uri outputUri ) {
-         Intent sendIntent = new Intent();
-         sendIntent.setAction( Intent.ACTION_VIEW );
-         sendIntent.setDataAndType( outputUri, "video/mp4" );
-         startActivity( sendIntent );
-      }
+      VideoJob job = new VideoJob( mOutputUri );
+      job.setTitle( "Resample " + mVideoName.getText() );
+      job.addClip( mInputUri );
+      job.setOutputResolution( mOutputResolution.getWidth(), mOutputResolution.getHeight() );
+      job.setOutputBitRate( mOutputBitRate );
+      job.setOutputFrameRate( mOutputFrameRate );
+      job.setOutputIFrameInterval( mOutputIFrameInterval );
+      job.setTargetFileSize( mOutputFileSize );
+      job.setPriority( VideoJob.PRIORITY_HIGH );
+
+      mJobTracker.submit( job );
    }
 }
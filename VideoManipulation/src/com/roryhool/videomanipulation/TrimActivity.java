@@ -23,20 +23,28 @@ import android.app.Activity;
 import android.content.Intent;
 import android.graphics.Bitmap;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
 import android.view.View;
+import android.widget.CheckBox;
 import android.widget.ImageView;
+import android.widget.ProgressBar;
 import android.widget.SeekBar;
 import android.widget.SeekBar.OnSeekBarChangeListener;
 import android.widget.TextView;
+import android.widget.Toast;
 
+import com.roryhool.commonvideolibrary.EditListTrimmer;
 import com.roryhool.commonvideolibrary.MediaHelper;
-import com.roryhool.commonvideolibrary.SamplerClip;
-import com.roryhool.commonvideolibrary.VideoResampler;
+import com.roryhool.commonvideolibrary.VideoJob;
+import com.roryhool.commonvideolibrary.VideoJobTracker;
 
 public class TrimActivity extends Activity {
 
+   private static final String TAG = "TrimActivity";
+
    ImageView mVideoThumbnail;
 
    TextView mVideoName;
@@ -49,6 +57,8 @@ public class TrimActivity extends Activity {
    SeekBar mTrimStartSeekBar;
    SeekBar mTrimEndSeekBar;
 
+   CheckBox mFastTrimCheckBox;
+
    int mTrimStart;
 
    int mTrimEnd;
@@ -58,6 +68,14 @@ public class TrimActivity extends Activity {
    Uri mInputUri;
    Uri mOutputUri;
 
+   VideoJobTracker mJobTracker;
+
+   ProgressBar mProgressBar;
+
+   TextView mStatusView;
+
+   FastTrimThread mFastTrimThread;
+
    @Override
    public void onCreate( Bundle savedInstanceState ) {
       super.onCreate( savedInstanceState );
@@ -80,6 +98,14 @@ public class TrimActivity extends Activity {
       mTrimEndSeekBar = (SeekBar) findViewById( R.id.trim_end_seek_bar );
       mTrimEndSeekBar.setOnSeekBarChangeListener( mTrimEndOnSeekBarChangeListener );
 
+      mFastTrimCheckBox = (CheckBox) findViewById( R.id.fast_trim );
+
+      mProgressBar = (ProgressBar) findViewById( R.id.job_progress );
+      mStatusView = (TextView) findViewById( R.id.job_status );
+
+      mJobTracker = new VideoJobTracker( this, mProgressBar, mStatusView );
+      mJobTracker.onCreate( savedInstanceState );
+
       mInputUri = getIntent().getData();
 
       loadVideoUri( mInputUri );
@@ -91,6 +117,38 @@ public class TrimActivity extends Activity {
       mOutputUri = Uri.parse( trimmedFileName );
    }
 
+   @Override
+   protected void onResume() {
+      super.onResume();
+
+      mJobTracker.onResume();
+   }
+
+   @Override
+   protected void onPause() {
+      mJobTracker.onPause();
+
+      super.onPause();
+   }
+
+   @Override
+   protected void onSaveInstanceState( Bundle outState ) {
+      super.onSaveInstanceState( outState );
+
+      mJobTracker.onSaveInstanceState( outState );
+   }
+
+   @Override
+   protected void onDestroy() {
+      super.onDestroy();
+
+      // A fast trim still running finishes on its own, there is just nobody left to show the result to.
+      if ( mFastTrimThread != null ) {
+         mFastTrimThread.mActivity = null;
+         mFastTrimThread = null;
+      }
+   }
+
    public void loadVideoUri( Uri uri ) {
 
       Bitmap bitmap = MediaHelper.GetThumbnailFromVideo( uri, 0 );
@@ -185,48 +243,100 @@ public class TrimActivity extends Activity {
 
    public void onTrimClicked( View view ) {
 
-      new TrimTask().execute( mInputUri, mOutputUri );
+      if ( mFastTrimCheckBox.isChecked() ) {
+         if ( mFastTrimThread == null ) {
+            mProgressBar.setIndeterminate( true );
+            mProgressBar.setVisibility( View.VISIBLE );
+            mStatusView.setText( "Trimming " + mVideoName.getText() );
+            mStatusView.setVisibility( View.VISIBLE );
+
+            mFastTrimThread = new FastTrimThread( this, mTrimStart * 1000L, mTrimEnd * 1000L );
+            mFastTrimThread.start();
+         }
+         return;
+      }
+
+      VideoJob job = new VideoJob( mOutputUri );
+      job.setTitle( "Trim " + mVideoName.getText() );
+      job.addClip( mInputUri, mTrimStart, mTrimEnd );
+      // Someone is waiting for this one.
+      job.setPriority( VideoJob.PRIORITY_HIGH );
+
+      mJobTracker.submit( job );
    }
 
-   class TrimTask extends AsyncTask<Uri, Void, Uri> {
+   private void viewOutput( Uri uri ) {
+      Intent sendIntent = new Intent();
+      sendIntent.setAction( Intent.ACTION_VIEW );
+      sendIntent.setDataAndType( uri, "video/mp4" );
+      startActivity( sendIntent );
+   }
 
-      @Override
-      protected Uri doInBackground( Uri... uris ) {
+   private void onFastTrimDone( Exception error ) {
+      mFastTrimThread = null;
+      mProgressBar.setIndeterminate( false );
+      mProgressBar.setVisibility( View.GONE );
 
-         if ( uris.length < 2 ) {
-            return null;
-         }
+      if ( error == null ) {
+         mStatusView.setVisibility( View.GONE );
+         viewOutput( mOutputUri );
+         return;
+      }
 
-         Uri inputUri = uris[0];
-         Uri outputUri = uris[1];
+      String message = String.format( Locale.US, "Trim failed: %s", error.getMessage() != null ? error.getMessage() : error.getClass().getSimpleName() );
+      mStatusView.setText( message );
+      mStatusView.setVisibility( View.VISIBLE );
+      Toast.makeText( this, message, Toast.LENGTH_LONG ).show();
+   }
 
-         VideoResampler resampler = new VideoResampler();
-         SamplerClip clip = new SamplerClip( inputUri );
-         clip.setStartTime( mTrimStart );
-         clip.setEndTime( mTrimEnd );
-         resampler.addSamplerClip( clip );
+   /**
+    * Copies the file without re-encoding and gives the copy a new moov, see {@link EditListTrimmer#trim}. Keeps the
+    * activity only until it is destroyed, the result is posted back to the main thread.
+    */
+   private static class FastTrimThread extends Thread {
 
-         // resampler.setInput( inputUri );
-         resampler.setOutput( outputUri );
+      Handler mHandler = new Handler( Looper.getMainLooper() );
 
-         // resampler.setStartTime( mTrimStart );
-         // resampler.setEndTime( mTrimEnd );
+      // Only touched on the main thread, null once the activity is destroyed.
+      TrimActivity mActivity;
 
-         try {
-            resampler.start();
-         } catch ( Throwable e ) {
-            e.printStackTrace();
-         }
+      File mInput;
+
+      File mOutput;
+
+      long mStartUs;
 
-         return outputUri;
+      long mEndUs;
+
+      public FastTrimThread( TrimActivity activity, long startUs, long endUs ) {
+         super( "fast trim" );
+         mActivity = activity;
+         mInput = new File( activity.mInputUri.toString() );
+         mOutput = new File( activity.mOutputUri.toString() );
+         mStartUs = startUs;
+         mEndUs = endUs;
       }
 
       @Override
-      protected void onPostExecute( Uri outputUri ) {
-         Intent sendIntent = new Intent();
-         sendIntent.setAction( Intent.ACTION_VIEW );
-         sendIntent.setDataAndType( outputUri, "video/mp4" );
-         startActivity( sendIntent );
+      public void run() {
+         Exception error = null;
+         try {
+            EditListTrimmer.trim( mInput, mOutput, mStartUs, mEndUs );
+         } catch ( Exception e ) {
+            Log.e( TAG, "Fast trim of " + mInput + " failed", e );
+            error = e;
+         }
+
+         final Exception result = error;
+         mHandler.post( new Runnable() {
+
+            @Override
+            public void run() {
+               if ( mActivity != null ) {
+                  mActivity.onFastTrimDone( result );
+               }
+            }
+         } );
       }
    }
 
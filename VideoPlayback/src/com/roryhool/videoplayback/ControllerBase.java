@@ -16,23 +16,50 @@
 
 package com.roryhool.videoplayback;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import android.content.Context;
 import android.net.Uri;
 import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
 import android.view.TextureView.SurfaceTextureListener;
 
 public abstract class ControllerBase implements SurfaceTextureListener {
 
+   private static final String TAG = "ControllerBase";
+
    public interface ControllerListener {
+      public void onPrepared();
+
       public void onCompletion();
    }
+
+   public interface PlaylistListener {
+      public void onPlaylistItemStarted( int index, Uri uri );
+   }
+
+   public interface FirstFrameListener {
+      public void onFirstFrameRendered( long timeToFirstFrameMs );
+   }
    
    Context mContext;
 
    Uri mVideoUri;
 
+   long mVideoUriSetTime;
+
+   List<Uri> mPlaylist = new ArrayList<Uri>();
+
+   int mPlaylistIndex = 0;
+
    ControllerListener mListener;
 
+   PlaylistListener mPlaylistListener;
+
+   FirstFrameListener mFirstFrameListener;
+
    Handler mHandler;
 
    public ControllerBase( Context context ) {
@@ -43,12 +70,56 @@ public abstract class ControllerBase implements SurfaceTextureListener {
 
    public void setVideoUri( Uri videoUri ) {
       mVideoUri = videoUri;
+      mVideoUriSetTime = SystemClock.elapsedRealtime();
+   }
+
+   /**
+    * Plays the uris back to back, starting with the first one. Call instead of setVideoUri.
+    */
+   public void setPlaylist( List<Uri> playlist ) {
+      synchronized ( mPlaylist ) {
+         mPlaylist.clear();
+         mPlaylist.addAll( playlist );
+         mPlaylistIndex = 0;
+      }
+
+      setVideoUri( playlist.get( 0 ) );
+   }
+
+   public void addToPlaylist( Uri uri ) {
+      synchronized ( mPlaylist ) {
+         mPlaylist.add( uri );
+      }
+   }
+
+   public int getPlaylistIndex() {
+      return mPlaylistIndex;
+   }
+
+   public void setPlaylistListener( PlaylistListener listener ) {
+      mPlaylistListener = listener;
+   }
+
+   protected Uri getPlaylistItem( int index ) {
+      synchronized ( mPlaylist ) {
+         if ( index < 0 || index >= mPlaylist.size() ) {
+            return null;
+         }
+         return mPlaylist.get( index );
+      }
    }
 
    public void setListener( ControllerListener listener ) {
       mListener = listener;
    }
 
+   /**
+    * Reports the time from setVideoUri until the first frame was drawn.
+    */
+   public void setFirstFrameListener( FirstFrameListener listener ) {
+      mFirstFrameListener = listener;
+   }
+
    public abstract void play();
 
    public abstract void pause();
@@ -65,6 +136,54 @@ public abstract class ControllerBase implements SurfaceTextureListener {
 
    public abstract int getVideoHeight();
 
+   protected void onPrepared() {
+      if ( mListener != null ) {
+         mHandler.post( new Runnable() {
+
+            @Override
+            public void run() {
+               mListener.onPrepared();
+            }
+
+         } );
+      }
+   }
+
+   protected void onFirstFrameRendered() {
+      final long timeToFirstFrameMs = SystemClock.elapsedRealtime() - mVideoUriSetTime;
+
+      Log.d( TAG, "Time to first frame " + timeToFirstFrameMs + "ms" );
+
+      if ( mFirstFrameListener != null ) {
+         mHandler.post( new Runnable() {
+
+            @Override
+            public void run() {
+               mFirstFrameListener.onFirstFrameRendered( timeToFirstFrameMs );
+            }
+
+         } );
+      }
+   }
+
+   protected void onPlaylistItemStarted( final int index ) {
+      final Uri uri = getPlaylistItem( index );
+
+      mPlaylistIndex = index;
+      mVideoUri = uri;
+
+      if ( mPlaylistListener != null ) {
+         mHandler.post( new Runnable() {
+
+            @Override
+            public void run() {
+               mPlaylistListener.onPlaylistItemStarted( index, uri );
+            }
+
+         } );
+      }
+   }
+
    protected void onCompletion() {
       if ( mListener != null ) {
          mHandler.post( new Runnable() {
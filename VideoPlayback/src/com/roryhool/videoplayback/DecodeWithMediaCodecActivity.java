@@ -17,12 +17,40 @@
 package com.roryhool.videoplayback;
 
 import android.app.Activity;
+import android.app.Fragment;
 import android.os.Bundle;
 import android.view.View;
 import android.view.WindowManager;
 
 public class DecodeWithMediaCodecActivity extends Activity {
 
+   private static final String CONTROLLER_TAG = "controller";
+
+   /**
+    * Keeps the controller, and with it the decoder, across configuration changes. Shuts it down once the activity is
+    * gone for good.
+    */
+   public static class ControllerFragment extends Fragment {
+
+      MediaCodecDecodeController mController;
+
+      @Override
+      public void onCreate( Bundle savedInstanceState ) {
+         super.onCreate( savedInstanceState );
+         setRetainInstance( true );
+      }
+
+      @Override
+      public void onDestroy() {
+         super.onDestroy();
+
+         if ( mController != null ) {
+            mController.shutDown();
+            mController = null;
+         }
+      }
+   }
+
    VideoPlayerView mVideoPlayerView;
 
    MediaCodecDecodeController mController;
@@ -39,8 +67,20 @@ public class DecodeWithMediaCodecActivity extends Activity {
 
       mVideoPlayerView = (VideoPlayerView) findViewById( R.id.video_player );
 
-      mController = new MediaCodecDecodeController( this, mVideoPlayerView, mVideoPlayerView.getTextureView() );
-      mController.setVideoUri( getIntent().getData() );
+      ControllerFragment fragment = (ControllerFragment) getFragmentManager().findFragmentByTag( CONTROLLER_TAG );
+      if ( fragment == null ) {
+         fragment = new ControllerFragment();
+         getFragmentManager().beginTransaction().add( fragment, CONTROLLER_TAG ).commit();
+      }
+
+      // After the process was killed the fragment comes back without its controller.
+      if ( fragment.mController == null ) {
+         fragment.mController = new MediaCodecDecodeController( getApplicationContext(), mVideoPlayerView, mVideoPlayerView.getTextureView() );
+         fragment.mController.setVideoUri( getIntent().getData() );
+      } else {
+         fragment.mController.setViews( mVideoPlayerView, mVideoPlayerView.getTextureView() );
+      }
+      mController = fragment.mController;
 
       mVideoPlayerView.setController( mController );
       mController.setListener( mVideoPlayerView );
@@ -49,7 +89,7 @@ public class DecodeWithMediaCodecActivity extends Activity {
    @Override
    public void onPause() {
       super.onPause();
-      mController.shutDown();
+      mVideoPlayerView.pause();
    }
 
 }
@@ -0,0 +1,104 @@
+/**
+   Copyright (c) 2014 Rory Hool
+   
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+   
+       http://www.apache.org/licenses/LICENSE-2.0
+   
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ **/
+
+package com.roryhool.videoplayback;
+
+import java.io.File;
+import java.io.IOException;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.media.MediaCodec.BufferInfo;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.os.Build;
+
+import com.roryhool.commonvideolibrary.DeviceAllocationTest;
+import com.roryhool.commonvideolibrary.FakeCodecQueue;
+
+/**
+ * {@link DeviceAllocationTest} plus the playing loop of {@link MediaCodecDecodeController}'s decoder thread, reading
+ * the video track of input and decoding it with a {@link FakeCodecQueue}. The file loops until enough frames went
+ * through. The controller posts to the creating thread, run it on one with a Looper, e.g. a HandlerThread.
+ */
+@TargetApi( Build.VERSION_CODES.JELLY_BEAN_MR2 )
+public class DecoderAllocationTest extends DeviceAllocationTest {
+
+   private static final int DEFAULT_INPUT_SIZE = 1024 * 1024;
+
+   Context mContext;
+
+   File mInput;
+
+   public DecoderAllocationTest( Context context, File input ) {
+      mContext = context;
+      mInput = input;
+   }
+
+   @Override
+   protected void runChecks( File directory ) throws Exception {
+      super.runChecks( directory );
+      checkDecoderThread();
+   }
+
+   private void checkDecoderThread() throws Exception {
+      MediaCodecDecodeController controller = new MediaCodecDecodeController( mContext, null, null );
+      final MediaCodecDecodeController.DecoderThread thread = controller.new DecoderThread( null, null );
+
+      MediaExtractor extractor = new MediaExtractor();
+      try {
+         extractor.setDataSource( mInput.getPath() );
+
+         MediaFormat format = null;
+         for ( int i = 0; i < extractor.getTrackCount() && format == null; i++ ) {
+            if ( extractor.getTrackFormat( i ).getString( MediaFormat.KEY_MIME ).startsWith( "video/" ) ) {
+               format = extractor.getTrackFormat( i );
+               extractor.selectTrack( i );
+            }
+         }
+         if ( format == null ) {
+            throw new IOException( "No video track in " + mInput );
+         }
+
+         int inputSize = DEFAULT_INPUT_SIZE;
+         if ( format.containsKey( MediaFormat.KEY_MAX_INPUT_SIZE ) ) {
+            inputSize = format.getInteger( MediaFormat.KEY_MAX_INPUT_SIZE );
+         }
+         final FakeCodecQueue decoder = new FakeCodecQueue( format, inputSize, FRAME_SIZE, SYNC_INTERVAL );
+
+         thread.mExtractor = extractor;
+         thread.mFormat = format;
+         thread.mDecoderQueue = decoder;
+         thread.mInfo = new BufferInfo();
+         thread.mInputBuffers = decoder.getInputBuffers();
+         thread.mOutputBuffers = decoder.getOutputBuffers();
+
+         check( "DecoderThread.decodeFrame", DECODE_LOOP_BUDGET, FRAMES, new Step() {
+            @Override
+            public void run( int frame ) {
+               if ( thread.decodeFrame() ) {
+                  // Back to the start the way playback loops, minus the flush a real decoder needs.
+                  thread.mExtractor.seekTo( 0, MediaExtractor.SEEK_TO_CLOSEST_SYNC );
+                  thread.mInfo.flags = 0;
+                  thread.mDecodeLatency.clear();
+               }
+            }
+         } );
+      } finally {
+         extractor.release();
+      }
+   }
+}
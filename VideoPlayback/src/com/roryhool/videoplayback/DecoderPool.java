@@ -0,0 +1,209 @@
+/**
+   Copyright (c) 2014 Rory Hool
+   
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+   
+       http://www.apache.org/licenses/LICENSE-2.0
+   
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ **/
+
+package com.roryhool.videoplayback;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * Process wide pool of decoder instances. Devices cap the number of hardware decoders that can exist at once, so every
+ * player gets its codec from here. When the cap is reached the least recently used player is asked to give its codec
+ * back, and stopped codecs are kept around so the next player can configure one without creating it.
+ */
+@TargetApi( Build.VERSION_CODES.JELLY_BEAN )
+public class DecoderPool {
+
+   private static final String TAG = "DecoderPool";
+
+   public static final int DEFAULT_MAX_INSTANCES = 4;
+
+   private static final long EVICTION_TIMEOUT_MS = 1000;
+
+   public interface Client {
+      /**
+       * Called when another player needs a decoder. The client has to stop using its codecs and hand them back with
+       * {@link DecoderPool#release(MediaCodec, String)}.
+       */
+      public void onDecoderEvicted();
+   }
+
+   private static DecoderPool sInstance;
+
+   public static synchronized DecoderPool getInstance() {
+      if ( sInstance == null ) {
+         sInstance = new DecoderPool();
+      }
+      return sInstance;
+   }
+
+   int mMaxInstances = DEFAULT_MAX_INSTANCES;
+
+   // Codecs in use, in least recently used order.
+   LinkedHashMap<MediaCodec, Client> mActive = new LinkedHashMap<MediaCodec, Client>( 16, 0.75f, true );
+
+   // Stopped codecs ready to be configured again, with their mime type.
+   ArrayList<MediaCodec> mIdle = new ArrayList<MediaCodec>();
+   ArrayList<String> mIdleMimeTypes = new ArrayList<String>();
+
+   // Clients that were asked to give a codec back and haven't yet.
+   ArrayList<Client> mEvicting = new ArrayList<Client>();
+
+   private DecoderPool() {
+   }
+
+   public synchronized void setMaxInstances( int maxInstances ) {
+      mMaxInstances = Math.max( 1, maxInstances );
+
+      while ( !mIdle.isEmpty() && getInstanceCount() > mMaxInstances ) {
+         releaseIdle( 0 );
+      }
+   }
+
+   public synchronized int getMaxInstances() {
+      return mMaxInstances;
+   }
+
+   private int getInstanceCount() {
+      return mActive.size() + mIdle.size();
+   }
+
+   /**
+    * Returns an unconfigured decoder for the mime type. Reuses an idle codec when possible and evicts the least
+    * recently used client when the pool is full. May block while an evicted client releases its codec, so don't call
+    * it on the UI thread.
+    */
+   public MediaCodec acquire( Client client, String mimeType ) {
+
+      Client evict = null;
+
+      synchronized ( this ) {
+         MediaCodec codec = takeIdle( mimeType );
+         if ( codec != null ) {
+            mActive.put( codec, client );
+            return codec;
+         }
+
+         if ( getInstanceCount() >= mMaxInstances ) {
+            if ( !mIdle.isEmpty() ) {
+               // Idle codec of the wrong type, make room for ours.
+               releaseIdle( 0 );
+            } else {
+               evict = findEvictionCandidate( client );
+            }
+         }
+      }
+
+      if ( evict != null ) {
+         Log.d( TAG, "Pool full, evicting least recently used decoder" );
+         evict.onDecoderEvicted();
+
+         synchronized ( this ) {
+            long deadline = System.currentTimeMillis() + EVICTION_TIMEOUT_MS;
+            while ( mActive.containsValue( evict ) && System.currentTimeMillis() < deadline ) {
+               try {
+                  wait( EVICTION_TIMEOUT_MS );
+               } catch ( InterruptedException e ) {
+                  break;
+               }
+            }
+            mEvicting.remove( evict );
+
+            MediaCodec codec = takeIdle( mimeType );
+            if ( codec != null ) {
+               mActive.put( codec, client );
+               return codec;
+            }
+            if ( !mIdle.isEmpty() ) {
+               releaseIdle( 0 );
+            }
+         }
+      }
+
+      // Either there was room, or eviction didn't free a usable codec in time. Creating one past the cap is better
+      // than failing playback outright, the device will fall back to a software decoder if it has to.
+      MediaCodec codec = MediaCodec.createDecoderByType( mimeType );
+      synchronized ( this ) {
+         mActive.put( codec, client );
+      }
+      return codec;
+   }
+
+   /**
+    * Marks the codec as recently used.
+    */
+   public synchronized void touch( MediaCodec codec ) {
+      mActive.get( codec );
+   }
+
+   /**
+    * Takes back a codec. It must already be stopped. Kept for reuse if the pool has room, released otherwise.
+    */
+   public synchronized void release( MediaCodec codec, String mimeType ) {
+      mActive.remove( codec );
+
+      if ( getInstanceCount() < mMaxInstances ) {
+         mIdle.add( codec );
+         mIdleMimeTypes.add( mimeType );
+      } else {
+         codec.release();
+      }
+
+      notifyAll();
+   }
+
+   /**
+    * Releases every idle codec, e.g. when the app goes to the background.
+    */
+   public synchronized void trim() {
+      while ( !mIdle.isEmpty() ) {
+         releaseIdle( 0 );
+      }
+   }
+
+   private Client findEvictionCandidate( Client requester ) {
+      Iterator<Map.Entry<MediaCodec, Client>> iterator = mActive.entrySet().iterator();
+      while ( iterator.hasNext() ) {
+         Client candidate = iterator.next().getValue();
+         if ( candidate != requester && !mEvicting.contains( candidate ) ) {
+            mEvicting.add( candidate );
+            return candidate;
+         }
+      }
+      return null;
+   }
+
+   private MediaCodec takeIdle( String mimeType ) {
+      int index = mIdleMimeTypes.indexOf( mimeType );
+      if ( index < 0 ) {
+         return null;
+      }
+      mIdleMimeTypes.remove( index );
+      return mIdle.remove( index );
+   }
+
+   private void releaseIdle( int index ) {
+      mIdleMimeTypes.remove( index );
+      mIdle.remove( index ).release();
+   }
+}
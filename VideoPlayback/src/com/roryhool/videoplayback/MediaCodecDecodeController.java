@@ -18,28 +18,43 @@ package com.roryhool.videoplayback;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.annotation.TargetApi;
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.SurfaceTexture;
 import android.media.MediaCodec;
 import android.media.MediaCodec.BufferInfo;
 import android.media.MediaExtractor;
 import android.media.MediaFormat;
-import android.media.MediaMetadataRetriever;
 import android.net.Uri;
 import android.os.Build;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.Surface;
 import android.view.ViewGroup;
 
+import com.roryhool.commonvideolibrary.CodecQueue;
+import com.roryhool.commonvideolibrary.EventTracer;
+import com.roryhool.commonvideolibrary.FrameLatencyTracker;
+import com.roryhool.commonvideolibrary.LatencyHistogram;
+import com.roryhool.commonvideolibrary.MediaCodecQueue;
 import com.roryhool.commonvideolibrary.MediaHelper;
+import com.roryhool.commonvideolibrary.PipelineMetrics;
 
 @TargetApi( Build.VERSION_CODES.JELLY_BEAN )
-public class MediaCodecDecodeController extends ControllerBase {
+public class MediaCodecDecodeController extends ControllerBase implements DecoderPool.Client {
 
    private static final String TAG = "MediaCodecDecodeController";
 
+   private static final long DEFAULT_FRAME_DURATION_US = 33333;
+
+   private static final long IDLE_WAIT_MS = 10;
+
+   private static final long FRAME_WAIT_MS = 10;
+
    VideoPlayerView mVideoPlayerView;
 
    ScaledTextureView mTextureView;
@@ -51,81 +66,285 @@ public class MediaCodecDecodeController extends ControllerBase {
 
    int mDuration = 0;
 
+   // Position on the playlist timeline, the timer runs across item boundaries.
    int mCurrentPosition = 0;
 
+   // Where the item on screen starts on the playlist timeline.
+   int mItemStartMs = 0;
+
    DecoderThread mDecoderThread;
 
+   // A decoder thread told to stop that may still hold its codec and the surface.
+   DecoderThread mStoppedDecoderThread;
+
    PlaybackTimer mTimer;
 
+   // Drives playback instead of our own timer when set.
+   SharedPlaybackClock mClock;
+
+   // The SurfaceTexture the decoder renders into. It outlives the TextureView that created it so the decoder
+   // doesn't have to be torn down when the view is recreated.
+   SurfaceTexture mSurfaceTexture;
+
+   boolean mSurfaceTextureAttached = false;
+
+   PrepareThread mPrepareThread;
+
+   boolean mFirstFrameRendered = false;
+
+   // Set when the decoder pool took our codec away. Playback resumes from mResumePositionMs once we get one back.
+   boolean mEvicted = false;
+
+   int mResumePositionMs = 0;
+
+   boolean mPosterShowing = false;
+
+   PipelineMetrics mMetrics;
+
+   LatencyHistogram mExtractTime;
+   LatencyHistogram mDecodeTime;
+   LatencyHistogram mRenderTime;
+
+   AtomicLong mSamplesExtracted;
+   AtomicLong mFramesDecoded;
+   AtomicLong mFramesDropped;
+
+   EventTracer mTracer = EventTracer.getInstance();
+
    public MediaCodecDecodeController( Context context, VideoPlayerView view, ScaledTextureView textureView ) {
       super( context );
       mTimer = new PlaybackTimer();
       mVideoPlayerView = view;
       mTextureView = textureView;
+      setMetrics( new PipelineMetrics( TAG ) );
    }
 
-   private void calculateMediaStats( Uri uri ) {
+   /**
+    * Where the extract, decode and render timings go, a registry of its own unless set. Values add up over the
+    * controller's life, the snapshot is written whenever a decoder thread ends. Set before setVideoUri.
+    */
+   public void setMetrics( PipelineMetrics metrics ) {
+      mMetrics = metrics;
 
-      MediaMetadataRetriever r = new MediaMetadataRetriever();
+      mExtractTime = metrics.getHistogram( PipelineMetrics.STAGE_EXTRACT );
+      mDecodeTime = metrics.getHistogram( PipelineMetrics.STAGE_DECODE );
+      mRenderTime = metrics.getHistogram( PipelineMetrics.STAGE_RENDER );
 
-      if ( r != null ) {
-         try {
-            r.setDataSource( uri.toString() );
-         } catch ( RuntimeException exception ) {
-            r.release();
-            return;
-         }
+      mSamplesExtracted = metrics.getCounter( PipelineMetrics.COUNTER_SAMPLES_EXTRACTED );
+      mFramesDecoded = metrics.getCounter( PipelineMetrics.COUNTER_FRAMES_DECODED );
+      mFramesDropped = metrics.getCounter( PipelineMetrics.COUNTER_FRAMES_DROPPED );
+   }
 
-         String widthString = r.extractMetadata( MediaMetadataRetriever.METADATA_KEY_VIDEO_WIDTH );
-         String heightString = r.extractMetadata( MediaMetadataRetriever.METADATA_KEY_VIDEO_HEIGHT );
+   public PipelineMetrics getMetrics() {
+      return mMetrics;
+   }
 
-         String durationString = r.extractMetadata( MediaMetadataRetriever.METADATA_KEY_DURATION );
+   /**
+    * Rebinds a retained controller to a recreated view hierarchy, e.g. after a configuration change.
+    */
+   public void setViews( VideoPlayerView view, ScaledTextureView textureView ) {
+      mVideoPlayerView = view;
+      mTextureView = textureView;
 
-         r.release();
+      applyVideoLayout();
+   }
 
-         mVideoWidth = Integer.parseInt( widthString );
-         mVideoHeight = Integer.parseInt( heightString );
+   private void applyVideoLayout() {
+      ViewGroup.LayoutParams params = mTextureView.getLayoutParams();
+      params.width = ViewGroup.LayoutParams.MATCH_PARENT;
+      params.height = ViewGroup.LayoutParams.MATCH_PARENT;
+      mTextureView.setRotation( mRotation );
+      mTextureView.setLayoutParams( params );
+      mTextureView.requestLayout();
+      mVideoPlayerView.requestLayout();
+   }
 
-         mDuration = Integer.parseInt( durationString );
+   @Override
+   public void setVideoUri( Uri uri ) {
+      super.setVideoUri( uri );
 
-         mRotation = MediaHelper.GetRotation( uri );
+      // Open the extractor, create the codec and read the first sync sample while we wait for the surface.
+      mPrepareThread = new PrepareThread( uri, null, 0 );
+      mPrepareThread.start();
+   }
 
-         if ( mRotation == 90 || mRotation == 270 ) {
+   /**
+    * True when a decoder configured for a can go on with b's samples: same mime type, size and codec config bytes.
+    * Before API 19's adaptive playback a running decoder can't be counted on to take new parameter sets.
+    */
+   private static boolean isSameConfig( MediaFormat a, MediaFormat b ) {
+      if ( !a.getString( MediaFormat.KEY_MIME ).equals( b.getString( MediaFormat.KEY_MIME ) ) || a.getInteger( MediaFormat.KEY_WIDTH ) != b.getInteger( MediaFormat.KEY_WIDTH ) || a.getInteger( MediaFormat.KEY_HEIGHT ) != b.getInteger( MediaFormat.KEY_HEIGHT ) ) {
+         return false;
+      }
 
+      for ( int i = 0;; i++ ) {
+         String key = "csd-" + i;
+         if ( a.containsKey( key ) != b.containsKey( key ) ) {
+            return false;
+         }
+         if ( !a.containsKey( key ) ) {
+            return true;
          }
 
-         ViewGroup.LayoutParams params = mTextureView.getLayoutParams();
-         params.width = ViewGroup.LayoutParams.MATCH_PARENT;
-         params.height = ViewGroup.LayoutParams.MATCH_PARENT;
-         mTextureView.setRotation( mRotation );
-         mTextureView.setLayoutParams( params );
-         mTextureView.requestLayout();
-         mVideoPlayerView.requestLayout();
+         ByteBuffer csdA = a.getByteBuffer( key ).duplicate();
+         ByteBuffer csdB = b.getByteBuffer( key ).duplicate();
+         csdA.position( 0 );
+         csdB.position( 0 );
+         if ( !csdA.equals( csdB ) ) {
+            return false;
+         }
       }
    }
 
-   @Override
-   public void setVideoUri( Uri uri ) {
-      super.setVideoUri( uri );
-      calculateMediaStats( uri );
+   private void onMediaStatsAvailable( PrepareThread prepared ) {
+      mVideoWidth = prepared.mWidth;
+      mVideoHeight = prepared.mHeight;
+      mDuration = prepared.mDuration;
+      mRotation = prepared.mRotation;
+
+      mHandler.post( new Runnable() {
+
+         @Override
+         public void run() {
+            applyVideoLayout();
+            onPrepared();
+         }
+
+      } );
+   }
+
+   /**
+    * Makes this player follow the given clock, or its own timer again when null. Call before playback starts.
+    */
+   public void setSharedClock( SharedPlaybackClock clock ) {
+      if ( mClock != null ) {
+         mClock.removeController( this );
+      }
+
+      mClock = clock;
+
+      if ( mClock != null ) {
+         mTimer = mClock.mTimer;
+         mClock.addController( this );
+      } else {
+         mTimer = new PlaybackTimer();
+      }
+   }
+
+   public SharedPlaybackClock getSharedClock() {
+      return mClock;
    }
 
    @Override
    public void play() {
-      mTimer.start();
+      if ( mClock != null ) {
+         mClock.play();
+         return;
+      }
+
+      playFromClock();
+   }
+
+   void playFromClock() {
+      if ( mDecoderThread == null ) {
+         if ( !mEvicted || mSurfaceTexture == null ) {
+            return;
+         }
+         restartAfterEviction();
+      }
+
+      if ( mClock == null ) {
+         mTimer.start();
+      }
       mDecoderThread.play();
    }
 
    @Override
    public void pause() {
+      if ( mClock != null ) {
+         mClock.pause();
+         return;
+      }
+
       mTimer.stop();
-      mDecoderThread.pause();
+      pauseFromClock();
+   }
+
+   void pauseFromClock() {
+      if ( mDecoderThread != null ) {
+         mDecoderThread.stopFeeding();
+      }
+   }
+
+   @Override
+   public void onDecoderEvicted() {
+      mHandler.post( new Runnable() {
+
+         @Override
+         public void run() {
+            releaseDecoder();
+         }
+
+      } );
+   }
+
+   /**
+    * Gives the codec back to the pool, keeping the position to pick up from. The first frame poster covers the view
+    * until the decoder is back.
+    */
+   private void releaseDecoder() {
+      if ( mEvicted ) {
+         return;
+      }
+
+      mEvicted = true;
+      mResumePositionMs = getCurrentPosition();
+
+      // Only this player stops, a shared clock keeps running for the others.
+      if ( mClock == null && isPlaying() ) {
+         mVideoPlayerView.pause();
+      }
+
+      if ( mSurfaceTextureAttached ) {
+         Bitmap poster = PosterCache.getInstance().get( mVideoUri );
+         if ( poster != null ) {
+            mVideoPlayerView.showPoster( poster );
+            mPosterShowing = true;
+         }
+      }
+
+      stopDecoding();
+   }
+
+   private void restartAfterEviction() {
+      mEvicted = false;
+      mItemStartMs = 0;
+
+      // The player is already prepared, and the new codec must wait until the old thread let go of its codec and the
+      // surface.
+      mPrepareThread = new PrepareThread( mVideoUri, null, mResumePositionMs );
+      mPrepareThread.mNotifyPrepared = false;
+      mPrepareThread.mWaitFor = mStoppedDecoderThread;
+      mPrepareThread.start();
+      mStoppedDecoderThread = null;
+
+      mDecoderThread = new DecoderThread( new Surface( mSurfaceTexture ), mPrepareThread );
+      mDecoderThread.start();
    }
 
    int mSeekToMs = -1;
 
    @Override
    public void seekTo( int ms ) {
+      if ( mClock != null ) {
+         mClock.seekTo( ms );
+         return;
+      }
+
+      seekFromClock( ms );
+   }
+
+   void seekFromClock( int ms ) {
       mSeekToMs = ms;
    }
 
@@ -137,10 +356,43 @@ public class MediaCodecDecodeController extends ControllerBase {
    @Override
    public void onSurfaceTextureAvailable( SurfaceTexture surfaceTexture, int width, int height ) {
 
-      Surface surface = new Surface( surfaceTexture );
+      mSurfaceTextureAttached = true;
 
-      mDecoderThread = new DecoderThread( surface, mVideoUri );
-      mDecoderThread.start();
+      if ( mEvicted ) {
+         Bitmap poster = PosterCache.getInstance().get( mVideoUri );
+         if ( poster != null ) {
+            mVideoPlayerView.showPoster( poster );
+            mPosterShowing = true;
+         }
+
+         if ( mSurfaceTexture != null && surfaceTexture != mSurfaceTexture ) {
+            mTextureView.setSurfaceTexture( mSurfaceTexture );
+         } else {
+            mSurfaceTexture = surfaceTexture;
+         }
+         restartAfterEviction();
+      } else if ( mDecoderThread == null ) {
+         mSurfaceTexture = surfaceTexture;
+
+         Surface surface = new Surface( surfaceTexture );
+
+         mDecoderThread = new DecoderThread( surface, mPrepareThread );
+         mDecoderThread.start();
+      } else if ( surfaceTexture != mSurfaceTexture ) {
+         // The TextureView was recreated (rotation, coming back from the background). Hand it the SurfaceTexture
+         // the decoder is still attached to, it already holds the last decoded frame. The TextureView releases
+         // the one it just created.
+         mTextureView.setSurfaceTexture( mSurfaceTexture );
+      }
+
+      if ( mDecoderThread != null ) {
+         mDecoderThread.touch();
+
+         // A shared clock kept running while this player had no surface, it catches up from here.
+         if ( mClock != null && mClock.isRunning() ) {
+            mDecoderThread.play();
+         }
+      }
    }
 
    @Override
@@ -149,11 +401,46 @@ public class MediaCodecDecodeController extends ControllerBase {
 
    @Override
    public boolean onSurfaceTextureDestroyed( SurfaceTexture surface ) {
+
+      if ( surface != mSurfaceTexture || mDecoderThread == null ) {
+         if ( surface == mSurfaceTexture ) {
+            mSurfaceTexture = null;
+         }
+         return true;
+      }
+
+      mSurfaceTextureAttached = false;
+
+      // Nobody is consuming frames until a new TextureView picks the SurfaceTexture back up. Only this player stops, a
+      // shared clock keeps running for the others.
+      if ( mClock != null ) {
+         pauseFromClock();
+      } else if ( isPlaying() ) {
+         pause();
+      }
+
+      // Keep the SurfaceTexture alive, the decoder is still configured against it.
       return false;
    }
 
    @Override
    public void onSurfaceTextureUpdated( SurfaceTexture surface ) {
+      if ( surface != mSurfaceTexture ) {
+         return;
+      }
+
+      if ( !mFirstFrameRendered ) {
+         mFirstFrameRendered = true;
+         if ( PosterCache.getInstance().get( mVideoUri ) == null ) {
+            PosterCache.getInstance().put( mVideoUri, mTextureView.getBitmap() );
+         }
+         onFirstFrameRendered();
+      }
+
+      if ( mPosterShowing ) {
+         mPosterShowing = false;
+         mVideoPlayerView.hidePoster();
+      }
    }
 
    @Override
@@ -163,7 +450,7 @@ public class MediaCodecDecodeController extends ControllerBase {
 
    @Override
    public int getCurrentPosition() {
-      return (int) mTimer.getTime();
+      return (int) mTimer.getTime() - mItemStartMs;
    }
 
    @Override
@@ -177,17 +464,36 @@ public class MediaCodecDecodeController extends ControllerBase {
    }
 
    public void shutDown() {
-      mDecoderThread.shutDown();
+      stopDecoding();
    }
 
-   private class DecoderThread extends Thread {
+   private void stopDecoding() {
+      if ( mDecoderThread != null ) {
+         // If no view holds the SurfaceTexture anymore we are its last owner, let the decoder thread release it
+         // once the codec is no longer rendering into it.
+         mDecoderThread.shutDown( mSurfaceTextureAttached ? null : mSurfaceTexture );
+         mStoppedDecoderThread = mDecoderThread;
+         mDecoderThread = null;
+      } else if ( mPrepareThread != null ) {
+         mPrepareThread.cancel();
+      }
+      mPrepareThread = null;
+
+      if ( !mSurfaceTextureAttached ) {
+         mSurfaceTexture = null;
+      }
+   }
+
+   class DecoderThread extends Thread implements SharedPlaybackClock.Subscriber {
 
       Surface mSurface;
 
-      Uri mUri;
+      PrepareThread mPrepared;
 
       MediaExtractor mExtractor;
 
+      MediaFormat mFormat;
+
       ByteBuffer[] mInputBuffers;
       ByteBuffer[] mOutputBuffers;
 
@@ -195,53 +501,414 @@ public class MediaCodecDecodeController extends ControllerBase {
 
       MediaCodec mDecoder;
 
+      // The loop's side of mDecoder, every per frame call goes through it.
+      CodecQueue mDecoderQueue;
+
       BufferInfo mInfo;
 
       boolean mPlaying;
 
-      public DecoderThread( Surface surface, Uri videoUri ) {
+      SurfaceTexture mReleaseOnExit;
+
+      // A sample read ahead of the extractor during preparation.
+      ByteBuffer mPendingSample;
+      long mPendingSampleTime;
+
+      // Playlist bookkeeping. The input side runs ahead of the output side, so each keeps its own item.
+      int mInputItemIndex;
+      long mInputItemOffsetUs = 0;
+      long mInputItemDurationUs;
+      long mLastInputSampleTimeUs = 0;
+
+      PrepareThread mNextItem;
+
+      // Set once the next item's decoder has to replace ours, after the current one has drained.
+      boolean mDecoderSwitchPending = false;
+
+      MediaCodec mNextDecoder;
+
+      // Items spliced on the input side that haven't reached the output yet, in playlist order. Short items can
+      // follow each other before the first one is on screen.
+      ArrayList<PrepareThread> mOutputPendingItems = new ArrayList<PrepareThread>();
+
+      // With a shared clock, the decoded frame waiting for the scheduler thread to release it.
+      final Object mFrameLock = new Object();
+      int mPendingFrameIndex = -1;
+      long mPendingFrameTimeMs;
+
+      // After a frame was dropped for being late, frames up to this clock time are decoded without waiting for the
+      // scheduler. Only the newest of them, the held frame, is rendered.
+      long mCatchUpToMs = -1;
+      int mHeldFrameIndex = -1;
+
+      FrameLatencyTracker mDecodeLatency = new FrameLatencyTracker( mDecodeTime );
+
+      public DecoderThread( Surface surface, PrepareThread prepared ) {
          mSurface = surface;
-         mUri = videoUri;
+         mPrepared = prepared;
+      }
 
-         setupExtractor();
+      private boolean setupDecoder() {
+         try {
+            mPrepared.join();
+         } catch ( InterruptedException e ) {
+            return false;
+         }
+
+         if ( mPrepared.mDecoder == null ) {
+            Log.e( TAG, "Decoder was not prepared, nothing to play" );
+            return false;
+         }
+
+         mExtractor = mPrepared.mExtractor;
+         mFormat = mPrepared.mFormat;
+         mDecoder = mPrepared.mDecoder;
+
+         // The codec was created up front, all that is left is attaching the output surface.
+         mDecoder.configure( mFormat, mSurface, null, 0 );
+         mDecoder.start();
+         mDecoderQueue = new MediaCodecQueue( mDecoder );
+
+         mInfo = new BufferInfo();
+
+         mInputBuffers = mDecoderQueue.getInputBuffers();
+         mOutputBuffers = mDecoderQueue.getOutputBuffers();
+
+         mPendingSample = mPrepared.mFirstSample;
+         mPendingSampleTime = mPrepared.mFirstSampleTime;
+         mPrepared.mFirstSample = null;
+
+         // After an eviction we come back somewhere in the middle of the item.
+         mCurrentPosition = (int) ( mPrepared.mFirstSampleTime / 1000 );
+         if ( mClock == null ) {
+            mTimer.setTime( mCurrentPosition );
+         } else {
+            mClock.addSubscriber( this );
+         }
+
+         mInputItemIndex = getPlaylistIndex();
+         mInputItemDurationUs = mPrepared.mDurationUs;
+
+         prerollNextItem();
+
+         return true;
       }
 
-      private void setupExtractor() {
-         mExtractor = new MediaExtractor();
+      /**
+       * Starts preparing the item after the one currently fed to the decoder, if there is one.
+       */
+      private void prerollNextItem() {
+         Uri nextUri = getPlaylistItem( mInputItemIndex + 1 );
+         if ( nextUri != null ) {
+            mNextItem = new PrepareThread( nextUri, mFormat, 0 );
+            mNextItem.start();
+         }
+      }
+
+      /**
+       * Queues one input buffer: a pre-read sample first, then the extractor. At the end of an item the next playlist
+       * item is spliced in, either into this decoder or after it drained.
+       */
+      private void feedInput( int inIndex ) {
+         ByteBuffer buffer = mInputBuffers[inIndex];
+         buffer.clear();
+
+         if ( mPendingSample != null ) {
+            buffer.put( mPendingSample );
+            mDecodeLatency.frameIn( mPendingSampleTime + mInputItemOffsetUs );
+            mDecoderQueue.queueInputBuffer( inIndex, 0, buffer.position(), mPendingSampleTime + mInputItemOffsetUs, 0 );
+            mLastInputSampleTimeUs = mPendingSampleTime;
+            mPendingSample = null;
+            return;
+         }
+
+         long extractStartNs = System.nanoTime();
+         int sampleSize = mExtractor.readSampleData( buffer, 0 );
+         mExtractTime.recordSince( extractStartNs );
+         if ( sampleSize >= 0 ) {
+            mLastInputSampleTimeUs = mExtractor.getSampleTime();
+            mDecodeLatency.frameIn( mLastInputSampleTimeUs + mInputItemOffsetUs );
+            mDecoderQueue.queueInputBuffer( inIndex, 0, sampleSize, mLastInputSampleTimeUs + mInputItemOffsetUs, 0 );
+            mExtractor.advance();
+            mSamplesExtracted.incrementAndGet();
+            return;
+         }
+
+         if ( spliceNextItem() ) {
+            if ( mDecoderSwitchPending ) {
+               // Formats differ, drain this decoder before the next one takes over the surface.
+               mDecoderQueue.queueInputBuffer( inIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM );
+            } else {
+               feedInput( inIndex );
+            }
+         } else {
+            mDecoderQueue.queueInputBuffer( inIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM );
+         }
+      }
+
+      /**
+       * Moves the input side to the prerolled next item. Its samples continue on the same timeline, starting at the
+       * end timestamp of the current item.
+       */
+      private boolean spliceNextItem() {
+         if ( mNextItem == null ) {
+            return false;
+         }
+
          try {
-            mExtractor.setDataSource( mUri.toString() );
-         } catch ( IOException e ) {
-            e.printStackTrace();
+            mNextItem.join();
+         } catch ( InterruptedException e ) {
+            return false;
          }
 
-         int videoIndex = 0;
+         PrepareThread next = mNextItem;
+         mNextItem = null;
 
-         for ( int trackIndex = 0; trackIndex < mExtractor.getTrackCount(); trackIndex++ ) {
-            MediaFormat format = mExtractor.getTrackFormat( trackIndex );
+         if ( next.mExtractor == null ) {
+            // Unplayable item, end the playlist here.
+            return false;
+         }
 
-            String mime = format.getString( MediaFormat.KEY_MIME );
-            if ( mime != null ) {
-               if ( mime.equals( "video/avc" ) ) {
-                  mExtractor.selectTrack( trackIndex );
-                  videoIndex = trackIndex;
+         long endTimeUs = mInputItemDurationUs;
+         if ( endTimeUs <= 0 ) {
+            endTimeUs = mLastInputSampleTimeUs + DEFAULT_FRAME_DURATION_US;
+         }
+
+         mInputItemOffsetUs += endTimeUs;
+         mInputItemDurationUs = next.mDurationUs;
+         mInputItemIndex++;
+
+         mExtractor.release();
+         mExtractor = next.mExtractor;
+         next.mExtractor = null;
+
+         mPendingSample = next.mFirstSample;
+         mPendingSampleTime = next.mFirstSampleTime;
+         next.mFirstSample = null;
+
+         next.mItemIndex = mInputItemIndex;
+         next.mItemOffsetUs = mInputItemOffsetUs;
+         mOutputPendingItems.add( next );
+
+         // Without a decoder of its own the item has the same config as ours, its samples just follow.
+         if ( next.mDecoder != null ) {
+            mNextDecoder = next.mDecoder;
+            next.mDecoder = null;
+            mDecoderSwitchPending = true;
+         }
+
+         mFormat = next.mFormat;
+
+         prerollNextItem();
+
+         return true;
+      }
+
+      /**
+       * Replaces the drained decoder with the one prepared for the next item.
+       */
+      private void switchDecoder() {
+         mDecoder.stop();
+         DecoderPool.getInstance().release( mDecoder, MediaHelper.MIME_TYPE_AVC );
+
+         mDecoder = mNextDecoder;
+         mNextDecoder = null;
+
+         mDecoder.configure( mFormat, mSurface, null, 0 );
+         mDecoder.start();
+         mDecoderQueue = new MediaCodecQueue( mDecoder );
+
+         mInputBuffers = mDecoderQueue.getInputBuffers();
+         mOutputBuffers = mDecoderQueue.getOutputBuffers();
+
+         mDecoderSwitchPending = false;
+      }
+
+      /**
+       * Called for every rendered frame. Once the output reaches a spliced item's first timestamp that item is the one
+       * on screen, items the output went past in one step are still reported in order.
+       */
+      private void checkOutputItem( long presentationTimeUs ) {
+         while ( !mOutputPendingItems.isEmpty() && presentationTimeUs >= mOutputPendingItems.get( 0 ).mItemOffsetUs ) {
+            PrepareThread item = mOutputPendingItems.remove( 0 );
+
+            mItemStartMs = (int) ( item.mItemOffsetUs / 1000 );
+            onMediaStatsAvailable( item );
+            onPlaylistItemStarted( item.mItemIndex );
+         }
+      }
+
+      /**
+       * Renders a decoded frame. On our own timer the loop already waited for it to be due, with a shared clock the
+       * frame is handed to the scheduler thread and we wait until it was released.
+       */
+      private void renderOutputBuffer( int index, long presentationTimeUs ) {
+         mTracer.instant( EventTracer.DECODER_OUTPUT, presentationTimeUs );
+         mDecodeLatency.frameOut( presentationTimeUs );
+         mFramesDecoded.incrementAndGet();
+
+         if ( mClock == null ) {
+            long renderStartNs = System.nanoTime();
+            mDecoderQueue.releaseOutputBuffer( index, true );
+            mRenderTime.recordSince( renderStartNs );
+            return;
+         }
+
+         synchronized ( mFrameLock ) {
+            long timeMs = presentationTimeUs / 1000;
+            if ( mCatchUpToMs >= 0 ) {
+               if ( timeMs <= mCatchUpToMs ) {
+                  if ( mHeldFrameIndex >= 0 ) {
+                     releaseToSurface( mHeldFrameIndex, -1, false );
+                  }
+                  mHeldFrameIndex = index;
+                  return;
+               }
+
+               // Caught up, show the newest frame up to the clock and go back to the scheduler with this one.
+               if ( mHeldFrameIndex >= 0 ) {
+                  releaseToSurface( mHeldFrameIndex, mCatchUpToMs, true );
+               }
+               mHeldFrameIndex = -1;
+               mCatchUpToMs = -1;
+            }
+
+            mPendingFrameIndex = index;
+            mPendingFrameTimeMs = timeMs;
+
+            while ( mPendingFrameIndex >= 0 && !mThreadStoped && mSeekToMs == -1 ) {
+               try {
+                  mFrameLock.wait( FRAME_WAIT_MS );
+               } catch ( InterruptedException e ) {
                   break;
                }
             }
          }
+      }
 
-         mDecoder = MediaCodec.createDecoderByType( "video/avc" );
-         mDecoder.configure( mExtractor.getTrackFormat( videoIndex ), mSurface, null, 0 );
-         mDecoder.start();
+      @Override
+      public void releaseFrame( long clockTimeMs, long dropBeforeMs ) {
+         synchronized ( mFrameLock ) {
+            if ( mPendingFrameIndex < 0 || mPendingFrameTimeMs > clockTimeMs ) {
+               return;
+            }
 
-         mInfo = new BufferInfo();
+            boolean render = mPendingFrameTimeMs >= dropBeforeMs;
+            releaseToSurface( mPendingFrameIndex, mPendingFrameTimeMs, render );
+            if ( !render ) {
+               // Dropping one frame per vsync would never catch up, skip ahead to the clock right away instead.
+               mCatchUpToMs = clockTimeMs;
+            }
+            mPendingFrameIndex = -1;
+            mFrameLock.notifyAll();
+         }
+      }
+
+      /**
+       * Releases an output buffer, rendered or dropped. Called with mFrameLock held.
+       */
+      private void releaseToSurface( int index, long timeMs, boolean render ) {
+         mTracer.instant( EventTracer.RELEASE_FRAME, render ? timeMs : -1 );
+         long renderStartNs = System.nanoTime();
+         mDecoderQueue.releaseOutputBuffer( index, render );
+         if ( render ) {
+            mRenderTime.recordSince( renderStartNs );
+         } else {
+            mFramesDropped.incrementAndGet();
+         }
+      }
+
+      /**
+       * Renders the first decoded frame, so there is a picture on screen before play is pressed.
+       */
+      private void renderFirstFrame() {
+         boolean rendered = false;
+
+         while ( !rendered && !mThreadStoped ) {
+            int inIndex = mDecoderQueue.dequeueInputBuffer( 10000 );
+            if ( inIndex >= 0 ) {
+               feedInput( inIndex );
+            }
 
-         mInputBuffers = mDecoder.getInputBuffers();
-         mOutputBuffers = mDecoder.getOutputBuffers();
+            int outIndex = mDecoderQueue.dequeueOutputBuffer( mInfo, 10000 );
+            if ( outIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED ) {
+               mOutputBuffers = mDecoderQueue.getOutputBuffers();
+            } else if ( outIndex >= 0 ) {
+               mDecodeLatency.frameOut( mInfo.presentationTimeUs );
+               mFramesDecoded.incrementAndGet();
+               mDecoderQueue.releaseOutputBuffer( outIndex, true );
+               mCurrentPosition = (int) ( mInfo.presentationTimeUs / 1000 );
+               rendered = true;
+            }
+
+            if ( ( mInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM ) != 0 ) {
+               break;
+            }
+         }
+      }
+
+      /**
+       * One turn of the playing loop: queues an input buffer if the decoder has one free and takes whatever output is
+       * ready. Returns true once the output reached the end of the playlist.
+       */
+      boolean decodeFrame() {
+         // Once end of stream is queued for a decoder switch the old decoder takes no more input.
+         int inIndex = mDecoderSwitchPending ? -1 : mDecoderQueue.dequeueInputBuffer( 10000 );
+
+         // Log.d( TAG, String.format( "Got index %d", inIndex ) );
+
+         if ( inIndex >= 0 ) {
+            feedInput( inIndex );
+         }
+
+         int outIndex = mDecoderQueue.dequeueOutputBuffer( mInfo, 10000 );
+         mCurrentPosition = (int) ( mInfo.presentationTimeUs / 1000 );
+
+         // Log.d( TAG, String.format( Locale.US, "current position is %d", mCurrentPosition ) );
+
+         switch ( outIndex ) {
+         case MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED:
+            mTracer.instant( EventTracer.DECODER_BUFFERS_CHANGED );
+            mInputBuffers = mDecoderQueue.getInputBuffers();
+            mOutputBuffers = mDecoderQueue.getOutputBuffers();
+            break;
+         case MediaCodec.INFO_OUTPUT_FORMAT_CHANGED:
+            Log.d( TAG, "New format " + mDecoderQueue.getOutputFormat() );
+            break;
+         case MediaCodec.INFO_TRY_AGAIN_LATER:
+            mTracer.instant( EventTracer.DECODER_OUTPUT_UNAVAILABLE );
+            break;
+         default:
+            ByteBuffer buffer = mOutputBuffers[outIndex];
+            // Log.v( TAG, "We can't use this buffer but render it due to the API limit, " + buffer );
+
+            renderOutputBuffer( outIndex, mInfo.presentationTimeUs );
+            checkOutputItem( mInfo.presentationTimeUs );
+            break;
+         }
+
+         if ( ( mInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM ) != 0 ) {
+            // Log.d( TAG, "OutputBuffer BUFFER_FLAG_END_OF_STREAM" );
+            if ( mDecoderSwitchPending ) {
+               switchDecoder();
+               mInfo.flags = 0;
+            } else {
+               return true;
+            }
+         }
+
+         return false;
       }
 
       @Override
       public void run() {
 
+         if ( !setupDecoder() ) {
+            return;
+         }
+
+         renderFirstFrame();
+
          boolean isEOS = false;
 
          // Log.d( TAG, String.format( "Got ibuffers %d and o buffers %d", mInputBuffers.length, mOutputBuffers.length ) );
@@ -262,101 +929,270 @@ public class MediaCodecDecodeController extends ControllerBase {
 
                long timertime = mTimer.getTime();
 
-               if ( timertime < mCurrentPosition ) {
+               if ( mClock == null && timertime < mCurrentPosition ) {
                   continue;
                }
 
-               int inIndex = mDecoder.dequeueInputBuffer( 10000 );
-
-               // Log.d( TAG, String.format( "Got index %d", inIndex ) );
-
-               if ( inIndex >= 0 ) {
-                  ByteBuffer buffer = mInputBuffers[inIndex];
-                  int sampleSize = mExtractor.readSampleData( buffer, 0 );
-                  if ( sampleSize < 0 ) {
-                     // Log.d( TAG, "InputBuffer BUFFER_FLAG_END_OF_STREAM" );
-                     mDecoder.queueInputBuffer( inIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM );
-                     isEOS = true;
-                  } else {
-                     // Log.d( TAG, "InputBuffer ADVANCING" );
-                     mDecoder.queueInputBuffer( inIndex, 0, sampleSize, mExtractor.getSampleTime(), 0 );
-                     if ( ( mExtractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC ) > 0 ) {
-                        // Log.d( TAG, String.format( Locale.US, "Sync frame at %d", mExtractor.getSampleTime() ) );
-                     }
-                     mExtractor.advance();
-                  }
-               }
-
-               int outIndex = mDecoder.dequeueOutputBuffer( mInfo, 10000 );
-               mCurrentPosition = (int) mInfo.presentationTimeUs / 1000;
-
-               // Log.d( TAG, String.format( Locale.US, "current position is %d", mCurrentPosition ) );
-
-               switch ( outIndex ) {
-               case MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED:
-                  Log.d( TAG, "INFO_OUTPUT_BUFFERS_CHANGED" );
-                  mInputBuffers = mDecoder.getInputBuffers();
-                  mOutputBuffers = mDecoder.getOutputBuffers();
-                  break;
-               case MediaCodec.INFO_OUTPUT_FORMAT_CHANGED:
-                  Log.d( TAG, "New format " + mDecoder.getOutputFormat() );
-                  break;
-               case MediaCodec.INFO_TRY_AGAIN_LATER:
-                  Log.d( TAG, "dequeueOutputBuffer timed out!" );
-                  break;
-               default:
-                  ByteBuffer buffer = mOutputBuffers[outIndex];
-                  // Log.v( TAG, "We can't use this buffer but render it due to the API limit, " + buffer );
-
-                  mDecoder.releaseOutputBuffer( outIndex, true );
-                  break;
-               }
-
-               if ( ( mInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM ) != 0 ) {
-                  // Log.d( TAG, "OutputBuffer BUFFER_FLAG_END_OF_STREAM" );
-                  isEOS = true;
-               }
+               isEOS = decodeFrame();
 
                if ( isEOS ) {
-                  pause();
+                  // A shorter clip ending stops only this player, not a shared clock.
+                  stopFeeding();
                   onCompletion();
                }
+            } else {
+               // Nothing to do until play, don't spin. Matters with many players alive at once.
+               SystemClock.sleep( IDLE_WAIT_MS );
             }
          }
 
+         if ( mClock != null ) {
+            mClock.removeSubscriber( this );
+         }
+
          mDecoder.stop();
-         mDecoder.release();
+         DecoderPool.getInstance().release( mDecoder, MediaHelper.MIME_TYPE_AVC );
          mExtractor.release();
+         mSurface.release();
+
+         if ( mNextItem != null ) {
+            mNextItem.cancel();
+         }
+         if ( mNextDecoder != null ) {
+            DecoderPool.getInstance().release( mNextDecoder, MediaHelper.MIME_TYPE_AVC );
+         }
+
+         if ( mReleaseOnExit != null ) {
+            mReleaseOnExit.release();
+         }
+
+         mMetrics.writeSnapshot();
       }
 
       private void seekTo( long ms, int seekMode ) {
 
          // Log.d( TAG, String.format( Locale.US, "seeking to %d", ms ) );
 
+         synchronized ( mFrameLock ) {
+            // Frames still waiting for the scheduler or held while catching up are dropped by the flush below.
+            mPendingFrameIndex = -1;
+            mHeldFrameIndex = -1;
+            mCatchUpToMs = -1;
+         }
+
+         if ( mDecoderSwitchPending ) {
+            // The current decoder was told to drain, bring in the next item's decoder before seeking in it.
+            switchDecoder();
+         }
+
+         // Seeking always happens in the item the input side is on, which becomes the item on screen.
+         checkOutputItem( Long.MAX_VALUE );
+
          mExtractor.seekTo( ms * 1000, seekMode );
-         mCurrentPosition = (int) mExtractor.getSampleTime() / 1000;
-         mTimer.setTime( mCurrentPosition );
+         mPendingSample = null;
+         mCurrentPosition = (int) ( ( mExtractor.getSampleTime() + mInputItemOffsetUs ) / 1000 );
+         if ( mClock == null ) {
+            mTimer.setTime( mCurrentPosition );
+         }
          // Log.d( TAG, String.format( Locale.US, "seeking extractor to %d, sample time is now %d", ms, mExtractor.getSampleTime() ) );
          mDecoder.flush();
-         mInputBuffers = mDecoder.getInputBuffers();
-         mOutputBuffers = mDecoder.getOutputBuffers();
+         mDecodeLatency.clear();
 
-         mInfo = new BufferInfo();
+         // Flushing keeps the codec's buffers, only the info of the last output has to go.
+         mInfo.set( 0, 0, 0, 0 );
       }
 
-      public void pause() {
+      public void stopFeeding() {
          mPlaying = false;
-         mTimer.stop();
+         if ( mClock == null ) {
+            mTimer.stop();
+         }
       }
 
       public void play() {
          mPlaying = true;
-         mTimer.start();
+         if ( mClock == null ) {
+            mTimer.start();
+         }
+         touch();
       }
 
-      public void shutDown() {
+      public void touch() {
+         MediaCodec decoder = mDecoder;
+         if ( decoder != null ) {
+            DecoderPool.getInstance().touch( decoder );
+         }
+      }
+
+      public void shutDown( SurfaceTexture releaseOnExit ) {
+         mReleaseOnExit = releaseOnExit;
          mThreadStoped = true;
       }
    }
 
+   /**
+    * Does everything that doesn't need the output surface: opens the extractor, parses the track format, creates the
+    * codec and reads the first sync sample. Started as soon as the uri is known.
+    */
+   private class PrepareThread extends Thread {
+
+      Uri mUri;
+
+      MediaExtractor mExtractor;
+
+      MediaFormat mFormat;
+
+      MediaCodec mDecoder;
+
+      ByteBuffer mFirstSample;
+
+      long mFirstSampleTime;
+
+      int mWidth;
+      int mHeight;
+      int mDuration;
+      long mDurationUs;
+      int mRotation;
+
+      // Format of the item playing before this one, null for the first item.
+      MediaFormat mPreviousFormat;
+
+      // Where a spliced item sits in the playlist and on its timeline.
+      int mItemIndex;
+      long mItemOffsetUs;
+
+      int mStartPositionMs;
+
+      // False when re-preparing after an eviction, the listener already had onPrepared.
+      boolean mNotifyPrepared = true;
+
+      // Thread that has to be done with its codec before this one takes another.
+      Thread mWaitFor;
+
+      boolean mFinished = false;
+
+      boolean mCancelled = false;
+
+      public PrepareThread( Uri uri, MediaFormat previousFormat, int startPositionMs ) {
+         super( "PrepareThread" );
+         mUri = uri;
+         mPreviousFormat = previousFormat;
+         mStartPositionMs = startPositionMs;
+      }
+
+      @Override
+      public void run() {
+
+         prepare();
+
+         synchronized ( this ) {
+            mFinished = true;
+            if ( mCancelled ) {
+               releaseResources();
+            }
+         }
+      }
+
+      /**
+       * Used when no decoder thread ever took ownership of the prepared codec and extractor.
+       */
+      public synchronized void cancel() {
+         mCancelled = true;
+         if ( mFinished ) {
+            releaseResources();
+         }
+      }
+
+      private void releaseResources() {
+         if ( mDecoder != null ) {
+            DecoderPool.getInstance().release( mDecoder, MediaHelper.MIME_TYPE_AVC );
+            mDecoder = null;
+         }
+         if ( mExtractor != null ) {
+            mExtractor.release();
+            mExtractor = null;
+         }
+      }
+
+      private void prepare() {
+
+         if ( mWaitFor != null ) {
+            try {
+               mWaitFor.join();
+            } catch ( InterruptedException e ) {
+               return;
+            }
+            mWaitFor = null;
+         }
+
+         mExtractor = new MediaExtractor();
+         try {
+            mExtractor.setDataSource( mUri.toString() );
+         } catch ( IOException e ) {
+            e.printStackTrace();
+            mExtractor.release();
+            mExtractor = null;
+            return;
+         }
+
+         for ( int trackIndex = 0; trackIndex < mExtractor.getTrackCount(); trackIndex++ ) {
+            MediaFormat format = mExtractor.getTrackFormat( trackIndex );
+
+            String mime = format.getString( MediaFormat.KEY_MIME );
+            if ( mime != null ) {
+               if ( mime.equals( MediaHelper.MIME_TYPE_AVC ) ) {
+                  mExtractor.selectTrack( trackIndex );
+                  mFormat = format;
+                  break;
+               }
+            }
+         }
+
+         if ( mFormat == null ) {
+            Log.e( TAG, "No video track found in " + mUri );
+            mExtractor.release();
+            mExtractor = null;
+            return;
+         }
+
+         mWidth = mFormat.getInteger( MediaFormat.KEY_WIDTH );
+         mHeight = mFormat.getInteger( MediaFormat.KEY_HEIGHT );
+         if ( mFormat.containsKey( MediaFormat.KEY_DURATION ) ) {
+            mDurationUs = mFormat.getLong( MediaFormat.KEY_DURATION );
+            mDuration = (int) ( mDurationUs / 1000 );
+         }
+         mRotation = MediaHelper.GetRotation( mUri );
+
+         if ( mPreviousFormat == null && mNotifyPrepared ) {
+            onMediaStatsAvailable( this );
+         }
+
+         // A playlist item with the same format and codec config is spliced into the running decoder, it only needs
+         // its own codec when they differ.
+         if ( mPreviousFormat == null || !isSameConfig( mPreviousFormat, mFormat ) ) {
+            mDecoder = DecoderPool.getInstance().acquire( MediaCodecDecodeController.this, MediaHelper.MIME_TYPE_AVC );
+         }
+
+         int maxInputSize = mWidth * mHeight * 3 / 2;
+         if ( mFormat.containsKey( MediaFormat.KEY_MAX_INPUT_SIZE ) ) {
+            maxInputSize = mFormat.getInteger( MediaFormat.KEY_MAX_INPUT_SIZE );
+         }
+
+         if ( mStartPositionMs > 0 ) {
+            mExtractor.seekTo( mStartPositionMs * 1000L, MediaExtractor.SEEK_TO_PREVIOUS_SYNC );
+         }
+
+         // The extractor sits on a sync sample, this is the frame we show first.
+         ByteBuffer sample = ByteBuffer.allocateDirect( maxInputSize );
+         int sampleSize = mExtractor.readSampleData( sample, 0 );
+         if ( sampleSize >= 0 ) {
+            sample.position( 0 );
+            sample.limit( sampleSize );
+            mFirstSample = sample;
+            mFirstSampleTime = mExtractor.getSampleTime();
+            mExtractor.advance();
+         }
+      }
+   }
+
 }
@@ -26,6 +26,7 @@ import android.media.MediaPlayer.OnBufferingUpdateListener;
 import android.media.MediaPlayer.OnCompletionListener;
 import android.media.MediaPlayer.OnPreparedListener;
 import android.media.MediaPlayer.OnVideoSizeChangedListener;
+import android.net.Uri;
 import android.view.Surface;
 
 public class MediaPlayerController extends ControllerBase implements OnBufferingUpdateListener, OnCompletionListener, OnPreparedListener, OnVideoSizeChangedListener {
@@ -75,6 +76,7 @@ public class MediaPlayerController extends ControllerBase implements OnBuffering
          mMediaPlayer.setOnVideoSizeChangedListener( this );
          mMediaPlayer.setAudioStreamType( AudioManager.STREAM_MUSIC );
          mMediaPlayer.seekTo( 0 );
+         onPrepared();
       } catch ( IllegalArgumentException e ) {
          e.printStackTrace();
       } catch ( SecurityException e ) {
@@ -101,7 +103,7 @@ public class MediaPlayerController extends ControllerBase implements OnBuffering
 
    @Override
    public boolean onSurfaceTextureDestroyed( SurfaceTexture surface ) {
-      return false;
+      return true;
    }
 
    @Override
@@ -158,6 +160,21 @@ public class MediaPlayerController extends ControllerBase implements OnBuffering
 
    @Override
    public void onCompletion( MediaPlayer mediaPlayer ) {
+      // MediaPlayer can't splice items, so playlists advance with a reset.
+      Uri nextUri = getPlaylistItem( getPlaylistIndex() + 1 );
+      if ( nextUri != null ) {
+         try {
+            mMediaPlayer.reset();
+            mMediaPlayer.setDataSource( mContext, nextUri );
+            mMediaPlayer.prepare();
+            mMediaPlayer.start();
+            onPlaylistItemStarted( getPlaylistIndex() + 1 );
+            return;
+         } catch ( IOException e ) {
+            e.printStackTrace();
+         }
+      }
+
       onCompletion();
       // showControls();
       // cancelTimer();
@@ -0,0 +1,69 @@
+/**
+   Copyright (c) 2014 Rory Hool
+   
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+   
+       http://www.apache.org/licenses/LICENSE-2.0
+   
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ **/
+
+package com.roryhool.videoplayback;
+
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.util.LruCache;
+
+/**
+ * First frame of each video, kept when it is first rendered. Players that gave up their decoder show it until the
+ * decoder is back and has rendered again.
+ */
+public class PosterCache {
+
+   // Default budget, about four 720p frames.
+   private static final int DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+
+   private static PosterCache sInstance;
+
+   public static synchronized PosterCache getInstance() {
+      if ( sInstance == null ) {
+         sInstance = new PosterCache( DEFAULT_MAX_BYTES );
+      }
+      return sInstance;
+   }
+
+   LruCache<String, Bitmap> mCache;
+
+   private PosterCache( int maxBytes ) {
+      mCache = new LruCache<String, Bitmap>( maxBytes ) {
+
+         @Override
+         protected int sizeOf( String key, Bitmap bitmap ) {
+            return bitmap.getByteCount();
+         }
+      };
+   }
+
+   public void put( Uri uri, Bitmap poster ) {
+      if ( uri != null && poster != null ) {
+         mCache.put( uri.toString(), poster );
+      }
+   }
+
+   public Bitmap get( Uri uri ) {
+      if ( uri == null ) {
+         return null;
+      }
+      return mCache.get( uri.toString() );
+   }
+
+   public void clear() {
+      mCache.evictAll();
+   }
+}
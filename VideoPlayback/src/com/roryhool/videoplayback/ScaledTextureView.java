@@ -66,6 +66,12 @@ public class ScaledTextureView extends TextureView implements SurfaceTextureList
       }
    }
 
+   @Override
+   public void setSurfaceTexture( SurfaceTexture surfaceTexture ) {
+      super.setSurfaceTexture( surfaceTexture );
+      mSurfaceTexture = surfaceTexture;
+   }
+
    public void SetVideoSize( int videoWidth, int videoHeight ) {
       mVideoWidth = videoWidth;
       mVideoHeight = videoHeight;
@@ -110,11 +116,18 @@ public class ScaledTextureView extends TextureView implements SurfaceTextureList
 
    @Override
    public boolean onSurfaceTextureDestroyed( SurfaceTexture surface ) {
+      mSurfaceAvailable = false;
+      mSurfaceTexture = null;
+
+      // Any listener can take ownership of the SurfaceTexture by returning false.
+      boolean release = true;
       for ( SurfaceTextureListener listener : mListeners ) {
-         listener.onSurfaceTextureDestroyed( surface );
+         if ( !listener.onSurfaceTextureDestroyed( surface ) ) {
+            release = false;
+         }
       }
 
-      return true;
+      return release;
    }
 
    @Override
@@ -0,0 +1,211 @@
+/**
+   Copyright (c) 2014 Rory Hool
+   
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+   
+       http://www.apache.org/licenses/LICENSE-2.0
+   
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ **/
+
+package com.roryhool.videoplayback;
+
+import java.util.ArrayList;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.view.Choreographer;
+
+/**
+ * One clock for several players showing the same moment, e.g. multiple camera angles side by side. Each
+ * {@link MediaCodecDecodeController} attached with {@link MediaCodecDecodeController#setSharedClock(SharedPlaybackClock)}
+ * reads its time from here, and play, pause and seek on any of them apply to all. A player that stops on its own, when
+ * its surface goes away or its clip ends, leaves the clock and the other players running.
+ * 
+ * Decoder threads don't pace themselves against the clock. They hand each decoded frame to the clock and wait, and a
+ * single scheduler thread releases the frames that are due on every vsync. N players cost one timer loop and show
+ * frames from the same vsync.
+ */
+@TargetApi( Build.VERSION_CODES.JELLY_BEAN )
+public class SharedPlaybackClock {
+
+   private static final String TAG = "SharedPlaybackClock";
+
+   private static final long DEFAULT_FRAME_INTERVAL_NS = 16666667;
+
+   interface Subscriber {
+      /**
+       * Called on the scheduler thread every vsync. Renders the pending frame if it is due at clockTimeMs. A frame
+       * older than dropBeforeMs is released without rendering, and the player then decodes up to clockTimeMs without
+       * waiting and renders only the newest of those frames, so a late player catches up instead of lagging.
+       */
+      public void releaseFrame( long clockTimeMs, long dropBeforeMs );
+   }
+
+   PlaybackTimer mTimer = new PlaybackTimer();
+
+   ArrayList<MediaCodecDecodeController> mControllers = new ArrayList<MediaCodecDecodeController>();
+
+   ArrayList<Subscriber> mSubscribers = new ArrayList<Subscriber>();
+
+   HandlerThread mSchedulerThread;
+
+   Handler mSchedulerHandler;
+
+   Choreographer mChoreographer;
+
+   boolean mFrameCallbackPosted = false;
+
+   long mLastFrameTimeNs = 0;
+
+   long mFrameIntervalNs = DEFAULT_FRAME_INTERVAL_NS;
+
+   public SharedPlaybackClock() {
+      mSchedulerThread = new HandlerThread( TAG );
+      mSchedulerThread.start();
+      mSchedulerHandler = new Handler( mSchedulerThread.getLooper() );
+   }
+
+   public void play() {
+      synchronized ( this ) {
+         if ( mTimer.isRunning() ) {
+            return;
+         }
+         mTimer.start();
+      }
+
+      for ( MediaCodecDecodeController controller : getControllers() ) {
+         controller.playFromClock();
+      }
+
+      mSchedulerHandler.post( mStartFrames );
+   }
+
+   public void pause() {
+      synchronized ( this ) {
+         if ( !mTimer.isRunning() ) {
+            return;
+         }
+         mTimer.stop();
+      }
+
+      for ( MediaCodecDecodeController controller : getControllers() ) {
+         controller.pauseFromClock();
+      }
+   }
+
+   public void seekTo( int ms ) {
+      synchronized ( this ) {
+         mTimer.setTime( ms );
+      }
+
+      for ( MediaCodecDecodeController controller : getControllers() ) {
+         controller.seekFromClock( ms );
+      }
+   }
+
+   public synchronized long getTime() {
+      return mTimer.getTime();
+   }
+
+   public synchronized boolean isRunning() {
+      return mTimer.isRunning();
+   }
+
+   /**
+    * Stops the scheduler thread. Detach the players first.
+    */
+   public void release() {
+      pause();
+      mSchedulerThread.quit();
+   }
+
+   void addController( MediaCodecDecodeController controller ) {
+      synchronized ( mControllers ) {
+         if ( !mControllers.contains( controller ) ) {
+            mControllers.add( controller );
+         }
+      }
+   }
+
+   void removeController( MediaCodecDecodeController controller ) {
+      synchronized ( mControllers ) {
+         mControllers.remove( controller );
+      }
+   }
+
+   void addSubscriber( Subscriber subscriber ) {
+      synchronized ( mSubscribers ) {
+         mSubscribers.add( subscriber );
+      }
+   }
+
+   void removeSubscriber( Subscriber subscriber ) {
+      synchronized ( mSubscribers ) {
+         mSubscribers.remove( subscriber );
+      }
+   }
+
+   private MediaCodecDecodeController[] getControllers() {
+      synchronized ( mControllers ) {
+         return mControllers.toArray( new MediaCodecDecodeController[mControllers.size()] );
+      }
+   }
+
+   private Runnable mStartFrames = new Runnable() {
+
+      @Override
+      public void run() {
+         // Choreographer is per looper, so it has to be fetched on the scheduler thread.
+         if ( mChoreographer == null ) {
+            mChoreographer = Choreographer.getInstance();
+         }
+
+         if ( !mFrameCallbackPosted ) {
+            mFrameCallbackPosted = true;
+            mLastFrameTimeNs = 0;
+            mChoreographer.postFrameCallback( mFrameCallback );
+         }
+      }
+
+   };
+
+   private Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+
+      @Override
+      public void doFrame( long frameTimeNanos ) {
+         if ( mLastFrameTimeNs != 0 ) {
+            long interval = frameTimeNanos - mLastFrameTimeNs;
+            // Skipped vsyncs show up as multiples, only trust intervals close to a single frame.
+            if ( interval > 0 && interval < DEFAULT_FRAME_INTERVAL_NS * 3 / 2 ) {
+               mFrameIntervalNs = ( mFrameIntervalNs * 7 + interval ) / 8;
+            }
+         }
+         mLastFrameTimeNs = frameTimeNanos;
+
+         long clockTimeMs = getTime();
+         long dropBeforeMs = clockTimeMs - mFrameIntervalNs * 2 / 1000000;
+
+         synchronized ( mSubscribers ) {
+            for ( int i = 0; i < mSubscribers.size(); i++ ) {
+               mSubscribers.get( i ).releaseFrame( clockTimeMs, dropBeforeMs );
+            }
+         }
+
+         if ( isRunning() ) {
+            mChoreographer.postFrameCallback( this );
+         } else {
+            mFrameCallbackPosted = false;
+         }
+      }
+
+   };
+}
@@ -17,6 +17,7 @@
 package com.roryhool.videoplayback;
 
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.SurfaceTexture;
 import android.os.CountDownTimer;
 import android.util.AttributeSet;
@@ -26,6 +27,7 @@ import android.view.animation.AlphaAnimation;
 import android.view.animation.TranslateAnimation;
 import android.widget.FrameLayout;
 import android.widget.ImageButton;
+import android.widget.ImageView;
 import android.widget.RelativeLayout;
 import android.widget.SeekBar;
 import android.widget.SeekBar.OnSeekBarChangeListener;
@@ -34,6 +36,8 @@ public class VideoPlayerView extends FrameLayout implements SurfaceTextureListen
 
    ScaledTextureView mVideoTextureView;
 
+   ImageView mPosterView;
+
    SeekBar mSeekBar;
 
    ImageButton mPlayButton;
@@ -74,6 +78,8 @@ public class VideoPlayerView extends FrameLayout implements SurfaceTextureListen
 
       mVideoTextureView.addSurfaceTextureListener( this );
 
+      mPosterView = (ImageView) findViewById( R.id.video_poster );
+
       mPlayButton = (ImageButton) findViewById( R.id.play_button );
 
       mVideoControls = (RelativeLayout) findViewById( R.id.video_controls );
@@ -102,6 +108,20 @@ public class VideoPlayerView extends FrameLayout implements SurfaceTextureListen
       }
    }
 
+   /**
+    * Covers the video with a still frame, used while the player has no decoder.
+    */
+   public void showPoster( Bitmap poster ) {
+      mPosterView.setImageBitmap( poster );
+      mPosterView.setRotation( mVideoTextureView.getRotation() );
+      mPosterView.setVisibility( View.VISIBLE );
+   }
+
+   public void hidePoster() {
+      mPosterView.setVisibility( View.GONE );
+      mPosterView.setImageBitmap( null );
+   }
+
    public void setFullscreenFillView( View view ) {
       mFullscreenFillView = view;
    }
@@ -240,8 +260,12 @@ public class VideoPlayerView extends FrameLayout implements SurfaceTextureListen
 
    @Override
    public boolean onSurfaceTextureDestroyed( SurfaceTexture surfaceTexture ) {
-      // TODO Auto-generated method stub
-      return false;
+      mSurfaceTexture = null;
+
+      if ( mController != null ) {
+         return mController.onSurfaceTextureDestroyed( surfaceTexture );
+      }
+      return true;
    }
 
    @Override
@@ -252,8 +276,9 @@ public class VideoPlayerView extends FrameLayout implements SurfaceTextureListen
 
    @Override
    public void onSurfaceTextureUpdated( SurfaceTexture surfaceTexture ) {
-      // TODO Auto-generated method stub
-
+      if ( mController != null ) {
+         mController.onSurfaceTextureUpdated( surfaceTexture );
+      }
    }
 
    CountDownTimer mTimer = new CountDownTimer( 3000, 300 ) {
@@ -332,6 +357,12 @@ public class VideoPlayerView extends FrameLayout implements SurfaceTextureListen
       resetTimer();
    }
 
+   @Override
+   public void onPrepared() {
+      mSeekBar.setMax( mController.getDuration() );
+      mVideoTextureView.SetVideoSize( mController.getVideoWidth(), mController.getVideoHeight() );
+   }
+
    @Override
    public void onCompletion() {
       showControls();